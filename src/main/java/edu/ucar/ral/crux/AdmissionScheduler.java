@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+/**
+ * Runs a batch of jobs in parallel while keeping the memory they are estimated to need within a heap budget.  A job is
+ * started once a thread is free and its estimate fits in the part of the budget not held by running jobs, so large
+ * files run with less concurrency while small files keep the remaining threads busy.  Waiting jobs are considered from
+ * the largest estimate to the smallest, so that large files start as soon as there is room for them rather than holding
+ * up the end of the batch.  Smaller jobs which fit may start ahead of the largest waiting job while it does not, but
+ * only as many as there are threads, after which no job starts until the largest fits, so a steady stream of small
+ * jobs cannot hold a large one back for good.  A job whose estimate is at least the whole budget runs alone
+ */
+public class AdmissionScheduler {
+  private static final Logger LOG = LoggerFactory.getLogger( AdmissionScheduler.class );
+  //the share of the maximum heap size used as the budget by default
+  private static final int DEFAULT_BUDGET_PERCENT = 50;
+
+  private final int threads;
+  private final long budgetBytes;
+  private long reservedBytes = 0;
+  private int running = 0;
+  //the number of jobs started ahead of the largest waiting job since it first did not fit
+  private int passedOverHead = 0;
+
+  /**
+   * @param threads the maximum number of jobs run at the same time
+   * @param budgetBytes the memory which running jobs may need in total
+   */
+  public AdmissionScheduler( int threads, long budgetBytes ) {
+    this.threads = Math.max( 1, threads );
+    this.budgetBytes = Math.max( 1, budgetBytes );
+  }
+
+  /**
+   * @return the default budget, which is half of the maximum heap size
+   */
+  public static long getDefaultBudgetBytes() {
+    return Runtime.getRuntime().maxMemory() / 100 * DEFAULT_BUDGET_PERCENT;
+  }
+
+  /**
+   * Run every job, each once it can be admitted
+   * @param jobs the jobs to run
+   * @return the result of each job, in the order of the jobs
+   */
+  public <T> List<T> run( final List<Job<T>> jobs ) {
+    //jobs are removed from anywhere in the pending list as they are admitted
+    List<Integer> pending = new LinkedList<>();
+    List<CompletableFuture<T>> futures = new ArrayList<>( jobs.size() );
+    for( int i = 0; i < jobs.size(); i++ ) {
+      pending.add( i );
+      futures.add( null );
+    }
+    //a stable sort, so jobs of the same size run in their original order
+    pending.sort( ( a, b ) -> Long.compare( jobs.get( b ).memoryBytes, jobs.get( a ).memoryBytes ) );
+    synchronized( this ) {
+      passedOverHead = 0;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool( Math.min( threads, Math.max( 1, jobs.size() ) ) );
+    try {
+      while( !pending.isEmpty() ) {
+        int index = admitNext( jobs, pending );
+        final Job<T> job = jobs.get( index );
+        CompletableFuture<T> future = CompletableFuture.supplyAsync( job.work, executor );
+        future.whenComplete( ( result, throwable ) -> release( job ) );
+        futures.set( index, future );
+      }
+      List<T> results = new ArrayList<>( jobs.size() );
+      for( CompletableFuture<T> future : futures ) {
+        results.add( future.join() );
+      }
+      return results;
+    }
+    catch( CompletionException e ) {
+      if( e.getCause() instanceof RuntimeException ) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Wait until a pending job can be admitted, then reserve its memory and remove it from the pending jobs
+   * @return the index of the admitted job
+   */
+  private synchronized int admitNext( List<? extends Job<?>> jobs, List<Integer> pending ) {
+    boolean interrupted = false;
+    try {
+      while( true ) {
+        if( running < threads ) {
+          boolean head = true;
+          for( Iterator<Integer> iterator = pending.iterator(); iterator.hasNext(); ) {
+            int index = iterator.next();
+            Job<?> job = jobs.get( index );
+            if( running == 0 || reservedBytes + reservation( job ) <= budgetBytes ) {
+              iterator.remove();
+              reservedBytes += reservation( job );
+              running++;
+              passedOverHead = head ? 0 : passedOverHead + 1;
+              return index;
+            }
+            //once the largest job has waited for enough others, the memory they release is kept for it
+            if( head && passedOverHead >= threads ) {
+              break;
+            }
+            head = false;
+          }
+          LOG.debug( "Waiting for memory, {} of {} bytes reserved by {} running job(s)", reservedBytes, budgetBytes, running );
+        }
+        try {
+          wait();
+        }
+        catch( InterruptedException e ) {
+          //admission continues, as the running jobs release their memory regardless
+          interrupted = true;
+        }
+      }
+    }
+    finally {
+      if( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Wait until memory fits in the part of the budget not held by running jobs or other reservations, then reserve it.
+   * This admits work which is not run as a job, such as files held by the stages of a pipeline.  Memory of at least the
+   * whole budget is reserved once nothing else is
+   * @param memoryBytes the memory needed
+   * @return the memory reserved, to be released with {@link #release(long)}
+   */
+  public synchronized long reserve( long memoryBytes ) {
+    long reservation = Math.min( Math.max( 0, memoryBytes ), budgetBytes );
+    boolean interrupted = false;
+    try {
+      while( reservedBytes > 0 && reservedBytes + reservation > budgetBytes ) {
+        try {
+          wait();
+        }
+        catch( InterruptedException e ) {
+          //the holders of the memory release it regardless
+          interrupted = true;
+        }
+      }
+      reservedBytes += reservation;
+      return reservation;
+    }
+    finally {
+      if( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Release memory reserved with {@link #reserve(long)}
+   */
+  public synchronized void release( long reservation ) {
+    reservedBytes -= reservation;
+    notifyAll();
+  }
+
+  private synchronized void release( Job<?> job ) {
+    reservedBytes -= reservation( job );
+    running--;
+    notifyAll();
+  }
+
+  private long reservation( Job<?> job ) {
+    return Math.min( job.memoryBytes, budgetBytes );
+  }
+
+  /**
+   * A unit of work with an estimate of the memory it needs
+   */
+  public static class Job<T> {
+    private final long memoryBytes;
+    private final Supplier<T> work;
+
+    /**
+     * @param memoryBytes the memory the job is estimated to need.  Long.MAX_VALUE runs the job alone
+     * @param work the work to do
+     */
+    public Job( long memoryBytes, Supplier<T> work ) {
+      this.memoryBytes = Math.max( 0, memoryBytes );
+      this.work = work;
+    }
+
+    public long getMemoryBytes() {
+      return memoryBytes;
+    }
+  }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the XML and XSD entries of a zip or tar archive so they can be validated without extracting them to disk.  An
+ * archive path may select entries with a pattern after a "!/" separator, as in "delivery.zip!/products/*.xml";
+ * otherwise every .xml and .xsd entry is read.  Entries are named "archive!/entry" in validation results.
+ * <p>
+ * Zip entries are decompressed in parallel.  Tar archives may be compressed in any {@link Compression} format, and
+ * their entries can only be read in order, so they are decompressed by the calling thread while earlier entries are
+ * validated in parallel.  Relative references in a zip entry, such as schema locations, resolve to other entries of the
+ * same archive; those in a tar entry resolve as though the archive had been extracted into its own directory
+ */
+public class ArchiveReader implements Closeable {
+  static final String ENTRY_SEPARATOR = "!/";
+  private static final String[] DEFAULT_PATTERNS = { "**/*.xml", "**/*.xsd" };
+  private static final String[] ZIP_EXTENSIONS = { ".zip" };
+  private static final String[] TAR_EXTENSIONS = { ".tar", ".tar.gz", ".tgz", ".tar.xz", ".txz", ".tar.zst", ".tzst" };
+
+  private final String archivePath;
+  private final File archiveFile;
+  private final String[] patterns;
+  private final ZipFile zipFile;
+
+  /**
+   * @param path the path to a local zip or tar archive, optionally followed by "!/" and a pattern selecting entries
+   * @throws IOException if the archive could not be opened
+   */
+  public ArchiveReader( String path ) throws IOException {
+    int separator = path.indexOf( ENTRY_SEPARATOR );
+    this.archivePath = separator < 0 ? path : path.substring( 0, separator );
+    this.patterns = separator < 0 ? DEFAULT_PATTERNS : new String[]{ path.substring( separator + ENTRY_SEPARATOR.length() ) };
+    this.archiveFile = new File( archivePath );
+    if( !archiveFile.isFile() ) {
+      throw new FileNotFoundException( "No such file: " + archivePath );
+    }
+    this.zipFile = hasExtension( archivePath, ZIP_EXTENSIONS ) ? new ZipFile( archiveFile ) : null;
+  }
+
+  /**
+   * @param path a file path
+   * @return whether the path names a zip or tar archive, optionally followed by "!/" and a pattern selecting entries
+   */
+  public static boolean isArchive( String path ) {
+    int separator = path.indexOf( ENTRY_SEPARATOR );
+    String archivePath = separator < 0 ? path : path.substring( 0, separator );
+    return Utils.isLocalFile( archivePath ) && ( hasExtension( archivePath, ZIP_EXTENSIONS ) || hasExtension( archivePath, TAR_EXTENSIONS ) );
+  }
+
+  private static boolean hasExtension( String path, String[] extensions ) {
+    String lowerCasePath = path.toLowerCase( Locale.ROOT );
+    for( String extension : extensions ) {
+      if( lowerCasePath.endsWith( extension ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Apply a task, such as validation, to every selected entry of the archive
+   * @param task the task applied to each entry.  An entry which cannot be read is passed as an input which fails to
+   *             open, so that the task can report it
+   * @param executor the executor on which entries are decompressed, where the format allows, and tasks run
+   * @param parallelism the number of entries which may be held in memory awaiting or undergoing their task
+   * @return the result of the task for each entry, in archive order
+   * @throws IOException if the archive could not be read
+   */
+  public <T> List<T> forEachEntry( Function<ValidationInput,T> task, Executor executor, int parallelism ) throws IOException {
+    List<CompletableFuture<T>> futures = zipFile != null ? submitZipEntries( task, executor, parallelism ) : submitTarEntries( task, executor, parallelism );
+    List<T> results = new ArrayList<>( futures.size() );
+    try {
+      for( CompletableFuture<T> future : futures ) {
+        results.add( future.join() );
+      }
+    }
+    catch( CompletionException e ) {
+      if( e.getCause() instanceof RuntimeException ) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  private <T> List<CompletableFuture<T>> submitZipEntries( Function<ValidationInput,T> task, Executor executor, int parallelism ) {
+    List<CompletableFuture<T>> futures = new ArrayList<>();
+    //bound the number of entries held in memory, as tar entries are, so large archives are not all queued at once
+    final Semaphore buffered = new Semaphore( Math.max( 1, parallelism ) );
+    for( final ZipEntry entry : Collections.list( zipFile.entries() ) ) {
+      if( entry.isDirectory() || !isSelected( entry.getName() ) ) {
+        continue;
+      }
+      //ZipFile supports concurrent reads of different entries, so each entry is decompressed by the task's thread
+      futures.add( submit( () -> {
+        ValidationInput input;
+        try( InputStream in = zipFile.getInputStream( entry ) ) {
+          input = ValidationInput.of( entryName( entry.getName() ), zipSystemId( entry.getName() ), readFully( in ) );
+        }
+        catch( IOException e ) {
+          input = unreadable( entry.getName(), e );
+        }
+        return task.apply( input );
+      }, executor, buffered ) );
+    }
+    return futures;
+  }
+
+  private <T> List<CompletableFuture<T>> submitTarEntries( Function<ValidationInput,T> task, Executor executor, int parallelism ) throws IOException {
+    List<CompletableFuture<T>> futures = new ArrayList<>();
+    //bound the number of decompressed entries held in memory while earlier entries are validated
+    final Semaphore buffered = new Semaphore( Math.max( 1, parallelism ) );
+    try( TarArchiveInputStream tar = new TarArchiveInputStream( openTarStream() ) ) {
+      TarArchiveEntry entry;
+      while( ( entry = tar.getNextEntry() ) != null ) {
+        if( !entry.isFile() || !isSelected( entry.getName() ) ) {
+          continue;
+        }
+        //the permit is taken before the entry is read, which must happen on this thread as the stream is sequential
+        buffered.acquireUninterruptibly();
+        final ValidationInput input;
+        try {
+          input = ValidationInput.of( entryName( entry.getName() ), tarSystemId( entry.getName() ), readFully( tar ) );
+        }
+        catch( IOException | RuntimeException e ) {
+          buffered.release();
+          throw e;
+        }
+        futures.add( submitAcquired( () -> task.apply( input ), executor, buffered ) );
+      }
+    }
+    return futures;
+  }
+
+  /**
+   * Run a task once a permit is free, releasing the permit when the task completes
+   */
+  private static <T> CompletableFuture<T> submit( Supplier<T> task, Executor executor, Semaphore permits ) {
+    permits.acquireUninterruptibly();
+    return submitAcquired( task, executor, permits );
+  }
+
+  /**
+   * Run a task for which a permit has been taken, releasing the permit when the task completes
+   */
+  private static <T> CompletableFuture<T> submitAcquired( Supplier<T> task, Executor executor, Semaphore permits ) {
+    CompletableFuture<T> future;
+    try {
+      future = CompletableFuture.supplyAsync( task, executor );
+    }
+    catch( RuntimeException e ) {
+      permits.release();
+      throw e;
+    }
+    future.whenComplete( ( result, throwable ) -> permits.release() );
+    return future;
+  }
+
+  private InputStream openTarStream() throws IOException {
+    return Compression.detect( archiveFile ).decompress( new BufferedInputStream( new FileInputStream( archiveFile ) ) );
+  }
+
+  private boolean isSelected( String name ) {
+    for( String pattern : patterns ) {
+      if( SelectorUtils.matchPath( pattern, name ) ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private String entryName( String name ) {
+    return archivePath + ENTRY_SEPARATOR + name;
+  }
+
+  private String zipSystemId( String name ) {
+    return "jar:" + archiveFile.getAbsoluteFile().toURI() + ENTRY_SEPARATOR + encodePath( name );
+  }
+
+  private String tarSystemId( String name ) {
+    return archiveFile.getAbsoluteFile().getParentFile().toURI().resolve( encodePath( name ) ).toString();
+  }
+
+  private static String encodePath( String name ) {
+    try {
+      return new URI( null, null, name, null ).getRawPath();
+    }
+    catch( URISyntaxException e ) {
+      return name;
+    }
+  }
+
+  private ValidationInput unreadable( String name, final IOException e ) {
+    return new ValidationInput( entryName( name ), zipSystemId( name ) ) {
+      @Override
+      public InputStream open() throws IOException {
+        throw e;
+      }
+    };
+  }
+
+  static byte[] readFully( InputStream in ) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while( ( read = in.read( buffer ) ) != -1 ) {
+      out.write( buffer, 0, read );
+    }
+    return out.toByteArray();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if( zipFile != null ) {
+      zipFile.close();
+    }
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking facade over a {@link ValidationProfile} for services which must not block their own threads on
+ * validation.  Validations run on a pluggable executor and complete with a {@link ValidationResult} whether or not the
+ * file is valid; a future only completes exceptionally for unexpected runtime failures.  The number of validations in
+ * flight on the executor is bounded: beyond it, {@link #validateAsync(String)} queues the validation until one in flight
+ * completes, while {@link #tryValidateAsync(String)} is rejected immediately.  Neither blocks the caller
+ */
+public class AsyncValidator implements AutoCloseable {
+  private final ValidationProfile profile;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+  private final int maxInFlight;
+  //the validations submitted to the executor but not yet completed, and those waiting for one of them to complete
+  private int inFlight = 0;
+  private final Deque<Runnable> queued = new ArrayDeque<>();
+  private volatile long fileTimeoutMs = 0;
+
+  /**
+   * Create an asynchronous validator with its own pool of one thread per available processor, allowing twice that
+   * many validations in flight
+   * @param profile the profile used for validation
+   */
+  public AsyncValidator( ValidationProfile profile ){
+    this( profile, Runtime.getRuntime().availableProcessors() );
+  }
+
+  private AsyncValidator( ValidationProfile profile, int numThreads ){
+    this( profile, Executors.newFixedThreadPool( numThreads, new DaemonThreadFactory() ), numThreads * 2, true );
+  }
+
+  /**
+   * @param profile the profile used for validation
+   * @param executor the executor on which validations run.  It is not shut down by {@link #close()}
+   * @param maxInFlight the maximum number of validations submitted to the executor but not yet completed
+   */
+  public AsyncValidator( ValidationProfile profile, Executor executor, int maxInFlight ){
+    this( profile, executor, maxInFlight, false );
+  }
+
+  private AsyncValidator( ValidationProfile profile, Executor executor, int maxInFlight, boolean ownsExecutor ){
+    if( maxInFlight < 1 ){
+      throw new IllegalArgumentException( "At least one validation must be allowed in flight" );
+    }
+    this.profile = profile;
+    this.executor = executor;
+    this.ownedExecutor = ownsExecutor ? (ExecutorService) executor : null;
+    this.maxInFlight = maxInFlight;
+  }
+
+  /**
+   * Validate a file asynchronously.  If the maximum number of validations are already in flight, the validation is
+   * queued and submitted once one of them completes
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @return a future completed with the result of validation
+   */
+  public CompletableFuture<ValidationResult> validateAsync( final String xmlOrXsdPath ){
+    return submit( () -> profile.validateToResult( xmlOrXsdPath, Deadline.after( fileTimeoutMs ) ), true );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file, such as an archive entry or a document read from a stream,
+   * asynchronously, queueing it as {@link #validateAsync(String)} does
+   * @param input the XML or XSD content to validate
+   * @return a future completed with the result of validation
+   */
+  public CompletableFuture<ValidationResult> validateAsync( final ValidationInput input ){
+    return submit( () -> profile.validateToResult( input, Deadline.after( fileTimeoutMs ) ), true );
+  }
+
+  /**
+   * Validate a file asynchronously if fewer than the maximum number of validations are in flight
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @return a future completed with the result of validation, or completed exceptionally with a
+   * RejectedExecutionException if too many validations are in flight
+   */
+  public CompletableFuture<ValidationResult> tryValidateAsync( final String xmlOrXsdPath ){
+    return submit( () -> profile.validateToResult( xmlOrXsdPath, Deadline.after( fileTimeoutMs ) ), false );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file asynchronously if fewer than the maximum number of
+   * validations are in flight, as {@link #tryValidateAsync(String)} does
+   * @param input the XML or XSD content to validate
+   * @return a future completed with the result of validation, or completed exceptionally with a
+   * RejectedExecutionException if too many validations are in flight
+   */
+  public CompletableFuture<ValidationResult> tryValidateAsync( final ValidationInput input ){
+    return submit( () -> profile.validateToResult( input, Deadline.after( fileTimeoutMs ) ), false );
+  }
+
+  /**
+   * @param queueing whether the validation is queued, rather than rejected, when too many are in flight
+   */
+  private CompletableFuture<ValidationResult> submit( final Supplier<ValidationResult> validation, boolean queueing ){
+    final CompletableFuture<ValidationResult> future = new CompletableFuture<>();
+    Runnable start = () -> execute( validation, future );
+    synchronized( this ){
+      if( inFlight >= maxInFlight ){
+        if( queueing ){
+          queued.add( start );
+        }
+        else {
+          future.completeExceptionally( new RejectedExecutionException( maxInFlight + " validations are already in flight" ) );
+        }
+        return future;
+      }
+      inFlight++;
+    }
+    start.run();
+    return future;
+  }
+
+  /**
+   * Submit a validation, which holds a slot in flight, to the executor
+   */
+  private void execute( final Supplier<ValidationResult> validation, final CompletableFuture<ValidationResult> future ){
+    try {
+      executor.execute( () -> {
+        try {
+          future.complete( validation.get() );
+        }
+        catch( Throwable e ){
+          future.completeExceptionally( e );
+        }
+        finally {
+          completed();
+        }
+      } );
+    }
+    catch( RejectedExecutionException e ){
+      future.completeExceptionally( e );
+      completed();
+    }
+  }
+
+  /**
+   * Hand the slot of a completed validation to the next queued validation, if there is one
+   */
+  private void completed(){
+    Runnable next;
+    synchronized( this ){
+      next = queued.poll();
+      if( next == null ){
+        inFlight--;
+      }
+    }
+    if( next != null ){
+      next.run();
+    }
+  }
+
+  /**
+   * @return the number of validations submitted but not yet completed
+   */
+  public synchronized int getInFlightCount(){
+    return inFlight;
+  }
+
+  /**
+   * @return the number of validations waiting for a slot in flight
+   */
+  public synchronized int getQueuedCount(){
+    return queued.size();
+  }
+
+  public int getMaxInFlight() {
+    return maxInFlight;
+  }
+
+  public long getFileTimeoutMs() {
+    return fileTimeoutMs;
+  }
+
+  /**
+   * Set the maximum time the validation of a single file may take, after which its result holds a
+   * {@link ValidationTimeoutError}.  Zero (the default) means no limit
+   */
+  public void setFileTimeoutMs( long fileTimeoutMs ) {
+    this.fileTimeoutMs = fileTimeoutMs;
+  }
+
+  /**
+   * Shut down the executor if it was created by this validator.  Validations already in flight are completed, while
+   * those still queued complete exceptionally with a RejectedExecutionException
+   */
+  @Override
+  public void close(){
+    if( ownedExecutor != null ){
+      ownedExecutor.shutdown();
+    }
+  }
+
+  private static class DaemonThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread( Runnable r ) {
+      Thread thread = new Thread( r, "crux-async-" + count.incrementAndGet() );
+      thread.setDaemon( true );
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Selects a random sample of the files of a batch, so that the error rate of a very large batch can be estimated by
+ * validating only some of its files.  The sample is a fraction or a fixed number of the files, chosen with a seed so
+ * that the same batch and seed always give the same sample.  The batch may be split into strata, by directory or by the
+ * schemas the files refer to, each sampled in proportion to its size, so that every stratum is represented and its
+ * error rate estimated too.
+ * <p>
+ * Stratifying by schema needs the root element of each file, so to avoid reading every file of a very large batch, the
+ * strata are found from a first, simple random sample of {@link #FIRST_PHASE_FACTOR} times as many files as are to be
+ * validated, and the files to validate are sampled from it.  The size of each stratum is estimated from its share of the
+ * first sample, and the uncertainty of those shares is included in the confidence interval of the batch.  A stratum
+ * too small to appear in the first sample is not represented.
+ * <p>
+ * Error rates are estimated with 95% Wilson score intervals, which stay within 0% to 100% and remain meaningful when
+ * no sampled file fails.  Across strata, the rates of the strata are weighted by their sizes.  Each input of the batch
+ * counts once: an archive fails if any of its entries fail, a file split into records if any of its records fail
+ */
+public class BatchSample {
+  //the normal quantile of a 95% confidence interval
+  private static final double Z = 1.96;
+  /**
+   * The size of the first sample, whose root elements are read to stratify by schema, as a multiple of the number of
+   * files to validate
+   */
+  public static final int FIRST_PHASE_FACTOR = 10;
+
+  /**
+   * How the files of a batch are split into strata, each sampled separately
+   */
+  public enum Strata {
+    /** the whole batch is sampled at once */
+    NONE,
+    /** files are grouped by the directory they are in */
+    DIRECTORY,
+    /**
+     * files are grouped by the schemas their root element refers to.  This reads the root element of
+     * {@link #FIRST_PHASE_FACTOR} times as many files as are sampled, or of every file of a smaller batch
+     */
+    SCHEMA
+  }
+
+  private final double fraction;
+  private final int count;
+  private long seed = System.nanoTime();
+  private Strata strata = Strata.NONE;
+
+  private BatchSample( double fraction, int count ) {
+    this.fraction = fraction;
+    this.count = count;
+  }
+
+  /**
+   * @param fraction the fraction of the files of a batch, or of each stratum, to validate, greater than 0 and at most 1
+   * @return a sample of the fraction of a batch.  At least one file of each stratum is sampled
+   */
+  public static BatchSample ofFraction( double fraction ) {
+    if( !( fraction > 0 && fraction <= 1 ) ) {
+      throw new IllegalArgumentException( "A sample fraction must be greater than 0 and at most 1, not " + fraction );
+    }
+    return new BatchSample( fraction, 0 );
+  }
+
+  /**
+   * @param count the number of files of a batch to validate, split across strata in proportion to their sizes
+   * @return a sample of the number of files of a batch.  At least one file of each stratum is sampled, so a batch with
+   * many strata may have a slightly larger sample
+   */
+  public static BatchSample ofCount( int count ) {
+    if( count < 1 ) {
+      throw new IllegalArgumentException( "A sample must have at least one file, not " + count );
+    }
+    return new BatchSample( 0, count );
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  /**
+   * Set the seed of the random selection, so that a sample can be repeated.  Based on the time by default
+   */
+  public void setSeed( long seed ) {
+    this.seed = seed;
+  }
+
+  public Strata getStrata() {
+    return strata;
+  }
+
+  /**
+   * Set how the batch is split into strata, each sampled separately.  {@link Strata#NONE} by default
+   */
+  public void setStrata( Strata strata ) {
+    this.strata = strata;
+  }
+
+  /**
+   * Select the files to validate from a batch
+   * @param files the files of the batch, with wildcards resolved
+   * @return the selected files, in the order of the batch, with what is needed to estimate the error rate of the batch
+   * once they have been validated
+   */
+  public Selection select( List<String> files ) {
+    Random random = new Random( seed );
+    //the files the strata are found from: the whole batch, or a first sample of it when finding strata is costly
+    List<String> frame = files;
+    if( strata == Strata.SCHEMA ) {
+      long firstPhaseSize = (long) getTargetSize( files.size() ) * FIRST_PHASE_FACTOR;
+      if( firstPhaseSize < files.size() ) {
+        frame = new ArrayList<>( files );
+        Collections.sort( frame );
+        shuffleFront( frame, (int) firstPhaseSize, random );
+        frame = frame.subList( 0, (int) firstPhaseSize );
+      }
+    }
+    //files are sorted within each stratum so the sample does not depend on the order in which they were listed
+    Map<String,List<String>> byStratum = new TreeMap<>();
+    for( String file : frame ) {
+      byStratum.computeIfAbsent( getStratum( file ), k -> new ArrayList<>() ).add( file );
+    }
+    Map<String,String> stratumOfSelected = new HashMap<>();
+    Map<String,Double> weights = new TreeMap<>();
+    for( Map.Entry<String,List<String>> entry : byStratum.entrySet() ) {
+      List<String> stratumFiles = entry.getValue();
+      Collections.sort( stratumFiles );
+      double weight = (double) stratumFiles.size() / frame.size();
+      weights.put( entry.getKey(), weight );
+      int size = getSampleSize( stratumFiles.size(), weight, files.size() );
+      shuffleFront( stratumFiles, size, random );
+      for( int i = 0; i < size; i++ ) {
+        stratumOfSelected.put( stratumFiles.get( i ), entry.getKey() );
+      }
+    }
+    List<String> selected = new ArrayList<>( stratumOfSelected.size() );
+    List<String> selectedStrata = new ArrayList<>( stratumOfSelected.size() );
+    for( String file : files ) {
+      String stratum = stratumOfSelected.remove( file );
+      if( stratum != null ) {
+        selected.add( file );
+        selectedStrata.add( stratum );
+      }
+    }
+    return new Selection( selected, selectedStrata, weights, files.size(), frame.size() );
+  }
+
+  /**
+   * A partial Fisher-Yates shuffle, choosing a random sample of a list into its front
+   */
+  private static void shuffleFront( List<String> files, int size, Random random ) {
+    for( int i = 0; i < size; i++ ) {
+      Collections.swap( files, i, i + random.nextInt( files.size() - i ) );
+    }
+  }
+
+  /**
+   * @return the number of files to validate from a batch, before any are added so every stratum is represented
+   */
+  private int getTargetSize( int batchSize ) {
+    return count > 0 ? count : (int) Math.ceil( fraction * batchSize - 1e-9 );
+  }
+
+  /**
+   * @param available the files of the stratum which may be sampled
+   * @param weight the estimated share of the batch in the stratum
+   * @param batchSize the number of files of the batch
+   */
+  private int getSampleSize( int available, double weight, int batchSize ) {
+    double size = count > 0 ? count * weight : fraction * weight * batchSize;
+    return (int) Math.max( 1, Math.min( available, Math.round( Math.ceil( size - 1e-9 ) ) ) );
+  }
+
+  private String getStratum( String file ) {
+    switch( strata ) {
+      case DIRECTORY:
+        //the directory of an archive's entries is the archive's directory
+        String parent = new File( file.contains( "!/" ) ? file.substring( 0, file.indexOf( "!/" ) ) : file ).getParent();
+        return parent == null ? "." : parent;
+      case SCHEMA:
+        RootElement root = Utils.isLocalFile( file ) && !ArchiveReader.isArchive( file ) && !XML10Validator.isSchemaDocument( file ) ?
+          RootElement.read( file ) : null;
+        return root == null ? "(no schema)" : root.getSchemaFingerprint();
+      default:
+        return "";
+    }
+  }
+
+  /**
+   * @return the 95% Wilson score interval of a rate, as its lower and upper bounds
+   * @param rate the estimated rate
+   * @param effectiveSize the number of independent observations the estimate is worth
+   */
+  static double[] wilsonInterval( double rate, double effectiveSize ) {
+    if( effectiveSize <= 0 || Double.isInfinite( effectiveSize ) ) {
+      //every file was validated, so the rate is known exactly
+      return new double[]{ rate, rate };
+    }
+    double z2 = Z * Z;
+    double denominator = 1 + z2 / effectiveSize;
+    double center = ( rate + z2 / ( 2 * effectiveSize ) ) / denominator;
+    double halfWidth = Z / denominator * Math.sqrt( rate * ( 1 - rate ) / effectiveSize + z2 / ( 4 * effectiveSize * effectiveSize ) );
+    return new double[]{ Math.max( 0, center - halfWidth ), Math.min( 1, center + halfWidth ) };
+  }
+
+  /**
+   * The files selected from a batch
+   */
+  public class Selection {
+    private final List<String> files;
+    private final List<String> strataOfFiles;
+    private final Map<String,Double> weights;
+    private final int population;
+    private final int firstPhaseSize;
+
+    private Selection( List<String> files, List<String> strataOfFiles, Map<String,Double> weights, int population, int firstPhaseSize ) {
+      this.files = files;
+      this.strataOfFiles = strataOfFiles;
+      this.weights = weights;
+      this.population = population;
+      this.firstPhaseSize = firstPhaseSize;
+    }
+
+    /**
+     * @return the files to validate, in the order of the batch
+     */
+    public List<String> getFiles() {
+      return Collections.unmodifiableList( files );
+    }
+
+    /**
+     * Estimate the error rate of the batch from the outcome of validating the selected files
+     * @param failed whether each selected file failed validation, in the order of {@link #getFiles()}
+     * @return the estimated error rates of the batch and of each stratum
+     */
+    public Estimate estimate( List<Boolean> failed ) {
+      if( failed.size() != files.size() ) {
+        throw new IllegalArgumentException( "Expected the outcome of " + files.size() + " file(s), not " + failed.size() );
+      }
+      Map<String,int[]> counts = new TreeMap<>();
+      for( int i = 0; i < files.size(); i++ ) {
+        int[] stratumCounts = counts.computeIfAbsent( strataOfFiles.get( i ), k -> new int[2] );
+        stratumCounts[0]++;
+        if( failed.get( i ) ) {
+          stratumCounts[1]++;
+        }
+      }
+      List<Stratum> strataEstimates = new ArrayList<>();
+      double rate = 0;
+      double variance = 0;
+      int sampled = 0;
+      int numFailed = 0;
+      for( Map.Entry<String,int[]> entry : counts.entrySet() ) {
+        double weight = weights.get( entry.getKey() );
+        int stratumPopulation = (int) Math.round( weight * population );
+        Stratum stratum = new Stratum( entry.getKey(), stratumPopulation, entry.getValue()[0], entry.getValue()[1] );
+        strataEstimates.add( stratum );
+        rate += weight * stratum.getRate();
+        variance += weight * weight * stratum.variance;
+        sampled += stratum.getSampled();
+        numFailed += stratum.getFailed();
+      }
+      if( firstPhaseSize < population ) {
+        //the weights of the strata were estimated from a first sample, whose variance adds to that of the rate
+        double between = 0;
+        for( Stratum stratum : strataEstimates ) {
+          between += weights.get( stratum.getName() ) * ( stratum.getRate() - rate ) * ( stratum.getRate() - rate );
+        }
+        variance += ( 1 - (double) firstPhaseSize / population ) / firstPhaseSize * between;
+      }
+      return new Estimate( strata == Strata.NONE ? Collections.<Stratum>emptyList() : strataEstimates, population,
+        sampled, numFailed, rate, effectiveSize( rate, variance, sampled, population ) );
+    }
+  }
+
+  /**
+   * @return the number of independent observations a sampled rate with a variance is worth, so that the Wilson
+   * interval of the whole batch accounts for the weights of the strata and for files sampled without replacement
+   */
+  private static double effectiveSize( double rate, double variance, int sampled, int population ) {
+    if( variance > 0 ) {
+      return rate * ( 1 - rate ) / variance;
+    }
+    //no file failed, or every file failed, so the variance gives no size
+    return effectiveSize( sampled, population );
+  }
+
+  /**
+   * @return the number of independent observations a simple random sample without replacement is worth
+   */
+  private static double effectiveSize( int sampled, int population ) {
+    return sampled >= population ? Double.POSITIVE_INFINITY : sampled / ( 1 - (double) sampled / population );
+  }
+
+  /**
+   * The estimated error rate of a batch, or of a stratum of it
+   */
+  public static class Estimate {
+    private final List<Stratum> strata;
+    private final int population;
+    private final int sampled;
+    private final int failed;
+    private final double rate;
+    private final double lower;
+    private final double upper;
+
+    private Estimate( List<Stratum> strata, int population, int sampled, int failed, double rate, double effectiveSize ) {
+      this.strata = strata;
+      this.population = population;
+      this.sampled = sampled;
+      this.failed = failed;
+      this.rate = rate;
+      double[] interval = wilsonInterval( rate, effectiveSize );
+      this.lower = interval[0];
+      this.upper = interval[1];
+    }
+
+    /**
+     * @return the estimates of each stratum, or an empty list if the batch was not stratified
+     */
+    public List<Stratum> getStrata() {
+      return Collections.unmodifiableList( strata );
+    }
+
+    /**
+     * @return the number of files of the batch, or of the stratum.  The size of a stratum found from a first sample of
+     * the batch is estimated
+     */
+    public int getPopulation() {
+      return population;
+    }
+
+    public int getSampled() {
+      return sampled;
+    }
+
+    public int getFailed() {
+      return failed;
+    }
+
+    /**
+     * @return the estimated fraction of files which fail validation
+     */
+    public double getRate() {
+      return rate;
+    }
+
+    /**
+     * @return the lower bound of the 95% confidence interval of the rate
+     */
+    public double getLower() {
+      return lower;
+    }
+
+    /**
+     * @return the upper bound of the 95% confidence interval of the rate
+     */
+    public double getUpper() {
+      return upper;
+    }
+
+    /**
+     * @return the estimate as text, with a line for each stratum
+     */
+    public String report() {
+      StringBuilder sb = new StringBuilder();
+      sb.append( String.format( "Sampled %d of %d file(s), %d failed.  Estimated error rate %s, about %d failing file(s)",
+        sampled, population, failed, describe( this ), Math.round( rate * population ) ) );
+      for( Stratum stratum : strata ) {
+        sb.append( String.format( "%n  %s: %d of %d file(s) sampled, %d failed, error rate %s", stratum.getName(),
+          stratum.getSampled(), stratum.getPopulation(), stratum.getFailed(), describe( stratum ) ) );
+      }
+      return sb.toString();
+    }
+
+    private static String describe( Estimate estimate ) {
+      return String.format( "%.2f%% (95%% confidence interval %.2f%% - %.2f%%)", estimate.getRate() * 100,
+        estimate.getLower() * 100, estimate.getUpper() * 100 );
+    }
+  }
+
+  /**
+   * The estimated error rate of a stratum of a batch
+   */
+  public static class Stratum extends Estimate {
+    private final String name;
+    private final double variance;
+
+    private Stratum( String name, int population, int sampled, int failed ) {
+      this( name, population, sampled, failed, (double) failed / sampled );
+    }
+
+    private Stratum( String name, int population, int sampled, int failed, double rate ) {
+      super( Collections.<Stratum>emptyList(), population, sampled, failed, rate, effectiveSize( sampled, population ) );
+      this.name = name;
+      //the variance of a proportion sampled without replacement
+      this.variance = sampled >= population ? 0 :
+        rate * ( 1 - rate ) / sampled * ( 1 - (double) sampled / population );
+    }
+
+    /**
+     * @return the directory or schemas of the stratum
+     */
+    public String getName() {
+      return name;
+    }
+  }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the system, uri, rewriteSystem and rewriteURI entries of a set of XML catalogs, resolving identifiers the
+ * way the Xerces catalog resolver does but without scanning every entry of every catalog for each lookup.  Exact
+ * entries are kept in hash maps and rewrite entries in a prefix trie, so a lookup costs the length of the identifier
+ * whatever the size of the catalogs.
+ * <p>
+ * Catalogs are ranked in the order the Xerces resolver consults them: each catalog's own entries, then its nextCatalog
+ * entries, then the following catalog in the list.  A match in a catalog consulted earlier wins, and within a catalog
+ * an exact entry wins over the longest matching rewrite.  Catalogs which are not local files, cannot be read, or hold
+ * entries this index does not model, such as systemSuffix or delegateSystem, make the index unusable and resolution is
+ * left to the Xerces resolver.  This class is immutable and thread-safe
+ */
+class CatalogIndex {
+  private static final Logger LOG = LoggerFactory.getLogger( CatalogIndex.class );
+  private static final String CATALOG_NAMESPACE = "urn:oasis:names:tc:entity:xmlns:xml:catalog";
+  //identifiers the Xerces resolver decodes into public identifiers
+  private static final String PUBLIC_ID_URN = "urn:publicid:";
+  //entries which change how system identifiers or URIs resolve, but are not modelled by the index
+  private static final Set<String> UNSUPPORTED_ENTRIES = new HashSet<>( Arrays.asList( "systemSuffix", "uriSuffix",
+    "delegateSystem", "delegateURI" ) );
+
+  private final String[] catalogLocations;
+  //the last modified time and length of each catalog read, by file.  Catalogs which did not exist have neither
+  private final Map<File,long[]> files = new HashMap<>();
+  private final Map<String,Target> systems = new HashMap<>();
+  private final Map<String,Target> uris = new HashMap<>();
+  private final TrieNode systemRewrites = new TrieNode();
+  private final TrieNode uriRewrites = new TrieNode();
+  private int numCatalogs;
+  private int numEntries;
+  //why the catalogs could not be indexed, or null if they were
+  private String unusableReason;
+
+  private CatalogIndex( String[] catalogLocations ) {
+    this.catalogLocations = catalogLocations == null ? null : catalogLocations.clone();
+  }
+
+  /**
+   * Index a set of catalogs.  An index is always returned, but is not {@link #isUsable() usable} if the catalogs could
+   * not be indexed
+   * @param catalogLocations the locations of the catalogs, in the order they are consulted.  May be null
+   * @return the index of the catalogs
+   */
+  static CatalogIndex build( String[] catalogLocations ) {
+    long startMs = System.currentTimeMillis();
+    CatalogIndex index = new CatalogIndex( catalogLocations );
+    if( System.getProperty( "os.name", "" ).contains( "Windows" ) ) {
+      //system identifiers are matched ignoring case on Windows
+      index.unusableReason = "system identifiers are matched ignoring case";
+      return index;
+    }
+    try {
+      URL cwd = new URL( "file:" + System.getProperty( "user.dir" ) + "/" );
+      Set<File> visited = new HashSet<>();
+      if( catalogLocations != null ) {
+        for( String location : catalogLocations ) {
+          index.addCatalog( new URL( cwd, location.replace( '\\', '/' ) ), visited );
+        }
+      }
+    }
+    catch( IOException e ) {
+      index.unusableReason = e.getMessage();
+    }
+    if( index.unusableReason != null ) {
+      LOG.debug( "Catalogs {} are resolved without an index: {}", Arrays.toString( catalogLocations ), index.unusableReason );
+    }
+    else {
+      LOG.debug( "Indexing {} entries of {} catalog(s) took {} ms", index.numEntries, index.numCatalogs, System.currentTimeMillis() - startMs );
+    }
+    return index;
+  }
+
+  private void addCatalog( URL location, Set<File> visited ) throws IOException {
+    if( !"file".equals( location.getProtocol() ) ) {
+      throw new IOException( "catalog " + location + " is not a local file" );
+    }
+    File file;
+    try {
+      file = new File( location.toURI() ).getAbsoluteFile();
+    }
+    catch( Exception e ) {
+      throw new IOException( "catalog " + location + " is not a local file" );
+    }
+    //a catalog reached again adds nothing, as its entries are already ranked ahead of this visit
+    if( !visited.add( file ) ) {
+      return;
+    }
+    files.put( file, fileState( file ) );
+    if( !file.isFile() ) {
+      throw new IOException( "catalog " + file + " does not exist" );
+    }
+    Element catalog;
+    try {
+      catalog = newDocumentBuilder().parse( file ).getDocumentElement();
+    }
+    catch( SAXException | ParserConfigurationException e ) {
+      throw new IOException( "could not read catalog " + file + ": " + e.getMessage(), e );
+    }
+    if( !CATALOG_NAMESPACE.equals( catalog.getNamespaceURI() ) || !"catalog".equals( catalog.getLocalName() ) ) {
+      throw new IOException( file + " is not an OASIS XML catalog" );
+    }
+    int rank = numCatalogs++;
+    List<URL> nextCatalogs = new ArrayList<>();
+    addEntries( catalog, withBase( catalog, location ), rank, nextCatalogs );
+    for( URL nextCatalog : nextCatalogs ) {
+      addCatalog( nextCatalog, visited );
+    }
+  }
+
+  private void addEntries( Element parent, URL base, int rank, List<URL> nextCatalogs ) throws IOException {
+    for( Node node = parent.getFirstChild(); node != null; node = node.getNextSibling() ) {
+      if( !( node instanceof Element ) || !CATALOG_NAMESPACE.equals( node.getNamespaceURI() ) ) {
+        continue;
+      }
+      Element entry = (Element) node;
+      URL entryBase = withBase( entry, base );
+      String type = entry.getLocalName();
+      switch( type ) {
+        case "group":
+          addEntries( entry, entryBase, rank, nextCatalogs );
+          break;
+        case "system":
+          addExact( systems, entry.getAttribute( "systemId" ), resolve( entryBase, entry.getAttribute( "uri" ) ), rank );
+          break;
+        case "uri":
+          addExact( uris, entry.getAttribute( "name" ), resolve( entryBase, entry.getAttribute( "uri" ) ), rank );
+          break;
+        case "rewriteSystem":
+          addRewrite( systemRewrites, entry.getAttribute( "systemIdStartString" ), resolve( entryBase, entry.getAttribute( "rewritePrefix" ) ), rank );
+          break;
+        case "rewriteURI":
+          addRewrite( uriRewrites, entry.getAttribute( "uriStartString" ), resolve( entryBase, entry.getAttribute( "rewritePrefix" ) ), rank );
+          break;
+        case "nextCatalog":
+          nextCatalogs.add( new URL( entryBase, entry.getAttribute( "catalog" ).replace( '\\', '/' ) ) );
+          break;
+        default:
+          if( UNSUPPORTED_ENTRIES.contains( type ) ) {
+            throw new IOException( "catalog entries of type " + type + " are not indexed" );
+          }
+          //public and the other entries do not take part in resolving system identifiers or URIs
+      }
+    }
+  }
+
+  private void addExact( Map<String,Target> entries, String identifier, String location, int rank ) throws IOException {
+    checkNormalized( identifier );
+    //within a catalog the first entry wins, and catalogs are added in the order they are consulted
+    if( !entries.containsKey( identifier ) ) {
+      entries.put( identifier, new Target( location, 0, rank ) );
+    }
+    numEntries++;
+  }
+
+  private void addRewrite( TrieNode root, String startString, String prefix, int rank ) throws IOException {
+    checkNormalized( startString );
+    numEntries++;
+    //an empty start string never matches
+    if( startString.isEmpty() ) {
+      return;
+    }
+    TrieNode node = root;
+    for( int i = 0; i < startString.length(); i++ ) {
+      node = node.getOrAddChild( startString.charAt( i ) );
+    }
+    if( node.target == null ) {
+      node.target = new Target( prefix, startString.length(), rank );
+    }
+  }
+
+  /**
+   * Identifiers are normalized before they are matched, so an entry whose identifier normalization would change is
+   * not indexed rather than matched differently
+   */
+  private static void checkNormalized( String identifier ) throws IOException {
+    if( !normalize( identifier ).equals( identifier ) ) {
+      throw new IOException( "catalog identifier " + identifier + " is not a normalized URI" );
+    }
+  }
+
+  private static URL withBase( Element element, URL base ) throws MalformedURLException {
+    String xmlBase = element.getAttributeNS( XMLConstants.XML_NS_URI, "base" );
+    return xmlBase.isEmpty() ? base : new URL( base, xmlBase.replace( '\\', '/' ) );
+  }
+
+  /**
+   * @return the location a catalog entry maps to, made absolute the way the Xerces resolver does
+   */
+  private static String resolve( URL base, String location ) {
+    String normalized = normalize( location ).replace( '\\', '/' );
+    try {
+      return new URL( base, normalized ).toString();
+    }
+    catch( MalformedURLException e ) {
+      return normalized;
+    }
+  }
+
+  /**
+   * Percent-encode the characters of an identifier which are not allowed in a URI, as the Xerces resolver does before
+   * matching it
+   */
+  static String normalize( String identifier ) {
+    byte[] bytes = identifier.getBytes( StandardCharsets.UTF_8 );
+    StringBuilder normalized = null;
+    for( int i = 0; i < bytes.length; i++ ) {
+      int ch = bytes[i] & 0xFF;
+      boolean encoded = ch <= 0x20 || ch >= 0x7F || "\"<>\\^`{|}".indexOf( ch ) >= 0;
+      if( encoded && normalized == null ) {
+        normalized = new StringBuilder( new String( bytes, 0, i, StandardCharsets.US_ASCII ) );
+      }
+      if( encoded ) {
+        normalized.append( '%' ).append( Character.toUpperCase( Character.forDigit( ch >> 4, 16 ) ) )
+          .append( Character.toUpperCase( Character.forDigit( ch & 0xF, 16 ) ) );
+      }
+      else if( normalized != null ) {
+        normalized.append( (char) ch );
+      }
+    }
+    return normalized == null ? identifier : normalized.toString();
+  }
+
+  private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware( true );
+    /////// SECURITY-RELATED RESTRICTIONS ///////
+    //catalogs declare the OASIS catalog DTD, which is not loaded
+    factory.setFeature( "http://apache.org/xml/features/nonvalidating/load-external-dtd", false );
+    factory.setFeature( "http://xml.org/sax/features/external-general-entities", false );
+    factory.setExpandEntityReferences( false );
+    return factory.newDocumentBuilder();
+  }
+
+  private static long[] fileState( File file ) {
+    return new long[]{ file.lastModified(), file.length() };
+  }
+
+  /**
+   * @return whether the catalogs could be indexed.  Identifiers must be resolved without the index otherwise
+   */
+  boolean isUsable() {
+    return unusableReason == null;
+  }
+
+  /**
+   * @param locations the catalog locations currently configured
+   * @return whether this index was built from the same catalog locations and none of the catalog files it read, or
+   * looked for, has changed since
+   */
+  boolean isCurrent( String[] locations ) {
+    if( !Arrays.equals( locations, catalogLocations ) ) {
+      return false;
+    }
+    for( Map.Entry<File,long[]> file : files.entrySet() ) {
+      if( !Arrays.equals( file.getValue(), fileState( file.getKey() ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of system, uri, rewriteSystem and rewriteURI entries indexed
+   */
+  int getNumEntries() {
+    return numEntries;
+  }
+
+  /**
+   * @return whether the index can resolve an identifier.  Public identifier URNs, which are resolved as public
+   * identifiers, must be resolved without the index
+   */
+  static boolean canResolve( String identifier ) {
+    return !identifier.startsWith( PUBLIC_ID_URN );
+  }
+
+  /**
+   * Resolve a system identifier by the system and rewriteSystem entries
+   * @return the location the identifier resolves to, or null if no entry matches
+   */
+  String resolveSystem( String systemId ) {
+    return resolve( systems, systemRewrites, systemId );
+  }
+
+  /**
+   * Resolve a URI, such as a namespace, by the uri and rewriteURI entries
+   * @return the location the URI resolves to, or null if no entry matches
+   */
+  String resolveURI( String uri ) {
+    return resolve( uris, uriRewrites, uri );
+  }
+
+  private static String resolve( Map<String,Target> exact, TrieNode rewrites, String identifier ) {
+    identifier = normalize( identifier );
+    Target rewrite = null;
+    TrieNode node = rewrites;
+    for( int i = 0; node != null; i++ ) {
+      //the longest matching prefix of the earliest catalog with a match
+      if( node.target != null && ( rewrite == null || node.target.rank <= rewrite.rank ) ) {
+        rewrite = node.target;
+      }
+      node = i < identifier.length() ? node.getChild( identifier.charAt( i ) ) : null;
+    }
+    Target match = exact.get( identifier );
+    if( match != null && ( rewrite == null || match.rank <= rewrite.rank ) ) {
+      return match.location;
+    }
+    return rewrite == null ? null : rewrite.location + identifier.substring( rewrite.matchedLength );
+  }
+
+  /**
+   * The location an entry maps to
+   */
+  private static class Target {
+    private final String location;
+    //the length of the start string a rewrite replaces
+    private final int matchedLength;
+    //the position of the catalog holding the entry in the order catalogs are consulted
+    private final int rank;
+
+    private Target( String location, int matchedLength, int rank ) {
+      this.location = location;
+      this.matchedLength = matchedLength;
+      this.rank = rank;
+    }
+  }
+
+  /**
+   * A node of a trie of rewrite start strings.  Children are kept in arrays sorted by character, as most nodes of a
+   * trie of URIs have a single child
+   */
+  private static class TrieNode {
+    private char[] keys = new char[0];
+    private TrieNode[] children = new TrieNode[0];
+    //the rewrite whose start string ends at this node
+    private Target target;
+
+    private TrieNode getChild( char key ) {
+      int i = Arrays.binarySearch( keys, key );
+      return i >= 0 ? children[i] : null;
+    }
+
+    private TrieNode getOrAddChild( char key ) {
+      int i = Arrays.binarySearch( keys, key );
+      if( i >= 0 ) {
+        return children[i];
+      }
+      int insertion = -i - 1;
+      char[] newKeys = new char[keys.length + 1];
+      TrieNode[] newChildren = new TrieNode[children.length + 1];
+      System.arraycopy( keys, 0, newKeys, 0, insertion );
+      System.arraycopy( children, 0, newChildren, 0, insertion );
+      System.arraycopy( keys, insertion, newKeys, insertion + 1, keys.length - insertion );
+      System.arraycopy( children, insertion, newChildren, insertion + 1, children.length - insertion );
+      newKeys[insertion] = key;
+      newChildren[insertion] = new TrieNode();
+      keys = newKeys;
+      children = newChildren;
+      return newChildren[insertion];
+    }
+  }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A compressed local file whose content is validated as it is decompressed, without writing the decompressed file to
+ * disk.  Each time the content is opened, decompression runs on a thread of a shared pool so that it overlaps with
+ * parsing, handing the parser chunks through a small bounded queue.  Content read more than once may be decompressed
+ * into memory once with {@link #read()}
+ */
+public class CompressedInput extends ValidationInput {
+  private static final int CHUNK_SIZE = 64 * 1024;
+  //the number of decompressed chunks which may be waiting for the parser
+  private static final int QUEUE_CHUNKS = 16;
+  private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+  //each open stream needs its own decompressing thread, so the pool is not bounded, but idle threads are reused
+  private static final ExecutorService DECOMPRESSORS = Executors.newCachedThreadPool( r -> {
+    Thread thread = new Thread( r, "crux-decompress-" + THREAD_COUNT.incrementAndGet() );
+    thread.setDaemon( true );
+    return thread;
+  } );
+
+  private final File file;
+  private final Compression compression;
+
+  /**
+   * @param name the name reported in validation errors
+   * @param file a compressed local file
+   * @param compression the compression format of the file
+   */
+  public CompressedInput( String name, File file, Compression compression ) {
+    super( name, file.getAbsoluteFile().toURI().toString() );
+    this.file = file;
+    this.compression = compression;
+  }
+
+  /**
+   * @param path a local or remote path
+   * @return an input which decompresses the file, or null if the path is not a local file in a recognized compression
+   * format
+   */
+  public static CompressedInput detect( String path ) {
+    if( !Utils.isLocalFile( path ) ) {
+      return null;
+    }
+    File file = new File( path );
+    if( !file.isFile() ) {
+      return null;
+    }
+    Compression compression = Compression.detect( file );
+    return compression == Compression.NONE ? null : new CompressedInput( path, file, compression );
+  }
+
+  public Compression getCompression() {
+    return compression;
+  }
+
+  @Override
+  public InputStream open() throws IOException {
+    InputStream decompressed = compression.decompress( new BufferedInputStream( new FileInputStream( file ), CHUNK_SIZE ) );
+    return new PipelineInputStream( decompressed );
+  }
+
+  /**
+   * Decompress the whole file into memory, so that content read more than once, such as for XML schema and then
+   * Schematron validation, is decompressed only once
+   * @return the decompressed content
+   * @throws IOException if the file could not be read or decompressed
+   */
+  public ValidationInput read() throws IOException {
+    try( InputStream in = open() ) {
+      return ValidationInput.of( getName(), getSystemId(), ArchiveReader.readFully( in ) );
+    }
+  }
+
+  /**
+   * Reads a source stream on a pooled thread, making its content available to the reading thread in chunks.  Errors
+   * on the pipeline thread are rethrown to the reader
+   */
+  private static class PipelineInputStream extends InputStream {
+    private static final byte[] END = new byte[0];
+
+    private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>( QUEUE_CHUNKS );
+    private final Future<?> task;
+    private volatile boolean closed = false;
+    private volatile IOException error;
+    private byte[] chunk = null;
+    private int position = 0;
+
+    private PipelineInputStream( final InputStream source ) {
+      task = DECOMPRESSORS.submit( () -> {
+        try( InputStream in = source ) {
+          while( !closed ) {
+            byte[] buffer = new byte[CHUNK_SIZE];
+            int length = 0;
+            int read;
+            while( length < buffer.length && ( read = in.read( buffer, length, buffer.length - length ) ) != -1 ) {
+              length += read;
+            }
+            if( length > 0 ) {
+              put( length == buffer.length ? buffer : Arrays.copyOf( buffer, length ) );
+            }
+            if( length < buffer.length ) {
+              break;
+            }
+          }
+        }
+        catch( IOException e ) {
+          error = e;
+        }
+        catch( InterruptedException e ) {
+          //the reader closed the stream
+        }
+        finally {
+          try {
+            put( END );
+          }
+          catch( InterruptedException e ) {
+            //the reader closed the stream, so nobody is waiting for the end
+          }
+        }
+      } );
+    }
+
+    /**
+     * Queue a chunk, giving up once the reader has closed the stream
+     */
+    private void put( byte[] buffer ) throws InterruptedException {
+      while( !closed ) {
+        if( chunks.offer( buffer, 100, TimeUnit.MILLISECONDS ) ) {
+          return;
+        }
+      }
+    }
+
+    /**
+     * @return false at the end of the stream
+     */
+    private boolean fill() throws IOException {
+      while( chunk == null || position >= chunk.length ) {
+        if( chunk == END ) {
+          return false;
+        }
+        try {
+          chunk = chunks.take();
+          position = 0;
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new IOException( "Interrupted while waiting for decompressed data" );
+        }
+        if( chunk == END && error != null ) {
+          throw new IOException( "Decompression failed: " + error.getMessage(), error );
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+      return fill() ? chunk[position++] & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] b, int off, int len ) throws IOException {
+      if( len == 0 ) {
+        return 0;
+      }
+      if( !fill() ) {
+        return -1;
+      }
+      int count = Math.min( len, chunk.length - position );
+      System.arraycopy( chunk, position, b, off, count );
+      position += count;
+      return count;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+      task.cancel( true );
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdInputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compression formats recognized in input files, identified by the magic bytes at the start of the file rather than by
+ * its extension
+ */
+public enum Compression {
+  NONE( new int[0], "" ),
+  GZIP( new int[]{ 0x1f, 0x8b }, ".gz" ),
+  XZ( new int[]{ 0xfd, '7', 'z', 'X', 'Z', 0x00 }, ".xz" ),
+  ZSTD( new int[]{ 0x28, 0xb5, 0x2f, 0xfd }, ".zst" );
+
+  private static final int MAX_MAGIC_LENGTH = 6;
+  private static final int BUFFER_SIZE = 64 * 1024;
+  //a zstd frame header, which may record the decompressed size, is at most this long
+  private static final int MAX_ZSTD_HEADER_LENGTH = 18;
+  //a typical compression ratio for XML, used when a format does not record the decompressed size
+  private static final int TYPICAL_XML_RATIO = 10;
+
+  private final int[] magic;
+  private final String extension;
+
+  Compression( int[] magic, String extension ){
+    this.magic = magic;
+    this.extension = extension;
+  }
+
+  /**
+   * @param file a local file
+   * @return the compression of the file, NONE if it is not compressed in a recognized format or cannot be read
+   */
+  public static Compression detect( File file ){
+    byte[] header = new byte[MAX_MAGIC_LENGTH];
+    int length = 0;
+    try( InputStream in = new FileInputStream( file ) ){
+      int read;
+      while( length < header.length && ( read = in.read( header, length, header.length - length ) ) != -1 ){
+        length += read;
+      }
+    }
+    catch( IOException e ){
+      return NONE;
+    }
+    for( Compression compression : values() ){
+      if( compression != NONE && compression.matches( header, length ) ){
+        return compression;
+      }
+    }
+    return NONE;
+  }
+
+  private boolean matches( byte[] header, int length ){
+    if( length < magic.length ){
+      return false;
+    }
+    for( int i = 0; i < magic.length; i++ ){
+      if( ( header[i] & 0xff ) != magic[i] ){
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param in a stream of data in this compression format
+   * @return a stream of the decompressed data
+   * @throws IOException if the stream is not in this format
+   */
+  public InputStream decompress( InputStream in ) throws IOException {
+    switch( this ){
+      case GZIP:
+        return new GZIPInputStream( in, BUFFER_SIZE );
+      case XZ:
+        return new XZInputStream( in );
+      case ZSTD:
+        return new ZstdInputStream( in );
+      default:
+        return in;
+    }
+  }
+
+  /**
+   * @param file a local file in this compression format
+   * @return the size of the decompressed content, as recorded by the format where possible, otherwise estimated from a
+   * typical compression ratio for XML
+   */
+  public long estimateDecompressedSize( File file ){
+    long length = file.length();
+    if( this == NONE ){
+      return length;
+    }
+    try( RandomAccessFile in = new RandomAccessFile( file, "r" ) ){
+      switch( this ){
+        case GZIP:
+          //the gzip trailer ends with the decompressed size modulo 2^32, which is only usable if it has not wrapped
+          if( length >= 4 ){
+            byte[] trailer = new byte[4];
+            in.seek( length - 4 );
+            in.readFully( trailer );
+            long size = ( trailer[0] & 0xffL ) | ( trailer[1] & 0xffL ) << 8 | ( trailer[2] & 0xffL ) << 16 | ( trailer[3] & 0xffL ) << 24;
+            if( size >= length ){
+              return size;
+            }
+          }
+          break;
+        case ZSTD:
+          byte[] header = new byte[(int) Math.min( MAX_ZSTD_HEADER_LENGTH, length )];
+          in.readFully( header );
+          long size = Zstd.getFrameContentSize( header );
+          if( size > 0 ){
+            return size;
+          }
+          break;
+        default:
+          break;
+      }
+    }
+    catch( IOException | RuntimeException e ){
+      //fall back on the typical ratio
+    }
+    return length * TYPICAL_XML_RATIO;
+  }
+
+  /**
+   * @param name a file name
+   * @return the name without this format's usual extension, if it has one
+   */
+  public String stripExtension( String name ){
+    if( this != NONE && name.toLowerCase( Locale.ROOT ).endsWith( extension ) ){
+      return name.substring( 0, name.length() - extension.length() );
+    }
+    return name;
+  }
+}
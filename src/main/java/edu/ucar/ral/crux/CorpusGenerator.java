@@ -0,0 +1,795 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.xerces.impl.xs.XSImplementationImpl;
+import org.apache.xerces.xs.StringList;
+import org.apache.xerces.xs.XSAttributeDeclaration;
+import org.apache.xerces.xs.XSAttributeUse;
+import org.apache.xerces.xs.XSComplexTypeDefinition;
+import org.apache.xerces.xs.XSConstants;
+import org.apache.xerces.xs.XSElementDeclaration;
+import org.apache.xerces.xs.XSLoader;
+import org.apache.xerces.xs.XSModel;
+import org.apache.xerces.xs.XSModelGroup;
+import org.apache.xerces.xs.XSNamedMap;
+import org.apache.xerces.xs.XSNamespaceItemList;
+import org.apache.xerces.xs.XSObject;
+import org.apache.xerces.xs.XSObjectList;
+import org.apache.xerces.xs.XSParticle;
+import org.apache.xerces.xs.XSSimpleTypeDefinition;
+import org.apache.xerces.xs.XSTerm;
+import org.apache.xerces.xs.XSTypeDefinition;
+import org.apache.xerces.xs.XSValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.DOMConfiguration;
+import org.w3c.dom.DOMError;
+import org.w3c.dom.DOMErrorHandler;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates synthetic XML documents from an XML schema for load and scaling tests.  Documents are built by walking the
+ * compiled schema from a root element declaration, with a configurable element count and nesting depth per document,
+ * and a controlled fraction of documents containing XML schema and Schematron violations.
+ * <p>
+ * XML schema violations are injected directly, by writing an invalid value for a typed element or attribute, or an
+ * undeclared element when the document has no typed values.  Schematron violations cannot be derived from arbitrary
+ * rules, so documents are generated with either conservative or widely varying content and then checked against the
+ * Schematron rules, regenerating them until they fall on the requested side
+ */
+public class CorpusGenerator {
+  private static final Logger LOG = LoggerFactory.getLogger( CorpusGenerator.class );
+
+  private static final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+  private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+  private static final String INVALID_VALUE = "INVALID";
+  private static final String UNDECLARED_ELEMENT = "<crux-undeclared-element/>";
+  private static final String[] WORDS = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel" };
+  //the number of times a document is regenerated to land on the requested side of the Schematron rules
+  private static final int MAX_SCHEMATRON_ATTEMPTS = 25;
+
+  private final XSModel model;
+  private final XSElementDeclaration root;
+  private final File xsdFile;
+  private final Map<String,String> prefixes = new LinkedHashMap<>();
+  private final Map<XSObject,Integer> minimumSizes = new IdentityHashMap<>();
+  private final SchematronValidator schematronValidator = new SchematronValidator();
+
+  private Random random = new Random();
+  private String schemaLocation;
+  private String schematronFile;
+  private int elementsPerDocument = 100;
+  private int maxDepth = 10;
+  private double xsdViolationRate = 0;
+  private double schematronViolationRate = 0;
+
+  /**
+   * @param xsdFile the schema from which documents are generated
+   * @param rootElementName the local name of the global element used as the document root.  May be null to use the
+   *                        first concrete global element declared in the schema's target namespace
+   * @param catalogLocations the locations of catalog files used to resolve imported schemas.  May be null
+   * @throws IOException if the schema could not be loaded or has no suitable root element
+   */
+  public CorpusGenerator( String xsdFile, String rootElementName, String... catalogLocations ) throws IOException {
+    this.xsdFile = new File( xsdFile ).getAbsoluteFile();
+    XSLoader loader = new XSImplementationImpl().createXSLoader( null );
+    DOMConfiguration config = loader.getConfig();
+    config.setParameter( "resource-resolver", new XMLCatalogResolver( catalogLocations, true ) );
+    final List<String> loadErrors = new ArrayList<>();
+    config.setParameter( "error-handler", new DOMErrorHandler() {
+      @Override
+      public boolean handleError( DOMError error ) {
+        if( error.getSeverity() != DOMError.SEVERITY_WARNING ) {
+          loadErrors.add( error.getMessage() );
+        }
+        return true;
+      }
+    } );
+    model = loader.loadURI( this.xsdFile.toURI().toString() );
+    if( model == null || !loadErrors.isEmpty() ) {
+      throw new IOException( "Could not load schema " + xsdFile + ": " + loadErrors );
+    }
+    root = findRoot( rootElementName );
+    if( root == null ) {
+      throw new IOException( "No suitable root element found in schema " + xsdFile );
+    }
+
+    XSNamespaceItemList namespaces = model.getNamespaceItems();
+    for( int i = 0; i < namespaces.getLength(); i++ ) {
+      String namespace = namespaces.item( i ).getSchemaNamespace();
+      if( namespace != null && !namespace.equals( XML_NAMESPACE ) && !namespace.equals( XSI_NAMESPACE ) ) {
+        prefixes.put( namespace, "ns" + ( prefixes.size() + 1 ) );
+      }
+    }
+    prefixes.put( XML_NAMESPACE, "xml" );
+  }
+
+  private XSElementDeclaration findRoot( String rootElementName ) {
+    XSNamedMap elements = model.getComponents( XSConstants.ELEMENT_DECLARATION );
+    XSElementDeclaration fallback = null;
+    for( int i = 0; i < elements.getLength(); i++ ) {
+      XSElementDeclaration element = (XSElementDeclaration) elements.item( i );
+      if( rootElementName != null ) {
+        if( element.getName().equals( rootElementName ) ) {
+          return element;
+        }
+      }
+      else if( !element.getAbstract() ) {
+        String documentNamespace = element.getNamespaceItem() == null ? null : element.getNamespaceItem().getSchemaNamespace();
+        //prefer elements declared by the schema file itself over those of imported schemas
+        StringList locations = element.getNamespaceItem() == null ? null : element.getNamespaceItem().getDocumentLocations();
+        if( locations != null && locations.contains( xsdFile.toURI().toString() ) ) {
+          return element;
+        }
+        if( fallback == null && documentNamespace != null ) {
+          fallback = element;
+        }
+      }
+    }
+    return fallback;
+  }
+
+  /**
+   * Generate a corpus of documents
+   * @param outputDir the directory documents are written to.  It is created if it does not exist
+   * @param numDocuments the number of documents to generate, used when targetBytes is zero or less
+   * @param targetBytes the total size of the corpus.  Documents are generated until the corpus reaches this size
+   * @return a summary of the generated corpus
+   * @throws IOException if documents could not be written
+   */
+  public Summary generate( File outputDir, int numDocuments, long targetBytes ) throws IOException {
+    outputDir.mkdirs();
+    String location = schemaLocation;
+    if( location == null ) {
+      location = outputDir.getAbsoluteFile().toPath().relativize( xsdFile.toPath() ).toString().replace( File.separatorChar, '/' );
+    }
+    Summary summary = new Summary();
+    for( int i = 0; targetBytes > 0 ? summary.bytes < targetBytes : i < numDocuments; i++ ) {
+      File file = new File( outputDir, String.format( "doc-%06d.xml", i + 1 ) );
+      boolean xsdViolation = random.nextDouble() < xsdViolationRate;
+      boolean schematronViolation = schematronFile != null && random.nextDouble() < schematronViolationRate;
+      DocumentWriter writer = null;
+      for( int attempt = 0; attempt < MAX_SCHEMATRON_ATTEMPTS; attempt++ ) {
+        writer = new DocumentWriter( location, xsdViolation, schematronViolation );
+        writer.write( file );
+        if( schematronFile == null ) {
+          break;
+        }
+        writer.schematronInvalid = !schematronValidator.validateToResult( file.getPath(), schematronFile, Deadline.NONE ).isValid();
+        if( writer.schematronInvalid == schematronViolation ) {
+          break;
+        }
+      }
+      if( writer.schematronInvalid != schematronViolation ) {
+        LOG.warn( "Could not generate a document {} the Schematron rules, keeping {}", schematronViolation ? "violating" : "passing", file );
+      }
+      summary.add( writer, file.length() );
+    }
+    return summary;
+  }
+
+  public void setSeed( long seed ) {
+    this.random = new Random( seed );
+  }
+
+  /**
+   * Set the schema location written into each document's xsi:schemaLocation.  By default this is the path of the
+   * schema relative to the output directory
+   */
+  public void setSchemaLocation( String schemaLocation ) {
+    this.schemaLocation = schemaLocation;
+  }
+
+  /**
+   * Set the Schematron file that documents are checked against when Schematron violations are requested.  May be null
+   */
+  public void setSchematronFile( String schematronFile ) {
+    this.schematronFile = schematronFile;
+  }
+
+  /**
+   * Set the approximate number of elements per document.  Required content is always generated, so documents whose
+   * schema requires more elements than this will be larger
+   */
+  public void setElementsPerDocument( int elementsPerDocument ) {
+    this.elementsPerDocument = elementsPerDocument;
+  }
+
+  /**
+   * Set the depth beyond which only required content is generated
+   */
+  public void setMaxDepth( int maxDepth ) {
+    this.maxDepth = maxDepth;
+  }
+
+  /**
+   * Set the fraction of documents, between 0 and 1, which contain an XML schema violation
+   */
+  public void setXsdViolationRate( double xsdViolationRate ) {
+    this.xsdViolationRate = xsdViolationRate;
+  }
+
+  /**
+   * Set the fraction of documents, between 0 and 1, which violate the Schematron rules
+   */
+  public void setSchematronViolationRate( double schematronViolationRate ) {
+    this.schematronViolationRate = schematronViolationRate;
+  }
+
+  /**
+   * The smallest number of elements that a schema component can produce, used to pick the cheapest branch of a choice
+   * once the depth or element budget is exhausted
+   */
+  private int minimumSize( XSObject component ) {
+    Integer cached = minimumSizes.get( component );
+    if( cached != null ) {
+      return cached;
+    }
+    //guard against recursive definitions, which are only reached through optional content in a valid schema
+    minimumSizes.put( component, 1000 );
+    int size = 0;
+    if( component instanceof XSElementDeclaration ) {
+      XSTypeDefinition type = ( (XSElementDeclaration) component ).getTypeDefinition();
+      size = 1;
+      if( type instanceof XSComplexTypeDefinition && ( (XSComplexTypeDefinition) type ).getParticle() != null ) {
+        size += minimumSize( ( (XSComplexTypeDefinition) type ).getParticle() );
+      }
+    }
+    else if( component instanceof XSParticle ) {
+      XSParticle particle = (XSParticle) component;
+      size = particle.getMinOccurs() == 0 ? 0 : particle.getMinOccurs() * minimumSize( particle.getTerm() );
+    }
+    else if( component instanceof XSModelGroup ) {
+      XSModelGroup group = (XSModelGroup) component;
+      XSObjectList particles = group.getParticles();
+      size = group.getCompositor() == XSModelGroup.COMPOSITOR_CHOICE ? Integer.MAX_VALUE : 0;
+      for( int i = 0; i < particles.getLength(); i++ ) {
+        int particleSize = minimumSize( particles.item( i ) );
+        size = group.getCompositor() == XSModelGroup.COMPOSITOR_CHOICE ? Math.min( size, particleSize ) : size + particleSize;
+      }
+      if( size == Integer.MAX_VALUE ) {
+        size = 0;
+      }
+    }
+    minimumSizes.put( component, size );
+    return size;
+  }
+
+  /**
+   * Writes a single document.  In conservative mode all optional content is included and values are kept small and
+   * typical, which satisfies most Schematron rules; otherwise content and values vary widely
+   */
+  private class DocumentWriter {
+    private final String location;
+    private final boolean xsdViolation;
+    private final boolean conservative;
+    private final int corruptAfterElement;
+    private Writer out;
+    private int elementCount = 0;
+    private int idCount = 0;
+    private boolean corrupted = false;
+    private boolean schematronInvalid = false;
+
+    private DocumentWriter( String location, boolean xsdViolation, boolean schematronViolation ){
+      this.location = location;
+      this.xsdViolation = xsdViolation;
+      this.conservative = !schematronViolation;
+      this.corruptAfterElement = random.nextInt( Math.max( 1, elementsPerDocument ) );
+    }
+
+    private void write( File file ) throws IOException {
+      try( Writer writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( file ), StandardCharsets.UTF_8 ) ) ) {
+        out = writer;
+        out.write( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+        writeElement( root, 0 );
+        out.write( "\n" );
+      }
+    }
+
+    private void writeElement( XSElementDeclaration declaration, int depth ) throws IOException {
+      XSElementDeclaration element = concreteElement( declaration );
+      if( element == null ) {
+        return;
+      }
+      elementCount++;
+      String name = qualifiedName( element.getNamespace(), element.getName() );
+      out.write( '<' );
+      out.write( name );
+      if( depth == 0 ) {
+        writeRootAttributes( element );
+      }
+      XSTypeDefinition type = element.getTypeDefinition();
+      String fixedValue = fixedValue( element.getConstraintType(), element.getValueConstraintValue() );
+      if( type instanceof XSSimpleTypeDefinition ) {
+        out.write( '>' );
+        writeValue( (XSSimpleTypeDefinition) type, fixedValue );
+      }
+      else {
+        XSComplexTypeDefinition complexType = (XSComplexTypeDefinition) type;
+        writeAttributes( complexType.getAttributeUses() );
+        if( complexType.getContentType() == XSComplexTypeDefinition.CONTENTTYPE_EMPTY ) {
+          if( depth == 0 ) {
+            injectUndeclaredElementIfNeeded( name );
+          }
+          else {
+            out.write( "/>" );
+          }
+          return;
+        }
+        out.write( '>' );
+        if( complexType.getContentType() == XSComplexTypeDefinition.CONTENTTYPE_SIMPLE ) {
+          writeValue( complexType.getSimpleType(), fixedValue );
+        }
+        else if( complexType.getParticle() != null ) {
+          writeParticle( complexType.getParticle(), depth + 1 );
+        }
+      }
+      if( depth == 0 ) {
+        if( xsdViolation && !corrupted ) {
+          out.write( UNDECLARED_ELEMENT );
+          corrupted = true;
+        }
+        out.write( "\n" );
+      }
+      out.write( "</" );
+      out.write( name );
+      out.write( '>' );
+    }
+
+    private void injectUndeclaredElementIfNeeded( String name ) throws IOException {
+      if( xsdViolation && !corrupted ) {
+        out.write( '>' );
+        out.write( UNDECLARED_ELEMENT );
+        out.write( "</" + name + ">" );
+        corrupted = true;
+      }
+      else {
+        out.write( "/>" );
+      }
+    }
+
+    private void writeRootAttributes( XSElementDeclaration element ) throws IOException {
+      out.write( " xmlns:xsi=\"" + XSI_NAMESPACE + "\"" );
+      for( Map.Entry<String,String> entry : prefixes.entrySet() ) {
+        if( !entry.getKey().equals( XML_NAMESPACE ) ) {
+          out.write( " xmlns:" + entry.getValue() + "=\"" + escape( entry.getKey() ) + "\"" );
+        }
+      }
+      if( element.getNamespace() == null ) {
+        out.write( " xsi:noNamespaceSchemaLocation=\"" + escape( location ) + "\"" );
+      }
+      else {
+        out.write( " xsi:schemaLocation=\"" + escape( element.getNamespace() + " " + location ) + "\"" );
+      }
+    }
+
+    /**
+     * @return the value a fixed value constraint requires, or null if the value is not fixed
+     */
+    private String fixedValue( short constraintType, XSValue value ) {
+      return constraintType == XSConstants.VC_FIXED && value != null ? value.getNormalizedValue() : null;
+    }
+
+    private void writeAttributes( XSObjectList attributeUses ) throws IOException {
+      for( int i = 0; i < attributeUses.getLength(); i++ ) {
+        XSAttributeUse use = (XSAttributeUse) attributeUses.item( i );
+        if( !use.getRequired() && random.nextDouble() >= optionalRate() ) {
+          continue;
+        }
+        XSAttributeDeclaration attribute = use.getAttrDeclaration();
+        String fixedValue = use.getConstraintType() == XSConstants.VC_FIXED ?
+          fixedValue( use.getConstraintType(), use.getValueConstraintValue() ) :
+          fixedValue( attribute.getConstraintType(), attribute.getValueConstraintValue() );
+        out.write( ' ' );
+        out.write( qualifiedName( attribute.getNamespace(), attribute.getName() ) );
+        out.write( "=\"" );
+        writeValue( attribute.getTypeDefinition(), fixedValue );
+        out.write( '"' );
+      }
+    }
+
+    private void writeParticle( XSParticle particle, int depth ) throws IOException {
+      int max = particle.getMaxOccursUnbounded() ? Integer.MAX_VALUE : particle.getMaxOccurs();
+      int written = 0;
+      while( written < particle.getMinOccurs() || ( written < max && wantMore( particle, depth, written ) ) ) {
+        writeTerm( particle.getTerm(), depth );
+        written++;
+      }
+    }
+
+    /**
+     * Optional content is included while the document is within twice its element budget, and repeated content is
+     * added while the budget lasts
+     */
+    private boolean wantMore( XSParticle particle, int depth, int written ) {
+      if( depth >= maxDepth ) {
+        return false;
+      }
+      if( written == 0 ) {
+        return elementCount < 2 * elementsPerDocument && random.nextDouble() < optionalRate();
+      }
+      int remaining = elementsPerDocument - elementCount;
+      return remaining > minimumSize( particle.getTerm() ) && random.nextDouble() < 0.95;
+    }
+
+    private void writeTerm( XSTerm term, int depth ) throws IOException {
+      if( term instanceof XSElementDeclaration ) {
+        out.write( "\n" );
+        writeElement( (XSElementDeclaration) term, depth );
+      }
+      else if( term instanceof XSModelGroup ) {
+        XSModelGroup group = (XSModelGroup) term;
+        XSObjectList particles = group.getParticles();
+        if( group.getCompositor() == XSModelGroup.COMPOSITOR_CHOICE ) {
+          if( particles.getLength() > 0 ) {
+            writeParticle( chooseParticle( particles, depth ), depth );
+          }
+        }
+        else {
+          for( int i = 0; i < particles.getLength(); i++ ) {
+            writeParticle( (XSParticle) particles.item( i ), depth );
+          }
+        }
+      }
+      //wildcards are left empty
+    }
+
+    private XSParticle chooseParticle( XSObjectList particles, int depth ) {
+      if( depth < maxDepth && elementCount < elementsPerDocument ) {
+        return (XSParticle) particles.item( random.nextInt( particles.getLength() ) );
+      }
+      XSParticle smallest = null;
+      int smallestSize = Integer.MAX_VALUE;
+      for( int i = 0; i < particles.getLength(); i++ ) {
+        XSParticle particle = (XSParticle) particles.item( i );
+        int size = minimumSize( particle );
+        if( size < smallestSize ) {
+          smallest = particle;
+          smallestSize = size;
+        }
+      }
+      return smallest;
+    }
+
+    /**
+     * Resolve an abstract element to a concrete member of its substitution group
+     */
+    private XSElementDeclaration concreteElement( XSElementDeclaration element ) {
+      if( !element.getAbstract() ) {
+        return element;
+      }
+      XSObjectList members = model.getSubstitutionGroup( element );
+      List<XSElementDeclaration> concrete = new ArrayList<>();
+      for( int i = 0; members != null && i < members.getLength(); i++ ) {
+        XSElementDeclaration member = (XSElementDeclaration) members.item( i );
+        if( !member.getAbstract() ) {
+          concrete.add( member );
+        }
+      }
+      return concrete.isEmpty() ? null : concrete.get( random.nextInt( concrete.size() ) );
+    }
+
+    private void writeValue( XSSimpleTypeDefinition type, String fixedValue ) throws IOException {
+      String value = fixedValue != null ? fixedValue : generateValue( type );
+      if( xsdViolation && !corrupted && elementCount > corruptAfterElement && isCorruptible( type ) ) {
+        value = INVALID_VALUE;
+        corrupted = true;
+      }
+      out.write( escape( value ) );
+    }
+
+    private double optionalRate() {
+      return conservative ? 1.0 : 0.6;
+    }
+
+    private String generateValue( XSSimpleTypeDefinition type ) {
+      StringList enumeration = type.getLexicalEnumeration();
+      if( enumeration != null && enumeration.getLength() > 0 ) {
+        return enumeration.item( random.nextInt( enumeration.getLength() ) );
+      }
+      if( type.getVariety() == XSSimpleTypeDefinition.VARIETY_LIST && type.getItemType() != null ) {
+        int count = facetInt( type, XSSimpleTypeDefinition.FACET_LENGTH, 1 + random.nextInt( 3 ) );
+        StringBuilder sb = new StringBuilder();
+        for( int i = 0; i < count; i++ ) {
+          sb.append( i > 0 ? " " : "" ).append( generateValue( type.getItemType() ) );
+        }
+        return sb.toString();
+      }
+      if( type.getVariety() == XSSimpleTypeDefinition.VARIETY_UNION && type.getMemberTypes().getLength() > 0 ) {
+        return generateValue( (XSSimpleTypeDefinition) type.getMemberTypes().item( 0 ) );
+      }
+      switch( type.getBuiltInKind() ) {
+        case XSConstants.BOOLEAN_DT:
+          return conservative ? "true" : String.valueOf( random.nextBoolean() );
+        case XSConstants.DECIMAL_DT:
+        case XSConstants.FLOAT_DT:
+        case XSConstants.DOUBLE_DT:
+          return String.format( Locale.ROOT, "%.2f", number( type, 1, conservative ? 9 : 1000 ) );
+        case XSConstants.INTEGER_DT:
+        case XSConstants.LONG_DT:
+        case XSConstants.INT_DT:
+        case XSConstants.SHORT_DT:
+        case XSConstants.NONNEGATIVEINTEGER_DT:
+        case XSConstants.UNSIGNEDLONG_DT:
+        case XSConstants.UNSIGNEDINT_DT:
+        case XSConstants.UNSIGNEDSHORT_DT:
+        case XSConstants.POSITIVEINTEGER_DT:
+          return String.valueOf( Math.round( number( type, 1, conservative ? 9 : 1000 ) ) );
+        case XSConstants.BYTE_DT:
+        case XSConstants.UNSIGNEDBYTE_DT:
+          return String.valueOf( Math.round( number( type, 1, conservative ? 9 : 100 ) ) );
+        case XSConstants.NONPOSITIVEINTEGER_DT:
+        case XSConstants.NEGATIVEINTEGER_DT:
+          return String.valueOf( -Math.round( number( type, 1, conservative ? 9 : 1000 ) ) );
+        case XSConstants.DATETIME_DT:
+          return String.format( "2017-%02d-%02dT%02d:00:00Z", 1 + random.nextInt( 12 ), 1 + random.nextInt( 28 ), random.nextInt( 24 ) );
+        case XSConstants.DATE_DT:
+          return String.format( "2017-%02d-%02d", 1 + random.nextInt( 12 ), 1 + random.nextInt( 28 ) );
+        case XSConstants.TIME_DT:
+          return String.format( "%02d:00:00Z", random.nextInt( 24 ) );
+        case XSConstants.GYEAR_DT:
+          return "2017";
+        case XSConstants.GYEARMONTH_DT:
+          return "2017-01";
+        case XSConstants.GMONTH_DT:
+          return "--01";
+        case XSConstants.GDAY_DT:
+          return "---01";
+        case XSConstants.GMONTHDAY_DT:
+          return "--01-01";
+        case XSConstants.DURATION_DT:
+          return "P" + ( 1 + random.nextInt( 9 ) ) + "D";
+        case XSConstants.HEXBINARY_DT:
+          return "0F";
+        case XSConstants.BASE64BINARY_DT:
+          return "AAAA";
+        case XSConstants.ANYURI_DT:
+          return "http://example.org/" + WORDS[random.nextInt( WORDS.length )];
+        case XSConstants.LANGUAGE_DT:
+          return "en";
+        case XSConstants.QNAME_DT:
+        case XSConstants.NOTATION_DT:
+        case XSConstants.NCNAME_DT:
+        case XSConstants.NAME_DT:
+        case XSConstants.NMTOKEN_DT:
+        case XSConstants.ENTITY_DT:
+          return WORDS[random.nextInt( WORDS.length )];
+        case XSConstants.ID_DT:
+          return "id" + ( ++idCount );
+        case XSConstants.IDREF_DT:
+          return "id1";
+        default:
+          return text( type );
+      }
+    }
+
+    private String text( XSSimpleTypeDefinition type ) {
+      int minLength = facetInt( type, XSSimpleTypeDefinition.FACET_MINLENGTH, 1 );
+      int maxLength = facetInt( type, XSSimpleTypeDefinition.FACET_MAXLENGTH, Integer.MAX_VALUE );
+      int length = facetInt( type, XSSimpleTypeDefinition.FACET_LENGTH, -1 );
+      StringBuilder sb = new StringBuilder();
+      //patterns cannot be honored in general, but single words satisfy the common ones which exclude whitespace
+      boolean patterned = type.getLexicalPattern() != null && type.getLexicalPattern().getLength() > 0;
+      int words = patterned ? 1 : conservative ? 2 : 1 + random.nextInt( 6 );
+      for( int i = 0; i < words; i++ ) {
+        sb.append( i > 0 ? " " : "" ).append( WORDS[random.nextInt( WORDS.length )] );
+      }
+      while( sb.length() < Math.max( minLength, length ) ) {
+        sb.append( 'x' );
+      }
+      int limit = length >= 0 ? length : maxLength;
+      return sb.length() > limit ? sb.substring( 0, limit ) : sb.toString();
+    }
+
+    /**
+     * A random number in [low, high], narrowed to the type's inclusive and exclusive bounds
+     */
+    private double number( XSSimpleTypeDefinition type, double low, double high ) {
+      double min = facetDouble( type, XSSimpleTypeDefinition.FACET_MININCLUSIVE, Double.NaN );
+      double max = facetDouble( type, XSSimpleTypeDefinition.FACET_MAXINCLUSIVE, Double.NaN );
+      double minExclusive = facetDouble( type, XSSimpleTypeDefinition.FACET_MINEXCLUSIVE, Double.NaN );
+      double maxExclusive = facetDouble( type, XSSimpleTypeDefinition.FACET_MAXEXCLUSIVE, Double.NaN );
+      if( !Double.isNaN( minExclusive ) ) {
+        min = minExclusive + 1;
+      }
+      if( !Double.isNaN( maxExclusive ) ) {
+        max = maxExclusive - 1;
+      }
+      if( !Double.isNaN( min ) && low < min ) {
+        low = min;
+        high = Math.max( high, low );
+      }
+      if( !Double.isNaN( max ) && high > max ) {
+        high = max;
+        low = Math.min( low, high );
+      }
+      return low + random.nextDouble() * ( high - low );
+    }
+
+    private boolean isCorruptible( XSSimpleTypeDefinition type ) {
+      if( type.getLexicalEnumeration() != null && type.getLexicalEnumeration().getLength() > 0 ) {
+        return true;
+      }
+      switch( type.getBuiltInKind() ) {
+        case XSConstants.STRING_DT:
+        case XSConstants.NORMALIZEDSTRING_DT:
+        case XSConstants.TOKEN_DT:
+        case XSConstants.ANYSIMPLETYPE_DT:
+        case XSConstants.ANYURI_DT:
+        case XSConstants.NCNAME_DT:
+        case XSConstants.NAME_DT:
+        case XSConstants.NMTOKEN_DT:
+        case XSConstants.QNAME_DT:
+        case XSConstants.ID_DT:
+        case XSConstants.IDREF_DT:
+        case XSConstants.ENTITY_DT:
+        case XSConstants.NOTATION_DT:
+        case XSConstants.LANGUAGE_DT:
+        case XSConstants.LIST_DT:
+        case XSConstants.LISTOFUNION_DT:
+          return false;
+        default:
+          return type.getVariety() == XSSimpleTypeDefinition.VARIETY_ATOMIC;
+      }
+    }
+
+    private String qualifiedName( String namespace, String localName ) {
+      if( namespace == null ) {
+        return localName;
+      }
+      return prefixes.get( namespace ) + ":" + localName;
+    }
+  }
+
+  private static int facetInt( XSSimpleTypeDefinition type, short facet, int defaultValue ) {
+    String value = type.getLexicalFacetValue( facet );
+    try {
+      return value == null ? defaultValue : Integer.parseInt( value.trim() );
+    }
+    catch( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  private static double facetDouble( XSSimpleTypeDefinition type, short facet, double defaultValue ) {
+    String value = type.getLexicalFacetValue( facet );
+    try {
+      return value == null ? defaultValue : Double.parseDouble( value.trim() );
+    }
+    catch( NumberFormatException e ) {
+      return defaultValue;
+    }
+  }
+
+  private static String escape( String value ) {
+    return value.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( "\"", "&quot;" );
+  }
+
+  /**
+   * Counts of what was generated
+   */
+  public static class Summary {
+    private int documents;
+    private long bytes;
+    private long elements;
+    private int xsdInvalid;
+    private int schematronInvalid;
+
+    private void add( DocumentWriter writer, long size ) {
+      documents++;
+      bytes += size;
+      elements += writer.elementCount;
+      if( writer.corrupted ) {
+        xsdInvalid++;
+      }
+      if( writer.schematronInvalid ) {
+        schematronInvalid++;
+      }
+    }
+
+    public int getDocuments() {
+      return documents;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    public long getElements() {
+      return elements;
+    }
+
+    /**
+     * @return the number of documents with an injected XML schema violation
+     */
+    public int getXsdInvalid() {
+      return xsdInvalid;
+    }
+
+    /**
+     * @return the number of documents which violate the Schematron rules
+     */
+    public int getSchematronInvalid() {
+      return schematronInvalid;
+    }
+
+    @Override
+    public String toString() {
+      return String.format( "%d document(s), %d bytes, %d elements, %d XML schema invalid, %d Schematron invalid",
+        documents, bytes, elements, xsdInvalid, schematronInvalid );
+    }
+  }
+
+  private static void printUsage(){
+    System.err.println( "Usage: CorpusGenerator [OPTIONS] XSD_FILE OUTPUT_DIR\n" );
+    System.err.println( "Options:" );
+    System.err.println( "\t -c CATALOG_FILE" );
+    System.err.println( "\t -s SCHEMATRON_FILE" );
+    System.err.println( "\t -r ROOT_ELEMENT   (local name of the root element - first global element by default)" );
+    System.err.println( "\t -n DOCUMENTS      (number of documents - 10 by default)" );
+    System.err.println( "\t -b BYTES          (generate documents until the corpus reaches this size - overrides -n)" );
+    System.err.println( "\t -e ELEMENTS       (approximate elements per document - 100 by default)" );
+    System.err.println( "\t -d DEPTH          (depth beyond which only required content is generated - 10 by default)" );
+    System.err.println( "\t -x RATE           (fraction of documents with XML schema violations - 0 by default)" );
+    System.err.println( "\t -v RATE           (fraction of documents with Schematron violations - 0 by default)" );
+    System.err.println( "\t -l SCHEMA_LOCATION   (schema location written into documents - path relative to OUTPUT_DIR by default)" );
+    System.err.println( "\t -seed SEED\n" );
+    System.err.println( "Example:\n" );
+    System.err.println( "  CorpusGenerator -s shiporder.sch -e 1000 -b 1000000000 -x 0.1 -v 0.2 shiporder.xsd corpus" );
+  }
+
+  public static void main( String[] args ) throws Exception {
+    List<String> argsList = new ArrayList<>( Arrays.asList( args ) );
+    Map<String,String> options = new LinkedHashMap<>();
+    for( int i = 0; i < argsList.size(); i++ ) {
+      String arg = argsList.get( i );
+      if( arg.startsWith( "-" ) ) {
+        if( argsList.size() <= i + 1 ) {
+          System.err.println( "No value specified with the " + arg + " option" );
+          System.exit( 1 );
+        }
+        options.put( arg, argsList.get( i + 1 ) );
+        argsList.remove( i );  //remove the option from the list
+        argsList.remove( i );  //remove the option value from the list (this is now the ith index)
+        i--;  //after we remove items the index should remain the same
+      }
+    }
+    if( argsList.size() != 2 ) {
+      printUsage();
+      System.exit( 1 );
+    }
+
+    String catalog = options.get( "-c" );
+    CorpusGenerator generator = new CorpusGenerator( argsList.get( 0 ), options.get( "-r" ), catalog == null ? null : new String[]{ catalog } );
+    generator.setSchematronFile( options.get( "-s" ) );
+    if( options.containsKey( "-e" ) ) generator.setElementsPerDocument( Integer.parseInt( options.get( "-e" ) ) );
+    if( options.containsKey( "-d" ) ) generator.setMaxDepth( Integer.parseInt( options.get( "-d" ) ) );
+    if( options.containsKey( "-x" ) ) generator.setXsdViolationRate( Double.parseDouble( options.get( "-x" ) ) );
+    if( options.containsKey( "-v" ) ) generator.setSchematronViolationRate( Double.parseDouble( options.get( "-v" ) ) );
+    if( options.containsKey( "-l" ) ) generator.setSchemaLocation( options.get( "-l" ) );
+    if( options.containsKey( "-seed" ) ) generator.setSeed( Long.parseLong( options.get( "-seed" ) ) );
+    int numDocuments = options.containsKey( "-n" ) ? Integer.parseInt( options.get( "-n" ) ) : 10;
+    long targetBytes = options.containsKey( "-b" ) ? Long.parseLong( options.get( "-b" ) ) : 0;
+
+    Summary summary = generator.generate( new File( argsList.get( 1 ) ), numDocuments, targetBytes );
+    LOG.info( "Generated " + summary );
+  }
+}
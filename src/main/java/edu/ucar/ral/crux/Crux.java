@@ -12,11 +12,29 @@ import org.xml.sax.SAXException;
 
 import javax.xml.parsers.ParserConfigurationException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * The main class for Crux, which allows for validating XML and XSD files against their XML Schema, as well as against
@@ -24,133 +42,1073 @@ import java.util.List;
  */
 public class Crux {
   private static final Logger LOG = LoggerFactory.getLogger( Crux.class ); 
+  //the heap used by streaming XML schema validation of a file, regardless of its size
+  private static final long STREAMING_VALIDATION_BYTES = 4 * 1024 * 1024;
+  //the largest file the read stage of a pipeline holds in memory, or which is decompressed once to be validated twice
+  private static final long MAX_PIPELINE_READ_BYTES = 64 * 1024 * 1024;
   
   private SchematronValidator schematronValidator = new SchematronValidator();
+  private WellFormednessValidator wellFormednessValidator = new WellFormednessValidator();
   private boolean allowingRemoteResources = false;
+  private long fileTimeoutMs = 0;
+  private long batchTimeoutMs = 0;
+  private String recordPath;
+  private long memoryBudgetBytes = 0;
+  private boolean prescreening = false;
+  private boolean wellFormedOnly = false;
+  //the number of threads of each stage of the pipeline, or null if files are validated one step after another
+  private int[] pipelineThreads;
+  //the number of pipelines running, guarded by the Schematron validator
+  private int runningPipelines = 0;
+  private BatchSample sample;
+  private BatchSample.Estimate sampleEstimate;
 
   /**
    * Validate any number of XML or XSD files against their XML Schema and optionally against a local Schematron definition.  
-   * Local XML/XSD paths may include wildcards such as "*" or "?" 
-   * @param catalogFile the path to a local catalog file.  May be null
-   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   * Local XML/XSD paths may include wildcards such as "*" or "?".  Zip and tar archives are validated entry by entry
+   * without being extracted, and may be followed by "!/" and a pattern selecting entries, as in "bundle.zip!/dir/*.xml".
+   * If a record path has been set, local XML files are split into records which are validated in parallel.
+   * <p>
+   * Files are validated in parallel, admitted only while the memory they are estimated to need stays within the memory
+   * budget: large files validated against Schematron run with less concurrency, as their trees are held in memory, while
+   * small files keep the remaining threads busy.  Archives and files split into records are validated in parallel
+   * internally, so they run alone.  Errors are reported in the order of the files.
+   * <p>
+   * The root element of each local XML file is scanned first, and files are grouped by the schemas their schema
+   * locations refer to.  Each group is validated with its own validator, whose grammars are loaded before validation
+   * starts, in parallel with the other groups.
+   * <p>
+   * If pre-screening is enabled, every local file is first checked for well-formedness in parallel, and files which
+   * are not well-formed are reported without being validated.  If only well-formedness is checked, this check is all
+   * that is done.
+   * <p>
+   * If pipeline threads have been set, local XML files are instead passed through a pipeline of stages which read them,
+   * validate them against their XML schema, build their Schematron trees and run the Schematron rules, each stage with
+   * its own threads, so the stages of different files overlap.
+   * <p>
+   * If a sample has been set, only a random sample of the files is validated, and the error rate of the whole batch is
+   * estimated from it, as returned by {@link #getSampleEstimate()}
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFile the path to a local Schematron (.sch) definition, or a profile bundle holding one.  May be null
    * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  These may be local file paths or remote http: paths
    * @return the number of files which were validated
-   * @throws ValidationException if validation failures occur
-   * @throws IOException if necessary files could not be read
-   * @throws SAXException if the XML to validate is not well-structured
+   * @throws ValidationException if validation failures occur.  XML which is not well-formed and files which cannot be
+   *                             read are reported as validation failures so that the rest of the files are still validated
+   * @throws IOException if a local path is not supported or matches no files
+   * @throws SAXException if a SAX parser error occurs
    * @throws ParserConfigurationException if a parser configuration error occurs
    */
   public int validate( String catalogFile, String schematronFile, String... xmlOrXsdPaths ) throws ValidationException, IOException, SAXException, ParserConfigurationException {
-    XML10Validator validator;
-    if( catalogFile == null ) {
-      validator = new XML10Validator();
-    } else {
-      validator = new XML10Validator( catalogFile );
-    }
+    return validate( catalogFile, schematronFile == null ? Collections.<String>emptyList() : Collections.singletonList( schematronFile ),
+      Arrays.asList( xmlOrXsdPaths ) );
+  }
 
+  /**
+   * Validate any number of XML or XSD files as {@link #validate(String, String, String...)} does, against several
+   * Schematron definitions, such as a base profile and the profiles extending it.  Each file is parsed into a tree once,
+   * and each set of rules is run against that tree
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFiles the paths to local Schematron (.sch) definitions, or profile bundles holding them.  May be
+   *                        empty
+   * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  These may be local file paths or remote http: paths
+   * @return the number of files which were validated
+   * @throws ValidationException if validation failures occur
+   * @throws IOException if a local path is not supported or matches no files
+   * @throws SAXException if a SAX parser error occurs
+   * @throws ParserConfigurationException if a parser configuration error occurs
+   */
+  public int validate( String catalogFile, final List<String> schematronFiles, List<String> xmlOrXsdPaths ) throws ValidationException, IOException, SAXException, ParserConfigurationException {
+    //validators are kept for the whole batch, one for each set of schemas the files refer to
+    ValidatorRegistry registry = new ValidatorRegistry( Long.MAX_VALUE );
+    String[] catalogLocations = catalogFile == null ? null : new String[]{ catalogFile };
     if( !isAllowingRemoteResources() ) {
       LOG.info( "Offline mode enabled, schema resolution will only use local files" );
     }
-    validator.setAllowingRemoteResources( isAllowingRemoteResources() );
+    registry.setAllowingRemoteResources( isAllowingRemoteResources() );
+    //files are only checked for well-formedness when validation is off, so no catalog or grammars are loaded
+    final XML10Validator batchValidator = wellFormedOnly ? null : registry.getXML10Validator( catalogLocations );
+
+    final Deadline batchDeadline = Deadline.after( batchTimeoutMs );
+    long budgetBytes = memoryBudgetBytes > 0 ? memoryBudgetBytes : AdmissionScheduler.getDefaultBudgetBytes();
+    AdmissionScheduler scheduler = new AdmissionScheduler( Runtime.getRuntime().availableProcessors(), budgetBytes );
+    List<String> inputs = expandPaths( xmlOrXsdPaths );
+    BatchSample.Selection selection = null;
+    if( sample != null ) {
+      selection = select( inputs );
+      inputs = selection.getFiles();
+    }
+    Map<String,ValidationResult> screened = prescreening || wellFormedOnly ?
+      prescreen( inputs, scheduler, batchDeadline ) : Collections.<String,ValidationResult>emptyMap();
+
+    List<AdmissionScheduler.Job<List<ValidationResult>>> jobs = new ArrayList<>();
+    final SchemaGroups groups = new SchemaGroups( registry, catalogLocations, batchValidator, batchDeadline );
+    List<PipelinedFile> pipelined = new ArrayList<>();
+    for( final String file : inputs ) {
+      if( ArchiveReader.isArchive( file ) ) {
+        jobs.add( new AdmissionScheduler.Job<>( Long.MAX_VALUE, () -> validateArchive( batchValidator, catalogFile, schematronFiles, file, batchDeadline ) ) );
+        continue;
+      }
+      final ValidationResult screenedResult = screened.get( file );
+      if( screenedResult != null && ( wellFormedOnly || !screenedResult.isValid() ) ) {
+        jobs.add( new AdmissionScheduler.Job<>( 0, () -> Collections.singletonList( screenedResult ) ) );
+        continue;
+      }
+      if( recordPath != null && Utils.isLocalFile( file ) && !XML10Validator.isSchemaDocument( file ) ) {
+        jobs.add( new AdmissionScheduler.Job<>( Long.MAX_VALUE,
+          () -> Collections.singletonList( validateRecords( batchValidator, schematronFiles, file, batchDeadline ) ) ) );
+        continue;
+      }
+      if( pipelineThreads != null && Utils.isLocalFile( file ) && !XML10Validator.isSchemaDocument( file ) ) {
+        //the result is in place once the pipeline has run, before the other jobs
+        final PipelinedFile pipelinedFile = new PipelinedFile( file );
+        pipelined.add( pipelinedFile );
+        jobs.add( new AdmissionScheduler.Job<>( 0, () -> Collections.singletonList( pipelinedFile.result ) ) );
+        continue;
+      }
+      long memoryBytes = STREAMING_VALIDATION_BYTES + getHeldDecompressedBytes( file, schematronFiles ) +
+        ( schematronFiles.isEmpty() ? 0 : SchematronValidator.estimateMemory( file ) );
+      jobs.add( new AdmissionScheduler.Job<>( memoryBytes,
+        () -> Collections.singletonList( validateFile( groups.getValidator( file, null ), catalogFile, schematronFiles, file, null, batchDeadline ) ) ) );
+    }
 
+    if( !pipelined.isEmpty() ) {
+      validatePipelined( pipelined, groups, catalogFile, schematronFiles, scheduler, batchDeadline );
+    }
+    List<List<ValidationResult>> jobResults;
+    try {
+      jobResults = scheduler.run( jobs );
+    }
+    catch( UncheckedIOException e ) {
+      //an archive could not be read
+      throw e.getCause();
+    }
     List<ValidationError> errors = new ArrayList<>();
     int numFilesValidated = 0;
+    for( List<ValidationResult> results : jobResults ) {
+      numFilesValidated += results.size();
+      for( ValidationResult result : results ) {
+        errors.addAll( result.getErrors() );
+      }
+    }
+
+//    System.out.printf( "%d file(s) validated\n", numFilesValidated );
+    if( selection != null ) {
+      sampleEstimate = selection.estimate( getFailed( inputs, errors ) );
+    }
+
+    //if validation errors have been encountered, throw them in a single ValidationException
+    if( errors.size() > 0 ){
+      ValidationException e = new ValidationException( errors );
+      e.setNumValidated( numFilesValidated );
+      throw e;
+    }
+
+    return numFilesValidated;
+  }
+
+  /**
+   * Validate local XML files through a pipeline of stages, each with its own threads: reading and decompressing the
+   * files, validating them against their XML schema, building their Schematron trees and running the Schematron rules.
+   * The result of each file is set on it.  The memory each file needs is reserved from the scheduler's budget as it is
+   * read and released once it is complete
+   */
+  private void validatePipelined( List<PipelinedFile> files, final SchemaGroups groups, final String catalogFile, final List<String> schematronFiles,
+                                  final AdmissionScheduler scheduler, final Deadline batchDeadline ) {
+    ValidationPipeline<PipelinedFile> pipeline = new ValidationPipeline<PipelinedFile>()
+      .addStage( "read", pipelineThreads[0], file -> read( file, !schematronFiles.isEmpty(), scheduler, batchDeadline ) )
+      .addStage( "xsd", pipelineThreads[1], file -> validateXMLSchema( file, groups, catalogFile, schematronFiles, scheduler, batchDeadline ) );
+    if( !schematronFiles.isEmpty() ) {
+      pipeline.addStage( "tree", pipelineThreads[2], file -> buildTree( file, schematronFiles, scheduler ) )
+        .addStage( "schematron", pipelineThreads[3], file -> validateTree( file, schematronFiles, scheduler ) );
+    }
+    //a file whose stage failed returns the memory reserved for it, so files still to be read are not held back
+    pipeline.onFailure( file -> {
+      file.tree = null;
+      release( file, scheduler );
+    } );
+    LOG.debug( "Validating {} file(s) through a pipeline of {} read, {} XML schema, {} tree and {} Schematron thread(s)",
+      files.size(), pipelineThreads[0], pipelineThreads[1], pipelineThreads[2], pipelineThreads[3] );
+    //trees are built on one thread and validated on another, so the processor is shared while any pipeline is running
+    synchronized( schematronValidator ) {
+      if( runningPipelines++ == 0 ) {
+        schematronValidator.setSharingProcessor( true );
+      }
+    }
+    try {
+      pipeline.run( files );
+    }
+    finally {
+      synchronized( schematronValidator ) {
+        if( --runningPipelines == 0 ) {
+          schematronValidator.setSharingProcessor( false );
+        }
+      }
+    }
+  }
+
+  /**
+   * Read a file into memory, decompressing it if it is compressed, once the memory it needs fits in the budget.
+   * Reading ahead lets the reading and decompression of small files overlap with the validation of others, but gains
+   * nothing for large files, so files larger than {@link #MAX_PIPELINE_READ_BYTES} are left on disk and streamed by each
+   * stage instead
+   * @param buildingTree whether a Schematron tree is built from the file
+   * @return whether the file continues to the next stage
+   */
+  private static boolean read( PipelinedFile file, boolean buildingTree, AdmissionScheduler scheduler, Deadline batchDeadline ) {
+    if( batchDeadline.isExpired() ) {
+      file.result = skipped( file.file );
+      return false;
+    }
+    File localFile = new File( file.file );
+    long size = Compression.detect( localFile ).estimateDecompressedSize( localFile );
+    boolean inMemory = size <= MAX_PIPELINE_READ_BYTES;
+    file.reservedBytes = scheduler.reserve( STREAMING_VALIDATION_BYTES + ( inMemory ? size : 0 ) +
+      ( buildingTree ? SchematronValidator.estimateMemory( file.file ) : 0 ) );
+    file.startMs = System.currentTimeMillis();
+    String systemId = localFile.getAbsoluteFile().toURI().toString();
+    final CompressedInput compressed = CompressedInput.detect( file.file );
+    if( !inMemory ) {
+      file.input = new ValidationInput( file.file, systemId ) {
+        @Override
+        public InputStream open() throws IOException {
+          return compressed != null ? compressed.open() : new FileInputStream( file.file );
+        }
+      };
+      return true;
+    }
+    try {
+      byte[] content;
+      try( InputStream in = compressed != null ? compressed.open() : new FileInputStream( file.file ) ) {
+        content = ArchiveReader.readFully( in );
+      }
+      file.input = ValidationInput.of( file.file, systemId, content );
+      return true;
+    }
+    catch( IOException e ) {
+      List<ValidationError> errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), file.file, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      file.result = new ValidationResult( file.file, errors, System.currentTimeMillis() - file.startMs );
+      release( file, scheduler );
+      return false;
+    }
+  }
+
+  /**
+   * @return whether the file continues to the next stage, to be validated against Schematron rules
+   */
+  private boolean validateXMLSchema( PipelinedFile file, SchemaGroups groups, String catalogFile, List<String> schematronFiles,
+                                     AdmissionScheduler scheduler, Deadline batchDeadline ) {
+    file.deadline = Deadline.after( fileTimeoutMs ).earliest( batchDeadline );
+    LOG.info( getValidatingXMLSchemaLogMessage( file.file, catalogFile ) );
+    file.result = groups.getValidator( file.file, file.input ).validateToResult( file.input, file.deadline );
+    if( file.result.isValid() && !schematronFiles.isEmpty() ) {
+      return true;
+    }
+    complete( file, scheduler );
+    return false;
+  }
+
+  /**
+   * @return whether the file continues to the next stage, to run the Schematron rules against its tree
+   */
+  private boolean buildTree( PipelinedFile file, List<String> schematronFiles, AdmissionScheduler scheduler ) {
+    LOG.info( String.format( "Validating file %s against Schematron rules (%s)", file.file, String.join( ", ", schematronFiles ) ) );
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors;
+    try {
+      file.tree = schematronValidator.buildTree( file.input, schematronFiles );
+      //the content is no longer needed once the tree is built
+      file.input = null;
+      return true;
+    }
+    catch( ValidationException e ) {
+      //the Schematron definition itself could not be compiled
+      errors = e.getValidationErrors();
+    }
+    catch( IOException e ) {
+      errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), file.file, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    file.result = new ValidationResult( file.file, errors, System.currentTimeMillis() - startMs );
+    release( file, scheduler );
+    return false;
+  }
+
+  /**
+   * @return false, as running the Schematron rules is the last stage
+   */
+  private boolean validateTree( PipelinedFile file, List<String> schematronFiles, AdmissionScheduler scheduler ) {
+    file.result = schematronValidator.validateTree( file.tree, schematronFiles, file.deadline );
+    file.tree = null;
+    complete( file, scheduler );
+    return false;
+  }
+
+  private static void complete( PipelinedFile file, AdmissionScheduler scheduler ) {
+    release( file, scheduler );
+    if( file.result.isValid() ) {
+      LOG.info( "Validation of " + file.file + " successful, took " + ( System.currentTimeMillis() - file.startMs ) + " ms" );
+    }
+  }
+
+  /**
+   * Release the memory reserved for a file once it leaves the pipeline
+   */
+  private static void release( PipelinedFile file, AdmissionScheduler scheduler ) {
+    file.input = null;
+    scheduler.release( file.reservedBytes );
+    file.reservedBytes = 0;
+  }
 
+  /**
+   * A file passing through the stages of a pipeline, with what each stage hands to the next.  Queues between stages
+   * make each stage's changes visible to the next
+   */
+  private static class PipelinedFile {
+    private final String file;
+    private long startMs;
+    private long reservedBytes;
+    private Deadline deadline;
+    private ValidationInput input;
+    private SchematronValidator.Tree tree;
+    private ValidationResult result;
+
+    private PipelinedFile( String file ) {
+      this.file = file;
+    }
+  }
+
+  /**
+   * Check that files are well-formed in parallel, before any of them are validated.  Archives are checked entry by entry
+   * as they are validated
+   * @return the result of the check of each file which was checked, by file
+   */
+  private Map<String,ValidationResult> prescreen( List<String> inputs, AdmissionScheduler scheduler, final Deadline batchDeadline ) {
+    List<String> files = new ArrayList<>();
+    List<AdmissionScheduler.Job<ValidationResult>> checks = new ArrayList<>();
+    for( final String file : inputs ) {
+      //remote files would be fetched again to be validated, so they are only checked first if nothing more is done
+      if( ArchiveReader.isArchive( file ) || ( !wellFormedOnly && !Utils.isLocalFile( file ) ) ) {
+        continue;
+      }
+      files.add( file );
+      //the streaming check needs little memory, so only the number of threads limits how many run at once
+      checks.add( new AdmissionScheduler.Job<>( 0, () -> checkWellFormed( file, null, batchDeadline ) ) );
+    }
+    List<ValidationResult> results = scheduler.run( checks );
+    Map<String,ValidationResult> screened = new HashMap<>();
+    int numRejected = 0;
+    for( int i = 0; i < files.size(); i++ ) {
+      screened.put( files.get( i ), results.get( i ) );
+      if( !results.get( i ).isValid() ) {
+        numRejected++;
+      }
+    }
+    if( !wellFormedOnly && numRejected > 0 ) {
+      LOG.info( numRejected + " of " + files.size() + " file(s) are not well-formed and will not be validated" );
+    }
+    return screened;
+  }
+
+  /**
+   * Check that a single file or archive entry is well-formed
+   * @param file the file to check, or the name of the input
+   * @param input the content to check when it is not a plain file.  May be null
+   */
+  private ValidationResult checkWellFormed( String file, ValidationInput input, Deadline batchDeadline ) {
+    if( batchDeadline.isExpired() ){
+      return skipped( file );
+    }
+    Deadline deadline = Deadline.after( fileTimeoutMs ).earliest( batchDeadline );
+    long startMs = System.currentTimeMillis();
+    if( wellFormedOnly ) {
+      LOG.info( "Checking that file " + file + " is well-formed" );
+    }
+    ValidationResult result = input == null ? wellFormednessValidator.validateToResult( file, deadline ) :
+      wellFormednessValidator.validateToResult( input, deadline );
+    if( wellFormedOnly && result.isValid() ) {
+      LOG.info( "Well-formedness check successful, took " + ( System.currentTimeMillis() - startMs ) + " ms" );
+    }
+    return result;
+  }
+
+  /**
+   * The validators of the groups of files referring to the same schemas, found by scanning the root element of each file
+   * as it is validated, so the files are scanned in parallel.  The first file of each group loads the group's schemas,
+   * and the other files of the group wait for them.  This class is thread-safe
+   */
+  private static class SchemaGroups {
+    private final ValidatorRegistry registry;
+    private final String[] catalogLocations;
+    private final XML10Validator defaultValidator;
+    private final Deadline batchDeadline;
+    private final Map<String,SchemaGroup> groups = new HashMap<>();
+
+    private SchemaGroups( ValidatorRegistry registry, String[] catalogLocations, XML10Validator defaultValidator, Deadline batchDeadline ) {
+      this.registry = registry;
+      this.catalogLocations = catalogLocations;
+      this.defaultValidator = defaultValidator;
+      this.batchDeadline = batchDeadline;
+    }
+
+    /**
+     * Get the validator for the group of files referring to the same schemas as a file, loading the group's schemas
+     * if the file is the first of its group
+     * @param input the content of the file when it has been read.  May be null
+     * @return the validator for the file's group, or the default validator if the file is not a local XML file or its
+     * root element could not be read
+     */
+    private XML10Validator getValidator( String file, ValidationInput input ) {
+      if( !Utils.isLocalFile( file ) || XML10Validator.isSchemaDocument( file ) ) {
+        return defaultValidator;
+      }
+      RootElement root = input == null ? RootElement.read( file ) : RootElement.read( input );
+      if( root == null ) {
+        return defaultValidator;
+      }
+      String fingerprint = root.getSchemaFingerprint();
+      SchemaGroup group;
+      synchronized( groups ) {
+        group = groups.get( fingerprint );
+        if( group == null ) {
+          try {
+            group = new SchemaGroup( registry.getXML10ValidatorForSchemas( fingerprint, catalogLocations ) );
+          }
+          catch( IOException e ) {
+            //the catalogs were already resolved for the default validator, so this is not expected
+            LOG.debug( "Could not get a validator for schemas " + fingerprint, e );
+            return defaultValidator;
+          }
+          groups.put( fingerprint, group );
+        }
+      }
+      group.load( root, batchDeadline );
+      return group.validator;
+    }
+  }
+
+  /**
+   * A validator dedicated to one group of files, and whether the group's schemas have been loaded into it
+   */
+  private static class SchemaGroup {
+    private final XML10Validator validator;
+    private boolean loaded;
+
+    private SchemaGroup( XML10Validator validator ) {
+      this.validator = validator;
+    }
+
+    private synchronized void load( RootElement root, Deadline deadline ) {
+      if( !loaded ) {
+        LOG.debug( "Loading the schemas of schema set {}", root.getSchemaFingerprint() );
+        validator.preload( root, deadline );
+        loaded = true;
+      }
+    }
+  }
+
+  /**
+   * Validate any number of XML or XSD files as {@link #validate(String, List, List)} does, split across several worker
+   * JVMs, for batches too large for the heap of this JVM.  Workers pull files as they become free, and their errors are
+   * merged into one report in the order of the files.  See {@link ShardCoordinator}
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFiles the paths to local Schematron (.sch) definitions, or profile bundles holding them.  May be
+   *                        empty
+   * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  These may be local file paths or remote http: paths
+   * @param numLocalWorkers the number of worker JVMs to start on this host
+   * @param listenAddress the address and port on which workers on other hosts sharing the file system may connect, or
+   *                      null to only use local workers
+   * @return the number of files which were validated
+   * @throws ValidationException if validation failures occur
+   * @throws IOException if a local path is not supported or matches no files, or the workers could not be started
+   */
+  public int validateSharded( String catalogFile, List<String> schematronFiles, List<String> xmlOrXsdPaths, int numLocalWorkers,
+                              InetSocketAddress listenAddress ) throws ValidationException, IOException {
+    ShardCoordinator coordinator = new ShardCoordinator( this, numLocalWorkers, listenAddress );
+    if( sample == null ) {
+      return coordinator.validate( catalogFile, schematronFiles, xmlOrXsdPaths );
+    }
+    BatchSample.Selection selection = select( expandPaths( xmlOrXsdPaths ) );
+    try {
+      int numFilesValidated = coordinator.validate( catalogFile, schematronFiles, selection.getFiles() );
+      sampleEstimate = selection.estimate( getFailed( selection.getFiles(), Collections.<ValidationError>emptyList() ) );
+      return numFilesValidated;
+    }
+    catch( ValidationException e ) {
+      sampleEstimate = selection.estimate( getFailed( selection.getFiles(), e.getValidationErrors() ) );
+      throw e;
+    }
+  }
+
+  private BatchSample.Selection select( List<String> inputs ) {
+    BatchSample.Selection selection = sample.select( inputs );
+    LOG.info( "Validating a sample of " + selection.getFiles().size() + " of " + inputs.size() + " file(s), seed " + sample.getSeed() );
+    return selection;
+  }
+
+  /**
+   * @return whether each input failed validation: whether any error was reported for it, or for one of its entries if it
+   * is an archive
+   */
+  private static List<Boolean> getFailed( List<String> inputs, List<ValidationError> errors ) {
+    Set<String> failedNames = new HashSet<>();
+    for( ValidationError error : errors ) {
+      failedNames.add( getArchiveOrFile( error.getFileName() ) );
+    }
+    List<Boolean> failed = new ArrayList<>( inputs.size() );
+    for( String input : inputs ) {
+      failed.add( failedNames.contains( getArchiveOrFile( input ) ) );
+    }
+    return failed;
+  }
+
+  private static String getArchiveOrFile( String name ) {
+    return name == null || !name.contains( "!/" ) ? name : name.substring( 0, name.indexOf( "!/" ) );
+  }
+
+  /**
+   * Resolve wildcards in local paths.  Archives are kept as they are, as they are expanded entry by entry
+   * @throws IOException if a local path is not supported or matches no files
+   */
+  static List<String> expandPaths( List<String> xmlOrXsdPaths ) throws IOException {
+    List<String> inputs = new ArrayList<>();
     for( String filePath : xmlOrXsdPaths ) {
-      boolean isLocal = Utils.isLocalFile( filePath );
-      try {
-        //if we have a local file we resolve wildcards
-        if( isLocal ) {
-          if( filePath.contains( ".." ) ){
-            throw new IOException( "Relative paths using '..' are not currently supported" );
+      if( ArchiveReader.isArchive( filePath ) ) {
+        inputs.add( filePath );
+      }
+      else {
+        inputs.addAll( expandPath( filePath ) );
+      }
+    }
+    return inputs;
+  }
+
+  /**
+   * Resolve wildcards in a local path
+   * @param filePath a local path, which may include wildcards such as "*" or "?", or a remote http: path
+   * @return the matching local files, or the remote path unchanged
+   * @throws IOException if a local path is not supported or matches no files
+   */
+  static List<String> expandPath( String filePath ) throws IOException {
+    //if we have a local file we resolve wildcards, otherwise this is a URL and nothing further needed
+    if( !Utils.isLocalFile( filePath ) ) {
+      return Collections.singletonList( filePath );
+    }
+    if( filePath.contains( ".." ) ){
+      throw new IOException( "Relative paths using '..' are not currently supported" );
+    }
+    //a full relative path library is not readily available for Java - Ant DirectoryScanner doesn't seem to handle
+    //paths with intermixed "." and "..". To fix the "." issues we trim off "./"
+    while( filePath.startsWith( "./" ) ) {
+      filePath = filePath.substring( 2 );
+    }
+
+    //DirectoryScanner chokes on "//".  Collapse these into "/" for local files
+    filePath=filePath.replace( "//", "/" );
+    File localFile = new File( filePath );
+    DirectoryScanner scanner = new DirectoryScanner();
+    //Windows is case-insensitive.  For consistent behavior on this platform disable case sensitivity
+    if( Utils.isWindows() ){
+      scanner.setCaseSensitive( false );
+    }
+    if( ! localFile.isAbsolute() ) {
+      scanner.setBasedir( "." );
+    }
+    scanner.setIncludes( new String[]{ filePath } );
+    scanner.scan();
+    String[] files = scanner.getIncludedFiles();
+
+    if( files.length == 0 ){
+      throw new FileNotFoundException( "No such file: "+filePath );
+    }
+    return Arrays.asList( files );
+  }
+
+  /**
+   * Validate any number of XML or XSD files as {@link #validate(String, String, String...)} does, then keep watching
+   * them, the Schematron file, the catalog file and the local schemas they use, re-validating the affected files
+   * whenever one of them changes.  This does not return until the thread is interrupted
+   * @param catalogFile the path to a local catalog file.  May be null
+   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  Local paths may include wildcards, which are
+   *                      re-evaluated as files are created
+   * @throws IOException if a local path is not supported or the files cannot be watched
+   * @throws InterruptedException when the thread is interrupted
+   */
+  public void watch( String catalogFile, String schematronFile, String... xmlOrXsdPaths ) throws IOException, InterruptedException {
+    try( Watcher watcher = new Watcher( catalogFile, schematronFile, xmlOrXsdPaths ) ) {
+      watcher.setAllowingRemoteResources( isAllowingRemoteResources() );
+      watcher.setFileTimeoutMs( fileTimeoutMs );
+      watcher.run();
+    }
+  }
+
+  /**
+   * Validate the documents read one after another from a stream, such as standard input, in parallel.  Validators are
+   * kept for the whole stream, one for each set of schemas the documents refer to, so each document costs only its own
+   * validation.  The result of each document is written as soon as it completes, so results are not in the order of the
+   * documents: "OK" and the document's name if it is valid, otherwise "FAILED", the name and the number of errors,
+   * followed by a line for each error
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFiles the paths to local Schematron (.sch) definitions, or profile bundles holding them.  May be
+   *                        empty
+   * @param documents the paths or bodies of the documents to validate
+   * @param out where the results are written
+   * @return the number of documents which failed validation
+   * @throws IOException if the stream could not be read
+   */
+  public int validateStream( String catalogFile, final List<String> schematronFiles, DocumentStream documents, final PrintStream out ) throws IOException {
+    //validators which have not been used recently are evicted, as the stream may refer to any number of schemas
+    final ValidatorRegistry registry = new ValidatorRegistry();
+    registry.setAllowingRemoteResources( isAllowingRemoteResources() );
+    final String[] catalogLocations = catalogFile == null ? null : new String[]{ catalogFile };
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+    //bound the number of documents held in memory while earlier documents are validated
+    final Semaphore buffered = new Semaphore( numThreads * 2 );
+    final AtomicInteger numFailed = new AtomicInteger();
+    try {
+      while( true ) {
+        buffered.acquireUninterruptibly();
+        final String file;
+        final ValidationInput input;
+        if( documents.getFraming() == DocumentStream.Framing.PATHS ) {
+          file = documents.nextPath();
+          input = null;
+        }
+        else {
+          input = documents.nextDocument();
+          file = input == null ? null : input.getName();
+        }
+        if( file == null ) {
+          buffered.release();
+          break;
+        }
+        executor.execute( () -> {
+          try {
+            ValidationResult result = validateStreamed( registry, catalogLocations, schematronFiles, file, input );
+            if( !result.isValid() ) {
+              numFailed.incrementAndGet();
+            }
+            writeResult( out, file, result );
           }
-          //a full relative path library is not readily available for Java - Ant DirectoryScanner doesn't seem to handle
-          //paths with intermixed "." and "..". To fix the "." issues we trim off "./"
-          while( filePath.startsWith( "./" ) ) {
-            filePath = filePath.substring( 2 );
+          finally {
+            buffered.release();
           }
+        } );
+      }
+    }
+    finally {
+      executor.shutdown();
+      boolean interrupted = false;
+      while( !executor.isTerminated() ) {
+        try {
+          executor.awaitTermination( 1, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException e ) {
+          //the documents already read are still reported
+          interrupted = true;
+        }
+      }
+      if( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    return numFailed.get();
+  }
+
+  /**
+   * Validate a single document read from a stream with the validator for the schemas it refers to, without logging
+   * @param file the file to validate, or the name of the input
+   * @param input the content to validate when it is not a plain file.  May be null
+   */
+  ValidationResult validateStreamed( ValidatorRegistry registry, String[] catalogLocations, List<String> schematronFiles,
+                                     String file, ValidationInput input ) {
+    long startMs = System.currentTimeMillis();
+    Deadline deadline = Deadline.after( fileTimeoutMs );
+    try {
+      if( prescreening || wellFormedOnly ) {
+        ValidationResult screened = input == null ? wellFormednessValidator.validateToResult( file, deadline ) :
+          wellFormednessValidator.validateToResult( input, deadline );
+        if( wellFormedOnly || !screened.isValid() ) {
+          return screened;
+        }
+      }
+      RootElement root = null;
+      if( input != null ) {
+        root = RootElement.read( input );
+      }
+      else if( Utils.isLocalFile( file ) && !XML10Validator.isSchemaDocument( file ) ) {
+        root = RootElement.read( file );
+      }
+      XML10Validator validator = root == null ? registry.getXML10Validator( catalogLocations ) :
+        registry.getXML10ValidatorForSchemas( root.getSchemaFingerprint(), catalogLocations );
+      ValidationResult result = input == null ? validator.validateToResult( file, deadline ) : validator.validateToResult( input, deadline );
+      if( result.isValid() && !schematronFiles.isEmpty() ) {
+        result = input == null ? schematronValidator.validateToResult( file, schematronFiles, deadline ) :
+          schematronValidator.validateToResult( input, schematronFiles, deadline );
+      }
+      return result;
+    }
+    catch( IOException | RuntimeException e ) {
+      List<ValidationError> errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), file, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      return new ValidationResult( file, errors, System.currentTimeMillis() - startMs );
+    }
+  }
+
+  private static void writeResult( PrintStream out, String file, ValidationResult result ) {
+    StringBuilder sb = new StringBuilder();
+    if( result.isValid() ) {
+      sb.append( "OK " ).append( file );
+    }
+    else {
+      sb.append( "FAILED " ).append( file ).append( ' ' ).append( result.getErrors().size() ).append( " error(s)" );
+      for( ValidationError error : result.getErrors() ) {
+        sb.append( "\n  " );
+        error.appendTo( sb );
+      }
+    }
+    //one call, so the lines of concurrent results are not interleaved
+    synchronized( out ) {
+      out.println( sb );
+      out.flush();
+    }
+  }
+
+  /**
+   * Validate the XML and XSD entries of a zip or tar archive in parallel
+   * @return the result of validating each entry
+   * @throws UncheckedIOException if the archive could not be read
+   */
+  private List<ValidationResult> validateArchive( final XML10Validator validator, final String catalogFile, final List<String> schematronFiles,
+                                                  String archivePath, final Deadline batchDeadline ) {
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+    try( ArchiveReader archive = new ArchiveReader( archivePath ) ) {
+      return archive.forEachEntry( input -> {
+        if( prescreening || wellFormedOnly ) {
+          ValidationResult screened = checkWellFormed( input.getName(), input, batchDeadline );
+          if( wellFormedOnly || !screened.isValid() ) {
+            return screened;
+          }
+        }
+        return validateFile( validator, catalogFile, schematronFiles, input.getName(), input, batchDeadline );
+      }, executor, numThreads * 2 );
+    }
+    catch( IOException e ) {
+      throw new UncheckedIOException( e );
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Split a local XML file into records and validate them in parallel, each against the declaration of the record
+   * element and the Schematron rules.  Content outside the records is only checked for well-formedness
+   * @return the result of validating the whole file
+   */
+  private ValidationResult validateRecords( final XML10Validator validator, final List<String> schematronFiles, String file,
+                                            Deadline batchDeadline ) {
+    if( batchDeadline.isExpired() ){
+      return skipped( file );
+    }
+    final Deadline deadline = Deadline.after( fileTimeoutMs ).earliest( batchDeadline );
+    long startMs = System.currentTimeMillis();
+    LOG.info( String.format( "Validating %s records of file %s", recordPath, file ) );
+    List<ValidationError> errors = new ArrayList<>();
+    int numThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+    try {
+      RecordReader reader = new RecordReader( file, recordPath );
+      List<ValidationResult> results = reader.forEachRecord( record -> {
+        ValidationResult result = validator.validateToResult( record, deadline );
+        if( result.isValid() && !schematronFiles.isEmpty() ) {
+          result = schematronValidator.validateToResult( record, schematronFiles, deadline );
+        }
+        return result;
+      }, executor, numThreads * 2 );
+      for( ValidationResult result : results ) {
+        errors.addAll( result.getErrors() );
+      }
+      if( reader.getReadError() != null ) {
+        errors.add( reader.getReadError() );
+      }
+      else if( results.isEmpty() ) {
+        errors.add( new ValidationError( "No elements matching the record path " + recordPath + " were found", file,
+          ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      }
+      else if( errors.isEmpty() ) {
+        LOG.info( "Validation of " + results.size() + " records successful, took " + ( System.currentTimeMillis() - startMs ) + " ms" );
+      }
+    }
+    catch( IOException e ) {
+      errors.add( new ValidationError( e.toString(), file, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    finally {
+      executor.shutdown();
+    }
+    return new ValidationResult( file, errors, System.currentTimeMillis() - startMs );
+  }
+
+  static ValidationResult skipped( String file ) {
+    LOG.warn( "Skipping validation of " + file + ", the batch deadline has passed" );
+    List<ValidationError> errors = new ArrayList<>( 1 );
+    errors.add( new ValidationTimeoutError( "Not validated, the batch deadline passed before validation started", file ) );
+    return new ValidationResult( file, errors, 0 );
+  }
+
+  /**
+   * Validate a single file or archive entry.  Validation failures, including timeouts, do not stop the remaining files
+   * of a batch from being validated
+   * @param file the file to validate, or the name of the input
+   * @param input the content to validate when it is not a plain file.  May be null
+   */
+  private ValidationResult validateFile( XML10Validator validator, String catalogFile, List<String> schematronFiles, String file,
+                                         ValidationInput input, Deadline batchDeadline ) {
+    if( batchDeadline.isExpired() ){
+      return skipped( file );
+    }
+    Deadline deadline = Deadline.after( fileTimeoutMs ).earliest( batchDeadline );
+    long startMs = System.currentTimeMillis();
+    if( input == null && getHeldDecompressedBytes( file, schematronFiles ) > 0 ) {
+      try {
+        input = CompressedInput.detect( file ).read();
+      }
+      catch( IOException e ) {
+        //each validation decompresses the file itself and reports the problem
+        LOG.debug( "Could not decompress " + file, e );
+      }
+    }
+    LOG.info( getValidatingXMLSchemaLogMessage( file, catalogFile ) );
+    ValidationResult result = input == null ? validator.validateToResult( file, deadline ) : validator.validateToResult( input, deadline );
+    if( result.isValid() && !schematronFiles.isEmpty() ) {
+      LOG.info( String.format( "Validating file %s against Schematron rules (%s)", file, String.join( ", ", schematronFiles ) ) );
+      result = input == null ? schematronValidator.validateToResult( file, schematronFiles, deadline ) :
+        schematronValidator.validateToResult( input, schematronFiles, deadline );
+    }
+
+    if( result.isValid() ) {
+      LOG.info( "Validation successful, took " + ( System.currentTimeMillis() - startMs ) + " ms" );
+    }
+    return result;
+  }
+
+  /**
+   * @return the decompressed size of a compressed local file which is decompressed into memory once, to be validated
+   * against both its XML schema and Schematron rules, or 0 if it is not.  Files larger than
+   * {@link #MAX_PIPELINE_READ_BYTES} are decompressed by each validation instead, as they are streamed
+   */
+  private static long getHeldDecompressedBytes( String file, List<String> schematronFiles ) {
+    File localFile = new File( file );
+    if( schematronFiles.isEmpty() || !Utils.isLocalFile( file ) || !localFile.isFile() ) {
+      return 0;
+    }
+    Compression compression = Compression.detect( localFile );
+    if( compression == Compression.NONE ) {
+      return 0;
+    }
+    long size = compression.estimateDecompressedSize( localFile );
+    return size <= MAX_PIPELINE_READ_BYTES ? size : 0;
+  }
+
+  private String getValidatingXMLSchemaLogMessage( String xsdOrXmlFile, String catalogFile ){
+    String msg = "Validating file "+xsdOrXmlFile+" against XML schema";
+    if( catalogFile != null ){
+      msg += " using the following catalog(s): "+ catalogFile;
+    }
+    return msg;
+  }
+
+  /**
+   * Set whether remote (non-local) schema files are resolved.  Remote schema resolution can be used to get validation
+   * software to participate in denial of service attacks and other malicious activities. False by default
+   */
+  public void setAllowingRemoteResources( boolean allowingRemoteResources ){
+    this.allowingRemoteResources = allowingRemoteResources;
+  }
+
+  public boolean isAllowingRemoteResources() {
+    return allowingRemoteResources;
+  }
+
+  public long getFileTimeoutMs() {
+    return fileTimeoutMs;
+  }
+
+  /**
+   * Set the maximum time the validation of a single file may take.  A file that takes longer is reported with a
+   * {@link ValidationTimeoutError} and the batch continues with the next file.  Zero (the default) means no limit
+   */
+  public void setFileTimeoutMs( long fileTimeoutMs ) {
+    this.fileTimeoutMs = fileTimeoutMs;
+  }
+
+  public long getBatchTimeoutMs() {
+    return batchTimeoutMs;
+  }
+
+  /**
+   * Set the maximum time the validation of a whole batch may take.  Once it passes, the file being validated and every
+   * remaining file are reported with a {@link ValidationTimeoutError}.  Zero (the default) means no limit
+   */
+  public void setBatchTimeoutMs( long batchTimeoutMs ) {
+    this.batchTimeoutMs = batchTimeoutMs;
+  }
+
+  /**
+   * @return the number of read, XML schema, tree building and Schematron threads of the pipeline local XML files are
+   * validated through, or null if each file is validated one step after another
+   */
+  public int[] getPipelineThreads() {
+    return pipelineThreads == null ? null : pipelineThreads.clone();
+  }
+
+  /**
+   * Set the number of threads of each stage of a pipeline through which {@link #validate(String, List, List)} passes
+   * local XML files, so that the stages of different files overlap.  A stage which is the bottleneck, such as running
+   * expensive Schematron rules, may be given more threads than the others.  By default, each file is validated one step
+   * after another on one of as many threads as there are processors.  Either way, files are admitted only while the
+   * memory they are estimated to need stays within the memory budget
+   * @param readThreads the threads reading and decompressing files
+   * @param xmlSchemaThreads the threads validating files against their XML schema
+   * @param treeThreads the threads building the trees Schematron rules run against
+   * @param schematronThreads the threads running the Schematron rules
+   */
+  public void setPipelineThreads( int readThreads, int xmlSchemaThreads, int treeThreads, int schematronThreads ) {
+    this.pipelineThreads = new int[]{ readThreads, xmlSchemaThreads, treeThreads, schematronThreads };
+  }
+
+  /**
+   * Validate each file one step after another, as is done by default
+   */
+  public void clearPipelineThreads() {
+    this.pipelineThreads = null;
+  }
+
+  public BatchSample getSample() {
+    return sample;
+  }
+
+  /**
+   * Set a sample of the files of each batch to validate in place of the whole batch, to estimate its error rate.  Null,
+   * the default, validates every file
+   */
+  public void setSample( BatchSample sample ) {
+    this.sample = sample;
+  }
+
+  /**
+   * @return the error rate estimated from the sample of the last batch validated, or null if no sample was set
+   */
+  public BatchSample.Estimate getSampleEstimate() {
+    return sampleEstimate;
+  }
+
+  public String getRecordPath() {
+    return recordPath;
+  }
+
+  /**
+   * Set the path of the record elements into which large local XML files are split, such as "gml:featureMember" or
+   * "/wfs:FeatureCollection/wfs:member".  Each record is validated separately and in parallel, so memory use is bounded
+   * by the size of the records rather than the size of the file.  See {@link RecordReader} for the path syntax.  Null
+   * (the default) validates files whole
+   */
+  public void setRecordPath( String recordPath ) {
+    this.recordPath = recordPath;
+  }
+
+  public long getMemoryBudgetBytes() {
+    return memoryBudgetBytes;
+  }
+
+  /**
+   * Set the memory which the files being validated in parallel may be estimated to need in total.  Zero (the default)
+   * uses half of the maximum heap size
+   */
+  public void setMemoryBudgetBytes( long memoryBudgetBytes ) {
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
 
-          //DirectoryScanner chokes on "//".  Collapse these into "/" for local files
-          filePath=filePath.replace( "//", "/" );
-          File localFile = new File( filePath );
-          DirectoryScanner scanner = new DirectoryScanner();
-          //Windows is case-insensitive.  For consistent behavior on this platform disable case sensitivity
-          if( Utils.isWindows() ){
-            scanner.setCaseSensitive( false );
-          }
-          if( ! localFile.isAbsolute() ) {
-            scanner.setBasedir( "." );
-          }
-          scanner.setIncludes( new String[]{ filePath } );
-          scanner.scan();
-          String[] files = scanner.getIncludedFiles();
+  public boolean isPrescreening() {
+    return prescreening;
+  }
 
-          if( files.length == 0 ){
-            throw new FileNotFoundException( "No such file: "+filePath );
-          }
+  /**
+   * Set whether files are checked for well-formedness, in parallel, before any of them are validated.  Files which are
+   * not well-formed are then reported without loading their schemas or Schematron rules.  False by default
+   */
+  public void setPrescreening( boolean prescreening ) {
+    this.prescreening = prescreening;
+  }
 
-          for( String file : files ) {
-            numFilesValidated++;
-            long startMs = System.currentTimeMillis();
+  public boolean isWellFormedOnly() {
+    return wellFormedOnly;
+  }
 
-            LOG.info( getValidatingXMLSchemaLogMessage( file, catalogFile ) );
-            validator.validate( file );
-            if( schematronFile != null ) {
-              LOG.info( String.format( "Validating file %s against Schematron rules (%s)", file, schematronFile ) );
-              schematronValidator.validate( file, schematronFile );
-            }
+  /**
+   * Set whether files are only checked for well-formedness, without XML schema or Schematron validation.  False by
+   * default
+   */
+  public void setWellFormedOnly( boolean wellFormedOnly ) {
+    this.wellFormedOnly = wellFormedOnly;
+  }
 
-            LOG.info( "Validation successful, took " + ( System.currentTimeMillis() - startMs ) + " ms" );
-          }
-        }
-        //otherwise this is a URL and nothing further needed
-        else {
-          numFilesValidated++;
-          long startMs = System.currentTimeMillis();
+  public boolean isConcurrentRuleSets() {
+    return schematronValidator.isConcurrentRuleSets();
+  }
 
-          LOG.info( getValidatingXMLSchemaLogMessage( filePath, catalogFile ) );
-          validator.validate( filePath );
-          if( schematronFile != null ) {
-            LOG.info( String.format( "Validating file %s against Schematron rules (%s)\n", filePath, schematronFile ) );
-            schematronValidator.validate( filePath, schematronFile );
-          }
+  /**
+   * Set whether a file validated against several Schematron definitions is checked against each of them concurrently,
+   * on the tree shared by all of them.  False by default
+   */
+  public void setConcurrentRuleSets( boolean concurrentRuleSets ) {
+    schematronValidator.setConcurrentRuleSets( concurrentRuleSets );
+  }
 
-          LOG.info( "Validation successful, took " + ( System.currentTimeMillis() - startMs ) + " ms" );
-        }
-      }catch( ValidationException ve ){
-        //just accumulate validation errors and throw a single Exception
-        errors.addAll( ve.getValidationErrors() );
-      }
-    }
+  public boolean isProfilingSchematron() {
+    return schematronValidator.isProfiling();
+  }
 
-//    System.out.printf( "%d file(s) validated\n", numFilesValidated );
+  /**
+   * Set whether the time spent in each Schematron pattern, rule, assert and report is recorded, as returned by
+   * {@link #getSchematronProfiles()}.  False by default
+   */
+  public void setProfilingSchematron( boolean profilingSchematron ) {
+    schematronValidator.setProfiling( profilingSchematron );
+  }
 
-    //if validation errors have been encountered, throw them in a single ValidationException
-    if( errors.size() > 0 ){
-      throw new ValidationException( errors );
-    }
+  public boolean isIndexingSchematronLookups() {
+    return schematronValidator.isIndexingLookups();
+  }
 
-    return numFilesValidated;
+  /**
+   * Set whether equality lookups in Schematron rules, such as //foo[@id = current()/@ref], are rewritten into keys when
+   * the rules are compiled.  True by default
+   */
+  public void setIndexingSchematronLookups( boolean indexingSchematronLookups ) {
+    schematronValidator.setIndexingLookups( indexingSchematronLookups );
   }
 
-  private String getValidatingXMLSchemaLogMessage( String xsdOrXmlFile, String catalogFile ){
-    String msg = "Validating file "+xsdOrXmlFile+" against XML schema";
-    if( catalogFile != null ){
-      msg += " using the following catalog(s): "+ catalogFile;
-    }
-    return msg;
+  public boolean isLeanSchematronTrees() {
+    return schematronValidator.isLean();
   }
 
   /**
-   * Set whether remote (non-local) schema files are resolved.  Remote schema resolution can be used to get validation
-   * software to participate in denial of service attacks and other malicious activities. False by default
+   * Set whether the trees Schematron rules run against are built to use as little memory as possible, with the memory
+   * each tree holds logged.  False by default.  See {@link SchematronValidator#setLean(boolean)}
    */
-  public void setAllowingRemoteResources( boolean allowingRemoteResources ){
-    this.allowingRemoteResources = allowingRemoteResources;
+  public void setLeanSchematronTrees( boolean leanSchematronTrees ) {
+    schematronValidator.setLean( leanSchematronTrees );
   }
 
-  public boolean isAllowingRemoteResources() {
-    return allowingRemoteResources;
+  /**
+   * @return the profiles of the Schematron definitions validated against while profiling
+   */
+  public Collection<SchematronProfile> getSchematronProfiles() {
+    return schematronValidator.getProfiles();
   }
 
   private static void printUsage(){
@@ -160,11 +1118,39 @@ public class Crux {
       "    <rewriteSystem systemIdStartString=\"http://schemas.opengis.net\" rewritePrefix=\"local-schemas/net/opengis\"/>\n" +
       "  </catalog>";
 
-    System.err.println( "Usage: crux.jar [OPTIONS] [XML/XSD FILES]\t (XML/XSD files may include wildcards)\n");
+    System.err.println( "Usage: crux.jar [OPTIONS] [XML/XSD FILES]\t (XML/XSD files may include wildcards)" );
+    System.err.println( "       crux.jar bundle -c CATALOG_FILE [-c CATALOG_FILE]... [-s SCHEMATRON_FILE] BUNDLE_FILE\n");
     System.err.println( "Options:" );
     System.err.println( "\t -c CATALOG_FILE" );
-    System.err.println( "\t -s SCHEMATRON_FILE" );
+    System.err.println( "\t -s SCHEMATRON_FILE   (may be repeated to check each file against several Schematron files)" );
+    System.err.println( "\t --parallel-rules   (run the Schematron files given with -s concurrently against each file)" );
+    System.err.println( "\t -b BUNDLE_FILE   (use the catalogs, schemas and Schematron rules packed into a bundle by 'crux.jar bundle')" );
     System.err.println( "\t -r   (allow remote schema resolution - disabled by default)" );
+    System.err.println( "\t -t SECONDS   (maximum time to validate each file - unlimited by default)" );
+    System.err.println( "\t -T SECONDS   (maximum time to validate all files - unlimited by default)" );
+    System.err.println( "\t -m MEGABYTES   (memory the files validated in parallel may need - half the maximum heap by default)" );
+    System.err.println( "\t -R RECORD_PATH   (split large XML files into records matching the path, validated in parallel)" );
+    System.err.println( "\t --prescreen   (check all files are well-formed, in parallel, before validating any of them)" );
+    System.err.println( "\t --wellformed-only   (only check that files are well-formed, without schema or Schematron validation)" );
+    System.err.println( "\t --no-key-index   (do not rewrite Schematron lookups such as //foo[@id = current()/@ref] into keys)" );
+    System.err.println( "\t --lean   (build Schematron trees with less memory, dropping whitespace between elements, and log their size)" );
+    System.err.println( "\t --profile-schematron   (report the time spent in each Schematron pattern, rule and assert, slowest first)" );
+    System.err.println( "\t --stdin paths|nul|length   (validate documents read from standard input: NUL-delimited paths, NUL-delimited\n" +
+                        "\t                            UTF-8 bodies, or bodies each preceded by its length in bytes and a newline)" );
+    System.err.println( "\t --sample FRACTION|COUNT   (validate a random sample, such as 0.01 or 500 files, and estimate the error rate)" );
+    System.err.println( "\t --seed N   (the seed of the random sample, to repeat a sample - based on the time by default)" );
+    System.err.println( "\t --stratify directory|schema   (sample each directory or schema group in proportion to its size.  Schema\n" +
+                        "\t                               groups are found from the root elements of a first sample 10 times as large)" );
+    System.err.println( "\t --pipeline R,X,T,S   (validate files through a pipeline with R read, X XML schema, T Schematron tree and S\n" +
+                        "\t                       Schematron rule threads, so the steps of different files overlap)" );
+    System.err.println( "\t --shards N   (split the files across N worker JVMs started on this host, each with its own heap)" );
+    System.err.println( "\t --listen [ADDRESS:]PORT   (also accept workers on the address, such as other hosts sharing the file system,\n" +
+                        "\t                          and port - the loopback address by default)" );
+    System.err.println( "\t --worker HOST:PORT   (validate files handed out by the coordinator listening on the host and port, with the\n" +
+                        "\t                     token of the run in the " + ShardCoordinator.TOKEN_VARIABLE + " environment variable)" );
+    System.err.println( "\t --create-startup-archive   (record the classes loaded by validating the files given, or a built-in sample,\n" +
+                        "\t                            into an archive next to crux.jar which makes later runs start faster - Java 13+)" );
+    System.err.println( "\t -w   (watch the files and re-validate them as they, their schemas or Schematron rules change)" );
     System.err.println( "\t -d   (enable debugging messages)\n" );
     System.err.println( "A simple catalog file which would utilize a local copy of http://www.w3.org/1999/xlink.xsd would be:\n\n"+simpleCatalog);
     System.err.println();
@@ -176,19 +1162,134 @@ public class Crux {
     System.err.println( "  [crux.jar] file.xml -c catalog.xml      -validation of a local XML file using local copies of schemas as defined in catalog.xml" );
     System.err.println( "  [crux.jar] file.xml -s rules.sch        -validation of a local XML file against both the internally-defined XML schema and against Schematron rules" );
     System.err.println( "  [crux.jar] myschema.xsd                 -validation of a local schema" );
+    System.err.println( "  [crux.jar] bundle.zip!/dir/*.xml        -validation of XML files inside a zip or tar(.gz) archive without extracting them" );
+    System.err.println( "  [crux.jar] -w -s rules.sch *.xml        -validation of local XML files, repeated as they change" );
+    System.err.println( "  [crux.jar] -R gml:featureMember big.xml -validation of each featureMember of a large file separately, in parallel" );
+    System.err.println( "  [crux.jar] --shards 4 -s rules.sch *.xml -validation of local XML files split across 4 worker JVMs" );
+    System.err.println( "  [crux.jar] bundle -c catalog.xml -s rules.sch profile.crux -packing of a catalog, its schemas and Schematron rules into one file" );
+    System.err.println( "  [crux.jar] -b profile.crux file.xml     -validation of a local XML file against the schemas and Schematron rules in a bundle" );
     System.err.println();
   }
 
+  private static long parseSeconds( String value, String option ){
+    try {
+      return Long.parseLong( value );
+    }
+    catch( NumberFormatException e ) {
+      System.err.println( "Invalid number of seconds specified with the " + option + " option: " + value );
+      System.exit( 1 );
+      return 0;
+    }
+  }
+
+  private static long parseMegabytes( String value, String option ){
+    try {
+      return Long.parseLong( value );
+    }
+    catch( NumberFormatException e ) {
+      System.err.println( "Invalid number of megabytes specified with the " + option + " option: " + value );
+      System.exit( 1 );
+      return 0;
+    }
+  }
+
+  private static int parseCount( String value, String option ){
+    try {
+      int count = Integer.parseInt( value );
+      if( count >= 0 ) {
+        return count;
+      }
+    }
+    catch( NumberFormatException e ) {
+      //reported below
+    }
+    System.err.println( "Invalid number specified with the " + option + " option: " + value );
+    System.exit( 1 );
+    return 0;
+  }
+
+  /**
+   * Pack catalogs, the schemas they resolve and Schematron rules into a {@link ProfileBundle}, as the "bundle" command
+   * @param args the arguments following "bundle"
+   */
+  private static void bundle( List<String> args ){
+    List<String> catalogFiles = new ArrayList<>();
+    String schematronFile = null;
+    String bundleFile = null;
+    for( int i = 0; i < args.size(); i++ ){
+      String arg = args.get( i );
+      if( ( arg.equals( "-c" ) || arg.equals( "-s" ) ) && i + 1 >= args.size() ) {
+        System.err.println( "No file specified with the " + arg + " option" );
+        System.exit( 1 );
+      }
+      if( arg.equals( "-c" ) ) {
+        catalogFiles.add( args.get( ++i ) );
+      }
+      else if( arg.equals( "-s" ) ) {
+        schematronFile = args.get( ++i );
+      }
+      else if( arg.startsWith( "-" ) || bundleFile != null ) {
+        LOG.warn( "Unknown command line argument: " + arg );
+        printUsage();
+        System.exit( 1 );
+      }
+      else {
+        bundleFile = arg;
+      }
+    }
+    if( bundleFile == null || ( catalogFiles.isEmpty() && schematronFile == null ) ) {
+      printUsage();
+      System.exit( 1 );
+    }
+    try {
+      ProfileBundle.create( catalogFiles, schematronFile, bundleFile );
+    }
+    catch( ValidationException e ) {
+      for( ValidationError failure : e.getValidationErrors() ) {
+        LOG.error( "Schematron compilation FAILED on " + failure );
+      }
+      System.exit( 1 );
+    }
+    catch( IOException e ) {
+      LOG.error( e.getMessage() );
+      System.exit( 1 );
+    }
+  }
+
   public static void main(String[] args){
     if( args.length < 1 ){
       printUsage();
       System.exit( 1 );
     }
+    if( args[0].equals( "bundle" ) ){
+      bundle( new ArrayList<>( Arrays.asList( args ).subList( 1, args.length ) ) );
+      return;
+    }
 
     List<String> argsList = new ArrayList<>( Arrays.asList( args ) );
     String catalogLocation = null;
-    String schematronFile = null;
+    List<String> schematronFiles = new ArrayList<>();
+    String recordPath = null;
     boolean allowRemoteResources = false;
+    boolean watch = false;
+    boolean prescreening = false;
+    boolean wellFormedOnly = false;
+    boolean profilingSchematron = false;
+    boolean concurrentRuleSets = false;
+    DocumentStream.Framing stdinFraming = null;
+    int numShards = 0;
+    int[] pipelineThreads = null;
+    BatchSample sample = null;
+    Long sampleSeed = null;
+    BatchSample.Strata sampleStrata = null;
+    InetSocketAddress shardAddress = null;
+    String coordinator = null;
+    boolean creatingStartupArchive = false;
+    boolean indexingSchematronLookups = true;
+    boolean leanSchematronTrees = false;
+    long fileTimeoutMs = 0;
+    long batchTimeoutMs = 0;
+    long memoryBudgetBytes = 0;
     for( int i = 0; i < argsList.size(); i++ ){
       String arg = argsList.get( i );
       switch( arg ) {
@@ -208,7 +1309,7 @@ public class Crux {
         case "-s":
           //if there is a next argument...
           if( argsList.size() > ( i + 1 ) ) {
-            schematronFile = argsList.get( i + 1 );
+            schematronFiles.add( argsList.get( i + 1 ) );
             argsList.remove( i );  //remove the -s from the list
             argsList.remove( i );  //remove the -s target from the list (this is now the ith index)
             i--;  //after we remove items the index should remain the same
@@ -218,6 +1319,77 @@ public class Crux {
             System.exit( 1 );
           }
           break;
+        case "-b":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            String bundleFile = argsList.get( i + 1 );
+            //a bundle is used as both the catalog and, if it holds Schematron rules, the Schematron definition
+            try {
+              catalogLocation = bundleFile;
+              if( ProfileBundle.open( bundleFile ).getSchematronStylesheet() != null ) {
+                schematronFiles.add( bundleFile );
+              }
+            }
+            catch( IOException e ) {
+              System.err.println( "Could not read bundle " + bundleFile + ": " + e.getMessage() );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the -b from the list
+            argsList.remove( i );  //remove the -b target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No bundle file specified with the -b option" );
+            System.exit( 1 );
+          }
+          break;
+        case "-m":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            memoryBudgetBytes = parseMegabytes( argsList.get( i + 1 ), arg ) * 1024 * 1024;
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No memory budget specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "-R":
+        case "--records":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            recordPath = argsList.get( i + 1 );
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the record path from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No record path specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "-t":
+        case "-T":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            long timeoutMs = parseSeconds( argsList.get( i + 1 ), arg ) * 1000;
+            if( arg.equals( "-t" ) ) {
+              fileTimeoutMs = timeoutMs;
+            }
+            else {
+              batchTimeoutMs = timeoutMs;
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No timeout specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
         case "-d":
           ch.qos.logback.classic.Logger rootLogger = (ch.qos.logback.classic.Logger)
             LoggerFactory.getLogger( "edu.ucar.ral.crux" );
@@ -230,6 +1402,194 @@ public class Crux {
           argsList.remove( i );
           i--;
           break;
+        case "--prescreen":
+          prescreening = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--wellformed-only":
+          wellFormedOnly = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--stdin":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            try {
+              stdinFraming = DocumentStream.Framing.valueOf( argsList.get( i + 1 ).toUpperCase( Locale.ROOT ) );
+            }
+            catch( IllegalArgumentException e ) {
+              System.err.println( "Unknown " + arg + " mode " + argsList.get( i + 1 ) + ", expected paths, nul or length" );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the mode from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No mode specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--shards":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            numShards = parseCount( argsList.get( i + 1 ), arg );
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No number specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--listen":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            String listen = argsList.get( i + 1 );
+            int separator = listen.lastIndexOf( ':' );
+            int listenPort = parseCount( listen.substring( separator + 1 ), arg );
+            shardAddress = separator < 0 ? new InetSocketAddress( InetAddress.getLoopbackAddress(), listenPort ) :
+              new InetSocketAddress( listen.substring( 0, separator ), listenPort );
+            if( shardAddress.isUnresolved() ) {
+              System.err.println( "Unknown address specified with the " + arg + " option: " + listen );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No host:port or port specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--sample":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            String value = argsList.get( i + 1 );
+            try {
+              //a whole number is a count of files, anything else a fraction
+              sample = value.matches( "\\d+" ) ? BatchSample.ofCount( Integer.parseInt( value ) ) :
+                BatchSample.ofFraction( Double.parseDouble( value ) );
+            }
+            catch( IllegalArgumentException e ) {
+              System.err.println( "Invalid sample specified with the " + arg + " option, expected a fraction or a number of files: " + value );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No sample specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--seed":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            try {
+              sampleSeed = Long.parseLong( argsList.get( i + 1 ) );
+            }
+            catch( NumberFormatException e ) {
+              System.err.println( "Invalid number specified with the " + arg + " option: " + argsList.get( i + 1 ) );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No number specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--stratify":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            try {
+              sampleStrata = BatchSample.Strata.valueOf( argsList.get( i + 1 ).toUpperCase( Locale.ROOT ) );
+            }
+            catch( IllegalArgumentException e ) {
+              System.err.println( "Unknown " + arg + " mode " + argsList.get( i + 1 ) + ", expected directory or schema" );
+              System.exit( 1 );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the mode from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No mode specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--pipeline":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            String[] counts = argsList.get( i + 1 ).split( "," );
+            if( counts.length != 4 ) {
+              System.err.println( "Expected read, XML schema, tree and Schematron thread counts with the " + arg + " option, as in 1,2,1,4" );
+              System.exit( 1 );
+            }
+            pipelineThreads = new int[counts.length];
+            for( int j = 0; j < counts.length; j++ ) {
+              pipelineThreads[j] = Math.max( 1, parseCount( counts[j].trim(), arg ) );
+            }
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the option target from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No thread counts specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--worker":
+          //if there is a next argument...
+          if( argsList.size() > ( i + 1 ) ) {
+            coordinator = argsList.get( i + 1 );
+            argsList.remove( i );  //remove the option from the list
+            argsList.remove( i );  //remove the coordinator from the list (this is now the ith index)
+            i--;  //after we remove items the index should remain the same
+          }
+          else {
+            System.err.println( "No coordinator host and port specified with the " + arg + " option" );
+            System.exit( 1 );
+          }
+          break;
+        case "--create-startup-archive":
+          creatingStartupArchive = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--parallel-rules":
+          concurrentRuleSets = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--no-key-index":
+          indexingSchematronLookups = false;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--lean":
+          leanSchematronTrees = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "--profile-schematron":
+          profilingSchematron = true;
+          argsList.remove( i );
+          i--;
+          break;
+        case "-w":
+        case "--watch":
+          watch = true;
+          argsList.remove( i );
+          i--;
+          break;
         default:
           if( arg.startsWith( "-" )) {
             LOG.warn( "Unknown command line argument: "+arg );
@@ -240,12 +1600,108 @@ public class Crux {
       }
     }
 
+    if( coordinator != null ) {
+      //the coordinator sends the catalog, Schematron files and settings
+      String token = System.getenv( ShardCoordinator.TOKEN_VARIABLE );
+      if( token == null || token.isEmpty() ) {
+        System.err.println( "The token of the run, logged by the coordinator, must be set in the " + ShardCoordinator.TOKEN_VARIABLE +
+          " environment variable" );
+        System.exit( 1 );
+      }
+      int separator = coordinator.lastIndexOf( ':' );
+      try {
+        new ShardWorker( coordinator.substring( 0, Math.max( separator, 0 ) ),
+          Integer.parseInt( coordinator.substring( separator + 1 ) ), token ).run();
+      }
+      catch( NumberFormatException e ) {
+        System.err.println( "Invalid coordinator specified with the --worker option, expected HOST:PORT: " + coordinator );
+        System.exit( 1 );
+      }
+      catch( IOException e ) {
+        LOG.error( "Lost the connection to coordinator " + coordinator + ": " + e.getMessage() );
+        System.exit( 1 );
+      }
+      System.exit( 0 );
+    }
+
+    if( creatingStartupArchive ) {
+      try {
+        StartupArchive.create( StartupArchive.getDefaultArchive(), catalogLocation, schematronFiles, argsList );
+      }
+      catch( IOException e ) {
+        LOG.error( e.getMessage() );
+        System.exit( 1 );
+      }
+      return;
+    }
+
     Crux crux = new Crux();
     crux.setAllowingRemoteResources( allowRemoteResources );
+    crux.setFileTimeoutMs( fileTimeoutMs );
+    crux.setBatchTimeoutMs( batchTimeoutMs );
+    crux.setRecordPath( recordPath );
+    crux.setMemoryBudgetBytes( memoryBudgetBytes );
+    crux.setPrescreening( prescreening );
+    crux.setWellFormedOnly( wellFormedOnly );
+    crux.setProfilingSchematron( profilingSchematron );
+    crux.setConcurrentRuleSets( concurrentRuleSets );
+    crux.setIndexingSchematronLookups( indexingSchematronLookups );
+    crux.setLeanSchematronTrees( leanSchematronTrees );
+    if( pipelineThreads != null ) {
+      crux.setPipelineThreads( pipelineThreads[0], pipelineThreads[1], pipelineThreads[2], pipelineThreads[3] );
+    }
+    if( sample != null ) {
+      if( sampleSeed != null ) {
+        sample.setSeed( sampleSeed );
+      }
+      if( sampleStrata != null ) {
+        sample.setStrata( sampleStrata );
+      }
+      crux.setSample( sample );
+    }
+    else if( sampleSeed != null || sampleStrata != null ) {
+      System.err.println( "--seed and --stratify only apply with the --sample option" );
+      System.exit( 1 );
+    }
+    if( watch ) {
+      if( schematronFiles.size() > 1 ) {
+        System.err.println( "Only one Schematron file may be watched" );
+        System.exit( 1 );
+      }
+      try {
+        crux.watch( catalogLocation, schematronFiles.isEmpty() ? null : schematronFiles.get( 0 ), argsList.toArray( new String[argsList.size()] ) );
+      }
+      catch( FileNotFoundException e ){
+        LOG.info( e.getMessage() );
+        System.exit( 1 );
+      }
+      catch( Exception e ){
+        e.printStackTrace();
+        System.exit( 1 );
+      }
+      return;
+    }
+
+    if( stdinFraming != null ) {
+      int numFailed = 0;
+      try {
+        numFailed = crux.validateStream( catalogLocation, schematronFiles, new DocumentStream( System.in, stdinFraming ), System.out );
+      }
+      catch( IOException e ) {
+        LOG.error( "Could not read standard input: " + e.getMessage() );
+        System.exit( 1 );
+      }
+      for( SchematronProfile profile : crux.getSchematronProfiles() ) {
+        LOG.info( profile.report() );
+      }
+      System.exit( numFailed > 0 ? 1 : 0 );
+    }
+
     boolean validationFailed = false;
     try{
-      int numValidatedFiles = 
-        crux.validate( catalogLocation, schematronFile, argsList.toArray( new String[argsList.size()] ) );
+      int numValidatedFiles = numShards > 0 || shardAddress != null ?
+        crux.validateSharded( catalogLocation, schematronFiles, argsList, numShards, shardAddress ) :
+        crux.validate( catalogLocation, schematronFiles, argsList );
     }
     catch( ValidationException e ) {
       validationFailed = true;
@@ -268,6 +1724,12 @@ public class Crux {
       validationFailed = true;
       e.printStackTrace();
     }
+    for( SchematronProfile profile : crux.getSchematronProfiles() ) {
+      LOG.info( profile.report() );
+    }
+    if( crux.getSampleEstimate() != null ) {
+      LOG.info( crux.getSampleEstimate().report() );
+    }
 
     //return the correct error code
     if( validationFailed ){
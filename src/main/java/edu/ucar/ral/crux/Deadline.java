@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+/**
+ * A point in time by which a validation must complete.  Validators check the deadline cooperatively while parsing and
+ * transforming, and stop with a {@link ValidationTimeoutError} once it has passed
+ */
+public final class Deadline {
+  /** A deadline which never expires */
+  public static final Deadline NONE = new Deadline( 0, false );
+
+  private final long deadlineNanos;
+  private final boolean bounded;
+
+  private Deadline( long deadlineNanos, boolean bounded ){
+    this.deadlineNanos = deadlineNanos;
+    this.bounded = bounded;
+  }
+
+  /**
+   * @param timeoutMs the number of milliseconds from now until the deadline.  Values of zero or less mean no deadline
+   * @return a deadline the given number of milliseconds from now
+   */
+  public static Deadline after( long timeoutMs ){
+    if( timeoutMs <= 0 ) {
+      return NONE;
+    }
+    return new Deadline( System.nanoTime() + timeoutMs * 1000000L, true );
+  }
+
+  /**
+   * @param other another deadline
+   * @return whichever of this deadline and the other one expires first
+   */
+  public Deadline earliest( Deadline other ){
+    if( !other.bounded ) {
+      return this;
+    }
+    if( !bounded ) {
+      return other;
+    }
+    return deadlineNanos - other.deadlineNanos <= 0 ? this : other;
+  }
+
+  /**
+   * @return whether this deadline has passed
+   */
+  public boolean isExpired(){
+    return bounded && System.nanoTime() - deadlineNanos >= 0;
+  }
+
+  /**
+   * @return the number of milliseconds until this deadline, as a timeout for connections and reads: at least 1 for a
+   * deadline which has passed, and 0, meaning no timeout, when there is no deadline
+   */
+  public long getRemainingMs(){
+    if( !bounded ) {
+      return 0;
+    }
+    return Math.max( 1, ( deadlineNanos - System.nanoTime() ) / 1000000L );
+  }
+
+  /**
+   * @return whether this deadline can expire at all
+   */
+  public boolean isBounded(){
+    return bounded;
+  }
+}
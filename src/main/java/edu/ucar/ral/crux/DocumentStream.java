@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the documents to validate, or their paths, one after another from a stream such as standard input, so that a
+ * shell pipeline can validate many documents in one JVM.  The documents are framed in one of three ways:
+ * <ul>
+ *   <li>{@link Framing#PATHS}: paths of files, each followed by a NUL byte, as written by "find -print0"</li>
+ *   <li>{@link Framing#NUL}: document bodies, each followed by a NUL byte, which XML content cannot contain</li>
+ *   <li>{@link Framing#LENGTH}: document bodies, each preceded by its length in bytes as decimal digits and a newline</li>
+ * </ul>
+ * The final delimiter of the stream may be omitted.  NUL bytes occur within documents encoded in UTF-16 or UTF-32, so
+ * with {@link Framing#NUL} documents must be in UTF-8 or another encoding in which ASCII characters are single bytes,
+ * and a document which starts as UTF-16 or UTF-32 is rejected.  Use {@link Framing#LENGTH} for other encodings.
+ * This class is not thread-safe
+ */
+public class DocumentStream implements Closeable {
+  //the largest length-prefixed document read, as its body is held in memory
+  private static final long MAX_DOCUMENT_BYTES = Integer.MAX_VALUE - 8;
+
+  /**
+   * The ways documents are framed in a stream
+   */
+  public enum Framing { PATHS, NUL, LENGTH }
+
+  private final InputStream in;
+  private final Framing framing;
+  //the base against which relative references in document bodies, such as schema locations, are resolved
+  private final String systemId = new File( "stdin" ).getAbsoluteFile().toURI().toString();
+  private int numDocuments = 0;
+
+  /**
+   * @param in the stream, which is closed with this
+   * @param framing how the documents are framed in the stream
+   */
+  public DocumentStream( InputStream in, Framing framing ) {
+    this.in = new BufferedInputStream( in );
+    this.framing = framing;
+  }
+
+  public Framing getFraming() {
+    return framing;
+  }
+
+  /**
+   * @return the path of the next file to validate, or null at the end of the stream
+   * @throws IOException if the stream could not be read
+   * @throws IllegalStateException if the stream holds document bodies rather than paths
+   */
+  public String nextPath() throws IOException {
+    if( framing != Framing.PATHS ) {
+      throw new IllegalStateException( "The stream holds document bodies, not paths" );
+    }
+    byte[] path;
+    do {
+      path = readToNul();
+    }
+    while( path != null && path.length == 0 );
+    return path == null ? null : new String( path, StandardCharsets.UTF_8 );
+  }
+
+  /**
+   * @return the next document to validate, named "stdin#" and its position in the stream, or null at the end of the
+   * stream
+   * @throws IOException if the stream could not be read or a document's length is invalid
+   * @throws IllegalStateException if the stream holds paths rather than document bodies
+   */
+  public ValidationInput nextDocument() throws IOException {
+    byte[] content;
+    if( framing == Framing.LENGTH ) {
+      content = readLengthPrefixed();
+    }
+    else if( framing == Framing.NUL ) {
+      //empty documents are skipped, so a trailing newline after the last NUL does not count as a document
+      do {
+        rejectWideEncoding();
+        content = readToNul();
+      }
+      while( content != null && isBlank( content ) );
+    }
+    else {
+      throw new IllegalStateException( "The stream holds paths, not document bodies" );
+    }
+    if( content == null ) {
+      return null;
+    }
+    numDocuments++;
+    return ValidationInput.of( "stdin#" + numDocuments, systemId, content );
+  }
+
+  /**
+   * @throws IOException if the next document starts with a UTF-16 or UTF-32 byte order mark, or with a '&lt;' encoded in
+   * UTF-16 or UTF-32, whose NUL bytes would split it into several documents
+   */
+  private void rejectWideEncoding() throws IOException {
+    in.mark( 2 );
+    int first = in.read();
+    int second = in.read();
+    in.reset();
+    boolean byteOrderMark = ( first == 0xFE && second == 0xFF ) || ( first == 0xFF && second == 0xFE );
+    boolean wideLessThan = ( first == 0 && second == '<' ) || ( first == '<' && second == 0 ) || ( first == 0 && second == 0 );
+    if( byteOrderMark || wideLessThan ) {
+      throw new IOException( "Document " + ( numDocuments + 1 ) + " in the stream is encoded in UTF-16 or UTF-32, " +
+        "which NUL-delimited documents cannot be, as their content holds NUL bytes.  Use length-prefixed documents instead" );
+    }
+  }
+
+  /**
+   * @return the bytes up to the next NUL byte or the end of the stream, or null if the stream has ended
+   */
+  private byte[] readToNul() throws IOException {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    int b = in.read();
+    if( b == -1 ) {
+      return null;
+    }
+    while( b != -1 && b != 0 ) {
+      content.write( b );
+      b = in.read();
+    }
+    return content.toByteArray();
+  }
+
+  private byte[] readLengthPrefixed() throws IOException {
+    int b = in.read();
+    //blank lines between documents are skipped
+    while( b == '\n' || b == '\r' ) {
+      b = in.read();
+    }
+    if( b == -1 ) {
+      return null;
+    }
+    long length = 0;
+    while( b != '\n' ) {
+      if( b == '\r' ) {
+        b = in.read();
+        continue;
+      }
+      if( b < '0' || b > '9' || length > MAX_DOCUMENT_BYTES ) {
+        throw new IOException( "Invalid length of document " + ( numDocuments + 1 ) + " in the stream" );
+      }
+      length = length * 10 + ( b - '0' );
+      b = in.read();
+    }
+    if( length > MAX_DOCUMENT_BYTES ) {
+      throw new IOException( "Invalid length of document " + ( numDocuments + 1 ) + " in the stream" );
+    }
+    byte[] content = new byte[(int) length];
+    int offset = 0;
+    while( offset < content.length ) {
+      int read = in.read( content, offset, content.length - offset );
+      if( read == -1 ) {
+        throw new EOFException( "The stream ended within document " + ( numDocuments + 1 ) );
+      }
+      offset += read;
+    }
+    return content;
+  }
+
+  private static boolean isBlank( byte[] content ) {
+    for( byte b : content ) {
+      if( b != ' ' && b != '\n' && b != '\r' && b != '\t' ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    in.close();
+  }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.ProxyReceiver;
+import net.sf.saxon.event.Receiver;
+import net.sf.saxon.expr.parser.Location;
+import net.sf.saxon.lib.ParseOptions;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.NodeName;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.trans.XPathException;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
+import net.sf.saxon.tree.tiny.TinyTree;
+import net.sf.saxon.tree.util.FastStringBuffer;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.value.Whitespace;
+
+import javax.xml.transform.Source;
+import java.util.Arrays;
+
+/**
+ * Builds the trees Schematron rules run against with as little memory as possible.  Every tree is built by one
+ * processor shared by all threads, so element and attribute names are held once in its name pool rather than once per
+ * thread.  Whitespace-only text in element-only content, such as the indentation of a document, is not added to the
+ * tree, while whitespace in an element which has text, such as {@code <name> </name>} or
+ * {@code <p>a <b>b</b> <i>c</i></p>}, is kept.  Lines are only numbered when the rules read them with
+ * saxon:line-number()
+ */
+final class LeanTrees {
+  //the bytes a TinyTree holds for each node: its kind, depth, next sibling, name, and two values whose meaning depends
+  //on the kind of node
+  private static final int BYTES_PER_NODE = 1 + 2 + 4 + 4 + 4 + 4;
+  private static final int BYTES_PER_LINE_NUMBER = 4 + 4;
+  //the bytes a TinyTree holds for each attribute besides its value: its parent, its name and a reference to the value
+  private static final int BYTES_PER_ATTRIBUTE = 4 + 4 + 8;
+  //the bytes of a String object besides its characters
+  private static final int STRING_OVERHEAD_BYTES = 40;
+
+  private static final Processor PROCESSOR = new Processor( false );
+  //options are reused by each thread, with line numbering set for the rules of each validation
+  private static final ThreadLocal<ParseOptions> PARSE_OPTIONS = ThreadLocal.withInitial( () -> {
+    ParseOptions options = new ParseOptions( PROCESSOR.getUnderlyingConfiguration().getParseOptions() );
+    options.addFilter( WhitespaceFilter::new );
+    return options;
+  } );
+  private static final ThreadLocal<ParseOptions> KEEPING_WHITESPACE_PARSE_OPTIONS = ThreadLocal.withInitial( () ->
+    new ParseOptions( PROCESSOR.getUnderlyingConfiguration().getParseOptions() ) );
+
+  private LeanTrees(){
+  }
+
+  /**
+   * @return the processor shared by every thread, which must also compile the rules run against its trees
+   */
+  static Processor getProcessor(){
+    return PROCESSOR;
+  }
+
+  /**
+   * Build the tree of an XML document
+   * @param xml the document
+   * @param lineNumbering whether to record the line and column of each node
+   * @param strippingWhitespace whether to drop whitespace-only text in element-only content
+   * @return the tree, or null if whitespace was dropped from an element which turned out to have text, in which case
+   *         the tree must be built again without stripping whitespace
+   */
+  static XdmNode build( Source xml, boolean lineNumbering, boolean strippingWhitespace ) throws SaxonApiException {
+    ParseOptions options = strippingWhitespace ? PARSE_OPTIONS.get() : KEEPING_WHITESPACE_PARSE_OPTIONS.get();
+    options.setLineNumbering( lineNumbering );
+    try {
+      Configuration config = PROCESSOR.getUnderlyingConfiguration();
+      return new XdmNode( config.buildDocumentTree( xml, options ).getRootNode() );
+    }
+    catch( XPathException e ){
+      for( Throwable cause = e; cause != null; cause = cause.getCause() ){
+        if( cause instanceof MixedContentException ){
+          return null;
+        }
+      }
+      throw new SaxonApiException( e );
+    }
+  }
+
+  /**
+   * @param xsl compiled Schematron rules
+   * @return whether the rules read the line numbers of nodes, which are only recorded in the tree if they do
+   */
+  static boolean readsLineNumbers( String xsl ){
+    return xsl.contains( "line-number(" );
+  }
+
+  /**
+   * Estimate the heap held by a tree, from the sizes of the arrays it is stored in
+   * @param document the root of a tree
+   * @param lineNumbering whether the tree was built recording line numbers
+   * @return the estimated number of bytes, or 0 if the tree is not a TinyTree
+   */
+  static long estimateBytes( XdmNode document, boolean lineNumbering ){
+    NodeInfo node = document.getUnderlyingNode();
+    if( !( node instanceof TinyNodeImpl ) ){
+      return 0;
+    }
+    TinyTree tree = ( (TinyNodeImpl) node ).getTree();
+    int nodeCapacity = tree.getNodeKindArray().length;
+    long bytes = (long) nodeCapacity * BYTES_PER_NODE;
+    if( lineNumbering ){
+      bytes += (long) nodeCapacity * BYTES_PER_LINE_NUMBER;
+    }
+    CharSequence[] attributeValues = tree.getAttributeValueArray();
+    if( attributeValues != null ){
+      bytes += (long) attributeValues.length * BYTES_PER_ATTRIBUTE;
+      for( int i = 0; i < tree.getNumberOfAttributes(); i++ ){
+        bytes += STRING_OVERHEAD_BYTES + 2L * attributeValues[i].length();
+      }
+    }
+    int[] namespaceParents = tree.getNamespaceParentArray();
+    if( namespaceParents != null ){
+      bytes += namespaceParents.length * 8L;
+    }
+    bytes += 2L * tree.getCharacterBuffer().length();
+    CharSequence comments = tree.getCommentBuffer();
+    if( comments != null ){
+      bytes += 2L * comments.length();
+    }
+    return bytes;
+  }
+
+  /**
+   * Drops whitespace-only text from elements which have child elements but no text.  Whether an element has text is
+   * only known once it ends, so whitespace is dropped once the element has a child element, and building stops with a
+   * {@link MixedContentException} if text follows in the same element.  Text arriving in several parts is held until it
+   * is known whether it is all whitespace
+   */
+  private static class WhitespaceFilter extends ProxyReceiver {
+    private static final int HAS_CHILD_ELEMENT = 1;
+    private static final int HAS_TEXT = 2;
+    private static final int DROPPED_WHITESPACE = 4;
+
+    private final FastStringBuffer pending = new FastStringBuffer( FastStringBuffer.C64 );
+    private Location pendingLocation;
+    private int pendingProperties;
+    //the state of each open element, the last being the element whose content is being read
+    private int[] states = new int[32];
+    private int depth = 0;
+
+    private WhitespaceFilter( Receiver next ){
+      super( next );
+    }
+
+    @Override
+    public void startElement( NodeName elemName, SchemaType typeCode, Location location, int properties ) throws XPathException {
+      states[depth] |= HAS_CHILD_ELEMENT;
+      endWhitespace();
+      if( ++depth == states.length ){
+        states = Arrays.copyOf( states, depth * 2 );
+      }
+      states[depth] = 0;
+      super.startElement( elemName, typeCode, location, properties );
+    }
+
+    @Override
+    public void endElement() throws XPathException {
+      endWhitespace();
+      depth--;
+      super.endElement();
+    }
+
+    @Override
+    public void characters( CharSequence chars, Location location, int properties ) throws XPathException {
+      if( ( states[depth] & HAS_TEXT ) == 0 ){
+        if( Whitespace.isWhite( chars ) ){
+          if( pending.length() == 0 ){
+            pendingLocation = location.saveLocation();
+            pendingProperties = properties;
+          }
+          pending.append( chars );
+          return;
+        }
+        if( ( states[depth] & DROPPED_WHITESPACE ) != 0 ){
+          throw new MixedContentException();
+        }
+        states[depth] |= HAS_TEXT;
+        flush();
+      }
+      super.characters( chars, location, properties );
+    }
+
+    @Override
+    public void comment( CharSequence chars, Location location, int properties ) throws XPathException {
+      endWhitespace();
+      super.comment( chars, location, properties );
+    }
+
+    @Override
+    public void processingInstruction( String target, CharSequence data, Location location, int properties ) throws XPathException {
+      endWhitespace();
+      super.processingInstruction( target, data, location, properties );
+    }
+
+    /**
+     * Drop the whitespace read before another node if the element it is in has a child element, or keep it otherwise
+     */
+    private void endWhitespace() throws XPathException {
+      if( pending.length() == 0 ){
+        return;
+      }
+      if( ( states[depth] & HAS_CHILD_ELEMENT ) != 0 ){
+        states[depth] |= DROPPED_WHITESPACE;
+        pending.setLength( 0 );
+      }
+      else {
+        flush();
+      }
+    }
+
+    private void flush() throws XPathException {
+      if( pending.length() > 0 ){
+        super.characters( pending.toString(), pendingLocation, pendingProperties );
+        pending.setLength( 0 );
+      }
+    }
+  }
+
+  /**
+   * Stops building a tree once whitespace has been dropped from an element which turns out to have mixed content
+   */
+  private static class MixedContentException extends XPathException {
+    private static final long serialVersionUID = 1L;
+
+    private MixedContentException(){
+      super( "Whitespace was dropped from mixed content" );
+    }
+  }
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A validation profile packed into a single indexed file: the catalogs, every schema they resolve and the XSL compiled
+ * from a Schematron definition.  A bundle is used in place of a catalog file and a Schematron file, so that starting
+ * validation opens one file rather than hundreds of small ones.  Bundles are memory-mapped read-only, so every process
+ * on a host validating with the same bundle shares its pages in the page cache.
+ * <p>
+ * Identifiers which the catalogs resolve, such as system identifiers, public identifiers and namespaces, are resolved
+ * to bundled documents by an index built when the bundle is created.  Bundled documents are given system identifiers
+ * of the form "file:/path/profile.crux!/schemas/dir/file.xsd", so relative references between them resolve within the
+ * bundle.  A bundle which is replaced while in use should be replaced by renaming a new file over it, as a file
+ * rewritten in place changes under the processes which have mapped it
+ */
+public class ProfileBundle {
+  private static final Logger LOG = LoggerFactory.getLogger( ProfileBundle.class );
+  private static final byte[] MAGIC = "CRUXBNDL".getBytes( StandardCharsets.US_ASCII );
+  private static final int VERSION = 1;
+  //the magic number, version and index offset
+  private static final int HEADER_LENGTH = MAGIC.length + 4 + 8;
+  //the kinds of index records
+  private static final byte DOCUMENT_RECORD = 'D';
+  private static final byte IDENTIFIER_RECORD = 'I';
+  private static final byte CATALOG_RECORD = 'C';
+  private static final byte SCHEMATRON_RECORD = 'S';
+  private static final String ENTRY_SEPARATOR = "!/";
+  private static final String CATALOG_NAMESPACE = "urn:oasis:names:tc:entity:xmlns:xml:catalog";
+  //the documents under a rewritten directory which are bundled
+  private static final String[] SCHEMA_EXTENSIONS = { ".xsd", ".dtd", ".ent", ".mod" };
+
+  //bundles are mapped once per JVM, and mapped again if the file is replaced
+  private static final Map<File,ProfileBundle> OPEN_BUNDLES = new ConcurrentHashMap<>();
+
+  private final File file;
+  private final long lastModified;
+  private final long length;
+  private final String baseSystemId;
+  private final ByteBuffer content;
+  //the offset and length of each document, by its name within the bundle
+  private final Map<String,long[]> documents = new HashMap<>();
+  //the document each identifier resolves to
+  private final Map<String,String> identifiers = new HashMap<>();
+  private final List<String> catalogs = new ArrayList<>();
+  private String schematronStylesheet;
+
+  private ProfileBundle( File file ) throws IOException {
+    this.file = file;
+    this.lastModified = file.lastModified();
+    this.length = file.length();
+    this.baseSystemId = getBaseSystemId( file );
+    if( length > Integer.MAX_VALUE ) {
+      throw new IOException( "Bundle " + file + " is larger than 2GB" );
+    }
+    try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+      //the mapping remains valid once the channel is closed
+      this.content = channel.map( FileChannel.MapMode.READ_ONLY, 0, length );
+    }
+    if( length < HEADER_LENGTH || !hasMagic( content ) ) {
+      throw new IOException( file + " is not a validation profile bundle" );
+    }
+    int version = content.getInt( MAGIC.length );
+    if( version != VERSION ) {
+      throw new IOException( String.format( "Bundle %s has version %d, only version %d is supported", file, version, VERSION ) );
+    }
+    readIndex( content.getLong( MAGIC.length + 4 ) );
+  }
+
+  /**
+   * @return the prefix of the system identifiers of the documents in a bundle file
+   */
+  static String getBaseSystemId( File file ) {
+    return file.getAbsoluteFile().toURI() + ENTRY_SEPARATOR;
+  }
+
+  private void readIndex( long indexOffset ) throws IOException {
+    if( indexOffset < HEADER_LENGTH || indexOffset > length ) {
+      throw new IOException( "Bundle " + file + " is truncated" );
+    }
+    try( DataInputStream in = new DataInputStream( new ByteBufferInputStream( slice( indexOffset, length - indexOffset ) ) ) ) {
+      int numRecords = in.readInt();
+      for( int i = 0; i < numRecords; i++ ) {
+        byte type = in.readByte();
+        String name = in.readUTF();
+        switch( type ) {
+          case DOCUMENT_RECORD:
+            long offset = in.readLong();
+            long documentLength = in.readInt();
+            if( offset < HEADER_LENGTH || offset + documentLength > indexOffset ) {
+              throw new IOException( "Bundle " + file + " is corrupt, document " + name + " is outside the bundle" );
+            }
+            documents.put( name, new long[]{ offset, documentLength } );
+            break;
+          case IDENTIFIER_RECORD:
+            identifiers.put( name, in.readUTF() );
+            break;
+          case CATALOG_RECORD:
+            catalogs.add( name );
+            break;
+          case SCHEMATRON_RECORD:
+            schematronStylesheet = name;
+            break;
+          default:
+            throw new IOException( "Bundle " + file + " is corrupt, unknown index record " + type );
+        }
+      }
+    }
+  }
+
+  /**
+   * @param path a local path
+   * @return whether the file is a validation profile bundle, judging by its content
+   */
+  public static boolean isBundle( String path ) {
+    if( path == null || !Utils.isLocalFile( path ) ) {
+      return false;
+    }
+    File file = new File( path );
+    ProfileBundle open = OPEN_BUNDLES.get( file.getAbsoluteFile() );
+    if( open != null && open.isCurrent() ) {
+      return true;
+    }
+    byte[] header = new byte[MAGIC.length];
+    try( InputStream in = new FileInputStream( file ) ) {
+      int length = 0;
+      int read;
+      while( length < header.length && ( read = in.read( header, length, header.length - length ) ) != -1 ) {
+        length += read;
+      }
+      return length == header.length && hasMagic( ByteBuffer.wrap( header ) );
+    }
+    catch( IOException e ) {
+      return false;
+    }
+  }
+
+  private static boolean hasMagic( ByteBuffer buffer ) {
+    if( buffer.capacity() < MAGIC.length ) {
+      return false;
+    }
+    for( int i = 0; i < MAGIC.length; i++ ) {
+      if( buffer.get( i ) != MAGIC[i] ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Open a bundle, mapping it into memory.  A bundle already open in this JVM is shared, unless the file has been
+   * replaced since it was opened
+   * @param path the local path of the bundle
+   * @return the bundle
+   * @throws IOException if the file could not be read or is not a bundle
+   */
+  public static ProfileBundle open( String path ) throws IOException {
+    File file = new File( path ).getAbsoluteFile();
+    ProfileBundle bundle = OPEN_BUNDLES.get( file );
+    if( bundle == null || !bundle.isCurrent() ) {
+      synchronized( OPEN_BUNDLES ) {
+        bundle = OPEN_BUNDLES.get( file );
+        if( bundle == null || !bundle.isCurrent() ) {
+          long startMs = System.currentTimeMillis();
+          bundle = new ProfileBundle( file );
+          //forget bundles whose files have since been deleted, so their mappings are released
+          OPEN_BUNDLES.values().removeIf( open -> !open.file.exists() );
+          OPEN_BUNDLES.put( file, bundle );
+          LOG.debug( "Opening bundle {} with {} documents took {} ms", file, bundle.documents.size(), System.currentTimeMillis() - startMs );
+        }
+      }
+    }
+    return bundle;
+  }
+
+  /**
+   * Forget a bundle opened in this JVM, so its mapping is released once nothing else refers to the bundle and its file
+   * may be deleted
+   * @param path the local path of the bundle
+   * @return the bundle which was open, or null if it was not open
+   */
+  static ProfileBundle close( String path ) {
+    return OPEN_BUNDLES.remove( new File( path ).getAbsoluteFile() );
+  }
+
+  private boolean isCurrent() {
+    return file.lastModified() == lastModified && file.length() == length;
+  }
+
+  /**
+   * Resolve a reference to a bundled document the way the bundled catalogs would: by namespace, then by system
+   * identifier, then by public identifier.  References relative to a bundled document resolve to the bundled document
+   * at that location
+   * @param namespace the namespace of a schema being loaded.  May be null
+   * @param publicId the public identifier.  May be null
+   * @param literalSystemId the system identifier as written.  May be null
+   * @param expandedSystemId the system identifier resolved against the location of the referring document.  May be null
+   * @return the name of the bundled document, or null if the reference is not to a bundled document
+   */
+  public String resolve( String namespace, String publicId, String literalSystemId, String expandedSystemId ) {
+    String name = null;
+    if( namespace != null ) {
+      name = identifiers.get( namespace );
+    }
+    if( name == null && literalSystemId != null ) {
+      name = identifiers.get( literalSystemId );
+    }
+    if( name == null && publicId != null ) {
+      name = identifiers.get( publicId );
+    }
+    if( name == null && expandedSystemId != null ) {
+      name = identifiers.get( expandedSystemId );
+      if( name == null ) {
+        name = toDocumentName( expandedSystemId );
+      }
+    }
+    return name;
+  }
+
+  /**
+   * @return the name of the bundled document a system identifier within this bundle refers to, or null if it is not
+   * within this bundle
+   */
+  private String toDocumentName( String systemId ) {
+    int separator = systemId.indexOf( ENTRY_SEPARATOR );
+    if( separator < 0 || !systemId.startsWith( "file:" ) ) {
+      return null;
+    }
+    try {
+      if( !new File( new URI( systemId.substring( 0, separator ) ) ).equals( file ) ) {
+        return null;
+      }
+      String name = new URI( null, null, systemId.substring( separator + ENTRY_SEPARATOR.length() ), null ).normalize().getPath();
+      return documents.containsKey( name ) ? name : null;
+    }
+    catch( Exception e ) {
+      return null;
+    }
+  }
+
+  /**
+   * @param name the name of a bundled document
+   * @return a new stream over the document, or null if there is no such document.  Reading the stream reads the
+   * mapped bundle without copying it
+   */
+  public InputStream openDocument( String name ) {
+    long[] location = documents.get( name );
+    return location == null ? null : new ByteBufferInputStream( slice( location[0], location[1] ) );
+  }
+
+  /**
+   * @param name the name of a bundled document
+   * @return the system identifier of the document, against which references it makes are resolved
+   */
+  public String getSystemId( String name ) {
+    return baseSystemId + name;
+  }
+
+  /**
+   * @return the name of the XSL compiled from the bundled Schematron definition, or null if the bundle has none
+   */
+  public String getSchematronStylesheet() {
+    return schematronStylesheet;
+  }
+
+  /**
+   * @return the names of the bundled catalogs, which are kept for reference as resolution uses the bundle's index
+   */
+  public List<String> getCatalogs() {
+    return Collections.unmodifiableList( catalogs );
+  }
+
+  /**
+   * @return the names of every bundled document
+   */
+  public Set<String> getDocumentNames() {
+    return Collections.unmodifiableSet( documents.keySet() );
+  }
+
+  public long getLastModified() {
+    return lastModified;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  private ByteBuffer slice( long offset, long sliceLength ) {
+    //the shared buffer's position and limit are never changed, so duplicating it is safe from any thread
+    ByteBuffer duplicate = content.duplicate();
+    duplicate.position( (int) offset );
+    duplicate.limit( (int) ( offset + sliceLength ) );
+    return duplicate.slice();
+  }
+
+  /**
+   * Create a bundle from a set of catalogs and a Schematron definition.  Every document under the directories the
+   * catalogs rewrite to, every document they map an identifier to and every local schema those documents include,
+   * import or redefine is bundled.  The bundle is written to a temporary file which is then renamed, so processes
+   * using an earlier bundle at the same path are not disturbed
+   * @param catalogFiles the local catalog files
+   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   * @param bundleFile the path of the bundle to create
+   * @return the number of bundled schema documents
+   * @throws IOException if a file could not be read or the bundle could not be written
+   * @throws ValidationException if the Schematron definition could not be compiled
+   */
+  public static int create( List<String> catalogFiles, String schematronFile, String bundleFile ) throws IOException, ValidationException {
+    Builder builder = new Builder();
+    for( String catalogFile : catalogFiles ) {
+      builder.addCatalog( new File( catalogFile ).getCanonicalFile() );
+    }
+    builder.addUnresolvedReferences();
+    if( schematronFile != null ) {
+      builder.addSchematron( new File( schematronFile ).getCanonicalFile() );
+    }
+    File output = new File( bundleFile ).getAbsoluteFile();
+    File temporary = new File( output.getParentFile(), "." + output.getName() + ".tmp" );
+    try {
+      builder.write( temporary );
+      Files.move( temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+      LOG.info( "Bundled {} catalog(s), {} schema document(s) and {} identifier(s) into {}", builder.catalogs.size(),
+        builder.schemas.size(), builder.identifiers.size(), output );
+    }
+    finally {
+      temporary.delete();
+    }
+    return builder.schemas.size();
+  }
+
+  /**
+   * Collects the documents and index of a bundle being created
+   */
+  private static class Builder {
+    private final Set<File> visitedCatalogs = new HashSet<>();
+    private final Map<String,File> catalogs = new LinkedHashMap<>();
+    private final Set<File> schemas = new LinkedHashSet<>();
+    private final Map<String,File> identifiers = new LinkedHashMap<>();
+    //absolute references made by bundled schemas, which the catalogs must resolve for the bundle to be complete
+    private final Map<String,File> references = new LinkedHashMap<>();
+    private final Map<String,File> schematron = new LinkedHashMap<>();
+    private String schematronStylesheet;
+
+    private void addCatalog( File catalogFile ) throws IOException {
+      if( !visitedCatalogs.add( catalogFile ) ) {
+        return;
+      }
+      String name = "catalog/" + catalogFile.getName();
+      for( int i = 2; catalogs.containsKey( name ); i++ ) {
+        name = "catalog/" + i + "/" + catalogFile.getName();
+      }
+      catalogs.put( name, catalogFile );
+      Element catalog;
+      try {
+        catalog = newDocumentBuilder().parse( catalogFile ).getDocumentElement();
+      }
+      catch( SAXException | ParserConfigurationException e ) {
+        throw new IOException( "Could not read catalog " + catalogFile + ": " + e.getMessage(), e );
+      }
+      addCatalogEntries( catalog, catalogFile.toURI() );
+    }
+
+    private void addCatalogEntries( Element parent, URI base ) throws IOException {
+      base = withBase( parent, base );
+      for( Node node = parent.getFirstChild(); node != null; node = node.getNextSibling() ) {
+        if( !( node instanceof Element ) || !CATALOG_NAMESPACE.equals( node.getNamespaceURI() ) ) {
+          continue;
+        }
+        Element entry = (Element) node;
+        URI entryBase = withBase( entry, base );
+        switch( entry.getLocalName() ) {
+          case "group":
+            addCatalogEntries( entry, base );
+            break;
+          case "system":
+            addIdentifier( entry.getAttribute( "systemId" ), entryBase.resolve( entry.getAttribute( "uri" ) ) );
+            break;
+          case "uri":
+            addIdentifier( entry.getAttribute( "name" ), entryBase.resolve( entry.getAttribute( "uri" ) ) );
+            break;
+          case "public":
+            addIdentifier( entry.getAttribute( "publicId" ), entryBase.resolve( entry.getAttribute( "uri" ) ) );
+            break;
+          case "rewriteSystem":
+            addRewrite( entry.getAttribute( "systemIdStartString" ), entryBase.resolve( entry.getAttribute( "rewritePrefix" ) ) );
+            break;
+          case "rewriteURI":
+            addRewrite( entry.getAttribute( "uriStartString" ), entryBase.resolve( entry.getAttribute( "rewritePrefix" ) ) );
+            break;
+          case "nextCatalog":
+            addCatalog( new File( entryBase.resolve( entry.getAttribute( "catalog" ) ) ).getCanonicalFile() );
+            break;
+          default:
+            LOG.warn( "Catalog entries of type {} are not bundled", entry.getLocalName() );
+        }
+      }
+    }
+
+    private static URI withBase( Element element, URI base ) {
+      String xmlBase = element.getAttributeNS( XMLConstants.XML_NS_URI, "base" );
+      return xmlBase.isEmpty() ? base : base.resolve( xmlBase );
+    }
+
+    private void addIdentifier( String identifier, URI location ) throws IOException {
+      File document = toLocalFile( location );
+      if( document == null || !document.isFile() ) {
+        LOG.warn( "{} is not bundled, it resolves to {} which is not a local file", identifier, location );
+        return;
+      }
+      identifiers.put( identifier, document );
+      addSchema( document );
+    }
+
+    private void addRewrite( String startString, URI prefix ) throws IOException {
+      File directory = toLocalFile( prefix );
+      if( directory == null || !directory.isDirectory() ) {
+        LOG.warn( "Identifiers starting with {} are not bundled, they are rewritten to {} which is not a local directory", startString, prefix );
+        return;
+      }
+      String identifierPrefix = startString.endsWith( "/" ) ? startString : startString + "/";
+      for( File document : listSchemas( directory ) ) {
+        String relativePath = directory.toPath().relativize( document.toPath() ).toString().replace( File.separatorChar, '/' );
+        identifiers.put( identifierPrefix + relativePath, document );
+        addSchema( document );
+      }
+    }
+
+    private static List<File> listSchemas( File directory ) throws IOException {
+      List<File> files = new ArrayList<>();
+      File[] children = directory.listFiles();
+      if( children == null ) {
+        return files;
+      }
+      Arrays.sort( children );
+      for( File child : children ) {
+        if( child.isDirectory() ) {
+          files.addAll( listSchemas( child ) );
+        }
+        else if( isSchema( child ) ) {
+          files.add( child.getCanonicalFile() );
+        }
+      }
+      return files;
+    }
+
+    private static boolean isSchema( File file ) {
+      String name = file.getName().toLowerCase( Locale.ROOT );
+      for( String extension : SCHEMA_EXTENSIONS ) {
+        if( name.endsWith( extension ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Bundle a schema document and, recursively, the local schemas it includes, imports or redefines
+     */
+    private void addSchema( File document ) throws IOException {
+      document = document.getCanonicalFile();
+      if( !schemas.add( document ) || !document.getName().toLowerCase( Locale.ROOT ).endsWith( ".xsd" ) ) {
+        return;
+      }
+      for( String location : readSchemaLocations( document ) ) {
+        URI uri;
+        try {
+          uri = new URI( location.trim() );
+        }
+        catch( Exception e ) {
+          LOG.warn( "Schema location {} in {} is not a valid URI", location, document );
+          continue;
+        }
+        if( uri.isAbsolute() && !"file".equals( uri.getScheme() ) ) {
+          references.put( location.trim(), document );
+          continue;
+        }
+        File referenced = uri.isAbsolute() ? new File( uri ) : new File( document.toURI().resolve( uri ) );
+        if( referenced.isFile() ) {
+          addSchema( referenced );
+        }
+        else {
+          LOG.warn( "Schema {} referenced from {} does not exist and is not bundled", referenced, document );
+        }
+      }
+    }
+
+    private void addUnresolvedReferences() {
+      for( Map.Entry<String,File> reference : references.entrySet() ) {
+        if( !identifiers.containsKey( reference.getKey() ) ) {
+          LOG.warn( "{} referenced from {} is not resolved by the catalogs and is not bundled", reference.getKey(), reference.getValue() );
+        }
+      }
+    }
+
+    private static List<String> readSchemaLocations( File document ) {
+      List<String> locations = new ArrayList<>();
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      /////// SECURITY-RELATED RESTRICTIONS ///////
+      factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+      factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+      try( InputStream in = new FileInputStream( document ) ) {
+        XMLStreamReader reader = factory.createXMLStreamReader( document.toURI().toString(), in );
+        try {
+          while( reader.hasNext() ) {
+            if( reader.next() == XMLStreamConstants.START_ELEMENT && XMLConstants.W3C_XML_SCHEMA_NS_URI.equals( reader.getNamespaceURI() ) ) {
+              String localName = reader.getLocalName();
+              if( localName.equals( "include" ) || localName.equals( "import" ) || localName.equals( "redefine" ) || localName.equals( "override" ) ) {
+                String location = reader.getAttributeValue( null, "schemaLocation" );
+                if( location != null ) {
+                  locations.add( location );
+                }
+              }
+            }
+          }
+        }
+        finally {
+          reader.close();
+        }
+      }
+      catch( IOException | XMLStreamException e ) {
+        LOG.warn( "Could not read the schemas referenced from {}: {}", document, e.getMessage() );
+      }
+      return locations;
+    }
+
+    private void addSchematron( File schematronFile ) throws IOException, ValidationException {
+      SchematronValidator validator = new SchematronValidator();
+      File xsl = validator.compileToXSL( schematronFile );
+      schematronStylesheet = "schematron/" + xsl.getName();
+      schematron.put( schematronStylesheet, xsl );
+      //documents the rules read with document() are bundled at the same location relative to the compiled XSL
+      URI directory = URI.create( "schematron/" );
+      for( File document : validator.getReferencedDocuments( schematronFile ) ) {
+        String relativePath = schematronFile.getParentFile().toPath().relativize( document.getCanonicalFile().toPath() ).toString();
+        try {
+          String name = directory.resolve( new URI( null, null, relativePath.replace( File.separatorChar, '/' ), null ) ).normalize().getPath();
+          schematron.put( name, document );
+        }
+        catch( URISyntaxException e ) {
+          LOG.warn( "Document {} referenced from {} is not bundled: {}", document, schematronFile, e.getMessage() );
+        }
+      }
+    }
+
+    private static File toLocalFile( URI location ) {
+      if( !"file".equals( location.getScheme() ) ) {
+        return null;
+      }
+      try {
+        return new File( location ).getCanonicalFile();
+      }
+      catch( Exception e ) {
+        return null;
+      }
+    }
+
+    /**
+     * @return the name of each bundled schema, which is its path relative to the directory holding all of the schemas
+     */
+    private Map<File,String> nameSchemas() {
+      Map<File,String> names = new LinkedHashMap<>();
+      File root = null;
+      for( File schema : schemas ) {
+        root = root == null ? schema.getParentFile() : commonAncestor( root, schema.getParentFile() );
+      }
+      for( File schema : schemas ) {
+        names.put( schema, "schemas/" + root.toPath().relativize( schema.toPath() ).toString().replace( File.separatorChar, '/' ) );
+      }
+      return names;
+    }
+
+    private static File commonAncestor( File a, File b ) {
+      for( File ancestor = a; ancestor != null; ancestor = ancestor.getParentFile() ) {
+        if( b.toPath().startsWith( ancestor.toPath() ) ) {
+          return ancestor;
+        }
+      }
+      return a;
+    }
+
+    private void write( File output ) throws IOException {
+      Map<File,String> schemaNames = nameSchemas();
+      Map<String,File> documents = new LinkedHashMap<>();
+      documents.putAll( catalogs );
+      for( Map.Entry<File,String> schema : schemaNames.entrySet() ) {
+        documents.put( schema.getValue(), schema.getKey() );
+      }
+      documents.putAll( schematron );
+
+      Map<String,long[]> locations = new LinkedHashMap<>();
+      long indexOffset;
+      try( DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( output ) ) ) ) {
+        out.write( MAGIC );
+        out.writeInt( VERSION );
+        //the index offset is written once the documents have been
+        out.writeLong( 0 );
+        long offset = HEADER_LENGTH;
+        for( Map.Entry<String,File> document : documents.entrySet() ) {
+          long documentLength = Files.copy( document.getValue().toPath(), out );
+          locations.put( document.getKey(), new long[]{ offset, documentLength } );
+          offset += documentLength;
+        }
+        indexOffset = offset;
+        if( indexOffset > Integer.MAX_VALUE ) {
+          throw new IOException( "Bundles are limited to 2GB" );
+        }
+        out.writeInt( locations.size() + identifiers.size() + catalogs.size() + ( schematronStylesheet == null ? 0 : 1 ) );
+        for( Map.Entry<String,long[]> location : locations.entrySet() ) {
+          out.writeByte( DOCUMENT_RECORD );
+          out.writeUTF( location.getKey() );
+          out.writeLong( location.getValue()[0] );
+          out.writeInt( (int) location.getValue()[1] );
+        }
+        for( Map.Entry<String,File> identifier : identifiers.entrySet() ) {
+          out.writeByte( IDENTIFIER_RECORD );
+          out.writeUTF( identifier.getKey() );
+          out.writeUTF( schemaNames.get( identifier.getValue() ) );
+        }
+        for( String catalog : catalogs.keySet() ) {
+          out.writeByte( CATALOG_RECORD );
+          out.writeUTF( catalog );
+        }
+        if( schematronStylesheet != null ) {
+          out.writeByte( SCHEMATRON_RECORD );
+          out.writeUTF( schematronStylesheet );
+        }
+      }
+      try( RandomAccessFile header = new RandomAccessFile( output, "rw" ) ) {
+        header.seek( MAGIC.length + 4 );
+        header.writeLong( indexOffset );
+      }
+    }
+
+    private static DocumentBuilder newDocumentBuilder() throws ParserConfigurationException {
+      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+      factory.setNamespaceAware( true );
+      /////// SECURITY-RELATED RESTRICTIONS ///////
+      //catalogs declare the OASIS catalog DTD, which is not loaded
+      factory.setFeature( "http://apache.org/xml/features/nonvalidating/load-external-dtd", false );
+      factory.setFeature( "http://xml.org/sax/features/external-general-entities", false );
+      factory.setExpandEntityReferences( false );
+      return factory.newDocumentBuilder();
+    }
+  }
+
+  /**
+   * A stream over a buffer, which for a mapped buffer reads the page cache directly
+   */
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream( ByteBuffer buffer ) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read( byte[] bytes, int offset, int length ) {
+      if( length == 0 ) {
+        return 0;
+      }
+      if( !buffer.hasRemaining() ) {
+        return -1;
+      }
+      int count = Math.min( length, buffer.remaining() );
+      buffer.get( bytes, offset, count );
+      return count;
+    }
+
+    @Override
+    public long skip( long n ) {
+      int count = (int) Math.max( 0, Math.min( n, buffer.remaining() ) );
+      buffer.position( buffer.position() + count );
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import javax.xml.namespace.QName;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A record split from a large collection document by a {@link RecordReader}, such as a single featureMember of a
+ * FeatureCollection.  The content of the record is a standalone document holding the record element, with the
+ * namespace declarations and schema locations in scope where it appeared.  The record can also be opened wrapped in
+ * its ancestor elements, without their other content, so that Schematron rules written against the whole document
+ * still apply to it.  Errors found in the record are reported against the original document and its line numbers
+ */
+public class Record extends ValidationInput {
+  private final int index;
+  private final List<QName> path;
+  private final byte[] content;
+  private final byte[] ancestorsStart;
+  private final byte[] ancestorsEnd;
+  //the output line at which each element of the record starts, and the corresponding line of the original document
+  private final int[] recordLines;
+  private final int[] documentLines;
+
+  Record( String documentName, String systemId, int index, List<QName> path, byte[] content, byte[] ancestorsStart,
+          byte[] ancestorsEnd, int[] recordLines, int[] documentLines ) {
+    super( documentName, systemId );
+    this.index = index;
+    this.path = Collections.unmodifiableList( path );
+    this.content = content;
+    this.ancestorsStart = ancestorsStart;
+    this.ancestorsEnd = ancestorsEnd;
+    this.recordLines = recordLines;
+    this.documentLines = documentLines;
+  }
+
+  /**
+   * @return a stream over the record element alone
+   */
+  @Override
+  public InputStream open() {
+    return new ByteArrayInputStream( content );
+  }
+
+  /**
+   * @return a stream over the record wrapped in its ancestor elements.  The ancestors keep their attributes but none of
+   * their other content
+   */
+  public InputStream openInAncestors() {
+    return new SequenceInputStream( Collections.enumeration( Arrays.asList( new ByteArrayInputStream( ancestorsStart ),
+      new ByteArrayInputStream( content ), new ByteArrayInputStream( ancestorsEnd ) ) ) );
+  }
+
+  /**
+   * @return a stream over the ancestor elements of the record without the record, which is enough to load the schemas
+   * the document refers to
+   */
+  InputStream openAncestors() {
+    return new SequenceInputStream( new ByteArrayInputStream( ancestorsStart ), new ByteArrayInputStream( ancestorsEnd ) );
+  }
+
+  /**
+   * @return the position of the record in the document, starting at 0
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /**
+   * @return the names of the ancestors of the record element, from the root element, followed by the record element
+   */
+  public List<QName> getPath() {
+    return path;
+  }
+
+  /**
+   * @return the line of the original document on which the record element starts
+   */
+  public int getLine() {
+    return documentLines[0];
+  }
+
+  /**
+   * @param line a line number of the record, as opened by {@link #open()} or {@link #openInAncestors()}
+   * @return the corresponding line number of the original document, or UNKNOWN
+   */
+  public int toDocumentLine( int line ) {
+    if( line < 1 ) {
+      return ValidationError.UNKNOWN;
+    }
+    int i = Arrays.binarySearch( recordLines, line );
+    if( i < 0 ) {
+      //the line is within an element, after the line it started on
+      i = Math.max( 0, -i - 2 );
+    }
+    return documentLines[i] + ( line - recordLines[i] );
+  }
+
+  /**
+   * @param error an error found in the record
+   * @return the error located on the corresponding line of the original document.  Columns are not kept, as the tags
+   * of the record are rewritten when it is split from the document
+   */
+  public ValidationError toDocumentError( ValidationError error ) {
+    int line = error.getLine() == ValidationError.UNKNOWN ? getLine() : toDocumentLine( error.getLine() );
+    if( error instanceof ValidationTimeoutError ) {
+      return new ValidationTimeoutError( error.getError(), getName() );
+    }
+    return new ValidationError( error.getError(), getName(), line, ValidationError.UNKNOWN );
+  }
+
+  @Override
+  public String toString() {
+    return getName() + " record " + ( index + 1 ) + " (line " + getLine() + ")";
+  }
+}
@@ -0,0 +1,565 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.NamespaceContext;
+import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Splits a large collection document, such as a FeatureCollection holding many featureMember elements, into
+ * {@link Record}s which can be validated independently and in parallel.  The document is streamed, so memory use is
+ * bounded by the size and number of records in flight rather than by the size of the document.
+ * <p>
+ * Record elements are selected with a path of element names: "featureMember" or "gml:featureMember" selects matching
+ * elements at any depth, "/wfs:FeatureCollection/wfs:member" selects them at an exact position and "//" may be used
+ * between steps as in XPath.  A name may be "*", a local name, which matches in any namespace, a prefixed name, whose
+ * prefix is resolved against the namespaces declared in the document, or "{namespace}localName".  Record elements
+ * nested inside another record are part of that record
+ */
+public class RecordReader {
+  private static final String XSI_SCHEMA_LOCATION = "schemaLocation";
+  private static final String XSI_NO_NAMESPACE_SCHEMA_LOCATION = "noNamespaceSchemaLocation";
+
+  private final String path;
+  private final File file;
+  private final RecordPath recordPath;
+  private ValidationError readError;
+
+  /**
+   * @param path the path to a local XML document, which may be compressed
+   * @param recordPath the path selecting record elements
+   * @throws IOException if the document does not exist
+   * @throws IllegalArgumentException if the record path is not valid
+   */
+  public RecordReader( String path, String recordPath ) throws IOException {
+    this.path = path;
+    this.file = new File( path );
+    if( !Utils.isLocalFile( path ) || !file.isFile() ) {
+      throw new FileNotFoundException( "No such file: " + path );
+    }
+    this.recordPath = new RecordPath( recordPath );
+  }
+
+  /**
+   * Apply a task, such as validation, to every record of the document.  If the document turns out not to be
+   * well-formed, the records before the error are still processed and the error is available from
+   * {@link #getReadError()}
+   * @param task the task applied to each record
+   * @param executor the executor on which tasks run, while the calling thread reads the document
+   * @param parallelism the number of records which may be held in memory awaiting or undergoing their task
+   * @return the result of the task for each record, in document order
+   * @throws IOException if the document could not be read
+   */
+  public <T> List<T> forEachRecord( Function<Record,T> task, Executor executor, int parallelism ) throws IOException {
+    readError = null;
+    List<CompletableFuture<T>> futures = new ArrayList<>();
+    //bound the number of records held in memory while earlier records are validated
+    final Semaphore buffered = new Semaphore( Math.max( 1, parallelism ) );
+    try( InputStream in = openDocument() ) {
+      XMLStreamReader reader = createInputFactory().createXMLStreamReader( file.getAbsoluteFile().toURI().toString(), in );
+      try {
+        Splitter splitter = new Splitter( reader );
+        Record record;
+        while( ( record = splitter.nextRecord() ) != null ) {
+          buffered.acquireUninterruptibly();
+          final Record next = record;
+          CompletableFuture<T> future;
+          try {
+            future = CompletableFuture.supplyAsync( () -> task.apply( next ), executor );
+          }
+          catch( RuntimeException e ) {
+            buffered.release();
+            throw e;
+          }
+          future.whenComplete( ( result, throwable ) -> buffered.release() );
+          futures.add( future );
+        }
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch( XMLStreamException e ) {
+      Location location = e.getLocation();
+      readError = location == null ? new ValidationError( e.getMessage(), path, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) :
+        new ValidationError( e.getMessage(), path, location.getLineNumber(), location.getColumnNumber() );
+    }
+    List<T> results = new ArrayList<>( futures.size() );
+    try {
+      for( CompletableFuture<T> future : futures ) {
+        results.add( future.join() );
+      }
+    }
+    catch( CompletionException e ) {
+      if( e.getCause() instanceof RuntimeException ) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+    return results;
+  }
+
+  /**
+   * @return the error which stopped the document being read because it is not well-formed, or null
+   */
+  public ValidationError getReadError() {
+    return readError;
+  }
+
+  private InputStream openDocument() throws IOException {
+    CompressedInput compressed = CompressedInput.detect( path );
+    if( compressed != null ) {
+      return compressed.open();
+    }
+    return new BufferedInputStream( new FileInputStream( file ), 64 * 1024 );
+  }
+
+  private static XMLInputFactory createInputFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    /////// SECURITY-RELATED RESTRICTIONS ///////
+    factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+    factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+    factory.setProperty( XMLInputFactory.IS_COALESCING, false );
+    return factory;
+  }
+
+  /**
+   * An element enclosing the records, kept so that records can be written out with the namespaces, schema locations
+   * and ancestors in scope where they appeared
+   */
+  private static class Ancestor {
+    private final QName name;
+    private final Map<String,String> namespaces = new LinkedHashMap<>();
+    private final List<String[]> attributes = new ArrayList<>();
+    private String schemaLocation;
+    private String noNamespaceSchemaLocation;
+
+    private Ancestor( XMLStreamReader reader ) {
+      name = reader.getName();
+      for( int i = 0; i < reader.getNamespaceCount(); i++ ) {
+        namespaces.put( nullToEmpty( reader.getNamespacePrefix( i ) ), nullToEmpty( reader.getNamespaceURI( i ) ) );
+      }
+      for( int i = 0; i < reader.getAttributeCount(); i++ ) {
+        String namespace = nullToEmpty( reader.getAttributeNamespace( i ) );
+        String localName = reader.getAttributeLocalName( i );
+        attributes.add( new String[]{ qualifiedName( reader.getAttributePrefix( i ), localName ), reader.getAttributeValue( i ) } );
+        if( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals( namespace ) ) {
+          if( XSI_SCHEMA_LOCATION.equals( localName ) ) {
+            schemaLocation = reader.getAttributeValue( i );
+          }
+          else if( XSI_NO_NAMESPACE_SCHEMA_LOCATION.equals( localName ) ) {
+            noNamespaceSchemaLocation = reader.getAttributeValue( i );
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Streams through the document, writing out each record element it finds
+   */
+  private class Splitter {
+    private final XMLStreamReader reader;
+    private final List<Ancestor> ancestors = new ArrayList<>();
+    private int recordCount = 0;
+    //the ancestors of the records written out, which rarely change between records
+    private byte[] ancestorsStart;
+    private byte[] ancestorsEnd;
+
+    private Splitter( XMLStreamReader reader ) {
+      this.reader = reader;
+    }
+
+    /**
+     * @return the next record in the document, or null at the end of the document
+     */
+    private Record nextRecord() throws XMLStreamException, IOException {
+      while( reader.hasNext() ) {
+        int event = reader.next();
+        if( event == XMLStreamConstants.START_ELEMENT ) {
+          if( recordPath.matches( ancestors, reader.getName(), reader.getNamespaceContext() ) ) {
+            return readRecord();
+          }
+          ancestors.add( new Ancestor( reader ) );
+          ancestorsStart = null;
+        }
+        else if( event == XMLStreamConstants.END_ELEMENT ) {
+          ancestors.remove( ancestors.size() - 1 );
+          ancestorsStart = null;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Write out the record element the reader is positioned on, leaving the reader on its end tag
+     */
+    private Record readRecord() throws XMLStreamException, IOException {
+      if( ancestorsStart == null ) {
+        writeAncestors();
+      }
+      List<QName> recordPath = new ArrayList<>( ancestors.size() + 1 );
+      for( Ancestor ancestor : ancestors ) {
+        recordPath.add( ancestor.name );
+      }
+      recordPath.add( reader.getName() );
+
+      ByteArrayOutputStream content = new ByteArrayOutputStream();
+      LineCountingWriter out = new LineCountingWriter( new OutputStreamWriter( content, StandardCharsets.UTF_8 ) );
+      int[] recordLines = new int[16];
+      int[] documentLines = new int[16];
+      int elements = 0;
+      int depth = 0;
+      int event = XMLStreamConstants.START_ELEMENT;
+      do {
+        switch( event ) {
+          case XMLStreamConstants.START_ELEMENT:
+            if( elements == recordLines.length ) {
+              recordLines = Arrays.copyOf( recordLines, elements * 2 );
+              documentLines = Arrays.copyOf( documentLines, elements * 2 );
+            }
+            //start tags are written on a single line, so the line of each start tag is remembered to map lines back
+            recordLines[elements] = out.line;
+            documentLines[elements] = reader.getLocation().getLineNumber();
+            elements++;
+            writeStartElement( out, depth == 0 );
+            depth++;
+            break;
+          case XMLStreamConstants.END_ELEMENT:
+            out.write( "</" );
+            out.write( qualifiedName( reader.getPrefix(), reader.getLocalName() ) );
+            out.write( '>' );
+            depth--;
+            break;
+          case XMLStreamConstants.CHARACTERS:
+          case XMLStreamConstants.SPACE:
+          case XMLStreamConstants.CDATA:
+            writeEscaped( out, reader.getText(), false );
+            break;
+          case XMLStreamConstants.COMMENT:
+            out.write( "<!--" );
+            out.write( reader.getText() );
+            out.write( "-->" );
+            break;
+          case XMLStreamConstants.PROCESSING_INSTRUCTION:
+            out.write( "<?" );
+            out.write( reader.getPITarget() );
+            if( reader.getPIData() != null ) {
+              out.write( ' ' );
+              out.write( reader.getPIData() );
+            }
+            out.write( "?>" );
+            break;
+          default:
+            break;
+        }
+      } while( depth > 0 && ( event = reader.next() ) != XMLStreamConstants.END_DOCUMENT );
+      out.flush();
+      return new Record( path, file.getAbsoluteFile().toURI().toString(), recordCount++, recordPath, content.toByteArray(),
+        ancestorsStart, ancestorsEnd, Arrays.copyOf( recordLines, elements ), Arrays.copyOf( documentLines, elements ) );
+    }
+
+    /**
+     * Write the start tag the reader is positioned on.  The record element also declares every namespace in scope and
+     * the schema locations of its ancestors, so that it stands alone
+     */
+    private void writeStartElement( Writer out, boolean recordElement ) throws IOException {
+      out.write( '<' );
+      out.write( qualifiedName( reader.getPrefix(), reader.getLocalName() ) );
+      Map<String,String> namespaces = new LinkedHashMap<>();
+      if( recordElement ) {
+        for( Ancestor ancestor : ancestors ) {
+          namespaces.putAll( ancestor.namespaces );
+        }
+      }
+      for( int i = 0; i < reader.getNamespaceCount(); i++ ) {
+        namespaces.put( nullToEmpty( reader.getNamespacePrefix( i ) ), nullToEmpty( reader.getNamespaceURI( i ) ) );
+      }
+      writeNamespaces( out, namespaces );
+      boolean hasSchemaLocation = false;
+      boolean hasNoNamespaceSchemaLocation = false;
+      for( int i = 0; i < reader.getAttributeCount(); i++ ) {
+        if( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals( reader.getAttributeNamespace( i ) ) ) {
+          hasSchemaLocation |= XSI_SCHEMA_LOCATION.equals( reader.getAttributeLocalName( i ) );
+          hasNoNamespaceSchemaLocation |= XSI_NO_NAMESPACE_SCHEMA_LOCATION.equals( reader.getAttributeLocalName( i ) );
+        }
+        writeAttribute( out, qualifiedName( reader.getAttributePrefix( i ), reader.getAttributeLocalName( i ) ), reader.getAttributeValue( i ) );
+      }
+      if( recordElement ) {
+        writeInheritedSchemaLocations( out, namespaces, hasSchemaLocation, hasNoNamespaceSchemaLocation );
+      }
+      out.write( '>' );
+    }
+
+    private void writeInheritedSchemaLocations( Writer out, Map<String,String> namespaces, boolean hasSchemaLocation,
+                                                boolean hasNoNamespaceSchemaLocation ) throws IOException {
+      String schemaLocation = null;
+      String noNamespaceSchemaLocation = null;
+      for( Ancestor ancestor : ancestors ) {
+        schemaLocation = ancestor.schemaLocation != null ? ancestor.schemaLocation : schemaLocation;
+        noNamespaceSchemaLocation = ancestor.noNamespaceSchemaLocation != null ? ancestor.noNamespaceSchemaLocation : noNamespaceSchemaLocation;
+      }
+      if( ( schemaLocation == null || hasSchemaLocation ) && ( noNamespaceSchemaLocation == null || hasNoNamespaceSchemaLocation ) ) {
+        return;
+      }
+      String prefix = null;
+      for( Map.Entry<String,String> namespace : namespaces.entrySet() ) {
+        if( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals( namespace.getValue() ) && !namespace.getKey().isEmpty() ) {
+          prefix = namespace.getKey();
+        }
+      }
+      if( prefix == null ) {
+        prefix = "xsi";
+        writeAttribute( out, "xmlns:" + prefix, XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI );
+      }
+      if( schemaLocation != null && !hasSchemaLocation ) {
+        writeAttribute( out, prefix + ":" + XSI_SCHEMA_LOCATION, schemaLocation );
+      }
+      if( noNamespaceSchemaLocation != null && !hasNoNamespaceSchemaLocation ) {
+        writeAttribute( out, prefix + ":" + XSI_NO_NAMESPACE_SCHEMA_LOCATION, noNamespaceSchemaLocation );
+      }
+    }
+
+    /**
+     * Write the start and end tags of the current ancestors, on a single line so that the record which follows starts on
+     * the first line as it does when written alone
+     */
+    private void writeAncestors() throws IOException {
+      ByteArrayOutputStream start = new ByteArrayOutputStream();
+      ByteArrayOutputStream end = new ByteArrayOutputStream();
+      try( Writer startOut = new OutputStreamWriter( start, StandardCharsets.UTF_8 );
+           Writer endOut = new OutputStreamWriter( end, StandardCharsets.UTF_8 ) ) {
+        for( int i = 0; i < ancestors.size(); i++ ) {
+          Ancestor ancestor = ancestors.get( i );
+          startOut.write( '<' );
+          startOut.write( qualifiedName( ancestor.name.getPrefix(), ancestor.name.getLocalPart() ) );
+          writeNamespaces( startOut, ancestor.namespaces );
+          for( String[] attribute : ancestor.attributes ) {
+            writeAttribute( startOut, attribute[0], attribute[1] );
+          }
+          startOut.write( '>' );
+          Ancestor closing = ancestors.get( ancestors.size() - 1 - i );
+          endOut.write( "</" );
+          endOut.write( qualifiedName( closing.name.getPrefix(), closing.name.getLocalPart() ) );
+          endOut.write( '>' );
+        }
+      }
+      ancestorsStart = start.toByteArray();
+      ancestorsEnd = end.toByteArray();
+    }
+  }
+
+  private static void writeNamespaces( Writer out, Map<String,String> namespaces ) throws IOException {
+    for( Map.Entry<String,String> namespace : namespaces.entrySet() ) {
+      writeAttribute( out, namespace.getKey().isEmpty() ? "xmlns" : "xmlns:" + namespace.getKey(), namespace.getValue() );
+    }
+  }
+
+  private static void writeAttribute( Writer out, String name, String value ) throws IOException {
+    out.write( ' ' );
+    out.write( name );
+    out.write( "=\"" );
+    writeEscaped( out, value, true );
+    out.write( '"' );
+  }
+
+  private static void writeEscaped( Writer out, String text, boolean attribute ) throws IOException {
+    for( int i = 0; i < text.length(); i++ ) {
+      char c = text.charAt( i );
+      switch( c ) {
+        case '&': out.write( "&amp;" ); break;
+        case '<': out.write( "&lt;" ); break;
+        case '>': out.write( "&gt;" ); break;
+        case '"': out.write( attribute ? "&quot;" : "\"" ); break;
+        //whitespace in attribute values is kept as character references, which are not normalized to spaces
+        case '\n': out.write( attribute ? "&#10;" : "\n" ); break;
+        case '\r': out.write( "&#13;" ); break;
+        case '\t': out.write( attribute ? "&#9;" : "\t" ); break;
+        default: out.write( c );
+      }
+    }
+  }
+
+  private static String qualifiedName( String prefix, String localName ) {
+    return prefix == null || prefix.isEmpty() ? localName : prefix + ":" + localName;
+  }
+
+  private static String nullToEmpty( String value ) {
+    return value == null ? "" : value;
+  }
+
+  /**
+   * Keeps track of the line being written
+   */
+  private static class LineCountingWriter extends Writer {
+    private final Writer out;
+    private int line = 1;
+
+    private LineCountingWriter( Writer out ) {
+      this.out = out;
+    }
+
+    @Override
+    public void write( int c ) throws IOException {
+      if( c == '\n' ) {
+        line++;
+      }
+      out.write( c );
+    }
+
+    @Override
+    public void write( String text ) throws IOException {
+      for( int i = 0; i < text.length(); i++ ) {
+        if( text.charAt( i ) == '\n' ) {
+          line++;
+        }
+      }
+      out.write( text );
+    }
+
+    @Override
+    public void write( char[] buffer, int offset, int length ) throws IOException {
+      write( new String( buffer, offset, length ) );
+    }
+
+    @Override
+    public void flush() throws IOException {
+      out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+  /**
+   * A path of element names selecting record elements
+   */
+  private static class RecordPath {
+    private final List<Step> steps = new ArrayList<>();
+
+    private RecordPath( String expression ) {
+      String path = expression.trim();
+      if( path.isEmpty() ) {
+        throw new IllegalArgumentException( "Empty record path" );
+      }
+      //a relative path selects elements at any depth
+      if( !path.startsWith( "/" ) ) {
+        path = "//" + path;
+      }
+      int position = 0;
+      while( position < path.length() ) {
+        boolean descendant = path.startsWith( "//", position );
+        position += descendant ? 2 : 1;
+        int end = position;
+        if( end < path.length() && path.charAt( end ) == '{' ) {
+          //namespaces may contain '/'
+          end = path.indexOf( '}', end );
+          if( end < 0 ) {
+            throw new IllegalArgumentException( "Unterminated namespace in record path " + expression );
+          }
+        }
+        end = path.indexOf( '/', end );
+        end = end < 0 ? path.length() : end;
+        steps.add( new Step( path.substring( position, end ), descendant, expression ) );
+        position = end;
+      }
+    }
+
+    /**
+     * @return whether an element with the given ancestors matches the path
+     */
+    private boolean matches( List<Ancestor> ancestors, QName name, NamespaceContext context ) {
+      return matches( steps.size() - 1, ancestors.size(), ancestors, name, context );
+    }
+
+    /**
+     * @return whether the element at the given depth matches the step, and its ancestors match the preceding steps
+     */
+    private boolean matches( int step, int depth, List<Ancestor> ancestors, QName name, NamespaceContext context ) {
+      QName element = depth == ancestors.size() ? name : ancestors.get( depth ).name;
+      Step current = steps.get( step );
+      if( !current.matches( element, context ) ) {
+        return false;
+      }
+      if( step == 0 ) {
+        return current.descendant || depth == 0;
+      }
+      if( !current.descendant ) {
+        return depth > 0 && matches( step - 1, depth - 1, ancestors, name, context );
+      }
+      for( int ancestor = depth - 1; ancestor >= 0; ancestor-- ) {
+        if( matches( step - 1, ancestor, ancestors, name, context ) ) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private static class Step {
+    private final boolean descendant;
+    private final String prefix;
+    private final String namespace;
+    private final String localName;
+
+    private Step( String name, boolean descendant, String expression ) {
+      if( name.isEmpty() || name.matches( ".*[\\[\\]@()=].*" ) ) {
+        throw new IllegalArgumentException( "Record paths may only contain element names: " + expression );
+      }
+      this.descendant = descendant;
+      if( name.startsWith( "{" ) ) {
+        int end = name.indexOf( '}' );
+        this.prefix = null;
+        this.namespace = name.substring( 1, end );
+        this.localName = name.substring( end + 1 );
+      }
+      else {
+        int colon = name.indexOf( ':' );
+        this.prefix = colon < 0 ? null : name.substring( 0, colon );
+        this.namespace = null;
+        this.localName = name.substring( colon + 1 );
+      }
+    }
+
+    private boolean matches( QName element, NamespaceContext context ) {
+      if( !localName.equals( "*" ) && !localName.equals( element.getLocalPart() ) ) {
+        return false;
+      }
+      if( namespace != null ) {
+        return namespace.equals( element.getNamespaceURI() );
+      }
+      //prefixes are resolved in the document, as the document may bind them to any namespace
+      return prefix == null || element.getNamespaceURI().equals( context.getNamespaceURI( prefix ) );
+    }
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A validator for long-lived services whose catalogs and Schematron files are replaced while it is in use.  Each
+ * validation uses the {@link ValidationConfig} snapshot current when it starts.  A reload builds a new snapshot in the
+ * background and then swaps it in atomically, so validations are never blocked by compilation and validations already
+ * running finish with the snapshot they started with.
+ * <p>
+ * The rules compiled from each Schematron file are packed into a {@link ProfileBundle} of the snapshot, so a snapshot
+ * keeps validating with the rules it was built with even once the Schematron file is edited.  Compiled state which has
+ * not changed is carried over to the new snapshot: the grammars of schema documents which have not changed since they
+ * were compiled, if the catalogs are unchanged, and the bundles, and so the compiled stylesheets, of Schematron files
+ * which have not changed.  The stylesheets of a new snapshot are compiled as it is built, by one processor shared by
+ * every thread, so validations with the new snapshot do not compile them again on each thread.
+ * <p>
+ * Once no snapshot validating with a bundle is reachable any more, the bundle is closed, its compiled stylesheets are
+ * dropped and its file is deleted.  This happens at the next reload after the snapshots have been garbage collected
+ */
+public class ReloadableValidator implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger( ReloadableValidator.class );
+
+  private final AtomicReference<ValidationConfig> current = new AtomicReference<>();
+  private final AtomicLong versions = new AtomicLong();
+  //compiled stylesheets are cached by bundle and its modification time, so one validator serves every snapshot
+  private final SchematronValidator schematronValidator = new SchematronValidator();
+  private File bundleDir;
+  private final ExecutorService reloadExecutor = Executors.newSingleThreadExecutor( r -> {
+    Thread thread = new Thread( r, "crux-reload" );
+    thread.setDaemon( true );
+    return thread;
+  } );
+  private volatile boolean allowingRemoteResources = false;
+  private final AtomicLong compiledRulesCount = new AtomicLong();
+  //the snapshots which may still be in use, and the number of them validating with each bundle this validator created
+  private final ReferenceQueue<ValidationConfig> collectedSnapshots = new ReferenceQueue<>();
+  private final Set<SnapshotReference> snapshots = ConcurrentHashMap.newKeySet();
+  private final Map<String,Integer> bundleReferences = new HashMap<>();
+
+  /**
+   * Build the first snapshot
+   * @param catalogLocations the locations of catalog files or profile bundles.  May be empty
+   * @param schematronFiles the Schematron files, or profile bundles holding them.  May be empty
+   * @throws ValidationException if a Schematron file could not be compiled
+   * @throws IOException if a Schematron file could not be read
+   */
+  public ReloadableValidator( List<String> catalogLocations, List<String> schematronFiles ) throws ValidationException, IOException {
+    schematronValidator.setSharingProcessor( true );
+    current.set( build( versions.incrementAndGet(), catalogLocations, schematronFiles, null ) );
+  }
+
+  /**
+   * @return the current snapshot.  Validating several files with the snapshot returned here validates them all with the
+   * same catalogs and Schematron files, whatever reloads happen meanwhile
+   */
+  public ValidationConfig getConfig() {
+    return current.get();
+  }
+
+  /**
+   * Validate an XML or XSD file with the current snapshot
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xmlOrXsdPath, Deadline deadline ) {
+    return current.get().validateToResult( xmlOrXsdPath, deadline );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file with the current snapshot
+   * @param input the XML or XSD content to validate
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( ValidationInput input, Deadline deadline ) {
+    return current.get().validateToResult( input, deadline );
+  }
+
+  /**
+   * Build a new snapshot of the current catalogs and Schematron files in the background, picking up changes made to
+   * them or to the schema documents on disk, then swap it in
+   * @return a future completed with the new snapshot once it is in use
+   */
+  public CompletableFuture<ValidationConfig> reload() {
+    ValidationConfig config = current.get();
+    return reload( config.getCatalogLocations(), config.getSchematronFiles() );
+  }
+
+  /**
+   * Build a new snapshot of a set of catalogs and Schematron files in the background, then swap it in.  If the
+   * snapshot cannot be built, for example because a Schematron file does not compile, the current snapshot stays in
+   * use and the future completes exceptionally.  When reloads overlap, the snapshot of the latest reload is kept
+   * @param catalogLocations the locations of catalog files or profile bundles.  May be empty
+   * @param schematronFiles the Schematron files, or profile bundles holding them.  May be empty
+   * @return a future completed with the new snapshot once it is in use
+   */
+  public CompletableFuture<ValidationConfig> reload( final List<String> catalogLocations, final List<String> schematronFiles ) {
+    final long version = versions.incrementAndGet();
+    return CompletableFuture.supplyAsync( () -> {
+      ValidationConfig next;
+      try {
+        next = build( version, catalogLocations, schematronFiles, current.get() );
+      }
+      catch( ValidationException | IOException e ) {
+        LOG.warn( "Could not build version {} of the validation configuration, version {} stays in use: {}", version,
+          current.get().getVersion(), e.getMessage() );
+        throw new CompletionException( e );
+      }
+      ValidationConfig installed = current.accumulateAndGet( next, ( previous, candidate ) ->
+        candidate.getVersion() > previous.getVersion() ? candidate : previous );
+      LOG.info( "Validation configuration version {} is in use", installed.getVersion() );
+      return next;
+    }, reloadExecutor );
+  }
+
+  /**
+   * Compile the Schematron files and set up the XML schema validator of a snapshot, carrying over what has not changed
+   * since the previous snapshot
+   * @param previous the snapshot being replaced.  May be null
+   */
+  private ValidationConfig build( long version, List<String> catalogLocations, List<String> schematronFiles,
+                                  ValidationConfig previous ) throws ValidationException, IOException {
+    long startMs = System.currentTimeMillis();
+    releaseCollectedSnapshots();
+    Map<File,Long> modificationTimes = new HashMap<>();
+    List<String> compiledRules = new ArrayList<>( schematronFiles.size() );
+    List<String> createdBundles = new ArrayList<>();
+    try {
+      for( String schematronFile : schematronFiles ) {
+        File file = ValidationConfig.canonical( new File( schematronFile ) );
+        long modificationTime = file.lastModified();
+        modificationTimes.put( file, modificationTime );
+        if( ProfileBundle.isBundle( schematronFile ) ) {
+          ProfileBundle.open( schematronFile );
+          compiledRules.add( schematronFile );
+          continue;
+        }
+        int previousIndex = previous == null ? -1 : previous.getSchematronFiles().indexOf( schematronFile );
+        if( previousIndex >= 0 && !previous.isChanged( file ) ) {
+          compiledRules.add( previous.getCompiledRules().get( previousIndex ) );
+        }
+        else {
+          String bundleFile = bundle( file, version );
+          createdBundles.add( bundleFile );
+          compiledRules.add( bundleFile );
+        }
+      }
+      //compiled before the snapshot is swapped in, so no validation waits for it
+      schematronValidator.precompile( compiledRules );
+    }
+    catch( ValidationException | IOException e ) {
+      //no snapshot will validate with the bundles created for this one
+      for( String bundleFile : createdBundles ) {
+        Files.deleteIfExists( new File( bundleFile ).toPath() );
+      }
+      throw e;
+    }
+    for( String catalogLocation : catalogLocations ) {
+      if( Utils.isLocalFile( catalogLocation ) ) {
+        File file = ValidationConfig.canonical( new File( catalogLocation ) );
+        modificationTimes.put( file, file.lastModified() );
+      }
+    }
+    XML10Validator xml10Validator = catalogLocations.isEmpty() ? new XML10Validator() :
+      new XML10Validator( catalogLocations.toArray( new String[catalogLocations.size()] ) );
+    xml10Validator.setAllowingRemoteResources( allowingRemoteResources );
+    if( previous != null && previous.hasSameCatalogs( catalogLocations ) ) {
+      int numGrammars = xml10Validator.carryOverGrammars( previous.getXML10Validator(), previous::isChanged );
+      for( File file : xml10Validator.getCachedSchemaFiles() ) {
+        modificationTimes.put( file, file.lastModified() );
+      }
+      LOG.debug( "Carried {} compiled grammar(s) over from version {}", numGrammars, previous.getVersion() );
+    }
+    LOG.debug( "Building version {} of the validation configuration took {} ms", version, System.currentTimeMillis() - startMs );
+    ValidationConfig config = new ValidationConfig( version, new ArrayList<>( catalogLocations ), new ArrayList<>( schematronFiles ),
+      compiledRules, xml10Validator, schematronValidator, modificationTimes );
+    track( config, createdBundles );
+    return config;
+  }
+
+  /**
+   * Count a new snapshot as a user of the bundles it validates with which this validator created
+   * @param createdBundles the bundles created for the snapshot
+   */
+  private synchronized void track( ValidationConfig config, List<String> createdBundles ) {
+    List<String> bundles = new ArrayList<>();
+    for( String bundleFile : config.getCompiledRules() ) {
+      if( createdBundles.contains( bundleFile ) || bundleReferences.containsKey( bundleFile ) ) {
+        bundleReferences.merge( bundleFile, 1, Integer::sum );
+        bundles.add( bundleFile );
+      }
+    }
+    snapshots.add( new SnapshotReference( config, bundles, collectedSnapshots ) );
+  }
+
+  /**
+   * Release the bundles of snapshots which have been garbage collected, closing and deleting those which no remaining
+   * snapshot validates with
+   */
+  private synchronized void releaseCollectedSnapshots() {
+    Reference<? extends ValidationConfig> reference;
+    while( ( reference = collectedSnapshots.poll() ) != null ) {
+      SnapshotReference snapshot = (SnapshotReference) reference;
+      snapshots.remove( snapshot );
+      for( String bundleFile : snapshot.bundles ) {
+        if( bundleReferences.merge( bundleFile, -1, Integer::sum ) == 0 ) {
+          bundleReferences.remove( bundleFile );
+          //the mapping is released once the stylesheets and trees reading from the bundle have been collected
+          ProfileBundle.close( bundleFile );
+          schematronValidator.forgetBundle( bundleFile );
+          try {
+            Files.deleteIfExists( new File( bundleFile ).toPath() );
+            LOG.debug( "Deleted bundle {}, which is no longer in use", bundleFile );
+          }
+          catch( IOException e ) {
+            LOG.warn( "Could not delete bundle {}: {}", bundleFile, e.getMessage() );
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Compile a Schematron file into a profile bundle of its own, along with the documents its rules read
+   * @return the bundle file
+   */
+  private synchronized String bundle( File schematronFile, long version ) throws ValidationException, IOException {
+    if( bundleDir == null ) {
+      bundleDir = Files.createTempDirectory( "crux-config" ).toFile();
+      //the bundles of snapshots still reachable when the JVM exits are deleted along with the directory
+      final File dir = bundleDir;
+      Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+        File[] bundleFiles = dir.listFiles();
+        for( File bundleFile : bundleFiles == null ? new File[0] : bundleFiles ) {
+          bundleFile.delete();
+        }
+        dir.delete();
+      }, "crux-config-cleanup" ) );
+    }
+    String name = schematronFile.getName().replaceFirst( "\\.[^.]*$", "" );
+    File bundleFile = new File( bundleDir, name + "-" + version + "-" + compiledRulesCount.incrementAndGet() + ".crux" );
+    ProfileBundle.create( Collections.<String>emptyList(), schematronFile.getPath(), bundleFile.getPath() );
+    return bundleFile.getPath();
+  }
+
+  public boolean isAllowingRemoteResources() {
+    return allowingRemoteResources;
+  }
+
+  /**
+   * Set whether remote (non-local) schema files are resolved by the current snapshot and those built from now on.  False
+   * by default
+   */
+  public void setAllowingRemoteResources( boolean allowingRemoteResources ) {
+    this.allowingRemoteResources = allowingRemoteResources;
+    current.get().getXML10Validator().setAllowingRemoteResources( allowingRemoteResources );
+  }
+
+  /**
+   * Stop building snapshots, releasing the bundles of snapshots already collected.  The current snapshot may still be
+   * used
+   */
+  @Override
+  public void close() {
+    reloadExecutor.shutdown();
+    releaseCollectedSnapshots();
+  }
+
+  /**
+   * Tracks when a snapshot has been garbage collected, and so the bundles it validated with
+   */
+  private static class SnapshotReference extends PhantomReference<ValidationConfig> {
+    private final List<String> bundles;
+
+    private SnapshotReference( ValidationConfig config, List<String> bundles, ReferenceQueue<ValidationConfig> queue ) {
+      super( config, queue );
+      this.bundles = bundles;
+    }
+  }
+}
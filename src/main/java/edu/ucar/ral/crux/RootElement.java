@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The root element of an XML file, read with a quick scan which stops at the root element.  Its namespaces and schema
+ * locations identify the schemas a file is validated against, so that files can be grouped by the schemas they use
+ */
+public class RootElement {
+  private static final Logger LOG = LoggerFactory.getLogger( RootElement.class );
+
+  private final String systemId;
+  private final QName name;
+  private final Map<String,String> namespaceDeclarations;
+  private final String schemaLocation;
+  private final String noNamespaceSchemaLocation;
+
+  private RootElement( String systemId, XMLStreamReader reader ) {
+    this.systemId = systemId;
+    this.name = reader.getName();
+    this.namespaceDeclarations = new LinkedHashMap<>();
+    for( int i = 0; i < reader.getNamespaceCount(); i++ ) {
+      namespaceDeclarations.put( nullToEmpty( reader.getNamespacePrefix( i ) ), nullToEmpty( reader.getNamespaceURI( i ) ) );
+    }
+    this.schemaLocation = reader.getAttributeValue( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "schemaLocation" );
+    this.noNamespaceSchemaLocation = reader.getAttributeValue( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI, "noNamespaceSchemaLocation" );
+  }
+
+  /**
+   * @param path a local XML file, which may be compressed
+   * @return the root element of the file, or null if the file could not be read or does not start with well-formed XML
+   */
+  public static RootElement read( String path ) {
+    File file = new File( path );
+    String systemId = file.getAbsoluteFile().toURI().toString();
+    CompressedInput compressed = CompressedInput.detect( path );
+    try( InputStream in = compressed != null ? compressed.open() : new BufferedInputStream( new FileInputStream( file ) ) ) {
+      return read( systemId, in );
+    }
+    catch( IOException | XMLStreamException e ) {
+      LOG.debug( "Could not read the root element of {}: {}", path, e.toString() );
+    }
+    return null;
+  }
+
+  /**
+   * @param input XML content which is not a plain file, such as a document read from a stream
+   * @return the root element of the content, or null if it could not be read or does not start with well-formed XML
+   */
+  public static RootElement read( ValidationInput input ) {
+    try( InputStream in = input.open() ) {
+      return read( input.getSystemId(), in );
+    }
+    catch( IOException | XMLStreamException e ) {
+      LOG.debug( "Could not read the root element of {}: {}", input.getName(), e.toString() );
+    }
+    return null;
+  }
+
+  private static RootElement read( String systemId, InputStream in ) throws XMLStreamException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    /////// SECURITY-RELATED RESTRICTIONS ///////
+    factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+    factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+    XMLStreamReader reader = factory.createXMLStreamReader( systemId, in );
+    try {
+      while( reader.hasNext() ) {
+        if( reader.next() == XMLStreamConstants.START_ELEMENT ) {
+          return new RootElement( systemId, reader );
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return null;
+  }
+
+  public QName getName() {
+    return name;
+  }
+
+  /**
+   * @return the namespace of the root element and the namespaces declared on it, which in practice are the namespaces
+   * whose schemas the file is validated against
+   */
+  public Set<String> getNamespaces() {
+    Set<String> namespaces = new HashSet<>( namespaceDeclarations.values() );
+    namespaces.add( name.getNamespaceURI() );
+    return namespaces;
+  }
+
+  /**
+   * @return a key identifying the schemas the file refers to: its schema locations, resolved against the file's own
+   * location so that the same relative location in different directories is told apart, or the namespace of the root
+   * element if it has no schema locations
+   */
+  public String getSchemaFingerprint() {
+    List<String> locations = new ArrayList<>();
+    if( schemaLocation != null ) {
+      String[] tokens = schemaLocation.trim().split( "\\s+" );
+      for( int i = 0; i + 1 < tokens.length; i += 2 ) {
+        locations.add( tokens[i] + " " + resolve( tokens[i + 1] ) );
+      }
+    }
+    if( noNamespaceSchemaLocation != null ) {
+      locations.add( " " + resolve( noNamespaceSchemaLocation.trim() ) );
+    }
+    if( locations.isEmpty() ) {
+      return "{" + name.getNamespaceURI() + "}";
+    }
+    //the order of the locations does not change the schemas used
+    Collections.sort( locations );
+    return String.join( "\n", locations );
+  }
+
+  private String resolve( String location ) {
+    try {
+      return URI.create( systemId ).resolve( location ).toString();
+    }
+    catch( IllegalArgumentException e ) {
+      return location;
+    }
+  }
+
+  /**
+   * @return an empty root element with the same name, namespace declarations and schema locations.  Validating it loads
+   * the schemas the file refers to
+   */
+  public ValidationInput toEmptyDocument() {
+    ByteArrayOutputStream content = new ByteArrayOutputStream();
+    try( Writer out = new OutputStreamWriter( content, StandardCharsets.UTF_8 ) ) {
+      out.write( '<' );
+      out.write( name.getPrefix().isEmpty() ? name.getLocalPart() : name.getPrefix() + ":" + name.getLocalPart() );
+      String xsiPrefix = null;
+      for( Map.Entry<String,String> namespace : namespaceDeclarations.entrySet() ) {
+        writeAttribute( out, namespace.getKey().isEmpty() ? "xmlns" : "xmlns:" + namespace.getKey(), namespace.getValue() );
+        if( XMLConstants.W3C_XML_SCHEMA_INSTANCE_NS_URI.equals( namespace.getValue() ) && !namespace.getKey().isEmpty() ) {
+          xsiPrefix = namespace.getKey();
+        }
+      }
+      if( xsiPrefix != null ) {
+        if( schemaLocation != null ) {
+          writeAttribute( out, xsiPrefix + ":schemaLocation", schemaLocation );
+        }
+        if( noNamespaceSchemaLocation != null ) {
+          writeAttribute( out, xsiPrefix + ":noNamespaceSchemaLocation", noNamespaceSchemaLocation );
+        }
+      }
+      out.write( "/>" );
+    }
+    catch( IOException e ) {
+      //writing to memory does not fail
+      throw new IllegalStateException( e );
+    }
+    return ValidationInput.of( systemId, systemId, content.toByteArray() );
+  }
+
+  private static void writeAttribute( Writer out, String name, String value ) throws IOException {
+    out.write( ' ' );
+    out.write( name );
+    out.write( "=\"" );
+    out.write( value.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( "\"", "&quot;" ) );
+    out.write( '"' );
+  }
+
+  private static String nullToEmpty( String value ) {
+    return value == null ? "" : value;
+  }
+}
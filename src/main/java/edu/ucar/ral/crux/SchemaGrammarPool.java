@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.impl.xs.XSDDescription;
+import org.apache.xerces.util.URI;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A pool of compiled schema grammars keyed by target namespace and the location of the schema they were loaded from, so
+ * that files referring to different schemas for the same namespace, such as two versions of a standard, are each
+ * validated against their own.  The Xerces pool is keyed by namespace alone, and hands every grammar it holds to each
+ * validation up front, so the first grammar cached for a namespace would be used for every file.  This pool instead
+ * hands out no grammars up front and answers each request for a grammar by its location.  A request by namespace alone,
+ * which the validator makes before it reads the document's hints, is not answered, so the validator asks again with the
+ * location it is given.  Where a file or schema gives no location for a namespace, {@link #wrap} resolves it to the
+ * location of the first grammar cached for the namespace.  This class is
+ * thread-safe
+ */
+class SchemaGrammarPool implements XMLGrammarPool {
+  private static final Grammar[] NO_GRAMMARS = new Grammar[0];
+
+  //the grammars of each namespace, by the location they were loaded from, in the order they were cached
+  private final Map<String,Map<String,SchemaGrammar>> grammars = new HashMap<>();
+
+  /**
+   * @return no grammars, as the grammar for a namespace depends on the location the file being validated gives for it
+   */
+  @Override
+  public Grammar[] retrieveInitialGrammarSet( String grammarType ) {
+    return NO_GRAMMARS;
+  }
+
+  @Override
+  public synchronized void cacheGrammars( String grammarType, Grammar[] newGrammars ) {
+    if( !XMLGrammarDescription.XML_SCHEMA.equals( grammarType ) ) {
+      return;
+    }
+    for( Grammar grammar : newGrammars ) {
+      if( grammar instanceof SchemaGrammar ) {
+        SchemaGrammar schemaGrammar = (SchemaGrammar) grammar;
+        Map<String,SchemaGrammar> byLocation = grammars.get( namespaceKey( schemaGrammar.getTargetNamespace() ) );
+        if( byLocation == null ) {
+          byLocation = new LinkedHashMap<>();
+          grammars.put( namespaceKey( schemaGrammar.getTargetNamespace() ), byLocation );
+        }
+        byLocation.put( getLocation( schemaGrammar ), schemaGrammar );
+      }
+    }
+  }
+
+  @Override
+  public synchronized Grammar retrieveGrammar( XMLGrammarDescription desc ) {
+    Map<String,SchemaGrammar> byLocation = grammars.get( namespaceKey( desc.getNamespace() ) );
+    String location = getLocation( desc );
+    //a grammar loaded from another location is not used, so the schema at this location is loaded.  A request with no
+    //location is not answered, so the validator resolves a location from the document's hints or the resolver
+    return byLocation == null || location == null ? null : byLocation.get( location );
+  }
+
+  /**
+   * @return an entity resolver which resolves a schema requested by namespace alone, which the resolver given cannot
+   * resolve, to the location of the first grammar cached for the namespace, so the cached grammar is used
+   */
+  XMLEntityResolver wrap( final XMLEntityResolver resolver ) {
+    return new XMLEntityResolver() {
+      @Override
+      public XMLInputSource resolveEntity( XMLResourceIdentifier identifier ) throws IOException {
+        if( !( identifier instanceof XSDDescription ) || getLocation( (XSDDescription) identifier ) != null ) {
+          return resolver.resolveEntity( identifier );
+        }
+        try {
+          return resolver.resolveEntity( identifier );
+        }
+        catch( IOException e ) {
+          String location = getFirstLocation( identifier.getNamespace() );
+          if( location == null ) {
+            throw e;
+          }
+          //the validator looks the grammar up in the pool by the request's location before reading the schema
+          identifier.setLiteralSystemId( location );
+          identifier.setExpandedSystemId( location );
+          return new XMLInputSource( null, location, null );
+        }
+      }
+    };
+  }
+
+  private synchronized String getFirstLocation( String namespace ) {
+    Map<String,SchemaGrammar> byLocation = grammars.get( namespaceKey( namespace ) );
+    return byLocation == null || byLocation.isEmpty() ? null : byLocation.keySet().iterator().next();
+  }
+
+  /**
+   * @return every grammar in the pool
+   */
+  synchronized List<SchemaGrammar> getGrammars() {
+    List<SchemaGrammar> all = new ArrayList<>();
+    for( Map<String,SchemaGrammar> byLocation : grammars.values() ) {
+      all.addAll( byLocation.values() );
+    }
+    return all;
+  }
+
+  /**
+   * Remove a grammar from the pool, so the next validation which needs it loads it again
+   */
+  synchronized void removeGrammar( SchemaGrammar grammar ) {
+    Map<String,SchemaGrammar> byLocation = grammars.get( namespaceKey( grammar.getTargetNamespace() ) );
+    if( byLocation == null ) {
+      return;
+    }
+    for( Iterator<SchemaGrammar> it = byLocation.values().iterator(); it.hasNext(); ) {
+      if( it.next() == grammar ) {
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public void lockPool() {
+    //grammars are always added as they are loaded
+  }
+
+  @Override
+  public void unlockPool() {
+    //the pool is never locked
+  }
+
+  @Override
+  public synchronized void clear() {
+    grammars.clear();
+  }
+
+  private static String namespaceKey( String namespace ) {
+    return namespace == null ? "" : namespace;
+  }
+
+  /**
+   * @return the location a grammar was loaded from, as the location hint which led to it being loaded
+   */
+  private static String getLocation( SchemaGrammar grammar ) {
+    String location = getLocation( grammar.getGrammarDescription() );
+    if( location == null && grammar.getDocumentLocations().getLength() > 0 ) {
+      location = grammar.getDocumentLocations().item( 0 );
+    }
+    return location == null ? "" : location;
+  }
+
+  /**
+   * @return the location hint of a request for a grammar, resolved against the document giving it, or null if there
+   * is no hint
+   */
+  private static String getLocation( XMLGrammarDescription desc ) {
+    if( desc.getExpandedSystemId() != null ) {
+      return desc.getExpandedSystemId();
+    }
+    String literal = desc.getLiteralSystemId();
+    if( literal == null && desc instanceof XSDDescription ) {
+      String[] hints = ( (XSDDescription) desc ).getLocationHints();
+      literal = hints != null && hints.length > 0 ? hints[0] : null;
+    }
+    if( literal == null ) {
+      return null;
+    }
+    try {
+      return XMLEntityManager.expandSystemId( literal, desc.getBaseSystemId(), false );
+    }
+    catch( URI.MalformedURIException e ) {
+      return literal;
+    }
+  }
+}
@@ -0,0 +1,496 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An optimisation pass over the XSL compiled from Schematron rules, which rewrites equality lookups into keys.  Saxon HE
+ * evaluates a lookup such as <code>//foo[@id = current()/@ref]</code> or
+ * <code>document('codes.xml')//entry[@code = current()]</code> by scanning the whole document for every context node,
+ * so rules using them take time quadratic in the size of the document.  Each lookup is replaced by a call to key(),
+ * backed by a generated xsl:key, so the document is indexed once and each lookup is a hash lookup.
+ * <p>
+ * Only lookups whose result is certain to be unchanged are rewritten: the path must start at the root of the document,
+ * the predicate must be a single comparison of an attribute or child element with a value which does not depend on the
+ * node being tested (current(), a path from a variable or a string literal), and the names must use namespace prefixes
+ * bound where the lookup appears.  The lookup must not be followed by a further predicate, directly or on a later step
+ * of its path, as a positional predicate applies to the children of each parent in the original path but to the
+ * whole result of key().  Keys are declared with the namespace bindings of the lookups they index.  The XSL is
+ * otherwise left as it was generated, so its line numbers are unchanged
+ */
+final class SchematronKeyIndexer {
+  private static final String XSLT_NS = "http://www.w3.org/1999/XSL/Transform";
+  //the comment generated by the ISO Schematron skeleton where keys are declared
+  private static final String KEYS_COMMENT = "<!--KEYS AND FUNCTIONS-->";
+  private static final String KEY_PREFIX = "crux-key-";
+
+  private static final String NAME = "[A-Za-z_][\\w.\\-]*";
+  private static final String QNAME = NAME + "(?::" + NAME + ")?";
+  private static final String NAME_TEST = "(?:\\*|" + NAME + "(?::(?:\\*|" + NAME + "))?)";
+  private static final String FIELD = "@?" + QNAME;
+  private static final String STEP = "\\s*/\\s*@?" + QNAME;
+  private static final String VALUE = "(?:current\\(\\s*\\)(?:" + STEP + ")*|\\$" + QNAME + "(?:" + STEP + ")+|'[^']*'|\"[^\"]*\")";
+  private static final Pattern LOOKUP = Pattern.compile(
+    "(?:((?:document|doc)\\(\\s*(?:'[^']*'|\"[^\"]*\")\\s*\\))\\s*)?//\\s*(" + NAME_TEST + ")\\s*\\[\\s*" +
+    "(?:(" + FIELD + ")\\s*(?:=|eq)\\s*(" + VALUE + ")|(" + VALUE + ")\\s*(?:=|eq)\\s*(" + FIELD + "))\\s*\\]" );
+  //the XPath operators, spelled as words, which may directly precede an absolute path
+  private static final Set<String> WORD_OPERATORS = new HashSet<>( Arrays.asList(
+    "and", "or", "return", "satisfies", "then", "else", "in", "eq", "ne", "lt", "le", "gt", "ge", "to", "div", "mod",
+    "union", "intersect", "except" ) );
+  private static final Pattern XPATH_ATTRIBUTE = Pattern.compile( "(\\s(?:test|select)=\")([^\"]*)(\")" );
+  private static final Pattern NAMESPACE_DECLARATION = Pattern.compile( "\\sxmlns:(" + NAME + ")=\"([^\"]*)\"" );
+  //the namespace of unprefixed element names in XPath, set on XSLT elements or, prefixed, on literal result elements
+  private static final Pattern XPATH_DEFAULT_NAMESPACE = Pattern.compile( "\\s(xsl:)?xpath-default-namespace=\"([^\"]*)\"" );
+  //the binding of the namespace of unprefixed element names, alongside the bindings of prefixes
+  private static final String DEFAULT_PREFIX = "";
+
+  /**
+   * A lookup which was rewritten into a key
+   */
+  static class Rewrite {
+    private final String keyName;
+    private final String match;
+    private final String use;
+    private final String lookup;
+    private final String replacement;
+    //the namespace bindings the names of the match and use need, by prefix
+    private final Map<String,String> namespaces;
+
+    private Rewrite( String keyName, String match, String use, String lookup, String replacement, Map<String,String> namespaces ) {
+      this.keyName = keyName;
+      this.match = match;
+      this.use = use;
+      this.lookup = lookup;
+      this.replacement = replacement;
+      this.namespaces = namespaces;
+    }
+
+    String getKeyName() {
+      return keyName;
+    }
+
+    /**
+     * @return the lookup as it appeared in the rules
+     */
+    String getLookup() {
+      return lookup;
+    }
+
+    String getReplacement() {
+      return replacement;
+    }
+
+    @Override
+    public String toString() {
+      return lookup + " -> " + replacement;
+    }
+  }
+
+  private SchematronKeyIndexer() {
+  }
+
+  /**
+   * Rewrite the lookups of a compiled XSL file in place
+   * @return the lookups which were rewritten
+   * @throws IOException if the file could not be read or written
+   */
+  static List<Rewrite> index( File xslFile ) throws IOException {
+    String xsl = new String( Files.readAllBytes( xslFile.toPath() ), StandardCharsets.UTF_8 );
+    List<Rewrite> rewrites = new ArrayList<>();
+    String indexed = index( xsl, rewrites );
+    if( !rewrites.isEmpty() ) {
+      Files.write( xslFile.toPath(), indexed.getBytes( StandardCharsets.UTF_8 ) );
+    }
+    return rewrites;
+  }
+
+  /**
+   * Rewrite the lookups of compiled XSL
+   * @param xsl the XSL generated by the ISO Schematron skeleton
+   * @param rewrites where the lookups which were rewritten are added
+   * @return the XSL with the lookups rewritten and the keys they use declared
+   */
+  static String index( String xsl, List<Rewrite> rewrites ) {
+    int keysAt = xsl.indexOf( KEYS_COMMENT );
+    int rootStart = xsl.indexOf( "<xsl:stylesheet" );
+    if( keysAt < 0 || rootStart < 0 ) {
+      return xsl;
+    }
+    if( !XSLT_NS.equals( inScope( xsl.substring( rootStart, endOfMarkup( xsl, rootStart ) ), new HashMap<>() ).get( "xsl" ) ) ) {
+      return xsl;
+    }
+
+    Map<String,Rewrite> keys = new HashMap<>();
+    StringBuilder out = new StringBuilder( xsl.length() + 1024 );
+    //the namespace bindings in scope at each open element
+    Deque<Map<String,String>> scopes = new ArrayDeque<>();
+    scopes.push( new HashMap<>() );
+    int position = 0;
+    while( position < xsl.length() ) {
+      int next = xsl.indexOf( '<', position );
+      if( next < 0 ) {
+        break;
+      }
+      out.append( xsl, position, next );
+      int end = endOfMarkup( xsl, next );
+      String markup = xsl.substring( next, end );
+      if( markup.startsWith( "</" ) ) {
+        if( scopes.size() > 1 ) {
+          scopes.pop();
+        }
+      }
+      else if( !markup.startsWith( "<!" ) && !markup.startsWith( "<?" ) ) {
+        Map<String,String> scope = inScope( markup, scopes.peek() );
+        //only the XPath expressions of XSLT instructions are rewritten, never patterns, comments or text
+        if( markup.startsWith( "<xsl:" ) && !markup.startsWith( "<xsl:key" ) ) {
+          markup = rewriteAttributes( markup, scope, keys, rewrites );
+        }
+        if( !markup.endsWith( "/>" ) ) {
+          scopes.push( scope );
+        }
+      }
+      out.append( markup );
+      position = end;
+    }
+    out.append( xsl, position, xsl.length() );
+    if( rewrites.isEmpty() ) {
+      return xsl;
+    }
+
+    StringBuilder declarationsXsl = new StringBuilder();
+    Set<String> declared = new HashSet<>();
+    for( Rewrite rewrite : rewrites ) {
+      if( declared.add( rewrite.keyName ) ) {
+        String lookup = rewrite.lookup.replaceAll( "\\s+", " " ).replace( "--", "- -" );
+        declarationsXsl.append( "<!--Indexes lookups such as " ).append( lookup ).append( "-->" )
+          .append( "<xsl:key name=\"" ).append( rewrite.keyName ).append( '"' );
+        for( Map.Entry<String,String> namespace : rewrite.namespaces.entrySet() ) {
+          if( namespace.getKey().equals( DEFAULT_PREFIX ) ) {
+            declarationsXsl.append( " xpath-default-namespace=\"" );
+          }
+          else {
+            declarationsXsl.append( " xmlns:" ).append( namespace.getKey() ).append( "=\"" );
+          }
+          declarationsXsl.append( escape( namespace.getValue() ) ).append( '"' );
+        }
+        declarationsXsl.append( " match=\"" ).append( escape( rewrite.match ) )
+          .append( "\" use=\"" ).append( escape( rewrite.use ) ).append( "\"/>" );
+      }
+    }
+    //declared on the line of the comment, so the line numbers of the rules are unchanged
+    int insertAt = out.indexOf( KEYS_COMMENT ) + KEYS_COMMENT.length();
+    out.insert( insertAt, declarationsXsl );
+    return out.toString();
+  }
+
+  /**
+   * @return the namespace bindings in scope at a start tag: those of its parent and those it declares
+   */
+  private static Map<String,String> inScope( String tag, Map<String,String> parentScope ) {
+    Map<String,String> scope = null;
+    Matcher declarations = NAMESPACE_DECLARATION.matcher( tag );
+    while( declarations.find() ) {
+      scope = scope == null ? new HashMap<>( parentScope ) : scope;
+      scope.put( declarations.group( 1 ), declarations.group( 2 ) );
+    }
+    Matcher defaultNamespace = XPATH_DEFAULT_NAMESPACE.matcher( tag );
+    boolean xslt = tag.startsWith( "<xsl:" );
+    while( defaultNamespace.find() ) {
+      if( xslt == ( defaultNamespace.group( 1 ) == null ) ) {
+        scope = scope == null ? new HashMap<>( parentScope ) : scope;
+        scope.put( DEFAULT_PREFIX, defaultNamespace.group( 2 ) );
+      }
+    }
+    return scope == null ? parentScope : scope;
+  }
+
+  /**
+   * @return the position just after the comment, processing instruction, CDATA section or tag starting at a position
+   */
+  private static int endOfMarkup( String xsl, int start ) {
+    String terminator;
+    if( xsl.startsWith( "<!--", start ) ) {
+      terminator = "-->";
+    }
+    else if( xsl.startsWith( "<![CDATA[", start ) ) {
+      terminator = "]]>";
+    }
+    else if( xsl.startsWith( "<?", start ) ) {
+      terminator = "?>";
+    }
+    else {
+      //attribute values are quoted with double quotes in generated XSL, and may contain '>'
+      boolean quoted = false;
+      for( int i = start + 1; i < xsl.length(); i++ ) {
+        char c = xsl.charAt( i );
+        if( c == '"' ) {
+          quoted = !quoted;
+        }
+        else if( c == '>' && !quoted ) {
+          return i + 1;
+        }
+      }
+      return xsl.length();
+    }
+    int end = xsl.indexOf( terminator, start );
+    return end < 0 ? xsl.length() : end + terminator.length();
+  }
+
+  private static String rewriteAttributes( String tag, Map<String,String> namespaces, Map<String,Rewrite> keys, List<Rewrite> rewrites ) {
+    Matcher attributes = XPATH_ATTRIBUTE.matcher( tag );
+    StringBuffer sb = null;
+    while( attributes.find() ) {
+      String expression = unescape( attributes.group( 2 ) );
+      String rewritten = rewriteExpression( expression, namespaces, keys, rewrites );
+      if( rewritten.equals( expression ) ) {
+        continue;
+      }
+      if( sb == null ) {
+        sb = new StringBuffer();
+      }
+      attributes.appendReplacement( sb, Matcher.quoteReplacement( attributes.group( 1 ) + escape( rewritten ) + attributes.group( 3 ) ) );
+    }
+    if( sb == null ) {
+      return tag;
+    }
+    attributes.appendTail( sb );
+    return sb.toString();
+  }
+
+  /**
+   * Rewrite the lookups of an XPath expression into calls to key()
+   * @param namespaces the namespace bindings in scope where the expression appears, by prefix
+   * @param keys the keys generated so far, by the expanded names of the name test and the key field they index
+   * @param rewrites where the lookups which were rewritten are added
+   * @return the rewritten expression, or the expression unchanged if it has no lookups which can be rewritten
+   */
+  static String rewriteExpression( String expression, Map<String,String> namespaces, Map<String,Rewrite> keys, List<Rewrite> rewrites ) {
+    if( !expression.contains( "//" ) ) {
+      return expression;
+    }
+    boolean[] literal = findStringLiterals( expression );
+    Matcher lookup = LOOKUP.matcher( expression );
+    StringBuilder sb = new StringBuilder();
+    int position = 0;
+    while( lookup.find() ) {
+      if( literal[lookup.start()] || !isPathStart( expression, lookup.start() ) || isFollowedByPredicate( expression, lookup.end() ) ) {
+        continue;
+      }
+      String document = lookup.group( 1 );
+      String match = lookup.group( 2 );
+      String use = lookup.group( 3 ) != null ? lookup.group( 3 ) : lookup.group( 6 );
+      String value = lookup.group( 3 ) != null ? lookup.group( 4 ) : lookup.group( 5 );
+      Map<String,String> used = new TreeMap<>();
+      String matchName = expandName( match, true, namespaces, used );
+      String useName = use.startsWith( "@" ) ? expandName( use.substring( 1 ), false, namespaces, used ) : expandName( use, true, namespaces, used );
+      if( matchName == null || useName == null ) {
+        continue;
+      }
+      String keyId = matchName + "\u0000" + ( use.startsWith( "@" ) ? "@" : "" ) + useName;
+      Rewrite key = keys.get( keyId );
+      String keyName = key == null ? KEY_PREFIX + ( keys.size() + 1 ) : key.keyName;
+      String replacement = "key('" + keyName + "', " + value + ( document == null ? "" : ", " + document ) + ")";
+      Rewrite rewrite = key != null ? new Rewrite( keyName, key.match, key.use, lookup.group(), replacement, key.namespaces ) :
+        new Rewrite( keyName, match, use, lookup.group(), replacement, used );
+      if( key == null ) {
+        keys.put( keyId, rewrite );
+      }
+      rewrites.add( rewrite );
+      sb.append( expression, position, lookup.start() ).append( replacement );
+      position = lookup.end();
+    }
+    if( position == 0 ) {
+      return expression;
+    }
+    sb.append( expression, position, expression.length() );
+    return sb.toString();
+  }
+
+  /**
+   * @return whether a lookup starting at a position begins a path of its own, rather than continuing a relative path
+   * such as a//b, which would not search the whole document
+   */
+  private static boolean isPathStart( String expression, int start ) {
+    int i = start - 1;
+    while( i >= 0 && Character.isWhitespace( expression.charAt( i ) ) ) {
+      i--;
+    }
+    if( i < 0 ) {
+      return true;
+    }
+    char c = expression.charAt( i );
+    if( "(,[=<>!|+".indexOf( c ) >= 0 ) {
+      return true;
+    }
+    if( !Character.isLetter( c ) ) {
+      return false;
+    }
+    int wordEnd = i + 1;
+    while( i >= 0 && ( Character.isLetterOrDigit( expression.charAt( i ) ) || "-_.:".indexOf( expression.charAt( i ) ) >= 0 ) ) {
+      i--;
+    }
+    //an operator spelled as a word must itself follow whitespace or the end of an operand, or it is a name
+    return WORD_OPERATORS.contains( expression.substring( i + 1, wordEnd ) ) && i >= 0 &&
+      ( Character.isWhitespace( expression.charAt( i ) ) || expression.charAt( i ) == ')' );
+  }
+
+  /**
+   * @return whether a predicate follows the end of a lookup, either directly or on a later step of the same path
+   */
+  private static boolean isFollowedByPredicate( String expression, int end ) {
+    char last = ']';
+    for( int i = end; i < expression.length(); i++ ) {
+      char c = expression.charAt( i );
+      if( c == '[' ) {
+        return true;
+      }
+      if( Character.isWhitespace( c ) ) {
+        //whitespace continues the path only between a step separator and a step, or before a separator or predicate
+        int next = i;
+        while( next < expression.length() && Character.isWhitespace( expression.charAt( next ) ) ) {
+          next++;
+        }
+        if( next == expression.length() ) {
+          return false;
+        }
+        if( last != '/' && last != '@' && expression.charAt( next ) != '/' && expression.charAt( next ) != '[' ) {
+          return false;
+        }
+        i = next - 1;
+        continue;
+      }
+      else if( c == '(' && expression.startsWith( "()", i ) ) {
+        //a kind test such as text()
+        i++;
+      }
+      else if( !Character.isLetterOrDigit( c ) && "/@*:.-_".indexOf( c ) < 0 ) {
+        return false;
+      }
+      last = c;
+    }
+    return false;
+  }
+
+  /**
+   * Resolve the prefix of a name or name test against the bindings in scope
+   * @param element whether the name is of an element, whose unprefixed names take the XPath default namespace
+   * @param used where the binding the name needs is added
+   * @return the name with its namespace, such as "{urn:x}name", or null if its prefix is not bound
+   */
+  private static String expandName( String name, boolean element, Map<String,String> namespaces, Map<String,String> used ) {
+    int colon = name.indexOf( ':' );
+    String prefix = colon < 0 ? ( element && !name.equals( "*" ) ? DEFAULT_PREFIX : null ) : name.substring( 0, colon );
+    if( prefix == null ) {
+      return name;
+    }
+    String namespace = namespaces.get( prefix );
+    if( namespace == null ) {
+      return prefix.equals( DEFAULT_PREFIX ) ? name : null;
+    }
+    used.put( prefix, namespace );
+    return "{" + namespace + "}" + name.substring( colon + 1 );
+  }
+
+  /**
+   * @return for each character of an XPath expression, whether it is within a string literal
+   */
+  private static boolean[] findStringLiterals( String expression ) {
+    boolean[] literal = new boolean[expression.length()];
+    char quote = 0;
+    for( int i = 0; i < expression.length(); i++ ) {
+      char c = expression.charAt( i );
+      if( quote == 0 ) {
+        if( c == '\'' || c == '"' ) {
+          quote = c;
+          literal[i] = true;
+        }
+      }
+      else {
+        literal[i] = true;
+        //a doubled quote within a literal is an escaped quote, which is treated as closing and reopening it
+        if( c == quote ) {
+          quote = 0;
+        }
+      }
+    }
+    return literal;
+  }
+
+  /**
+   * @return the value of an attribute as an XML parser reads it: entities replaced and whitespace characters
+   * normalized to spaces
+   */
+  private static String unescape( String value ) {
+    StringBuilder sb = new StringBuilder( value.length() );
+    for( int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt( i );
+      if( c == '\n' || c == '\r' || c == '\t' ) {
+        sb.append( ' ' );
+        continue;
+      }
+      int semicolon = c == '&' ? value.indexOf( ';', i ) : -1;
+      if( semicolon < 0 ) {
+        sb.append( c );
+        continue;
+      }
+      String entity = value.substring( i + 1, semicolon );
+      switch( entity ) {
+        case "lt": sb.append( '<' ); break;
+        case "gt": sb.append( '>' ); break;
+        case "amp": sb.append( '&' ); break;
+        case "quot": sb.append( '"' ); break;
+        case "apos": sb.append( '\'' ); break;
+        default:
+          if( entity.startsWith( "#x" ) ) {
+            sb.appendCodePoint( Integer.parseInt( entity.substring( 2 ), 16 ) );
+          }
+          else if( entity.startsWith( "#" ) ) {
+            sb.appendCodePoint( Integer.parseInt( entity.substring( 1 ) ) );
+          }
+          else {
+            sb.append( c );
+            continue;
+          }
+      }
+      i = semicolon;
+    }
+    return sb.toString();
+  }
+
+  private static String escape( String value ) {
+    StringBuilder sb = new StringBuilder( value.length() + 16 );
+    for( int i = 0; i < value.length(); i++ ) {
+      char c = value.charAt( i );
+      switch( c ) {
+        case '<': sb.append( "&lt;" ); break;
+        case '>': sb.append( "&gt;" ); break;
+        case '&': sb.append( "&amp;" ); break;
+        case '"': sb.append( "&quot;" ); break;
+        //whitespace characters other than spaces are escaped, as they would be normalized to spaces
+        case '\n': sb.append( "&#xA;" ); break;
+        case '\r': sb.append( "&#xD;" ); break;
+        case '\t': sb.append( "&#x9;" ); break;
+        default: sb.append( c );
+      }
+    }
+    return sb.toString();
+  }
+}
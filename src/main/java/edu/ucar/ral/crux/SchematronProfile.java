@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.lib.NamespaceConstant;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.om.StandardNames;
+import net.sf.saxon.trace.InstructionInfo;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The time spent in each pattern, rule, assert and report of a Schematron definition, accumulated over every
+ * validation against it while profiling is enabled in the {@link SchematronValidator}.
+ * <p>
+ * The ISO Schematron XSL marks each pattern, rule, assert and report with a comment in the XSL it compiles, so the
+ * instructions which Saxon reports to a trace listener are attributed to them by their line in the XSL.  A pattern's
+ * time is that of the whole pass over the document in its mode.  A rule's time is that of the instructions of its
+ * template other than the one applying templates to the children of the context node, that is its lets, asserts and
+ * reports, and the number of times it was evaluated is the number of context nodes it matched
+ */
+public class SchematronProfile {
+  /**
+   * The kinds of items in a Schematron definition which are profiled
+   */
+  public enum Kind { PATTERN, RULE, ASSERT, REPORT }
+
+  private final String name;
+  private final long lastModified;
+  private final List<Entry> entries = new ArrayList<>();
+  //what is recorded for the instruction on each line of the XSL
+  private final Map<Integer,Probe> probes = new HashMap<>();
+
+  private SchematronProfile( String name, long lastModified ){
+    this.name = name;
+    this.lastModified = lastModified;
+  }
+
+  /**
+   * Read the items of a Schematron definition from the XSL compiled from it
+   * @param name the name of the Schematron definition, used in the report
+   * @param lastModified the modification time of the XSL
+   * @param xsl the XSL compiled by the ISO Schematron XSL
+   * @return the profile, with no time yet recorded
+   * @throws IOException if the XSL could not be read
+   */
+  static SchematronProfile read( String name, long lastModified, InputStream xsl ) throws IOException {
+    SchematronProfile profile = new SchematronProfile( name, lastModified );
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    /////// SECURITY-RELATED RESTRICTIONS ///////
+    factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+    factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+    try {
+      XMLStreamReader reader = factory.createXMLStreamReader( xsl );
+      try {
+        profile.read( reader );
+      }
+      finally {
+        reader.close();
+      }
+    }
+    catch( XMLStreamException e ){
+      throw new IOException( "Could not read the compiled Schematron rules of " + name + ": " + e.getMessage(), e );
+    }
+    return profile;
+  }
+
+  private void read( XMLStreamReader reader ) throws XMLStreamException {
+    Map<String,Entry> patternsByMode = new HashMap<>();
+    Map<Integer,String> patternPasses = new HashMap<>();
+    Entry pattern = null;
+    String pendingComment = null;
+    Entry rule = null;
+    Entry assertion = null;
+    boolean firstRuleInstruction = false;
+    boolean inRootTemplate = false;
+    int depth = 0;
+    while( reader.hasNext() ){
+      int event = reader.next();
+      if( event == XMLStreamConstants.COMMENT ){
+        String comment = reader.getText().trim();
+        if( comment.startsWith( "PATTERN" ) ){
+          String id = comment.substring( "PATTERN".length() ).trim();
+          pattern = addEntry( Kind.PATTERN, id.isEmpty() ? "#" + ( countPatterns() + 1 ) : id, null );
+        }
+        pendingComment = comment;
+      }
+      else if( event == XMLStreamConstants.START_ELEMENT ){
+        depth++;
+        if( !NamespaceConstant.XSLT.equals( reader.getNamespaceURI() ) ){
+          continue;
+        }
+        String localName = reader.getLocalName();
+        int line = reader.getLocation().getLineNumber();
+        if( depth == 2 && localName.equals( "template" ) ){
+          String mode = reader.getAttributeValue( null, "mode" );
+          inRootTemplate = mode == null && "/".equals( reader.getAttributeValue( null, "match" ) );
+          if( pendingComment != null && pendingComment.startsWith( "RULE" ) && pattern != null ){
+            rule = addEntry( Kind.RULE, reader.getAttributeValue( null, "match" ), pattern );
+            firstRuleInstruction = true;
+            if( mode != null ){
+              patternsByMode.put( mode, pattern );
+            }
+          }
+        }
+        else if( depth == 3 && inRootTemplate && localName.equals( "apply-templates" ) && reader.getAttributeValue( null, "mode" ) != null ){
+          patternPasses.put( line, reader.getAttributeValue( null, "mode" ) );
+        }
+        else if( depth == 3 && rule != null ){
+          Probe probe = getProbe( line, localName );
+          //applying templates to the children is the traversal of the document, not the evaluation of the rule
+          if( !localName.equals( "apply-templates" ) ){
+            probe.timed.add( rule );
+          }
+          if( firstRuleInstruction ){
+            //the first instruction of the template runs once for each context node the rule matches
+            probe.counted.add( rule );
+            probe.counted.add( rule.pattern );
+            firstRuleInstruction = false;
+          }
+          if( pendingComment != null && ( pendingComment.startsWith( "ASSERT" ) && localName.equals( "choose" ) ||
+            pendingComment.startsWith( "REPORT" ) && localName.equals( "if" ) ) ){
+            //a report's test is on its xsl:if, an assert's on the xsl:when inside its xsl:choose
+            assertion = addEntry( localName.equals( "choose" ) ? Kind.ASSERT : Kind.REPORT, reader.getAttributeValue( null, "test" ), rule.pattern );
+            probe.timed.add( assertion );
+            probe.counted.add( assertion );
+          }
+        }
+        else if( depth == 4 && assertion != null && assertion.label == null && localName.equals( "when" ) ){
+          assertion.label = reader.getAttributeValue( null, "test" );
+        }
+        else if( depth > 3 && assertion != null && localName.equals( "message" ) ){
+          //the message is only output when the assert fails or the report succeeds
+          getProbe( line, localName ).fired = assertion;
+        }
+        pendingComment = null;
+      }
+      else if( event == XMLStreamConstants.END_ELEMENT ){
+        depth--;
+        if( depth == 1 ){
+          rule = null;
+          inRootTemplate = false;
+        }
+        if( depth == 2 ){
+          assertion = null;
+        }
+      }
+    }
+    for( Map.Entry<Integer,String> pass : patternPasses.entrySet() ){
+      Entry passPattern = patternsByMode.get( pass.getValue() );
+      if( passPattern != null ){
+        getProbe( pass.getKey(), "apply-templates" ).timed.add( passPattern );
+      }
+    }
+  }
+
+  private Entry addEntry( Kind kind, String label, Entry pattern ){
+    Entry entry = new Entry( kind, label, pattern );
+    entries.add( entry );
+    return entry;
+  }
+
+  private int countPatterns(){
+    int count = 0;
+    for( Entry entry : entries ){
+      if( entry.kind == Kind.PATTERN ){
+        count++;
+      }
+    }
+    return count;
+  }
+
+  private Probe getProbe( int line, String instruction ){
+    Probe probe = probes.get( line );
+    if( probe == null ){
+      probe = new Probe( StandardNames.getFingerprint( NamespaceConstant.XSLT, instruction ) );
+      probes.put( line, probe );
+    }
+    return probe;
+  }
+
+  /**
+   * @return a listener recording the instructions of a single transform into this profile.  Each transform needs its
+   * own listener
+   */
+  TraceListener newTraceListener(){
+    return new ProfilingTraceListener();
+  }
+
+  public String getName(){
+    return name;
+  }
+
+  long getLastModified(){
+    return lastModified;
+  }
+
+  /**
+   * @return the profiled items, in the order they appear in the Schematron definition
+   */
+  public List<Entry> getEntries(){
+    return Collections.unmodifiableList( entries );
+  }
+
+  /**
+   * @return a report of the time spent in each pattern, then in each rule, assert and report, with the slowest first
+   */
+  public String report(){
+    long totalNanos = 0;
+    List<Entry> patterns = new ArrayList<>();
+    List<Entry> items = new ArrayList<>();
+    for( Entry entry : entries ){
+      if( entry.kind == Kind.PATTERN ){
+        patterns.add( entry );
+        totalNanos += entry.getNanos();
+      }
+      else {
+        items.add( entry );
+      }
+    }
+    Comparator<Entry> slowestFirst = ( a, b ) -> Long.compare( b.getNanos(), a.getNanos() );
+    patterns.sort( slowestFirst );
+    items.sort( slowestFirst );
+    StringBuilder report = new StringBuilder();
+    report.append( String.format( "Schematron profile of %s, %.1f ms in %d pattern(s)%n", name, totalNanos / 1e6, patterns.size() ) );
+    report.append( String.format( "%10s %6s %10s %8s  %-7s %-12s %s%n", "ms", "%", "evaluated", "fired", "kind", "pattern", "context/test" ) );
+    for( Entry entry : patterns ){
+      appendLine( report, entry, totalNanos );
+    }
+    for( Entry entry : items ){
+      appendLine( report, entry, totalNanos );
+    }
+    return report.toString();
+  }
+
+  private static void appendLine( StringBuilder report, Entry entry, long totalNanos ){
+    double percent = totalNanos == 0 ? 0 : 100.0 * entry.getNanos() / totalNanos;
+    String fired = entry.kind == Kind.ASSERT || entry.kind == Kind.REPORT ? Long.toString( entry.getFired() ) : "";
+    report.append( String.format( "%10.2f %6.1f %10d %8s  %-7s %-12s %s%n", entry.getNanos() / 1e6, percent, entry.getCount(), fired,
+      entry.kind.name().toLowerCase(), entry.pattern == null ? entry.label : entry.pattern.label, entry.pattern == null ? "" : entry.label ) );
+  }
+
+  /**
+   * A profiled pattern, rule, assert or report
+   */
+  public static class Entry {
+    private final Kind kind;
+    private String label;
+    private final Entry pattern;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder fired = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+
+    private Entry( Kind kind, String label, Entry pattern ){
+      this.kind = kind;
+      this.label = label;
+      this.pattern = pattern;
+    }
+
+    public Kind getKind(){
+      return kind;
+    }
+
+    /**
+     * @return the id of a pattern, the context of a rule or the test of an assert or report
+     */
+    public String getLabel(){
+      return label;
+    }
+
+    /**
+     * @return the pattern holding a rule, assert or report, or null for a pattern
+     */
+    public Entry getPattern(){
+      return pattern;
+    }
+
+    /**
+     * @return the number of context nodes a pattern's rules or a rule matched, or the number of times an assert or
+     * report was evaluated
+     */
+    public long getCount(){
+      return count.sum();
+    }
+
+    /**
+     * @return the number of times an assert failed or a report succeeded
+     */
+    public long getFired(){
+      return fired.sum();
+    }
+
+    /**
+     * @return the cumulative time spent evaluating the item
+     */
+    public long getNanos(){
+      return nanos.sum();
+    }
+  }
+
+  /**
+   * What is recorded when the instruction on a line of the XSL is evaluated.  Instructions nested on the same line, such
+   * as the text of a message, are not recorded
+   */
+  private static class Probe {
+    private final int instruction;
+    private final List<Entry> timed = new ArrayList<>( 2 );
+    private final List<Entry> counted = new ArrayList<>( 3 );
+    private Entry fired;
+
+    private Probe( int instruction ){
+      this.instruction = instruction;
+    }
+  }
+
+  private class ProfilingTraceListener implements TraceListener {
+    //the start time of each instruction being evaluated, innermost last
+    private final Deque<Long> starts = new ArrayDeque<>();
+
+    @Override
+    public void enter( InstructionInfo instructionInfo, XPathContext xPathContext ){
+      Probe probe = getProbe( instructionInfo );
+      if( probe != null ){
+        for( Entry entry : probe.counted ){
+          entry.count.increment();
+        }
+        if( probe.fired != null ){
+          probe.fired.fired.increment();
+        }
+      }
+      starts.push( System.nanoTime() );
+    }
+
+    @Override
+    public void leave( InstructionInfo instructionInfo ){
+      long elapsed = System.nanoTime() - starts.pop();
+      Probe probe = getProbe( instructionInfo );
+      if( probe != null ){
+        for( Entry entry : probe.timed ){
+          entry.nanos.add( elapsed );
+        }
+      }
+    }
+
+    private Probe getProbe( InstructionInfo instructionInfo ){
+      Probe probe = probes.get( instructionInfo.getLineNumber() );
+      return probe != null && probe.instruction == instructionInfo.getConstructType() ? probe : null;
+    }
+
+    @Override
+    public void setOutputDestination( net.sf.saxon.lib.Logger logger ) {}
+
+    @Override
+    public void open( Controller controller ) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void startCurrentItem( Item item ) {}
+
+    @Override
+    public void endCurrentItem( Item item ) {}
+  }
+}
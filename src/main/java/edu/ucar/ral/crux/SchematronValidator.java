@@ -4,6 +4,10 @@
 
 package edu.ucar.ral.crux;
 
+import net.sf.saxon.Controller;
+import net.sf.saxon.expr.XPathContext;
+import net.sf.saxon.lib.TraceListener;
+import net.sf.saxon.om.Item;
 import net.sf.saxon.s9api.MessageListener;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.SaxonApiException;
@@ -12,24 +16,40 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XsltCompiler;
 import net.sf.saxon.s9api.XsltExecutable;
 import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.trace.InstructionInfo;
+import net.sf.saxon.trace.TraceEventMulticaster;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.xml.transform.Source;
 import javax.xml.transform.SourceLocator;
 import javax.xml.transform.TransformerException;
+import javax.xml.transform.URIResolver;
 import javax.xml.transform.stream.StreamSource;
 import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -45,17 +65,117 @@ public class SchematronValidator {
   // this is defined here so it doesn't need to be repeatedly compiled with every Schematron validation step
   private static final Pattern DOCUMENT_PATTERN = Pattern.compile( "document\\(\\'(.+)\\'\\)" );
 
+  //the heap used by a Saxon tree for each byte of the document it was built from, with headroom for the transform
+  private static final int TREE_BYTES_PER_DOCUMENT_BYTE = 4;
+
   private File cacheDir = new File( System.getProperty("java.io.tmpdir"), "cruxcache" );
-  private ThreadLocal<HashMap<String,XsltExecutable>> templateCacheLocal = new ThreadLocal<>();
-  private ThreadLocal<Processor> processorLocal = new ThreadLocal<>();
+  private final ThreadLocal<Map<String,CachedTemplates>> templateCacheLocal = new ThreadLocal<>();
+  //the template cache of each thread, so compiled stylesheets can be dropped from every thread's cache
+  private final Map<Thread,Map<String,CachedTemplates>> templateCaches = Collections.synchronizedMap( new WeakHashMap<>() );
+  //the stylesheets compiled by the shared processor, which are compiled once and run by every thread
+  private final Map<String,CachedTemplates> sharedTemplates = new ConcurrentHashMap<>();
+  private final ThreadLocal<Processor> processorLocal = new ThreadLocal<>();
   //stores the set of dependent files for each Schematron file so we don't have to search the SCH file
   //every time validation is performed
-  private Map<File,List<File>> schToReferencedFiles = new HashMap<>();
+  private Map<File,List<File>> schToReferencedFiles = new ConcurrentHashMap<>();
+  //whether each Schematron path given is a profile bundle, which is decided once per path as it means reading the file
+  private final Map<String,Boolean> bundlePaths = new ConcurrentHashMap<>();
+  private volatile boolean profiling = false;
+  private volatile boolean concurrentRuleSets = false;
+  //runs the rule sets run concurrently for every validator, so validators which are evicted or replaced leave no threads
+  //behind.  Created when first needed
+  private static ExecutorService ruleSetExecutor;
+  private volatile boolean indexingLookups = true;
+  private volatile boolean lean = false;
+  private volatile boolean sharingProcessor = false;
+  //the profile of each Schematron file validated against while profiling, by Schematron file
+  private final Map<String,SchematronProfile> profiles = new ConcurrentHashMap<>();
 
   public SchematronValidator(){
     System.setProperty("javax.xml.transform.TransformerFactory", "net.sf.saxon.TransformerFactoryImpl");
   }
 
+  /**
+   * Record the time spent in each pattern, rule, assert and report of the Schematron definitions validated against.
+   * Profiling slows validation, as the rules are compiled to report every instruction they evaluate
+   * @param profiling whether to profile validation
+   */
+  public void setProfiling( boolean profiling ){
+    this.profiling = profiling;
+  }
+
+  public boolean isProfiling(){
+    return profiling;
+  }
+
+  /**
+   * Set whether the rule sets of a validation against several Schematron definitions are run concurrently, each on its
+   * own thread, against the shared tree of the XML.  The threads are shared by every validation with any validator and
+   * are as many as the processors.  False by default, as files are usually validated in parallel already
+   */
+  public void setConcurrentRuleSets( boolean concurrentRuleSets ){
+    this.concurrentRuleSets = concurrentRuleSets;
+  }
+
+  public boolean isConcurrentRuleSets(){
+    return concurrentRuleSets;
+  }
+
+  /**
+   * Set whether equality lookups in the rules, such as //foo[@id = current()/@ref], are rewritten into keys when the
+   * rules are compiled, so that they do not scan the whole document for every context node.  The lookups rewritten are
+   * logged as the rules are compiled.  True by default.  See {@link SchematronKeyIndexer}
+   */
+  public void setIndexingLookups( boolean indexingLookups ){
+    this.indexingLookups = indexingLookups;
+  }
+
+  public boolean isIndexingLookups(){
+    return indexingLookups;
+  }
+
+  /**
+   * Set whether the trees of XML files are built to use as little memory as possible, and the memory each tree holds is
+   * logged, to help size the heap.  Lean trees share one name pool across threads, leave out whitespace-only text
+   * between elements, and only record line numbers for rules which read them.  Rules testing whitespace-only text
+   * between elements see none.  False by default.  See {@link LeanTrees}
+   */
+  public void setLean( boolean lean ){
+    this.lean = lean;
+  }
+
+  public boolean isLean(){
+    return lean;
+  }
+
+  /**
+   * Set whether trees are built and rules compiled by one processor shared by all threads, rather than one processor for
+   * each thread, so that a tree built on one thread can be validated on another.  Always the case for lean trees
+   */
+  void setSharingProcessor( boolean sharingProcessor ){
+    this.sharingProcessor = sharingProcessor;
+  }
+
+  private boolean isSharingProcessor(){
+    return lean || sharingProcessor;
+  }
+
+  /**
+   * @return the profiles of the Schematron definitions validated against while profiling
+   */
+  public Collection<SchematronProfile> getProfiles(){
+    return Collections.unmodifiableCollection( profiles.values() );
+  }
+
+  /**
+   * @param schematronFile a Schematron definition file or a profile bundle holding one
+   * @return the profile of validation against the Schematron definition, or null if it has not been validated against
+   * while profiling
+   */
+  public SchematronProfile getProfile( String schematronFile ){
+    return profiles.get( schematronFile );
+  }
+
   /**
    * Validate an XML file against a local Schematron definition
    * @param xmlFile the XML file to validate
@@ -64,42 +184,387 @@ public class SchematronValidator {
    * @throws IOException if necessary files are not found
    */
   public void validate( String xmlFile, String schematronFile ) throws ValidationException, IOException {
-    long t1 = System.currentTimeMillis();
+    validate( xmlFile, schematronFile, Deadline.NONE );
+  }
+
+  /**
+   * Validate an XML file against a local Schematron definition, stopping once the deadline has passed.  The deadline is
+   * checked as each node is processed by the Schematron rules; if it passes the validation fails with a
+   * {@link ValidationTimeoutError}
+   * @param xmlFile the XML file to validate
+   * @param schematronFile the Schematron definition file against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @throws ValidationException if validation failures occur or the deadline passes
+   * @throws IOException if necessary files are not found
+   */
+  public void validate( String xmlFile, String schematronFile, Deadline deadline ) throws ValidationException, IOException {
+    validate( xmlFile, Collections.singletonList( schematronFile ), deadline );
+  }
+
+  /**
+   * Validate an XML file against several local Schematron definitions, such as a base profile and the profiles
+   * extending it.  The XML is parsed into a tree once, and each set of rules is run against that tree
+   * @param xmlFile the XML file to validate
+   * @param schematronFiles the Schematron definition files, or profile bundles holding them, against which the XML is
+   *                        checked
+   * @param deadline the time by which validation against all of the definitions must complete
+   * @throws ValidationException if validation failures occur or the deadline passes
+   * @throws IOException if necessary files are not found
+   */
+  public void validate( String xmlFile, List<String> schematronFiles, Deadline deadline ) throws ValidationException, IOException {
+    List<ValidationError> errors = runValidation( xmlFile, schematronFiles, deadline );
+    if( errors.size() > 0 ){
+      throw new ValidationException( VALIDATION_FAILED_PREFIX, errors );
+    }
+  }
+
+  /**
+   * Validate an XML file against a local Schematron definition, returning the outcome rather than throwing it.
+   * Schematron failures, missing files and unusable Schematron definitions are all reported as errors in the result
+   * @param xmlFile the XML file to validate
+   * @param schematronFile the Schematron definition file against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xmlFile, String schematronFile, Deadline deadline ){
+    return validateToResult( xmlFile, Collections.singletonList( schematronFile ), deadline );
+  }
+
+  /**
+   * Validate an XML file against several local Schematron definitions, parsing it once, and return the outcome rather
+   * than throwing it
+   * @param xmlFile the XML file to validate
+   * @param schematronFiles the Schematron definition files against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation, with the failures of each definition in turn
+   */
+  public ValidationResult validateToResult( String xmlFile, List<String> schematronFiles, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors;
+    try {
+      errors = runValidation( xmlFile, schematronFiles, deadline );
+    }
+    catch( ValidationException e ){
+      //the Schematron definition itself could not be compiled
+      errors = e.getValidationErrors();
+    }
+    catch( IOException e ){
+      errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), xmlFile, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( xmlFile, errors, System.currentTimeMillis() - startMs );
+  }
+
+  /**
+   * Validate XML content which is not a plain file, such as an archive entry, against a local Schematron definition,
+   * returning the outcome rather than throwing it
+   * @param input the XML content to validate
+   * @param schematronFile the Schematron definition file against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( ValidationInput input, String schematronFile, Deadline deadline ){
+    return validateToResult( input, Collections.singletonList( schematronFile ), deadline );
+  }
+
+  /**
+   * Validate XML content which is not a plain file against several local Schematron definitions, parsing it once
+   * @param input the XML content to validate
+   * @param schematronFiles the Schematron definition files against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation, with the failures of each definition in turn
+   */
+  public ValidationResult validateToResult( ValidationInput input, List<String> schematronFiles, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors;
+    try {
+      errors = runValidation( input, input.getName(), schematronFiles, deadline );
+    }
+    catch( ValidationException e ){
+      //the Schematron definition itself could not be compiled
+      errors = e.getValidationErrors();
+    }
+    catch( IOException e ){
+      errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), input.getName(), ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( input.getName(), errors, System.currentTimeMillis() - startMs );
+  }
+
+  /**
+   * Validate a record split from a larger document against a local Schematron definition.  The record is validated
+   * wrapped in its ancestor elements, so rules with absolute contexts still apply, but rules about content outside the
+   * record cannot be checked.  Failures are reported on the line of the original document where the record starts
+   * @param record the record to validate
+   * @param schematronFile the Schematron definition file against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( Record record, String schematronFile, Deadline deadline ){
+    return validateToResult( record, Collections.singletonList( schematronFile ), deadline );
+  }
+
+  /**
+   * Validate a record split from a larger document against several local Schematron definitions, parsing it once
+   * @param record the record to validate
+   * @param schematronFiles the Schematron definition files against which the XML is checked
+   * @param deadline the time by which validation must complete
+   * @return the result of validation, with the failures of each definition in turn
+   */
+  public ValidationResult validateToResult( final Record record, List<String> schematronFiles, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors = new ArrayList<>();
+    ValidationInput inAncestors = new ValidationInput( record.getName(), record.getSystemId() ) {
+      @Override
+      public InputStream open() {
+        return record.openInAncestors();
+      }
+    };
+    try {
+      //Schematron failures are located in the compiled rules rather than the record, so the record's line is used
+      for( ValidationError error : runValidation( inAncestors, record.getName(), schematronFiles, deadline ) ){
+        errors.add( error instanceof ValidationTimeoutError ? error :
+          new ValidationError( error.getError(), record.getName(), record.getLine(), ValidationError.UNKNOWN ) );
+      }
+    }
+    catch( ValidationException e ){
+      //the Schematron definition itself could not be compiled
+      errors = e.getValidationErrors();
+    }
+    catch( IOException e ){
+      errors.add( new ValidationError( e.toString(), record.getName(), record.getLine(), ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( record.getName(), errors, System.currentTimeMillis() - startMs );
+  }
+
+  /**
+   * Estimate the heap needed to validate a file against Schematron rules, which is dominated by the tree built from the
+   * document
+   * @param xmlFile a local or remote XML file, which may be compressed
+   * @return the estimated number of bytes, or 0 if the size of the file is not known
+   */
+  public static long estimateMemory( String xmlFile ){
+    if( !Utils.isLocalFile( xmlFile ) ){
+      return 0;
+    }
+    File file = new File( xmlFile );
+    return Compression.detect( file ).estimateDecompressedSize( file ) * TREE_BYTES_PER_DOCUMENT_BYTE;
+  }
+
+  /**
+   * @return the Schematron failures found in the XML file
+   * @throws ValidationException if the Schematron definition could not be compiled
+   */
+  private List<ValidationError> runValidation( String xmlFile, List<String> schematronFiles, Deadline deadline ) throws ValidationException, IOException {
     File xmlFileObj = new File( xmlFile );
     if( !xmlFileObj.exists() ){
       throw new IOException( String.format( "File %s does not exist", xmlFile ) );
     }
+    //compressed files are decompressed as the tree is built
+    ValidationInput input = CompressedInput.detect( xmlFile );
+    if( input == null ){
+      input = new ValidationInput( xmlFile, xmlFileObj.toURI().toString() ) {
+        @Override
+        public InputStream open() throws IOException {
+          return new FileInputStream( xmlFileObj );
+        }
+      };
+    }
+    return runValidation( input, xmlFile, schematronFiles, deadline );
+  }
+
+  /**
+   * Compile each set of rules, if necessary, then build the tree of the XML once and run every set of rules against it
+   * @return the Schematron failures found in the XML, in the order of the rule sets
+   */
+  private List<ValidationError> runValidation( ValidationInput xml, String xmlFileName, List<String> schematronFiles, Deadline deadline ) throws ValidationException, IOException {
+    List<RuleSet> ruleSets = getRuleSets( schematronFiles, xmlFileName );
+    return runRuleSets( ruleSets, buildTree( xml, xmlFileName, ruleSets ), xmlFileName, deadline );
+  }
+
+  /**
+   * Build the tree of XML content to validate on another thread with {@link #validateTree(Tree, List, Deadline)}, as
+   * the stages of a {@link ValidationPipeline} do.  Requires the validator to be {@link #setSharingProcessor(boolean)
+   * sharing its processor}
+   * @param input the XML content
+   * @param schematronFiles the Schematron definition files the tree will be validated against
+   * @return the tree
+   * @throws ValidationException if a Schematron definition could not be compiled
+   * @throws IOException if the content could not be read or is not well-formed
+   */
+  Tree buildTree( ValidationInput input, List<String> schematronFiles ) throws ValidationException, IOException {
+    List<RuleSet> ruleSets = getRuleSets( schematronFiles, input.getName() );
+    return new Tree( input.getName(), buildTree( input, input.getName(), ruleSets ) );
+  }
+
+  /**
+   * Validate a tree built by {@link #buildTree(ValidationInput, List)} against several Schematron definitions
+   * @param tree the tree, which may have been built on another thread
+   * @param schematronFiles the Schematron definition files the tree was built for
+   * @param deadline the time by which validation must complete
+   * @return the result of validation, with the failures of each definition in turn
+   */
+  ValidationResult validateTree( Tree tree, List<String> schematronFiles, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors;
+    try {
+      errors = runRuleSets( getRuleSets( schematronFiles, tree.name ), tree.source, tree.name, deadline );
+    }
+    catch( ValidationException e ){
+      //the Schematron definition itself could not be compiled
+      errors = e.getValidationErrors();
+    }
+    catch( IOException e ){
+      errors = new ArrayList<>( 1 );
+      errors.add( new ValidationError( e.toString(), tree.name, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( tree.name, errors, System.currentTimeMillis() - startMs );
+  }
+
+  private List<RuleSet> getRuleSets( List<String> schematronFiles, String xmlFileName ) throws ValidationException, IOException {
+    List<RuleSet> ruleSets = new ArrayList<>( schematronFiles.size() );
+    for( String schematronFile : schematronFiles ){
+      ruleSets.add( getRuleSet( schematronFile, xmlFileName ) );
+    }
+    return ruleSets;
+  }
+
+  /**
+   * Build the tree of an XML file to run rule sets against.  The tree is built by the processor which compiled the rule
+   * sets, so concurrent rule sets share its configuration.  A lean tree is built again keeping all whitespace if the
+   * XML turns out to have mixed content
+   */
+  private XdmNode buildTree( ValidationInput xml, String xmlFileName, List<RuleSet> ruleSets ) throws IOException {
+    long t1 = System.currentTimeMillis();
+    XdmNode source;
+    try {
+      if( lean ){
+        boolean lineNumbering = false;
+        for( RuleSet ruleSet : ruleSets ){
+          lineNumbering |= ruleSet.readsLineNumbers;
+        }
+        source = buildLeanTree( xml, lineNumbering, true );
+        if( source == null ){
+          LOG.debug( xmlFileName + " has mixed content, building its tree again keeping all whitespace" );
+          source = buildLeanTree( xml, lineNumbering, false );
+        }
+        LOG.info( "Tree of " + xmlFileName + " holds about " + LeanTrees.estimateBytes( source, lineNumbering ) / 1024 + " KB" );
+      }
+      else {
+        try( InputStream in = xml.open() ){
+          source = getProcessor().newDocumentBuilder().build( new StreamSource( in, xml.getSystemId() ) );
+        }
+      }
+    }
+    catch( SaxonApiException e ){
+      throw new IOException( e );
+    }
+    LOG.debug( "Building the tree of " + xmlFileName + " took " + ( System.currentTimeMillis() - t1 ) + " ms" );
+    return source;
+  }
+
+  private static XdmNode buildLeanTree( ValidationInput xml, boolean lineNumbering, boolean strippingWhitespace ) throws IOException, SaxonApiException {
+    try( InputStream in = xml.open() ){
+      return LeanTrees.build( new StreamSource( in, xml.getSystemId() ), lineNumbering, strippingWhitespace );
+    }
+  }
+
+  /**
+   * Run every set of rules against the tree of an XML file
+   * @return the Schematron failures found in the XML, in the order of the rule sets
+   */
+  private List<ValidationError> runRuleSets( List<RuleSet> ruleSets, final XdmNode source, String xmlFileName, Deadline deadline ) throws IOException {
+    try {
+      final Processor proc = getProcessor();
+      boolean concurrently = concurrentRuleSets && ruleSets.size() > 1;
+      List<CompletableFuture<List<ValidationError>>> concurrent = new ArrayList<>();
+      if( concurrently ){
+        //the first rule set runs on this thread
+        for( final RuleSet ruleSet : ruleSets.subList( 1, ruleSets.size() ) ){
+          concurrent.add( CompletableFuture.supplyAsync( () -> {
+            try {
+              return transform( ruleSet, proc, source, xmlFileName, deadline );
+            }
+            catch( SaxonApiException e ){
+              throw new CompletionException( e );
+            }
+          }, getRuleSetExecutor() ) );
+        }
+      }
+      List<ValidationError> errors = new ArrayList<>();
+      for( int i = 0; i < ruleSets.size(); i++ ){
+        if( i == 0 || !concurrently ){
+          errors.addAll( transform( ruleSets.get( i ), proc, source, xmlFileName, deadline ) );
+        }
+        else {
+          errors.addAll( concurrent.get( i - 1 ).join() );
+        }
+      }
+      return errors;
+    }
+    catch( SaxonApiException e ){
+      throw new IOException( e );
+    }
+    catch( CompletionException e ){
+      if( e.getCause() instanceof SaxonApiException ){
+        throw new IOException( e.getCause() );
+      }
+      if( e.getCause() instanceof RuntimeException ){
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * @return the threads rule sets are run concurrently on, shared by every validator.  They are daemon threads so they
+   * never keep the JVM running
+   */
+  private static synchronized ExecutorService getRuleSetExecutor(){
+    if( ruleSetExecutor == null ){
+      AtomicInteger count = new AtomicInteger();
+      ruleSetExecutor = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors(), r -> {
+        Thread thread = new Thread( r, "crux-rules-" + count.incrementAndGet() );
+        thread.setDaemon( true );
+        return thread;
+      } );
+    }
+    return ruleSetExecutor;
+  }
+
+  /**
+   * Get the compiled rules of a Schematron file or profile bundle, compiling them if necessary
+   * @param xmlFileName the name failures are reported under
+   * @throws ValidationException if the Schematron definition could not be compiled
+   * @throws IOException if the Schematron file does not exist or a bundle holds no Schematron rules
+   */
+  private RuleSet getRuleSet( String schematronFile, String xmlFileName ) throws ValidationException, IOException {
+    long t1 = System.currentTimeMillis();
     if( !new File( schematronFile ).exists() ){
       throw new IOException( String.format( "File %s does not exist", schematronFile) );
     }
-    cacheDir.mkdirs();
-    ensureISOSchematronXSLFilesOnDisk( cacheDir );
-    LOG.debug( "Ensuring ISO Schematron files on disk took " + ( System.currentTimeMillis() - t1 ) + " ms" );
-
     try {
+      if( bundlePaths.computeIfAbsent( schematronFile, ProfileBundle::isBundle ) ){
+        return getRuleSet( ProfileBundle.open( schematronFile ), schematronFile, xmlFileName );
+      }
+      cacheDir.mkdirs();
+      ensureISOSchematronXSLFilesOnDisk( cacheDir );
+      LOG.debug( "Ensuring ISO Schematron files on disk took " + ( System.currentTimeMillis() - t1 ) + " ms" );
+
       t1 = System.currentTimeMillis();
       //compile the passed-in Schematron rules into XSL using the ISO Schematron XSL, if necessary
       File xslFile = compileSchematronRulesToXSLIfNeeded( new File( schematronFile ) );
       LOG.debug( String.format( "Compiling Schematron rules to XSL took " + ( System.currentTimeMillis() - t1 ) + " ms" ) );
-
-      t1 = System.currentTimeMillis();
-      //run the compiled XSL rules against the XML file
-      String transformResult = transform( xslFile, new File( xmlFile ) );
-      LOG.debug( String.format( "Transforming %s using %s took " + ( System.currentTimeMillis() - t1 ) + " ms", xmlFile, xslFile ) );
+      return getRuleSet( xslFile, schematronFile, xmlFileName );
     }
     catch( SaxonApiException e ){
       throw new IOException( e );
     }
   }
 
-  private File compileSchematronRulesToXSLIfNeeded( File schematronFile ) throws ValidationException, IOException, SaxonApiException {
-    String filename = schematronFile.getName();
-    String[] split = filename.split( "\\." );
-    String origExt = split[split.length-1];
-    //convert the absolute path of the original file to its full path under the cache directory.  This ensures that if
-    //there are two differing files on disk named 'xyz.sch' that they each have their own unique compiled xsl path
-    String outputDirStr = Utils.uniquePathUnder( cacheDir, schematronFile );
-    File outputFile = new File( outputDirStr, filename.replace( "."+origExt, ".xsl" ) );
+  //synchronized so that concurrent validations do not generate the same XSL file at the same time
+  private synchronized File compileSchematronRulesToXSLIfNeeded( File schematronFile ) throws ValidationException, IOException, SaxonApiException {
+    File outputFile = getCompiledXSLFile( schematronFile );
     //re/create the XSL if the file doesn't exist or the file last modified times of the SCH and XSL files do not match.
     //For example, if the SCH has been modified and the XSL needs to be regenerated
     if( !outputFile.exists() || schematronFile.lastModified() != outputFile.lastModified() ) {
@@ -109,6 +574,11 @@ public class SchematronValidator {
       LOG.debug( "Creating cached XSL file: "+outputFile );
       //if compilation fails there is no graceful way to recover.  We are done
       transform( new File( cacheDir, "iso_schematron_message_xslt2.xsl" ), schematronFile, outputFile );
+      if( indexingLookups ) {
+        for( SchematronKeyIndexer.Rewrite rewrite : SchematronKeyIndexer.index( outputFile ) ) {
+          LOG.info( "Indexed lookup in " + schematronFile + ": " + rewrite );
+        }
+      }
       outputFile.setLastModified( schematronFile.lastModified() );
     }
     cacheReferencedDocumentsIfNecessary( schematronFile );
@@ -116,27 +586,149 @@ public class SchematronValidator {
   }
 
   /**
-   * Transform an XML file using the supplied XSL file and return the output as a String
-   * @throws ValidationException
+   * Compile Schematron rules into XSL, as is done before validating against them
+   * @param schematronFile a Schematron definition file
+   * @return the compiled XSL under the cache directory, alongside copies of the documents the rules reference
+   * @throws ValidationException if the Schematron definition could not be compiled
+   * @throws IOException if the Schematron definition or a document it references could not be read
+   */
+  File compileToXSL( File schematronFile ) throws ValidationException, IOException {
+    cacheDir.mkdirs();
+    ensureISOSchematronXSLFilesOnDisk( cacheDir );
+    try {
+      return compileSchematronRulesToXSLIfNeeded( schematronFile );
+    }
+    catch( SaxonApiException e ){
+      throw new IOException( e );
+    }
+  }
+
+  /**
+   * @param schematronFile a Schematron definition file which has been compiled
+   * @return the documents the rules read with document(), which must be available to validate against them
+   */
+  List<File> getReferencedDocuments( File schematronFile ){
+    List<File> referencedDocuments = schToReferencedFiles.get( schematronFile );
+    return referencedDocuments == null ? Collections.<File>emptyList() : referencedDocuments;
+  }
+
+  /**
+   * @param schematronFile a Schematron definition file
+   * @return the location under the cache directory where the XSL compiled from the Schematron file is kept.  The file
+   * may not exist yet
+   * @throws IOException when a canonical path query encounters issues
+   */
+  File getCompiledXSLFile( File schematronFile ) throws IOException {
+    String filename = schematronFile.getName();
+    String[] split = filename.split( "\\." );
+    String origExt = split[split.length-1];
+    //convert the absolute path of the original file to its full path under the cache directory.  This ensures that if
+    //there are two differing files on disk named 'xyz.sch' that they each have their own unique compiled xsl path
+    String outputDirStr = Utils.uniquePathUnder( cacheDir, schematronFile );
+    //XSL with lookups rewritten into keys is kept apart, so switching indexing on or off never uses the other's XSL
+    return new File( outputDirStr, filename.replace( "."+origExt, indexingLookups ? ".indexed.xsl" : ".xsl" ) );
+  }
+
+  /**
+   * @return the rules of the supplied Schematron XSL file, compiled into a stylesheet
    * @throws SaxonApiException
    */
-  private String transform( File xslFile, File xmlFile ) throws ValidationException, SaxonApiException {
-    ErrorListener errorListener = new ErrorListener( xmlFile.toString() );
-    XsltExecutable templates = getTemplates( xslFile, errorListener );
+  private RuleSet getRuleSet( File xslFile, String schematronFile, String xmlFileName ) throws SaxonApiException, IOException {
+    ErrorListener errorListener = new ErrorListener( xmlFileName );
+    CachedTemplates cached = getCachedTemplates( xslFile.toString(), xslFile.lastModified(), new StreamSource( xslFile ), errorListener );
+    if( lean && cached.readsLineNumbers == null ){
+      try( InputStream in = new FileInputStream( xslFile ) ){
+        cached.readsLineNumbers = readsLineNumbers( in );
+      }
+    }
+    SchematronProfile profile = null;
+    if( profiling ){
+      try( InputStream in = new FileInputStream( xslFile ) ){
+        profile = getProfile( schematronFile, xslFile.lastModified(), in );
+      }
+    }
+    return new RuleSet( xslFile.toString(), cached.templates, null, profile, errorListener, Boolean.TRUE.equals( cached.readsLineNumbers ) );
+  }
+
+  /**
+   * @return the rules held in a profile bundle, compiled into a stylesheet.  Documents the rules read with document()
+   * are read from the bundle
+   * @throws SaxonApiException
+   * @throws IOException if the bundle holds no Schematron rules
+   */
+  private RuleSet getRuleSet( ProfileBundle bundle, String schematronFile, String xmlFileName ) throws SaxonApiException, IOException {
+    String stylesheet = bundle.getSchematronStylesheet();
+    if( stylesheet == null ){
+      throw new IOException( String.format( "Bundle %s does not contain Schematron rules", bundle.getFile() ) );
+    }
+    ErrorListener errorListener = new ErrorListener( xmlFileName );
+    String systemId = bundle.getSystemId( stylesheet );
+    CachedTemplates cached = getCachedTemplates( systemId, bundle.getLastModified(), new StreamSource( bundle.openDocument( stylesheet ), systemId ), errorListener );
+    if( lean && cached.readsLineNumbers == null ){
+      try( InputStream in = bundle.openDocument( stylesheet ) ){
+        cached.readsLineNumbers = readsLineNumbers( in );
+      }
+    }
+    SchematronProfile profile = null;
+    if( profiling ){
+      try( InputStream in = bundle.openDocument( stylesheet ) ){
+        profile = getProfile( schematronFile, bundle.getLastModified(), in );
+      }
+    }
+    return new RuleSet( systemId, cached.templates, new BundleURIResolver( bundle ), profile, errorListener,
+      Boolean.TRUE.equals( cached.readsLineNumbers ) );
+  }
+
+  /**
+   * Run a set of rules against the tree of an XML file and return the failures reported by the rules.  Rule sets may be
+   * run against the same tree concurrently, as compiled stylesheets and trees are immutable
+   * @param proc the processor which compiled the rules and built the tree
+   */
+  private List<ValidationError> transform( RuleSet ruleSet, Processor proc, XdmNode source, String xmlFileName,
+                                           Deadline deadline ) throws SaxonApiException {
+    long t1 = System.currentTimeMillis();
+    ErrorListener errorListener = ruleSet.errorListener;
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    XsltTransformer t = templates.load();
-    XdmNode source = getProcessor().newDocumentBuilder().build(new StreamSource(xmlFile));
+    XsltTransformer t = ruleSet.templates.load();
+    if( deadline.isBounded() ){
+      t.setURIResolver( new DeadlineURIResolver( ruleSet.uriResolver, deadline ) );
+    }
+    else if( ruleSet.uriResolver != null ){
+      t.setURIResolver( ruleSet.uriResolver );
+    }
     t.setInitialContextNode(source);
     t.setErrorListener( errorListener );
     t.setMessageListener( errorListener );
-    Serializer out = getProcessor().newSerializer();
+    Serializer out = proc.newSerializer();
     out.setOutputStream( baos );
     t.setDestination( out );
-    t.transform();
-    if( errorListener.errors.size() > 0 ){
-      throw new ValidationException( VALIDATION_FAILED_PREFIX, errorListener.errors );
+    TraceListener traceListener = deadline.isBounded() ? new DeadlineTraceListener( deadline ) : null;
+    if( ruleSet.profile != null ){
+      traceListener = traceListener == null ? ruleSet.profile.newTraceListener() :
+        TraceEventMulticaster.add( traceListener, ruleSet.profile.newTraceListener() );
     }
-    return new String( baos.toByteArray(), StandardCharsets.UTF_8 );
+    if( traceListener != null ){
+      t.setTraceListener( traceListener );
+    }
+    try {
+      if( deadline.isExpired() ){
+        throw new DeadlineExceededException();
+      }
+      t.transform();
+    }
+    catch( RuntimeException e ){
+      //Saxon wraps exceptions thrown while a template rule is being evaluated, so look for the deadline in the causes
+      Throwable cause = e;
+      while( cause != null && !( cause instanceof DeadlineExceededException ) ){
+        cause = cause.getCause();
+      }
+      if( cause == null ){
+        throw e;
+      }
+      errorListener.errors.add( new ValidationTimeoutError( "Schematron validation did not complete before its deadline", xmlFileName ) );
+    }
+    LOG.debug( String.format( "Transforming %s using %s took " + ( System.currentTimeMillis() - t1 ) + " ms", xmlFileName, ruleSet.name ) );
+    return errorListener.errors;
   }
 
   /**
@@ -168,7 +760,7 @@ public class SchematronValidator {
    * ISO Schematron checking are available on disk, and if not that they are extracted from the JAR/classpath
    * @param outputDir the directory where Schematron XSL files should be stored
    */
-  public static void ensureISOSchematronXSLFilesOnDisk( File outputDir ){
+  public static synchronized void ensureISOSchematronXSLFilesOnDisk( File outputDir ){
     String resourcePrefix = "iso-schematron-xslt2";
     String[] xslFileNames = new String[]{ "iso_schematron_message_xslt2.xsl", "iso_schematron_skeleton_for_saxon.xsl" };
     for( String xslFileName : xslFileNames ){
@@ -252,27 +844,243 @@ public class SchematronValidator {
   }
 
   /**
-   * Maintain prepared stylesheets in memory for reuse.  A ThreadLocal instance is maintained, as XsltExecutables are
-   * not thread-safe
+   * Maintain prepared stylesheets in memory for reuse.  A ThreadLocal instance is maintained, as a stylesheet can only be
+   * run against trees built by the processor which compiled it, and each thread has its own processor unless the
+   * processor is shared, when one cache serves every thread.  A stylesheet is recompiled when its file has been modified
+   * since it was last compiled, as happens when the Schematron file it was generated from changes
    */
   private XsltExecutable getTemplates(File xslFile, ErrorListener errorListener ) throws SaxonApiException {
-    HashMap<String, XsltExecutable> templateCache = templateCacheLocal.get();
-    if( templateCacheLocal.get() == null ){
-      templateCache = new HashMap<>();
+    return getCachedTemplates( xslFile.toString(), xslFile.lastModified(), new StreamSource( xslFile ), errorListener ).templates;
+  }
+
+  /**
+   * @param key the key the compiled stylesheet is cached under
+   * @param lastModified the modification time of the stylesheet, which when changed causes it to be recompiled
+   * @param xsl the stylesheet, which is only read if it needs to be compiled
+   */
+  private CachedTemplates getCachedTemplates( String key, long lastModified, Source xsl, ErrorListener errorListener ) throws SaxonApiException {
+    if( isSharingProcessor() ){
+      key = key + ( profiling ? "#profile" : "" ) + "#shared";
+      CachedTemplates cached = sharedTemplates.get( key );
+      if( cached == null || cached.lastModified != lastModified ){
+        //threads needing the same stylesheet wait for it to be compiled once
+        synchronized( sharedTemplates ){
+          cached = sharedTemplates.get( key );
+          if( cached == null || cached.lastModified != lastModified ){
+            cached = compile( xsl, lastModified, errorListener );
+            sharedTemplates.put( key, cached );
+          }
+        }
+      }
+      return cached;
+    }
+    Map<String, CachedTemplates> templateCache = templateCacheLocal.get();
+    if( templateCache == null ){
+      //other threads may drop entries, so the cache must be safe to update concurrently
+      templateCache = new ConcurrentHashMap<>();
       templateCacheLocal.set( templateCache );
+      templateCaches.put( Thread.currentThread(), templateCache );
+    }
+    //profiling needs every instruction traced, which is slower, so profiled stylesheets are compiled separately
+    if( profiling ){
+      key = key + "#profile";
+    }
+    CachedTemplates cached = templateCache.get( key );
+    if( cached == null || cached.lastModified != lastModified ) {
+      cached = compile( xsl, lastModified, errorListener );
+      templateCache.put( key, cached );
+    }
+    return cached;
+  }
+
+  /**
+   * Compile a stylesheet with the processor of this thread, or the shared processor
+   */
+  private CachedTemplates compile( Source xsl, long lastModified, ErrorListener errorListener ) throws SaxonApiException {
+    XsltCompiler comp = getProcessor().newXsltCompiler();
+    comp.setErrorListener( errorListener );
+    comp.setCompileWithTracing( profiling );
+    return new CachedTemplates( comp.compile( xsl ), lastModified );
+  }
+
+  /**
+   * Compile the rules of Schematron files or profile bundles ahead of validating against them.  Only useful when the
+   * processor is shared, as the stylesheets are then used by every thread, rather than compiled again by each
+   * @throws ValidationException if a Schematron definition could not be compiled
+   * @throws IOException if a Schematron file does not exist or a bundle holds no Schematron rules
+   */
+  void precompile( List<String> schematronFiles ) throws ValidationException, IOException {
+    for( String schematronFile : schematronFiles ){
+      getRuleSet( schematronFile, schematronFile );
     }
-    XsltExecutable templates = templateCache.get( xslFile.toString() );
-    if( templates == null ) {
-      Processor proc = getProcessor();
-      XsltCompiler comp = proc.newXsltCompiler();
-      comp.setErrorListener( errorListener );
-      templates = comp.compile( new StreamSource( xslFile ) );
-      templateCache.put( xslFile.toString(), templates );
+  }
+
+  /**
+   * Drop the stylesheets compiled from a profile bundle from the cache of every thread, along with the profile of its
+   * rules, so the bundle may be closed and deleted once it is no longer validated against
+   * @param bundleFile the local path of the bundle
+   */
+  void forgetBundle( String bundleFile ){
+    String prefix = ProfileBundle.getBaseSystemId( new File( bundleFile ) );
+    synchronized( templateCaches ){
+      for( Map<String,CachedTemplates> templateCache : templateCaches.values() ){
+        templateCache.keySet().removeIf( key -> key.startsWith( prefix ) );
+      }
+    }
+    sharedTemplates.keySet().removeIf( key -> key.startsWith( prefix ) );
+    bundlePaths.remove( bundleFile );
+    profiles.remove( bundleFile );
+  }
+
+  /**
+   * @param xsl compiled Schematron rules
+   * @return whether the rules read the line numbers of nodes
+   */
+  private static boolean readsLineNumbers( InputStream xsl ) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while( ( n = xsl.read( buffer ) ) != -1 ){
+      bytes.write( buffer, 0, n );
+    }
+    return LeanTrees.readsLineNumbers( new String( bytes.toByteArray(), StandardCharsets.UTF_8 ) );
+  }
+
+  /**
+   * @return the profile of a Schematron file, read again from its compiled XSL when that has changed, which discards
+   * the time recorded against the previous rules
+   */
+  private SchematronProfile getProfile( String schematronFile, long lastModified, InputStream xsl ) throws IOException {
+    SchematronProfile profile = profiles.get( schematronFile );
+    if( profile == null || profile.getLastModified() != lastModified ){
+      synchronized( profiles ){
+        profile = profiles.get( schematronFile );
+        if( profile == null || profile.getLastModified() != lastModified ){
+          profile = SchematronProfile.read( schematronFile, lastModified, xsl );
+          profiles.put( schematronFile, profile );
+        }
+      }
+    }
+    return profile;
+  }
+
+  /**
+   * Resolves the documents read by Schematron rules held in a profile bundle to the bundled copies
+   */
+  private static class BundleURIResolver implements URIResolver {
+    private final ProfileBundle bundle;
+
+    private BundleURIResolver( ProfileBundle bundle ){
+      this.bundle = bundle;
+    }
+
+    @Override
+    public Source resolve( String href, String base ) throws TransformerException {
+      String systemId;
+      try {
+        systemId = base == null ? href : new URI( base ).resolve( href ).toString();
+      }
+      catch( URISyntaxException | IllegalArgumentException e ){
+        return null;
+      }
+      String name = bundle.resolve( null, null, null, systemId );
+      //documents outside the bundle are resolved as usual
+      return name == null ? null : new StreamSource( bundle.openDocument( name ), bundle.getSystemId( name ) );
+    }
+  }
+
+  /**
+   * Opens the remote documents read by Schematron rules itself, so connecting to and reading from a server which does
+   * not answer gives up once the deadline of the validation has passed
+   */
+  private static class DeadlineURIResolver implements URIResolver {
+    private final URIResolver resolver;
+    private final Deadline deadline;
+
+    /**
+     * @param resolver the resolver consulted first, or null
+     */
+    private DeadlineURIResolver( URIResolver resolver, Deadline deadline ){
+      this.resolver = resolver;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public Source resolve( String href, String base ) throws TransformerException {
+      Source source = resolver == null ? null : resolver.resolve( href, base );
+      if( source != null ){
+        return source;
+      }
+      URI uri;
+      try {
+        uri = base == null ? new URI( href ) : new URI( base ).resolve( href );
+      }
+      catch( URISyntaxException | IllegalArgumentException e ){
+        return null;
+      }
+      if( !uri.isAbsolute() || Utils.isLocalFile( uri.toString() ) || "jar".equals( uri.getScheme() ) ){
+        return null;
+      }
+      try {
+        return new StreamSource( Utils.openStream( uri.toURL(), deadline ), uri.toString() );
+      }
+      catch( IOException e ){
+        throw new TransformerException( e );
+      }
+    }
+  }
+
+  /**
+   * A set of Schematron rules compiled for a single validation
+   */
+  private static class RuleSet {
+    private final String name;
+    private final XsltExecutable templates;
+    private final URIResolver uriResolver;
+    private final SchematronProfile profile;
+    private final ErrorListener errorListener;
+    private final boolean readsLineNumbers;
+
+    private RuleSet( String name, XsltExecutable templates, URIResolver uriResolver, SchematronProfile profile,
+                     ErrorListener errorListener, boolean readsLineNumbers ){
+      this.name = name;
+      this.templates = templates;
+      this.uriResolver = uriResolver;
+      this.profile = profile;
+      this.errorListener = errorListener;
+      this.readsLineNumbers = readsLineNumbers;
+    }
+  }
+
+  /**
+   * The tree of XML content, built to be validated on another thread
+   */
+  static class Tree {
+    private final String name;
+    private final XdmNode source;
+
+    private Tree( String name, XdmNode source ){
+      this.name = name;
+      this.source = source;
+    }
+  }
+
+  private static class CachedTemplates {
+    private final XsltExecutable templates;
+    private final long lastModified;
+    //whether the rules read line numbers, found when they are first run against a lean tree
+    private volatile Boolean readsLineNumbers;
+
+    private CachedTemplates( XsltExecutable templates, long lastModified ){
+      this.templates = templates;
+      this.lastModified = lastModified;
     }
-    return templates;
   }
 
   private Processor getProcessor(){
+    if( isSharingProcessor() ){
+      return LeanTrees.getProcessor();
+    }
     Processor proc = processorLocal.get();
     if( proc == null ) {
       proc = new Processor( false );
@@ -281,6 +1089,49 @@ public class SchematronValidator {
     return proc;
   }
 
+  /**
+   * Cooperatively stops a transform once a deadline has passed.  Saxon notifies trace listeners of every node processed
+   * by apply-templates even when the stylesheet was not compiled with tracing, so this adds no compile-time cost
+   */
+  private static class DeadlineTraceListener implements TraceListener {
+    private final Deadline deadline;
+
+    private DeadlineTraceListener( Deadline deadline ){
+      this.deadline = deadline;
+    }
+
+    @Override
+    public void startCurrentItem( Item item ) {
+      if( deadline.isExpired() ){
+        throw new DeadlineExceededException();
+      }
+    }
+
+    @Override
+    public void setOutputDestination( net.sf.saxon.lib.Logger logger ) {}
+
+    @Override
+    public void open( Controller controller ) {}
+
+    @Override
+    public void close() {}
+
+    @Override
+    public void enter( InstructionInfo instructionInfo, XPathContext xPathContext ) {}
+
+    @Override
+    public void leave( InstructionInfo instructionInfo ) {}
+
+    @Override
+    public void endCurrentItem( Item item ) {}
+  }
+
+  private static class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private DeadlineExceededException(){ super( "Validation deadline exceeded" ); }
+  }
+
   private class ErrorListener implements javax.xml.transform.ErrorListener, MessageListener{
     private List<ValidationError> errors = new ArrayList<>();
     private List<String> warnings = new ArrayList<>();
@@ -310,7 +1161,7 @@ public class SchematronValidator {
       if( locator != null ){
         return new ValidationError( e.getMessage(), filename, locator.getLineNumber(), locator.getColumnNumber() );
       }
-      return new ValidationError( e.getMessage(), filename, null, null );
+      return new ValidationError( e.getMessage(), filename, ValidationError.UNKNOWN, ValidationError.UNKNOWN );
     }
 
     @Override
@@ -319,7 +1170,7 @@ public class SchematronValidator {
         errors.add( new ValidationError( xdmNode.toString(), filename, sourceLocator.getLineNumber(), sourceLocator.getColumnNumber() ) );
       }
       else{
-        errors.add( new ValidationError( xdmNode.toString(), filename, null, null ) );
+        errors.add( new ValidationError( xdmNode.toString(), filename, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
       }
     }
   }
@@ -0,0 +1,573 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a batch of files across several worker JVMs, each with a heap and garbage collector of its own, for batches
+ * too large for the heap of one JVM.  Workers connect over a socket and pull files one at a time as their threads
+ * become free, so the load stays balanced whatever the sizes of the files.  Workers may be started locally by the
+ * coordinator or run on other hosts sharing the file system with {@link ShardWorker}, as files are handed out by their
+ * absolute paths.  If a worker exits, the files it had not finished are handed to the other workers.
+ * <p>
+ * The coordinator only listens on the loopback address, unless it is given an address to accept workers on other hosts
+ * on.  A worker must present the token of the run, from the {@value #TOKEN_VARIABLE} environment variable, before it is
+ * sent anything.  The token is generated for each run unless the coordinator's own environment sets it, and is passed to
+ * local workers in their environment.  Connections are not encrypted, so only listen on trusted networks
+ * <p>
+ * The errors reported by the workers are merged into one report in the order of the files, as
+ * {@link Crux#validate(String, List, List)} reports them
+ */
+public class ShardCoordinator {
+  private static final Logger LOG = LoggerFactory.getLogger( ShardCoordinator.class );
+  //identifies the protocol, and its version, at the start of a connection
+  static final int MAGIC = 0x43525832;
+  //the environment variable holding the token workers present to the coordinator
+  static final String TOKEN_VARIABLE = "CRUX_SHARD_TOKEN";
+  //the replies to a worker's request for a file which are not file indexes
+  static final int DONE = -1;
+  static final int WAIT = -2;
+  //a file whose validation ends with the exit of this many workers is reported as failed rather than retried
+  private static final int MAX_ATTEMPTS = 2;
+  //how long a worker has to present its token once connected
+  private static final int HANDSHAKE_TIMEOUT_MS = 10000;
+  //the longest string read from a connection once the peer has presented the token, such as a path or an error message
+  static final int MAX_STRING_BYTES = 16 * 1024 * 1024;
+  //the most errors read for one file, as the list is sized before they are read
+  private static final int MAX_ERRORS = 1000000;
+  //the JVM options of the coordinator passed on to local workers: heap, stack and garbage collector settings, and the
+  //system properties for temporary files, logging and proxies
+  private static final String[] WORKER_JVM_OPTIONS = { "-Xmx", "-Xms", "-Xss", "-XX:MaxRAMPercentage=",
+    "-XX:InitialRAMPercentage=", "-XX:MaxMetaspaceSize=", "-XX:+UseSerialGC", "-XX:+UseParallelGC", "-XX:+UseG1GC",
+    "-XX:+UseZGC", "-XX:+UseShenandoahGC", "-XX:MaxGCPauseMillis=", "-XX:ParallelGCThreads=", "-XX:ConcGCThreads=",
+    "-XX:ActiveProcessorCount=", "-Djava.io.tmpdir=", "-Dlogback.configurationFile=", "-Dhttp.proxyHost=",
+    "-Dhttp.proxyPort=", "-Dhttps.proxyHost=", "-Dhttps.proxyPort=", "-Dhttp.nonProxyHosts=" };
+
+  private final Crux crux;
+  private final int numLocalWorkers;
+  private final InetSocketAddress listenAddress;
+
+  /**
+   * @param crux the settings validation is done with, such as timeouts and pre-screening
+   * @param numLocalWorkers the number of worker JVMs to start on this host
+   * @param listenAddress the address and port on which workers on other hosts may connect, or null to only accept
+   *                      local workers
+   */
+  public ShardCoordinator( Crux crux, int numLocalWorkers, InetSocketAddress listenAddress ) {
+    this.crux = crux;
+    this.numLocalWorkers = numLocalWorkers;
+    this.listenAddress = listenAddress;
+  }
+
+  /**
+   * Validate files across the workers
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFiles the paths to local Schematron (.sch) definitions, or profile bundles holding them.  May be
+   *                        empty
+   * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  These may be local file paths or remote http: paths
+   * @return the number of files which were validated
+   * @throws ValidationException if validation failures occur
+   * @throws IOException if a local path is not supported or matches no files, or the workers could not be started
+   */
+  public int validate( String catalogFile, List<String> schematronFiles, List<String> xmlOrXsdPaths ) throws ValidationException, IOException {
+    List<String> names = Crux.expandPaths( xmlOrXsdPaths );
+    Work work = new Work( names, Deadline.after( crux.getBatchTimeoutMs() ) );
+    List<String> rules = new ArrayList<>( schematronFiles.size() );
+    for( String schematronFile : schematronFiles ) {
+      rules.add( absolutePath( schematronFile ) );
+    }
+    final Config config = new Config( catalogFile == null ? null : absolutePath( catalogFile ), rules );
+    String configuredToken = System.getenv( TOKEN_VARIABLE );
+    final String token = configuredToken != null && !configuredToken.isEmpty() ? configuredToken : newToken();
+
+    ServerSocket server = new ServerSocket();
+    //the workers which have presented the token and are connected, and which have ever joined
+    final AtomicInteger numConnected = new AtomicInteger();
+    final AtomicInteger numJoined = new AtomicInteger();
+    ExecutorService connections = Executors.newCachedThreadPool( r -> {
+      Thread thread = new Thread( r, "crux-shard" );
+      thread.setDaemon( true );
+      return thread;
+    } );
+    List<Process> workers = new ArrayList<>();
+    long startMs = System.currentTimeMillis();
+    try {
+      //without an address, only workers on this host can connect
+      server.bind( listenAddress != null ? listenAddress : new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+      connections.execute( () -> {
+        while( !server.isClosed() ) {
+          try {
+            final Socket socket = server.accept();
+            connections.execute( () -> serve( socket, token, config, work, numConnected, numJoined ) );
+          }
+          catch( IOException e ) {
+            if( !server.isClosed() ) {
+              LOG.warn( "Could not accept a worker connection: {}", e.getMessage() );
+            }
+          }
+        }
+      } );
+      for( int i = 0; i < numLocalWorkers; i++ ) {
+        workers.add( startWorker( server.getLocalPort(), token ) );
+      }
+      LOG.info( "Validating {} file(s) with {} local worker(s){}", names.size(), numLocalWorkers,
+        listenAddress != null ? ", accepting workers on " + server.getLocalSocketAddress() : "" );
+      if( listenAddress != null && configuredToken == null ) {
+        LOG.info( "Workers on other hosts must be started with {}={} in their environment", TOKEN_VARIABLE, token );
+      }
+      while( !work.awaitCompletion( 1000 ) ) {
+        work.expireIfPastDeadline();
+        //workers on other hosts may join at any time until the first has, but once every worker has gone none will return
+        boolean anyStarted = numLocalWorkers > 0 || numJoined.get() > 0;
+        if( anyStarted && numConnected.get() == 0 && !isAnyAlive( workers ) ) {
+          work.abort( "Not validated, every worker exited" );
+        }
+      }
+    }
+    finally {
+      server.close();
+      connections.shutdown();
+      stopWorkers( workers );
+    }
+    LOG.info( "Validation of {} file(s) by the workers took {} ms", names.size(), System.currentTimeMillis() - startMs );
+    return work.merge();
+  }
+
+  /**
+   * Hand files to a connected worker until it disconnects, once it has presented the token.  Files it had been handed
+   * but had not finished are handed out again
+   */
+  private void serve( Socket socket, String token, Config config, Work work, AtomicInteger numConnected, AtomicInteger numJoined ) {
+    Set<Integer> assigned = new HashSet<>();
+    String worker = socket.getRemoteSocketAddress().toString();
+    boolean joined = false;
+    try( Socket s = socket;
+         DataInputStream in = new DataInputStream( new BufferedInputStream( s.getInputStream() ) );
+         DataOutputStream out = new DataOutputStream( new BufferedOutputStream( s.getOutputStream() ) ) ) {
+      s.setSoTimeout( HANDSHAKE_TIMEOUT_MS );
+      if( in.readInt() != MAGIC ) {
+        LOG.warn( "Rejected a connection from {} which is not a Crux worker", worker );
+        return;
+      }
+      //the token is read no further than its length, so an unauthenticated peer cannot make the coordinator allocate more
+      String presented = readString( in, token.getBytes( StandardCharsets.UTF_8 ).length );
+      if( presented == null || !MessageDigest.isEqual( presented.getBytes( StandardCharsets.UTF_8 ), token.getBytes( StandardCharsets.UTF_8 ) ) ) {
+        LOG.warn( "Rejected a connection from {} which did not present the token of this run", worker );
+        return;
+      }
+      s.setSoTimeout( 0 );
+      numConnected.incrementAndGet();
+      numJoined.incrementAndGet();
+      joined = true;
+      out.writeInt( MAGIC );
+      config.write( out );
+      out.flush();
+      LOG.debug( "Worker {} connected", worker );
+      while( true ) {
+        //each request for a file carries the result of the worker's previous file, if it has one
+        int index = in.readInt();
+        if( index >= 0 ) {
+          int numValidated = in.readInt();
+          List<ValidationError> errors = readErrors( in );
+          if( assigned.remove( index ) ) {
+            work.complete( index, errors, numValidated );
+          }
+        }
+        int next = work.take();
+        out.writeInt( next );
+        if( next >= 0 ) {
+          assigned.add( next );
+          writeString( out, work.getPath( next ) );
+        }
+        out.flush();
+      }
+    }
+    catch( EOFException | SocketException e ) {
+      //the worker has finished, or exited
+    }
+    catch( IOException e ) {
+      LOG.warn( "Lost the connection to worker {}: {}", worker, e.getMessage() );
+    }
+    finally {
+      if( joined ) {
+        numConnected.decrementAndGet();
+      }
+      if( !assigned.isEmpty() ) {
+        LOG.warn( "Worker {} exited before validating {} file(s), which will be handed to another worker", worker, assigned.size() );
+      }
+      for( int index : assigned ) {
+        work.fail( index );
+      }
+    }
+  }
+
+  /**
+   * @return a random token for the workers of one run to present
+   */
+  private static String newToken() {
+    byte[] bytes = new byte[16];
+    new SecureRandom().nextBytes( bytes );
+    StringBuilder token = new StringBuilder( bytes.length * 2 );
+    for( byte b : bytes ) {
+      token.append( String.format( "%02x", b ) );
+    }
+    return token.toString();
+  }
+
+  /**
+   * Start a worker JVM on this host with the class path and the heap and garbage collector settings of this one
+   * @param token the token of the run, passed in the worker's environment rather than on its command line, which other
+   *              users of the host can see
+   */
+  private static Process startWorker( int port, String token ) throws IOException {
+    List<String> command = new ArrayList<>();
+    command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+    for( String option : ManagementFactory.getRuntimeMXBean().getInputArguments() ) {
+      for( String prefix : WORKER_JVM_OPTIONS ) {
+        if( option.startsWith( prefix ) ) {
+          command.add( option );
+          break;
+        }
+      }
+    }
+    command.add( "-cp" );
+    command.add( System.getProperty( "java.class.path" ) );
+    command.add( Crux.class.getName() );
+    command.add( "--worker" );
+    command.add( InetAddress.getLoopbackAddress().getHostAddress() + ":" + port );
+    ProcessBuilder builder = new ProcessBuilder( command ).inheritIO();
+    Map<String,String> environment = builder.environment();
+    environment.put( TOKEN_VARIABLE, token );
+    return builder.start();
+  }
+
+  private static boolean isAnyAlive( List<Process> workers ) {
+    for( Process worker : workers ) {
+      if( worker.isAlive() ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Wait briefly for local workers to exit once every file is validated, then stop any which have not
+   */
+  private static void stopWorkers( List<Process> workers ) {
+    for( Process worker : workers ) {
+      try {
+        if( !worker.waitFor( 10, TimeUnit.SECONDS ) ) {
+          worker.destroy();
+        }
+      }
+      catch( InterruptedException e ) {
+        worker.destroy();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static String absolutePath( String path ) {
+    if( !Utils.isLocalFile( path ) ) {
+      return path;
+    }
+    return new File( path ).getAbsolutePath();
+  }
+
+  static void writeString( DataOutputStream out, String s ) throws IOException {
+    if( s == null ) {
+      out.writeInt( -1 );
+      return;
+    }
+    byte[] bytes = s.getBytes( StandardCharsets.UTF_8 );
+    out.writeInt( bytes.length );
+    out.write( bytes );
+  }
+
+  static String readString( DataInputStream in ) throws IOException {
+    return readString( in, MAX_STRING_BYTES );
+  }
+
+  /**
+   * @param maxLength the length in bytes above which the string is rejected before it is read
+   * @return the string, or null if none was sent
+   * @throws IOException if the string could not be read, or is longer than the length allowed
+   */
+  static String readString( DataInputStream in, int maxLength ) throws IOException {
+    int length = in.readInt();
+    if( length < 0 ) {
+      return null;
+    }
+    if( length > maxLength ) {
+      throw new IOException( "Received a string of " + length + " bytes, more than the " + maxLength + " allowed" );
+    }
+    byte[] bytes = new byte[length];
+    in.readFully( bytes );
+    return new String( bytes, StandardCharsets.UTF_8 );
+  }
+
+  static void writeErrors( DataOutputStream out, List<ValidationError> errors ) throws IOException {
+    out.writeInt( errors.size() );
+    for( ValidationError error : errors ) {
+      out.writeBoolean( error instanceof ValidationTimeoutError );
+      writeString( out, error.getError() );
+      writeString( out, error.getFileName() );
+      out.writeInt( error.getLine() );
+      out.writeInt( error.getColumn() );
+    }
+  }
+
+  static List<ValidationError> readErrors( DataInputStream in ) throws IOException {
+    int numErrors = in.readInt();
+    if( numErrors < 0 || numErrors > MAX_ERRORS ) {
+      throw new IOException( "Received an invalid number of errors: " + numErrors );
+    }
+    List<ValidationError> errors = new ArrayList<>( numErrors );
+    for( int i = 0; i < numErrors; i++ ) {
+      boolean timedOut = in.readBoolean();
+      String error = readString( in );
+      String fileName = readString( in );
+      int line = in.readInt();
+      int column = in.readInt();
+      errors.add( timedOut ? new ValidationTimeoutError( error, fileName ) : new ValidationError( error, fileName, line, column ) );
+    }
+    return errors;
+  }
+
+  /**
+   * The catalog, Schematron files and settings sent to each worker when it connects
+   */
+  final class Config {
+    final String catalogFile;
+    final List<String> schematronFiles;
+
+    Config( String catalogFile, List<String> schematronFiles ) {
+      this.catalogFile = catalogFile;
+      this.schematronFiles = schematronFiles;
+    }
+
+    void write( DataOutputStream out ) throws IOException {
+      writeString( out, catalogFile );
+      out.writeInt( schematronFiles.size() );
+      for( String schematronFile : schematronFiles ) {
+        writeString( out, schematronFile );
+      }
+      writeString( out, crux.getRecordPath() );
+      out.writeLong( crux.getFileTimeoutMs() );
+      out.writeBoolean( crux.isAllowingRemoteResources() );
+      out.writeBoolean( crux.isPrescreening() );
+      out.writeBoolean( crux.isWellFormedOnly() );
+      out.writeBoolean( crux.isConcurrentRuleSets() );
+      out.writeBoolean( crux.isIndexingSchematronLookups() );
+      out.writeBoolean( crux.isLeanSchematronTrees() );
+    }
+  }
+
+  /**
+   * The files of a batch, which are handed out to workers in order, and their results.  Thread-safe
+   */
+  static class Work {
+    private final List<String> names;
+    private final String[] paths;
+    private final Deadline batchDeadline;
+    private final List<List<ValidationError>> errors;
+    private final int[] numValidated;
+    private final int[] attempts;
+    private final Deque<Integer> retries = new ArrayDeque<>();
+    private int next = 0;
+    private int numComplete = 0;
+
+    /**
+     * @param names the files, as they are named in the report
+     * @param batchDeadline the time after which files are no longer handed out
+     */
+    Work( List<String> names, Deadline batchDeadline ) {
+      this.names = names;
+      this.batchDeadline = batchDeadline;
+      paths = new String[names.size()];
+      errors = new ArrayList<>( names.size() );
+      for( int i = 0; i < paths.length; i++ ) {
+        paths[i] = absolutePath( names.get( i ) );
+        errors.add( null );
+      }
+      numValidated = new int[paths.length];
+      attempts = new int[paths.length];
+    }
+
+    /**
+     * @return the path a file is handed out by, which is absolute so workers in other directories or on other hosts
+     * can read it
+     */
+    String getPath( int index ) {
+      return paths[index];
+    }
+
+    /**
+     * @return the index of the next file to validate, {@link #WAIT} if every file has been handed out but some may be
+     * handed out again, or {@link #DONE} once every file is complete
+     */
+    synchronized int take() {
+      expireIfPastDeadline();
+      if( !retries.isEmpty() ) {
+        return retries.poll();
+      }
+      if( next < paths.length ) {
+        return next++;
+      }
+      return numComplete == paths.length ? DONE : WAIT;
+    }
+
+    /**
+     * Record the result of a file
+     * @param fileErrors the errors reported for the file, named by the path it was handed out by
+     * @param count the number of files validated, which for an archive is the number of entries
+     */
+    synchronized void complete( int index, List<ValidationError> fileErrors, int count ) {
+      if( errors.get( index ) != null ) {
+        return;
+      }
+      errors.set( index, rename( index, fileErrors ) );
+      numValidated[index] = count;
+      numComplete++;
+      notifyAll();
+    }
+
+    /**
+     * Hand a file out again after the worker validating it exited, unless it has been attempted too often, as it may be
+     * what made workers exit
+     */
+    synchronized void fail( int index ) {
+      if( errors.get( index ) != null ) {
+        return;
+      }
+      if( ++attempts[index] >= MAX_ATTEMPTS ) {
+        complete( index, error( index, "Not validated, validation ended with the exit of " + attempts[index] + " workers" ), 1 );
+      }
+      else {
+        retries.add( index );
+      }
+    }
+
+    /**
+     * Report the files which have not been handed out as skipped, once the batch deadline has passed
+     */
+    synchronized void expireIfPastDeadline() {
+      if( !batchDeadline.isExpired() ) {
+        return;
+      }
+      while( !retries.isEmpty() || next < paths.length ) {
+        int index = retries.isEmpty() ? next++ : retries.poll();
+        complete( index, new ArrayList<>( Crux.skipped( names.get( index ) ).getErrors() ), 1 );
+      }
+    }
+
+    /**
+     * Report every file which is not complete as failed
+     */
+    synchronized void abort( String reason ) {
+      for( int index = 0; index < paths.length; index++ ) {
+        complete( index, error( index, reason ), 1 );
+      }
+      retries.clear();
+      next = paths.length;
+    }
+
+    /**
+     * @return whether every file is complete
+     */
+    synchronized boolean awaitCompletion( long timeoutMs ) throws InterruptedIOException {
+      if( numComplete < paths.length ) {
+        try {
+          wait( timeoutMs );
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException( "Interrupted while waiting for the workers" );
+        }
+      }
+      return numComplete == paths.length;
+    }
+
+    /**
+     * @return the number of files validated
+     * @throws ValidationException with the errors of every file, in the order of the files, if there are any
+     */
+    synchronized int merge() throws ValidationException {
+      List<ValidationError> merged = new ArrayList<>();
+      int count = 0;
+      for( int index = 0; index < paths.length; index++ ) {
+        merged.addAll( errors.get( index ) );
+        count += numValidated[index];
+      }
+      if( !merged.isEmpty() ) {
+        ValidationException e = new ValidationException( merged );
+        e.setNumValidated( count );
+        throw e;
+      }
+      return count;
+    }
+
+    /**
+     * Name errors by the file as it was given rather than by the path it was handed out by, including the errors of
+     * archive entries, whose names start with the path of the archive
+     */
+    private List<ValidationError> rename( int index, List<ValidationError> fileErrors ) {
+      String path = paths[index];
+      String name = names.get( index );
+      if( path.equals( name ) ) {
+        return fileErrors;
+      }
+      List<ValidationError> renamed = new ArrayList<>( fileErrors.size() );
+      for( ValidationError error : fileErrors ) {
+        String fileName = error.getFileName();
+        if( fileName == null || !fileName.startsWith( path ) ) {
+          renamed.add( error );
+          continue;
+        }
+        fileName = name + fileName.substring( path.length() );
+        renamed.add( error instanceof ValidationTimeoutError ? new ValidationTimeoutError( error.getError(), fileName ) :
+          new ValidationError( error.getError(), fileName, error.getLine(), error.getColumn() ) );
+      }
+      return renamed;
+    }
+
+    private List<ValidationError> error( int index, String reason ) {
+      List<ValidationError> fileErrors = new ArrayList<>( 1 );
+      fileErrors.add( new ValidationError( reason, paths[index], ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      return fileErrors;
+    }
+  }
+}
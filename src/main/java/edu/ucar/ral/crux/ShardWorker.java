@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A worker JVM of a {@link ShardCoordinator}.  A worker connects to the coordinator, receives the catalog, Schematron
+ * files and settings to validate with, then pulls files from it on each of its threads until every file of the batch
+ * has been validated.  Validators are kept for the whole batch, one for each set of schemas the files refer to.  The
+ * worker presents the token of the run, which the coordinator logs or was given in its environment, when it connects
+ */
+public class ShardWorker {
+  private static final Logger LOG = LoggerFactory.getLogger( ShardWorker.class );
+  //how long a thread waits before asking again when every file has been handed out but some may be handed out again
+  private static final long WAIT_MS = 200;
+
+  private final String host;
+  private final int port;
+  private final String token;
+
+  /**
+   * @param host the host of the coordinator
+   * @param port the port the coordinator accepts workers on
+   * @param token the token of the run, see {@link ShardCoordinator#TOKEN_VARIABLE}
+   */
+  public ShardWorker( String host, int port, String token ) {
+    this.host = host;
+    this.port = port;
+    this.token = token;
+  }
+
+  /**
+   * Validate files handed out by the coordinator until every file of the batch has been validated
+   * @return the number of files this worker validated
+   * @throws IOException if the connection to the coordinator failed
+   */
+  public int run() throws IOException {
+    try( Socket socket = new Socket( host, port );
+         DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+         DataOutputStream out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) ) ) {
+      out.writeInt( ShardCoordinator.MAGIC );
+      ShardCoordinator.writeString( out, token );
+      out.flush();
+      int magic;
+      try {
+        magic = in.readInt();
+      }
+      catch( EOFException e ) {
+        throw new IOException( host + ":" + port + " closed the connection, the token of the run may not match" );
+      }
+      if( magic != ShardCoordinator.MAGIC ) {
+        throw new IOException( host + ":" + port + " is not a Crux coordinator" );
+      }
+      Crux crux = new Crux();
+      String catalogFile = ShardCoordinator.readString( in );
+      int numSchematronFiles = in.readInt();
+      List<String> schematronFiles = new ArrayList<>( numSchematronFiles );
+      for( int i = 0; i < numSchematronFiles; i++ ) {
+        schematronFiles.add( ShardCoordinator.readString( in ) );
+      }
+      crux.setRecordPath( ShardCoordinator.readString( in ) );
+      crux.setFileTimeoutMs( in.readLong() );
+      crux.setAllowingRemoteResources( in.readBoolean() );
+      crux.setPrescreening( in.readBoolean() );
+      crux.setWellFormedOnly( in.readBoolean() );
+      crux.setConcurrentRuleSets( in.readBoolean() );
+      crux.setIndexingSchematronLookups( in.readBoolean() );
+      crux.setLeanSchematronTrees( in.readBoolean() );
+      LOG.debug( "Connected to coordinator {}:{}", host, port );
+
+      Connection connection = new Connection( in, out );
+      ValidatorRegistry registry = new ValidatorRegistry();
+      registry.setAllowingRemoteResources( crux.isAllowingRemoteResources() );
+      int numThreads = Runtime.getRuntime().availableProcessors();
+      ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+      List<Future<Integer>> threads = new ArrayList<>( numThreads );
+      for( int i = 0; i < numThreads; i++ ) {
+        threads.add( executor.submit( () -> pull( connection, crux, registry, catalogFile, schematronFiles ) ) );
+      }
+      executor.shutdown();
+      int numValidated = 0;
+      try {
+        for( Future<Integer> thread : threads ) {
+          numValidated += thread.get();
+        }
+      }
+      catch( InterruptedException e ) {
+        executor.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+      catch( ExecutionException e ) {
+        executor.shutdownNow();
+        if( e.getCause() instanceof UncheckedIOException ) {
+          throw ( (UncheckedIOException) e.getCause() ).getCause();
+        }
+        throw new IOException( e.getCause() );
+      }
+      LOG.debug( "Validated {} file(s) for coordinator {}:{}", numValidated, host, port );
+      return numValidated;
+    }
+  }
+
+  /**
+   * Validate files pulled from the coordinator on one thread
+   * @return the number of files validated
+   */
+  private static int pull( Connection connection, Crux crux, ValidatorRegistry registry, String catalogFile,
+                           List<String> schematronFiles ) throws IOException, InterruptedException {
+    String[] catalogLocations = catalogFile == null ? null : new String[]{ catalogFile };
+    int numValidated = 0;
+    int index = ShardCoordinator.DONE;
+    ValidationResult result = null;
+    int count = 0;
+    while( true ) {
+      Connection.Assignment assignment = connection.exchange( index, result, count );
+      if( assignment.index == ShardCoordinator.DONE ) {
+        return numValidated;
+      }
+      if( assignment.index == ShardCoordinator.WAIT ) {
+        index = ShardCoordinator.DONE;
+        Thread.sleep( WAIT_MS );
+        continue;
+      }
+      index = assignment.index;
+      String file = assignment.path;
+      if( ArchiveReader.isArchive( file ) ||
+          ( crux.getRecordPath() != null && Utils.isLocalFile( file ) && !XML10Validator.isSchemaDocument( file ) ) ) {
+        //archives and files split into records are validated in parallel internally
+        long startMs = System.currentTimeMillis();
+        List<ValidationError> errors = Collections.emptyList();
+        try {
+          count = crux.validate( catalogFile, schematronFiles, Collections.singletonList( file ) );
+        }
+        catch( ValidationException e ) {
+          //the entries or records validated, whether or not they failed
+          errors = e.getValidationErrors();
+          count = Math.max( 0, e.getNumValidated() );
+        }
+        catch( Exception e ) {
+          //the archive or file could not be read, so it fails with its own error and none of its contents were validated
+          errors = Collections.singletonList( new ValidationError( e.toString(), file, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+          count = 0;
+        }
+        result = new ValidationResult( file, errors, System.currentTimeMillis() - startMs );
+      }
+      else {
+        result = crux.validateStreamed( registry, catalogLocations, schematronFiles, file, null );
+        count = 1;
+      }
+      numValidated += count;
+    }
+  }
+
+  /**
+   * The connection to the coordinator, shared by the worker's threads, which each send a result and receive their next
+   * file in turn
+   */
+  private static class Connection {
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    Connection( DataInputStream in, DataOutputStream out ) {
+      this.in = in;
+      this.out = out;
+    }
+
+    /**
+     * Send the result of a file, if there is one, and receive the next file
+     * @param index the index of the file the result is for, or {@link ShardCoordinator#DONE} if there is no result
+     */
+    synchronized Assignment exchange( int index, ValidationResult result, int count ) throws IOException {
+      out.writeInt( index );
+      if( index >= 0 ) {
+        out.writeInt( count );
+        ShardCoordinator.writeErrors( out, result.getErrors() );
+      }
+      out.flush();
+      int next = in.readInt();
+      return new Assignment( next, next >= 0 ? ShardCoordinator.readString( in ) : null );
+    }
+
+    static class Assignment {
+      final int index;
+      final String path;
+
+      Assignment( int index, String path ) {
+        this.index = index;
+        this.path = path;
+      }
+    }
+  }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Creates a class-data-sharing archive of the classes Crux loads to validate, so that short runs, such as validating a
+ * single message, do not spend most of their time loading and verifying the classes of Xerces, Saxon and logback.
+ * The archive is recorded by a second JVM running a representative validation, either of the files given or of a small
+ * built-in sample.  The launcher of the executable JAR uses an archive named after the JAR with ".jsa" appended, if
+ * there is one.
+ * <p>
+ * Archives of application classes can only be recorded by Java 13 or later, from classes loaded from JAR files, and are
+ * only used by the same Java version with the same class path.  Other versions ignore the archive
+ */
+public class StartupArchive {
+  private static final Logger LOG = LoggerFactory.getLogger( StartupArchive.class );
+  private static final int MIN_JAVA_VERSION = 13;
+  private static final String[] SAMPLE_FILES = { "sample.xsd", "sample.xml", "sample.sch" };
+
+  /**
+   * @return the archive the launcher of the executable JAR uses: the JAR's path with ".jsa" appended, or crux.jsa in
+   * the current directory if Crux is not running from a JAR
+   */
+  public static File getDefaultArchive() {
+    File location = getClassLocation();
+    if( location != null && location.isFile() ) {
+      return new File( location.getPath() + ".jsa" );
+    }
+    return new File( "crux.jsa" ).getAbsoluteFile();
+  }
+
+  /**
+   * Record an archive of the classes loaded by validating files in a second JVM, replacing any existing archive
+   * @param archive the archive to create
+   * @param catalogFile the path to a local catalog file or {@link ProfileBundle profile bundle}.  May be null
+   * @param schematronFiles the paths to local Schematron (.sch) definitions, or profile bundles holding them.  May be
+   *                        empty
+   * @param xmlOrXsdPaths representative files to validate.  If empty, a built-in sample is validated against a built-in
+   *                      schema and Schematron rules
+   * @throws IOException if this version of Java cannot record archives, or the archive was not created
+   */
+  public static void create( File archive, String catalogFile, List<String> schematronFiles, List<String> xmlOrXsdPaths ) throws IOException {
+    int javaVersion = getJavaVersion();
+    if( javaVersion < MIN_JAVA_VERSION ) {
+      throw new IOException( "Startup archives can only be created with Java " + MIN_JAVA_VERSION + " or later, not Java " + javaVersion );
+    }
+    File location = getClassLocation();
+    if( location != null && location.isDirectory() ) {
+      throw new IOException( "Startup archives can only be created when Crux runs from a JAR, not from the classes in " + location );
+    }
+    File sampleDir = null;
+    if( xmlOrXsdPaths.isEmpty() ) {
+      sampleDir = writeSample();
+      xmlOrXsdPaths = Collections.singletonList( new File( sampleDir, "sample.xml" ).getPath() );
+      if( schematronFiles.isEmpty() ) {
+        schematronFiles = Collections.singletonList( new File( sampleDir, "sample.sch" ).getPath() );
+      }
+    }
+    File target = archive.getAbsoluteFile();
+    Files.deleteIfExists( target.toPath() );
+
+    List<String> command = new ArrayList<>();
+    command.add( new File( new File( System.getProperty( "java.home" ), "bin" ), "java" ).getPath() );
+    command.add( "-XX:ArchiveClassesAtExit=" + target.getPath() );
+    //classes compiled for versions of Java before 6, as much of Saxon and Xerces is, cannot be archived and are loaded
+    //from the class path as usual.  Each would otherwise be warned about
+    command.add( "-Xlog:cds=error" );
+    command.add( "-cp" );
+    //the class path is recorded in the archive, which is only used with the same class path
+    command.add( getAbsoluteClassPath() );
+    command.add( Crux.class.getName() );
+    if( catalogFile != null ) {
+      command.add( "-c" );
+      command.add( catalogFile );
+    }
+    for( String schematronFile : schematronFiles ) {
+      command.add( "-s" );
+      command.add( schematronFile );
+    }
+    command.addAll( xmlOrXsdPaths );
+    LOG.info( "Recording the classes loaded to validate " + String.join( ", ", xmlOrXsdPaths ) );
+    long startMs = System.currentTimeMillis();
+    try {
+      //the validation may fail, the classes it loads are archived regardless
+      new ProcessBuilder( command ).inheritIO().start().waitFor();
+    }
+    catch( InterruptedException e ) {
+      Thread.currentThread().interrupt();
+      throw new IOException( "Interrupted while creating startup archive " + target );
+    }
+    finally {
+      if( sampleDir != null ) {
+        deleteSample( sampleDir );
+      }
+    }
+    if( !target.isFile() ) {
+      throw new IOException( "Startup archive " + target + " was not created" );
+    }
+    LOG.info( String.format( "Created startup archive %s (%d KB), took %d ms", target, target.length() / 1024,
+      System.currentTimeMillis() - startMs ) );
+  }
+
+  /**
+   * @return the major version of the running Java, such as 8 or 17
+   */
+  static int getJavaVersion() {
+    String version = System.getProperty( "java.specification.version" );
+    if( version.startsWith( "1." ) ) {
+      version = version.substring( 2 );
+    }
+    try {
+      return Integer.parseInt( version );
+    }
+    catch( NumberFormatException e ) {
+      return 0;
+    }
+  }
+
+  /**
+   * @return the JAR or directory the Crux classes are loaded from, or null if it is not known
+   */
+  private static File getClassLocation() {
+    try {
+      return new File( Crux.class.getProtectionDomain().getCodeSource().getLocation().toURI() );
+    }
+    catch( URISyntaxException | SecurityException | NullPointerException | IllegalArgumentException e ) {
+      return null;
+    }
+  }
+
+  private static String getAbsoluteClassPath() {
+    List<String> entries = new ArrayList<>();
+    for( String entry : System.getProperty( "java.class.path" ).split( File.pathSeparator ) ) {
+      if( !entry.isEmpty() ) {
+        entries.add( new File( entry ).getAbsolutePath() );
+      }
+    }
+    return String.join( File.pathSeparator, entries );
+  }
+
+  private static File writeSample() throws IOException {
+    File sampleDir = Files.createTempDirectory( "crux-startup" ).toFile();
+    for( String name : SAMPLE_FILES ) {
+      try( InputStream in = StartupArchive.class.getResourceAsStream( "/startup/" + name ) ) {
+        if( in == null ) {
+          throw new IOException( "The built-in sample " + name + " is missing" );
+        }
+        Files.copy( in, new File( sampleDir, name ).toPath(), StandardCopyOption.REPLACE_EXISTING );
+      }
+    }
+    return sampleDir;
+  }
+
+  private static void deleteSample( File sampleDir ) {
+    File[] files = sampleDir.listFiles();
+    if( files != null ) {
+      for( File file : files ) {
+        if( !file.delete() ) {
+          file.deleteOnExit();
+        }
+      }
+    }
+    if( !sampleDir.delete() ) {
+      sampleDir.deleteOnExit();
+    }
+  }
+}
@@ -11,12 +11,27 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.net.URLConnection;
 
 /**
  * Utility methods
  */
 public class Utils {
 
+  /**
+   * Open a URL, giving up on connecting and on each read once a deadline has passed, as remote servers may never answer
+   * @param url the URL to open
+   * @param deadline the deadline of the validation reading the URL
+   * @return the content of the URL
+   */
+  public static InputStream openStream( URL url, Deadline deadline ) throws IOException {
+    URLConnection connection = url.openConnection();
+    int timeoutMs = (int) Math.min( Integer.MAX_VALUE, deadline.getRemainingMs() );
+    connection.setConnectTimeout( timeoutMs );
+    connection.setReadTimeout( timeoutMs );
+    return connection.getInputStream();
+  }
+
   /**
    * Determines whether a URL or file path string points to a local file (as opposed to a remote URL)
    * @param path the file path or URL
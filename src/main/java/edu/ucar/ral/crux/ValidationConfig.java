@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable, versioned snapshot of the catalogs and Schematron files a {@link ReloadableValidator} validates
+ * against, along with the validators compiled for them.  A validation started with a snapshot finishes with it, even if
+ * a newer snapshot replaces it in the meantime
+ */
+public class ValidationConfig {
+  //file systems which record modification times to the second or two may report a change made just after the snapshot
+  //was built as having been made before it
+  private static final long MODIFICATION_TIME_RESOLUTION_MS = 2000;
+
+  private final long version;
+  private final List<String> catalogLocations;
+  private final List<String> schematronFiles;
+  //the profile bundle holding the rules compiled from each Schematron file, which keeps them unchanged for the life of
+  //the snapshot whatever happens to the Schematron file
+  private final List<String> compiledRules;
+  private final XML10Validator xml10Validator;
+  private final SchematronValidator schematronValidator;
+  //the modification times of the local files the snapshot was built from, by canonical file: the catalogs, the
+  //Schematron files and the schema documents of the grammars carried over from the previous snapshot
+  private final Map<File,Long> modificationTimes;
+  private final long createdMs = System.currentTimeMillis();
+
+  ValidationConfig( long version, List<String> catalogLocations, List<String> schematronFiles, List<String> compiledRules,
+                    XML10Validator xml10Validator, SchematronValidator schematronValidator, Map<File,Long> modificationTimes ) {
+    this.version = version;
+    this.catalogLocations = Collections.unmodifiableList( catalogLocations );
+    this.schematronFiles = Collections.unmodifiableList( schematronFiles );
+    this.compiledRules = Collections.unmodifiableList( compiledRules );
+    this.xml10Validator = xml10Validator;
+    this.schematronValidator = schematronValidator;
+    this.modificationTimes = modificationTimes;
+  }
+
+  /**
+   * Validate an XML or XSD file against its XML Schema and, if it is schema-valid, each of the Schematron files
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xmlOrXsdPath, Deadline deadline ) {
+    ValidationResult result = xml10Validator.validateToResult( xmlOrXsdPath, deadline );
+    if( !result.isValid() || schematronFiles.isEmpty() ) {
+      return result;
+    }
+    ValidationResult schematronResult = schematronValidator.validateToResult( xmlOrXsdPath, compiledRules, deadline );
+    return new ValidationResult( xmlOrXsdPath, schematronResult.getErrors(), result.getElapsedMs() + schematronResult.getElapsedMs() );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file, as {@link #validateToResult(String, Deadline)} does
+   * @param input the XML or XSD content to validate
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( ValidationInput input, Deadline deadline ) {
+    ValidationResult result = xml10Validator.validateToResult( input, deadline );
+    if( !result.isValid() || schematronFiles.isEmpty() ) {
+      return result;
+    }
+    ValidationResult schematronResult = schematronValidator.validateToResult( input, compiledRules, deadline );
+    return new ValidationResult( input.getName(), schematronResult.getErrors(), result.getElapsedMs() + schematronResult.getElapsedMs() );
+  }
+
+  /**
+   * @return the version of the snapshot, which increases with each snapshot of the same {@link ReloadableValidator}
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  public List<String> getCatalogLocations() {
+    return catalogLocations;
+  }
+
+  public List<String> getSchematronFiles() {
+    return schematronFiles;
+  }
+
+  /**
+   * @return the profile bundles holding the rules compiled from the Schematron files, in the same order
+   */
+  List<String> getCompiledRules() {
+    return compiledRules;
+  }
+
+  public XML10Validator getXML10Validator() {
+    return xml10Validator;
+  }
+
+  public SchematronValidator getSchematronValidator() {
+    return schematronValidator;
+  }
+
+  /**
+   * @param catalogLocations the catalogs of a new snapshot
+   * @return whether the catalogs are the same as this snapshot's and none of them has changed, so schema locations
+   * resolve as they did for this snapshot
+   */
+  boolean hasSameCatalogs( List<String> catalogLocations ) {
+    if( !this.catalogLocations.equals( catalogLocations ) ) {
+      return false;
+    }
+    for( String catalogLocation : catalogLocations ) {
+      if( Utils.isLocalFile( catalogLocation ) && isChanged( canonical( new File( catalogLocation ) ) ) ) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param file a canonical local file
+   * @return whether the file may have changed since it was used by this snapshot.  Files the snapshot did not record,
+   * such as schema documents first compiled after it was built, are compared with the time the snapshot was built
+   */
+  boolean isChanged( File file ) {
+    Long modificationTime = modificationTimes.get( file );
+    if( modificationTime != null ) {
+      return file.lastModified() != modificationTime;
+    }
+    return file.lastModified() >= createdMs - MODIFICATION_TIME_RESOLUTION_MS;
+  }
+
+  static File canonical( File file ) {
+    try {
+      return file.getCanonicalFile();
+    }
+    catch( IOException e ) {
+      return file.getAbsoluteFile();
+    }
+  }
+}
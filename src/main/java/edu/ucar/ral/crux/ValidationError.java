@@ -8,25 +8,41 @@ package edu.ucar.ral.crux;
  * A validation error class which represents the error and the relevant location within the validated file
  */
 public class ValidationError {
+  /** The line or column number of an error whose location is not known */
+  public static final int UNKNOWN = -1;
+
   private String error;
   private String fileName;
-  private Integer lineNumber;
-  private Integer columnNumber;
+  private int lineNumber;
+  private int columnNumber;
 
   /**
    *
    * @param error The error that caused a validation problem
    * @param fileName The file in which the error occurred
    * @param lineNumber The line number of the end of the text that
-   *                   caused the error or warning
+   *                   caused the error or warning.  May be null
    * @param columnNumber The column number of the end of the text that
-   *                   caused the error or warning
+   *                   caused the error or warning.  May be null
    */
   public ValidationError( String error, String fileName, Integer lineNumber, Integer columnNumber ) {
+    this( error, fileName, lineNumber == null ? UNKNOWN : lineNumber, columnNumber == null ? UNKNOWN : columnNumber );
+  }
+
+  /**
+   *
+   * @param error The error that caused a validation problem
+   * @param fileName The file in which the error occurred
+   * @param lineNumber The line number of the end of the text that
+   *                   caused the error or warning, or UNKNOWN
+   * @param columnNumber The column number of the end of the text that
+   *                   caused the error or warning, or UNKNOWN
+   */
+  public ValidationError( String error, String fileName, int lineNumber, int columnNumber ) {
     this.error = error;
     this.fileName = fileName;
-    this.lineNumber = lineNumber;
-    this.columnNumber = columnNumber;
+    this.lineNumber = lineNumber < 0 ? UNKNOWN : lineNumber;
+    this.columnNumber = columnNumber < 0 ? UNKNOWN : columnNumber;
   }
 
   public String getError() {
@@ -35,16 +51,57 @@ public class ValidationError {
 
   public String getFileName() {return fileName;}
 
+  /**
+   * @return the line number of the error, or null if it is not known
+   */
   public Integer getLineNumber() {
-    return lineNumber;
+    return lineNumber == UNKNOWN ? null : lineNumber;
   }
 
+  /**
+   * @return the column number of the error, or null if it is not known
+   */
   public Integer getColumnNumber() {
+    return columnNumber == UNKNOWN ? null : columnNumber;
+  }
+
+  /**
+   * @return the line number of the error, or UNKNOWN
+   */
+  public int getLine() {
+    return lineNumber;
+  }
+
+  /**
+   * @return the column number of the error, or UNKNOWN
+   */
+  public int getColumn() {
     return columnNumber;
   }
 
   @Override
   public String toString() {
-    return String.format( "%s line %d, col %d: %s", getFileName(), getLineNumber(), getColumnNumber(), getError() );
+    StringBuilder sb = new StringBuilder();
+    appendTo( sb );
+    return sb.toString();
+  }
+
+  /**
+   * Append the same text as {@link #toString()} to a StringBuilder
+   */
+  void appendTo( StringBuilder sb ) {
+    sb.append( getFileName() ).append( " line " );
+    appendPosition( sb, lineNumber );
+    sb.append( ", col " );
+    appendPosition( sb, columnNumber );
+    sb.append( ": " ).append( getError() );
+  }
+
+  private static void appendPosition( StringBuilder sb, int position ) {
+    if( position == UNKNOWN ) {
+      sb.append( "null" );
+    } else {
+      sb.append( position );
+    }
   }
 }
@@ -12,6 +12,7 @@ import java.util.List;
  */
 public class ValidationException extends Exception {
   private List<ValidationError> validationErrors;
+  private int numValidated = -1;
 
   public ValidationException( List<ValidationError> validationErrors ){
     this.validationErrors = validationErrors;
@@ -35,17 +36,29 @@ public class ValidationException extends Exception {
 
   @Override
   public String getMessage(){
-    String msg = super.getMessage();
-    if( msg == null ){
-      msg = "";
+    StringBuilder msg = new StringBuilder();
+    if( super.getMessage() != null ){
+      msg.append( super.getMessage() );
     }
     for( ValidationError error : validationErrors ){
-      msg += error + "\n";
+      error.appendTo( msg );
+      msg.append( '\n' );
     }
-    return msg;
+    return msg.toString();
   }
 
   public List<ValidationError> getValidationErrors() {
     return validationErrors;
   }
+
+  /**
+   * @return the number of files validated, including those which failed, or -1 if it is not known
+   */
+  public int getNumValidated() {
+    return numValidated;
+  }
+
+  void setNumValidated( int numValidated ) {
+    this.numValidated = numValidated;
+  }
 }
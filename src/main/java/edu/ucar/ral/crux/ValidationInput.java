@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * XML content to validate which is not a plain file, such as an entry of an archive.  The content may be opened more
+ * than once, as XML schema and Schematron validation each read it
+ */
+public abstract class ValidationInput {
+  private final String name;
+  private final String systemId;
+
+  /**
+   * @param name the name reported in validation errors, such as "archive.zip!/dir/file.xml"
+   * @param systemId the URI against which relative references in the content, such as schema locations, are resolved
+   */
+  protected ValidationInput( String name, String systemId ) {
+    this.name = name;
+    this.systemId = systemId;
+  }
+
+  /**
+   * @return a new stream over the content, which the caller closes
+   * @throws IOException if the content could not be read
+   */
+  public abstract InputStream open() throws IOException;
+
+  public String getName() {
+    return name;
+  }
+
+  public String getSystemId() {
+    return systemId;
+  }
+
+  /**
+   * @return an input over content held in memory
+   */
+  public static ValidationInput of( String name, String systemId, final byte[] content ) {
+    return new ValidationInput( name, systemId ) {
+      @Override
+      public InputStream open() {
+        return new ByteArrayInputStream( content );
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Passes items through a sequence of stages, each run by its own number of threads, so that the stages of different
+ * items overlap: one item can be read while another is parsed and a third transformed.  Stages are connected by bounded
+ * queues, so a slow stage holds back the stages before it rather than letting items pile up in memory
+ * @param <T> the items passed from stage to stage, which carry their own state and results
+ */
+class ValidationPipeline<T> {
+  private static final Logger LOG = LoggerFactory.getLogger( ValidationPipeline.class );
+  //the items queued for each thread of a stage, so threads do not wait for the previous stage between items
+  private static final int QUEUED_PER_THREAD = 2;
+  //marks the end of the items in a queue, one for each thread of the stage
+  private static final Object END = new Object();
+
+  private final List<Stage<T>> stages = new ArrayList<>();
+  private Consumer<T> failureHandler = item -> {};
+
+  /**
+   * Work done on an item by a stage
+   */
+  interface Work<T> {
+    /**
+     * @return whether the item continues to the next stage, false if it is complete, such as when it has failed
+     */
+    boolean process( T item );
+  }
+
+  /**
+   * Add a stage after the stages already added
+   * @param name the name of the stage, which names its threads
+   * @param threads the number of threads running the stage
+   * @param work the work done on each item
+   * @return this pipeline
+   */
+  ValidationPipeline<T> addStage( String name, int threads, Work<T> work ) {
+    stages.add( new Stage<>( name, Math.max( 1, threads ), work ) );
+    return this;
+  }
+
+  /**
+   * Set what is done with an item whose stage failed, such as releasing what it holds, as it goes no further
+   * @param failureHandler called on the thread of the stage which failed
+   * @return this pipeline
+   */
+  ValidationPipeline<T> onFailure( Consumer<T> failureHandler ) {
+    this.failureHandler = failureHandler;
+    return this;
+  }
+
+  /**
+   * Pass every item through the stages, returning once every item has completed
+   * @param items the items, which enter the first stage in order
+   * @throws RuntimeException the first exception thrown by a stage, once every other item has completed
+   * @throws Error the first error thrown by a stage, such as a stack overflow, once every other item has completed
+   */
+  void run( List<T> items ) {
+    List<BlockingQueue<Object>> queues = new ArrayList<>( stages.size() );
+    int numThreads = 0;
+    for( Stage<T> stage : stages ) {
+      queues.add( new ArrayBlockingQueue<>( stage.threads * QUEUED_PER_THREAD ) );
+      numThreads += stage.threads;
+    }
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    ExecutorService executor = Executors.newFixedThreadPool( numThreads );
+    boolean interrupted = false;
+    try {
+      for( int i = 0; i < stages.size(); i++ ) {
+        Stage<T> stage = stages.get( i );
+        BlockingQueue<Object> in = queues.get( i );
+        BlockingQueue<Object> out = i + 1 < stages.size() ? queues.get( i + 1 ) : null;
+        int nextThreads = i + 1 < stages.size() ? stages.get( i + 1 ).threads : 0;
+        AtomicInteger running = new AtomicInteger( stage.threads );
+        for( int j = 0; j < stage.threads; j++ ) {
+          executor.execute( () -> runStage( stage, in, out, nextThreads, running, failure, failureHandler ) );
+        }
+      }
+      LOG.debug( "Running {} item(s) through {} stage(s) on {} thread(s)", items.size(), stages.size(), numThreads );
+      BlockingQueue<Object> first = queues.get( 0 );
+      for( T item : items ) {
+        interrupted |= put( first, item );
+      }
+      for( int j = 0; j < stages.get( 0 ).threads; j++ ) {
+        interrupted |= put( first, END );
+      }
+    }
+    finally {
+      executor.shutdown();
+      while( !executor.isTerminated() ) {
+        try {
+          executor.awaitTermination( 1, TimeUnit.SECONDS );
+        }
+        catch( InterruptedException e ) {
+          //the items already queued are still completed
+          interrupted = true;
+        }
+      }
+      if( interrupted ) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    Throwable thrown = failure.get();
+    if( thrown instanceof Error ) {
+      throw (Error) thrown;
+    }
+    if( thrown != null ) {
+      throw thrown instanceof RuntimeException ? (RuntimeException) thrown : new RuntimeException( thrown );
+    }
+  }
+
+  /**
+   * Process items from a stage's queue on one of its threads until the end of the items.  The last thread of the stage
+   * to finish marks the end of the items for the next stage, however the thread finishes, so the stages after it are
+   * never left waiting
+   */
+  private static <T> void runStage( Stage<T> stage, BlockingQueue<Object> in, BlockingQueue<Object> out, int nextThreads,
+                                    AtomicInteger running, AtomicReference<Throwable> failure, Consumer<T> failureHandler ) {
+    Thread.currentThread().setName( "crux-" + stage.name );
+    try {
+      while( true ) {
+        Object next = take( in );
+        if( next == END ) {
+          break;
+        }
+        @SuppressWarnings( "unchecked" )
+        T item = (T) next;
+        boolean continuing;
+        try {
+          continuing = stage.work.process( item );
+        }
+        catch( Throwable e ) {
+          //errors such as a stack overflow in a deep expression fail the item, not the stage
+          failure.compareAndSet( null, e );
+          continuing = false;
+          fail( item, failureHandler );
+        }
+        if( continuing && out != null ) {
+          put( out, item );
+        }
+      }
+    }
+    finally {
+      if( running.decrementAndGet() == 0 && out != null ) {
+        for( int j = 0; j < nextThreads; j++ ) {
+          put( out, END );
+        }
+      }
+    }
+  }
+
+  private static <T> void fail( T item, Consumer<T> failureHandler ) {
+    try {
+      failureHandler.accept( item );
+    }
+    catch( Throwable e ) {
+      LOG.warn( "Could not clean up after a failed item", e );
+    }
+  }
+
+  /**
+   * Add to a queue, waiting for room.  Items are not dropped when the thread is interrupted, as the stages after this
+   * one wait for them
+   * @return whether the thread was interrupted while waiting
+   */
+  private static boolean put( BlockingQueue<Object> queue, Object item ) {
+    boolean interrupted = false;
+    while( true ) {
+      try {
+        queue.put( item );
+        return interrupted;
+      }
+      catch( InterruptedException e ) {
+        interrupted = true;
+      }
+    }
+  }
+
+  private static Object take( BlockingQueue<Object> queue ) {
+    while( true ) {
+      try {
+        return queue.take();
+      }
+      catch( InterruptedException e ) {
+        //stage threads are only stopped by the end of the items
+      }
+    }
+  }
+
+  private static class Stage<T> {
+    private final String name;
+    private final int threads;
+    private final Work<T> work;
+
+    private Stage( String name, int threads, Work<T> work ) {
+      this.name = name;
+      this.threads = threads;
+      this.work = work;
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+
+/**
+ * A pairing of an XML schema validator (configured with a set of catalogs) and an optional Schematron definition.
+ * Profiles are handed out by a {@link ValidatorRegistry} and share their compiled state with any other profile using
+ * the same catalogs or Schematron file
+ */
+public class ValidationProfile {
+  private final XML10Validator xml10Validator;
+  private final SchematronValidator schematronValidator;
+  private final String schematronFile;
+
+  /**
+   * @param xml10Validator the validator used for XML Schema validation
+   * @param schematronValidator the validator used for Schematron validation.  May be null if schematronFile is null
+   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   */
+  public ValidationProfile( XML10Validator xml10Validator, SchematronValidator schematronValidator, String schematronFile ) {
+    this.xml10Validator = xml10Validator;
+    this.schematronValidator = schematronValidator;
+    this.schematronFile = schematronFile;
+  }
+
+  /**
+   * Validate an XML or XSD file against its XML Schema and, if this profile has one, the Schematron definition
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @throws ValidationException if validation failures occur
+   * @throws IOException if necessary files could not be read
+   * @throws SAXException if the XML to validate is not well-structured
+   * @throws ParserConfigurationException if a parser configuration error occurs
+   */
+  public void validate( String xmlOrXsdPath ) throws ValidationException, IOException, SAXException, ParserConfigurationException {
+    validate( xmlOrXsdPath, Deadline.NONE );
+  }
+
+  /**
+   * Validate an XML or XSD file against its XML Schema and, if this profile has one, the Schematron definition,
+   * stopping once the deadline has passed
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @param deadline the time by which validation must complete
+   * @throws ValidationException if validation failures occur or the deadline passes
+   * @throws IOException if necessary files could not be read
+   * @throws SAXException if the XML to validate is not well-structured
+   * @throws ParserConfigurationException if a parser configuration error occurs
+   */
+  public void validate( String xmlOrXsdPath, Deadline deadline ) throws ValidationException, IOException, SAXException, ParserConfigurationException {
+    xml10Validator.validate( xmlOrXsdPath, deadline );
+    if( schematronFile != null ) {
+      schematronValidator.validate( xmlOrXsdPath, schematronFile, deadline );
+    }
+  }
+
+  /**
+   * Validate an XML or XSD file against its XML Schema and, if this profile has one and the file is schema-valid, the
+   * Schematron definition.  The outcome is returned rather than thrown
+   * @param xmlOrXsdPath the file to validate, either a local path or a remote http: path
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xmlOrXsdPath, Deadline deadline ) {
+    ValidationResult result = xml10Validator.validateToResult( xmlOrXsdPath, deadline );
+    if( !result.isValid() || schematronFile == null ) {
+      return result;
+    }
+    ValidationResult schematronResult = schematronValidator.validateToResult( xmlOrXsdPath, schematronFile, deadline );
+    return new ValidationResult( xmlOrXsdPath, schematronResult.getErrors(), result.getElapsedMs() + schematronResult.getElapsedMs() );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file, such as an archive entry, as
+   * {@link #validateToResult(String, Deadline)} does
+   * @param input the XML or XSD content to validate
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( ValidationInput input, Deadline deadline ) {
+    ValidationResult result = xml10Validator.validateToResult( input, deadline );
+    if( !result.isValid() || schematronFile == null ) {
+      return result;
+    }
+    ValidationResult schematronResult = schematronValidator.validateToResult( input, schematronFile, deadline );
+    return new ValidationResult( input.getName(), schematronResult.getErrors(), result.getElapsedMs() + schematronResult.getElapsedMs() );
+  }
+
+  public XML10Validator getXML10Validator() {
+    return xml10Validator;
+  }
+
+  public SchematronValidator getSchematronValidator() {
+    return schematronValidator;
+  }
+
+  public String getSchematronFile() {
+    return schematronFile;
+  }
+}
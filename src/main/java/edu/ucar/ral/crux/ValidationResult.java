@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of validating a single file.  Unlike a {@link ValidationException}, a result is returned for valid and
+ * invalid files alike
+ */
+public class ValidationResult {
+  private final String fileName;
+  private final List<ValidationError> errors;
+  private final long elapsedMs;
+
+  /**
+   * @param fileName the file which was validated
+   * @param errors the validation errors encountered, empty if the file is valid
+   * @param elapsedMs the time validation took in milliseconds
+   */
+  public ValidationResult( String fileName, List<ValidationError> errors, long elapsedMs ) {
+    this.fileName = fileName;
+    this.errors = errors;
+    this.elapsedMs = elapsedMs;
+  }
+
+  public String getFileName() {
+    return fileName;
+  }
+
+  /**
+   * @return the validation errors encountered, empty if the file is valid
+   */
+  public List<ValidationError> getErrors() {
+    return Collections.unmodifiableList( errors );
+  }
+
+  public long getElapsedMs() {
+    return elapsedMs;
+  }
+
+  /**
+   * @return true if no validation errors were encountered
+   */
+  public boolean isValid() {
+    return errors.isEmpty();
+  }
+
+  /**
+   * @return true if validation did not complete before its deadline
+   */
+  public boolean isTimedOut() {
+    for( ValidationError error : errors ) {
+      if( error instanceof ValidationTimeoutError ) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return String.format( "%s: %s (%d error(s), %d ms)", fileName, isValid() ? "valid" : "INVALID", errors.size(), elapsedMs );
+  }
+}
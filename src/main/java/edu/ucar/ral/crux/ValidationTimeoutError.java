@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+/**
+ * A validation error reported when validation of a file was stopped, or never started, because its deadline passed.
+ * The file is neither known to be valid nor invalid
+ */
+public class ValidationTimeoutError extends ValidationError {
+
+  /**
+   * @param error a description of the timeout
+   * @param fileName the file whose validation timed out
+   */
+  public ValidationTimeoutError( String error, String fileName ) {
+    super( error, fileName, UNKNOWN, UNKNOWN );
+  }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.xs.StringList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hands out validators keyed by catalog set and Schematron file so that services supporting many schema profiles
+ * (for example one per tenant) share compiled grammars, catalog resolvers and compiled Schematron stylesheets.  The
+ * memory held by each validator is estimated each time it is handed out and the least recently used validators are
+ * evicted when the total exceeds the memory budget.  This class is thread-safe
+ */
+public class ValidatorRegistry {
+  private static final Logger LOG = LoggerFactory.getLogger( ValidatorRegistry.class );
+
+  public static final long DEFAULT_MEMORY_BUDGET_BYTES = 256L * 1024 * 1024;
+
+  //compiled grammars and stylesheets occupy several times the size of their source documents once in memory
+  private static final int COMPILED_SIZE_FACTOR = 4;
+  //size assumed for a schema document whose size cannot be determined locally, such as a remote schema
+  private static final long UNKNOWN_DOCUMENT_BYTES = 64 * 1024;
+
+  private final long memoryBudgetBytes;
+  private boolean allowingRemoteResources = false;
+  //access-ordered so iteration starts with the least recently used entry
+  private final LinkedHashMap<String,Entry> entries = new LinkedHashMap<>( 16, 0.75f, true );
+  //the sum of the estimates of the entries
+  private long estimatedTotalBytes = 0;
+
+  public ValidatorRegistry(){
+    this( DEFAULT_MEMORY_BUDGET_BYTES );
+  }
+
+  /**
+   * @param memoryBudgetBytes the approximate number of bytes of compiled validation state which may be retained before
+   *                          least recently used validators are evicted
+   */
+  public ValidatorRegistry( long memoryBudgetBytes ){
+    this.memoryBudgetBytes = memoryBudgetBytes;
+  }
+
+  /**
+   * Get a validation profile for a catalog set and Schematron file.  The XML schema validator is shared with every other
+   * profile using the same catalogs, and the Schematron validator with every other profile using the same Schematron file
+   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   * @param catalogLocations the locations of catalog files to use during validation.  May be null or empty
+   * @return a profile which validates against the catalogs and Schematron file
+   * @throws IOException if the canonical path of a file could not be determined
+   */
+  public synchronized ValidationProfile getProfile( String schematronFile, String... catalogLocations ) throws IOException {
+    XML10Validator xml10Validator = getXML10Validator( catalogLocations );
+    SchematronValidator schematronValidator = null;
+    if( schematronFile != null ) {
+      schematronValidator = getSchematronValidator( schematronFile );
+    }
+    return new ValidationProfile( xml10Validator, schematronValidator, schematronFile );
+  }
+
+  /**
+   * Get the XML schema validator for a catalog set, creating it if necessary.  Catalogs are keyed by their canonical
+   * path and last modified time, so a catalog that changes on disk gets a new validator
+   * @param catalogLocations the locations of catalog files to use during validation.  May be null or empty
+   * @return the shared validator for the catalogs
+   * @throws IOException if the canonical path of a catalog file could not be determined
+   */
+  public synchronized XML10Validator getXML10Validator( String... catalogLocations ) throws IOException {
+    return getXML10ValidatorForKey( catalogKey( catalogLocations ), catalogLocations );
+  }
+
+  /**
+   * Get an XML schema validator for a catalog set which is dedicated to files referring to one set of schemas, creating
+   * it if necessary.  Files referring to different schemas, including different versions of the schemas for a
+   * namespace, then do not share a grammar cache, so each validator keeps only the grammars its files use
+   * @param schemaFingerprint the schemas the files refer to, as given by {@link RootElement#getSchemaFingerprint()}
+   * @param catalogLocations the locations of catalog files to use during validation.  May be null or empty
+   * @return the shared validator for the catalogs and schemas
+   * @throws IOException if the canonical path of a catalog file could not be determined
+   */
+  public synchronized XML10Validator getXML10ValidatorForSchemas( String schemaFingerprint, String... catalogLocations ) throws IOException {
+    return getXML10ValidatorForKey( catalogKey( catalogLocations ) + "schemas:" + schemaFingerprint, catalogLocations );
+  }
+
+  private static String catalogKey( String... catalogLocations ) throws IOException {
+    StringBuilder key = new StringBuilder( "catalogs:" );
+    if( catalogLocations != null ) {
+      for( String catalogLocation : catalogLocations ) {
+        key.append( fileKey( catalogLocation ) ).append( '\n' );
+      }
+    }
+    return key.toString();
+  }
+
+  private XML10Validator getXML10ValidatorForKey( String key, String... catalogLocations ) throws IOException {
+    Entry entry = entries.get( key );
+    if( entry == null ) {
+      XML10Validator validator;
+      if( catalogLocations == null || catalogLocations.length == 0 ) {
+        validator = new XML10Validator();
+      } else {
+        validator = new XML10Validator( catalogLocations );
+      }
+      entry = new XML10Entry( validator );
+      entries.put( key, entry );
+    }
+    XML10Validator validator = ( (XML10Entry) entry ).validator;
+    validator.setAllowingRemoteResources( isAllowingRemoteResources() );
+    evictIfNecessary( key, entry );
+    return validator;
+  }
+
+  /**
+   * Get the Schematron validator for a Schematron file, creating it if necessary.  Schematron files are keyed by their
+   * canonical path and last modified time, so a Schematron file that changes on disk gets a new validator
+   * @param schematronFile the path to a local Schematron (.sch) definition
+   * @return the shared validator for the Schematron file
+   * @throws IOException if the canonical path of the Schematron file could not be determined
+   */
+  public synchronized SchematronValidator getSchematronValidator( String schematronFile ) throws IOException {
+    String key = "schematron:" + fileKey( schematronFile );
+    Entry entry = entries.get( key );
+    if( entry == null ) {
+      entry = new SchematronEntry( new SchematronValidator(), new File( schematronFile ) );
+      entries.put( key, entry );
+    }
+    evictIfNecessary( key, entry );
+    return ( (SchematronEntry) entry ).validator;
+  }
+
+  /**
+   * Remove all validators and their compiled state from this registry
+   */
+  public synchronized void clear(){
+    entries.clear();
+    estimatedTotalBytes = 0;
+  }
+
+  /**
+   * @return the number of validators held by this registry
+   */
+  public synchronized int size(){
+    return entries.size();
+  }
+
+  /**
+   * @return the estimated number of bytes of compiled validation state held by this registry
+   */
+  public synchronized long getEstimatedMemoryBytes(){
+    return estimatedTotalBytes;
+  }
+
+  public long getMemoryBudgetBytes() {
+    return memoryBudgetBytes;
+  }
+
+  public synchronized boolean isAllowingRemoteResources() {
+    return allowingRemoteResources;
+  }
+
+  /**
+   * Set whether remote (non-local) schema files are resolved by the validators handed out by this registry. False by
+   * default
+   */
+  public synchronized void setAllowingRemoteResources( boolean allowingRemoteResources ) {
+    this.allowingRemoteResources = allowingRemoteResources;
+  }
+
+  /**
+   * Refresh the size estimate of the entry being handed out, which grows as its validator loads grammars and compiles
+   * stylesheets, then evict least recently used entries until the registry is within its memory budget.  The entry
+   * being handed out is never evicted.  An evicted validator is left intact for callers still using it, and its memory
+   * is released once they drop it
+   */
+  private void evictIfNecessary( String currentKey, Entry currentEntry ) throws IOException {
+    long estimate = currentEntry.estimateMemoryBytes();
+    estimatedTotalBytes += estimate - currentEntry.estimatedBytes;
+    currentEntry.estimatedBytes = estimate;
+    Iterator<Map.Entry<String,Entry>> it = entries.entrySet().iterator();
+    while( estimatedTotalBytes > memoryBudgetBytes && it.hasNext() ) {
+      Map.Entry<String,Entry> eldest = it.next();
+      if( eldest.getKey().equals( currentKey ) ) {
+        continue;
+      }
+      estimatedTotalBytes -= eldest.getValue().estimatedBytes;
+      it.remove();
+      LOG.debug( "Evicted validator for {} ({} bytes estimated)", eldest.getKey(), eldest.getValue().estimatedBytes );
+    }
+  }
+
+  private static String fileKey( String location ) throws IOException {
+    if( !Utils.isLocalFile( location ) ) {
+      return location;
+    }
+    File file = new File( location );
+    return file.getCanonicalPath() + "@" + file.lastModified();
+  }
+
+  private abstract static class Entry {
+    long estimatedBytes;
+
+    abstract long estimateMemoryBytes() throws IOException;
+  }
+
+  private static class XML10Entry extends Entry {
+    private final XML10Validator validator;
+    //the grammars the last estimate was made from, so the schema documents are only measured again once they change
+    private List<SchemaGrammar> estimatedGrammars = Collections.emptyList();
+    private long estimate;
+
+    private XML10Entry( XML10Validator validator ){
+      this.validator = validator;
+    }
+
+    /**
+     * Estimate the size of the compiled grammars from the size of the schema documents they were built from
+     */
+    @Override
+    long estimateMemoryBytes() {
+      List<SchemaGrammar> grammars = validator.getSchemaGrammars();
+      if( grammars.equals( estimatedGrammars ) ) {
+        return estimate;
+      }
+      Set<String> locations = new HashSet<>();
+      for( SchemaGrammar grammar : grammars ) {
+        StringList documentLocations = grammar.getDocumentLocations();
+        for( int i = 0; i < documentLocations.getLength(); i++ ) {
+          locations.add( documentLocations.item( i ) );
+        }
+      }
+      long bytes = 0;
+      for( String location : locations ) {
+        bytes += documentSize( location );
+      }
+      estimatedGrammars = grammars;
+      estimate = bytes * COMPILED_SIZE_FACTOR;
+      return estimate;
+    }
+
+    private static long documentSize( String location ) {
+      if( location != null && location.startsWith( "file:" ) ) {
+        try {
+          return new File( new URI( location ) ).length();
+        }
+        catch( Exception e ) {
+          //fall through to the default size for locations that are not plain file URIs
+        }
+      }
+      return UNKNOWN_DOCUMENT_BYTES;
+    }
+  }
+
+  private static class SchematronEntry extends Entry {
+    private final SchematronValidator validator;
+    private final File schematronFile;
+    //the estimate once the stylesheet has been compiled, which does not change as the entry is for one version of the file
+    private long compiledEstimate = -1;
+
+    private SchematronEntry( SchematronValidator validator, File schematronFile ){
+      this.validator = validator;
+      this.schematronFile = schematronFile;
+    }
+
+    /**
+     * Estimate the size of the compiled stylesheet from the size of the XSL generated from the Schematron file, or the
+     * Schematron file itself if it has not been compiled yet
+     */
+    @Override
+    long estimateMemoryBytes() throws IOException {
+      if( compiledEstimate >= 0 ) {
+        return compiledEstimate;
+      }
+      File xslFile = validator.getCompiledXSLFile( schematronFile );
+      if( xslFile.exists() ) {
+        compiledEstimate = xslFile.length() * COMPILED_SIZE_FACTOR;
+        return compiledEstimate;
+      }
+      return schematronFile.length() * COMPILED_SIZE_FACTOR;
+    }
+  }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Validates a set of files, then re-validates them as they change.  Validators are kept warm between changes: when a
+ * schema document changes only the grammars built from it, and those importing them, are recompiled, and only the
+ * instances using their namespaces are re-validated.  A change to the Schematron or catalog file re-validates every
+ * file.  Bursts of changes, such as an editor writing several files, are collected until the file system has been quiet
+ * for the debounce period and then handled together
+ */
+public class Watcher implements AutoCloseable {
+  private static final Logger LOG = LoggerFactory.getLogger( Watcher.class );
+  private static final long DEFAULT_DEBOUNCE_MS = 300;
+  //how often the watch loop wakes up to check whether it has been stopped
+  private static final long POLL_MS = 250;
+
+  private final ValidatorRegistry registry = new ValidatorRegistry();
+  private final String catalogFile;
+  private final String schematronFile;
+  private final String[] xmlOrXsdPaths;
+  private final WatchService watchService;
+  private final Set<Path> watchedDirectories = new HashSet<>();
+  //the namespaces used by each validated local file, which determine the files affected by a schema change
+  private final Map<File,Set<String>> fileNamespaces = new HashMap<>();
+  private Consumer<ValidationResult> listener = new LoggingListener();
+  private long debounceMs = DEFAULT_DEBOUNCE_MS;
+  private long fileTimeoutMs = 0;
+  private volatile boolean running;
+
+  /**
+   * @param catalogFile the path to a local catalog file.  May be null
+   * @param schematronFile the path to a local Schematron (.sch) definition.  May be null
+   * @param xmlOrXsdPaths a set of file paths to XML or XSD files.  Local paths may include wildcards, which are
+   *                      re-evaluated as files are created
+   * @throws IOException if the file system cannot be watched
+   */
+  public Watcher( String catalogFile, String schematronFile, String... xmlOrXsdPaths ) throws IOException {
+    this.catalogFile = catalogFile;
+    this.schematronFile = schematronFile;
+    this.xmlOrXsdPaths = xmlOrXsdPaths;
+    this.watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  /**
+   * Validate every file, then watch for changes and re-validate the affected files until {@link #stop()} is called or
+   * the thread is interrupted
+   * @throws IOException if a local path is not supported or matches no files when first validated
+   * @throws InterruptedException when the thread is interrupted
+   */
+  public void run() throws IOException, InterruptedException {
+    running = true;
+    Set<File> inputs = expandPaths( true );
+    validate( inputs );
+    LOG.info( "Watching for changes" );
+    try {
+      while( running ) {
+        WatchKey key = watchService.poll( POLL_MS, TimeUnit.MILLISECONDS );
+        if( key == null ) {
+          continue;
+        }
+        Set<File> changed = new LinkedHashSet<>();
+        collectChanges( key, changed );
+        //wait for the burst of changes to end
+        while( ( key = watchService.poll( debounceMs, TimeUnit.MILLISECONDS ) ) != null ) {
+          collectChanges( key, changed );
+        }
+        handleChanges( changed );
+      }
+    }
+    catch( ClosedWatchServiceException e ) {
+      //closed from another thread, which ends watching
+    }
+  }
+
+  /**
+   * Stop watching.  The watch loop ends within a fraction of a second
+   */
+  public void stop() {
+    running = false;
+  }
+
+  @Override
+  public void close() throws IOException {
+    stop();
+    watchService.close();
+  }
+
+  private void collectChanges( WatchKey key, Set<File> changed ) {
+    Path directory = (Path) key.watchable();
+    for( WatchEvent<?> event : key.pollEvents() ) {
+      if( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+        //events were lost, so treat every watched file as changed
+        changed.addAll( fileNamespaces.keySet() );
+        continue;
+      }
+      changed.add( canonical( directory.resolve( (Path) event.context() ).toFile() ) );
+    }
+    key.reset();
+  }
+
+  private void handleChanges( Set<File> changed ) throws IOException {
+    Set<File> inputs = expandPaths( false );
+    Set<File> affected = new LinkedHashSet<>();
+    XML10Validator xml10Validator = getProfile().getXML10Validator();
+    boolean rulesChanged = false;
+    for( File file : changed ) {
+      if( isSameFile( file, schematronFile ) || isSameFile( file, catalogFile ) ) {
+        //the registry keys validators by the modification time of these files, so fresh validators are used from now on
+        LOG.info( "{} changed", file );
+        rulesChanged = true;
+      }
+      if( inputs.contains( file ) ) {
+        affected.add( file );
+      }
+      if( file.getName().endsWith( ".xsd" ) ) {
+        Set<String> namespaces = xml10Validator.invalidate( file );
+        if( !namespaces.isEmpty() ) {
+          LOG.info( "{} changed, recompiling grammars for namespace(s) {}", file, namespaces );
+          for( File input : inputs ) {
+            Set<String> inputNamespaces = fileNamespaces.get( input );
+            if( inputNamespaces == null || !Collections.disjoint( inputNamespaces, namespaces ) ) {
+              affected.add( input );
+            }
+          }
+        }
+      }
+    }
+    for( File input : inputs ) {
+      //files which have just been created and match a wildcard
+      if( !fileNamespaces.containsKey( input ) ) {
+        affected.add( input );
+      }
+    }
+    fileNamespaces.keySet().retainAll( inputs );
+    if( rulesChanged ) {
+      affected = inputs;
+    }
+    if( !affected.isEmpty() ) {
+      validate( affected );
+    }
+  }
+
+  private void validate( Set<File> files ) throws IOException {
+    //watch the directories holding everything validation depends on before validating, so no change is missed
+    for( File file : files ) {
+      watchDirectoryOf( file );
+    }
+    watchDirectoryOf( schematronFile == null ? null : new File( schematronFile ) );
+    watchDirectoryOf( catalogFile == null ? null : new File( catalogFile ) );
+    ValidationProfile profile = getProfile();
+    for( File file : files ) {
+      if( file.exists() ) {
+        fileNamespaces.put( file, readNamespaces( file ) );
+      }
+      listener.accept( profile.validateToResult( file.getPath(), Deadline.after( fileTimeoutMs ) ) );
+    }
+    //schemas are only known once they have been loaded
+    for( File file : profile.getXML10Validator().getCachedSchemaFiles() ) {
+      watchDirectoryOf( file );
+    }
+  }
+
+  private ValidationProfile getProfile() throws IOException {
+    return registry.getProfile( schematronFile, catalogFile == null ? null : new String[]{ catalogFile } );
+  }
+
+  /**
+   * @param failIfMissing whether a local path which matches no files is an error, rather than being skipped
+   * @return the local files currently matching the paths being watched.  Remote paths are only validated once
+   */
+  private Set<File> expandPaths( boolean failIfMissing ) throws IOException {
+    Set<File> files = new LinkedHashSet<>();
+    for( String path : xmlOrXsdPaths ) {
+      if( !Utils.isLocalFile( path ) ) {
+        if( failIfMissing ) {
+          listener.accept( getProfile().validateToResult( path, Deadline.after( fileTimeoutMs ) ) );
+        }
+        continue;
+      }
+      try {
+        for( String file : Crux.expandPath( path ) ) {
+          files.add( canonical( new File( file ) ) );
+        }
+      }
+      catch( IOException e ) {
+        if( failIfMissing ) {
+          throw e;
+        }
+        LOG.debug( "No files currently match {}", path );
+      }
+    }
+    return files;
+  }
+
+  private void watchDirectoryOf( File file ) throws IOException {
+    if( file == null ) {
+      return;
+    }
+    Path directory = canonical( file ).getParentFile().toPath();
+    if( watchedDirectories.add( directory ) ) {
+      LOG.debug( "Watching directory {}", directory );
+      directory.register( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE );
+    }
+  }
+
+  /**
+   * @return the namespaces of the root element of a file, which are empty if it is not well-formed
+   */
+  private static Set<String> readNamespaces( File file ) {
+    RootElement root = RootElement.read( file.getPath() );
+    return root == null ? Collections.<String>emptySet() : root.getNamespaces();
+  }
+
+  private static boolean isSameFile( File file, String path ) {
+    return path != null && Utils.isLocalFile( path ) && file.equals( canonical( new File( path ) ) );
+  }
+
+  private static File canonical( File file ) {
+    try {
+      return file.getCanonicalFile();
+    }
+    catch( IOException e ) {
+      return file.getAbsoluteFile();
+    }
+  }
+
+  /**
+   * Set the listener which receives the result of each validation.  By default results are logged
+   */
+  public void setListener( Consumer<ValidationResult> listener ) {
+    this.listener = listener;
+  }
+
+  public long getDebounceMs() {
+    return debounceMs;
+  }
+
+  /**
+   * Set how long the file system must be quiet after a change before the affected files are re-validated
+   */
+  public void setDebounceMs( long debounceMs ) {
+    this.debounceMs = debounceMs;
+  }
+
+  public long getFileTimeoutMs() {
+    return fileTimeoutMs;
+  }
+
+  /**
+   * Set the maximum time the validation of a single file may take.  Zero (the default) means no limit
+   */
+  public void setFileTimeoutMs( long fileTimeoutMs ) {
+    this.fileTimeoutMs = fileTimeoutMs;
+  }
+
+  /**
+   * Set whether remote (non-local) schema files are resolved.  False by default
+   */
+  public void setAllowingRemoteResources( boolean allowingRemoteResources ) {
+    registry.setAllowingRemoteResources( allowingRemoteResources );
+  }
+
+  private static class LoggingListener implements Consumer<ValidationResult> {
+    @Override
+    public void accept( ValidationResult result ) {
+      if( result.isValid() ) {
+        LOG.info( "Validation of {} successful, took {} ms", result.getFileName(), result.getElapsedMs() );
+      }
+      else {
+        for( ValidationError failure : result.getErrors() ) {
+          LOG.error( "Validation FAILED on " + failure );
+        }
+      }
+    }
+  }
+}
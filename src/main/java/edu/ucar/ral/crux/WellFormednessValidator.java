@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.xerces.impl.msg.XMLMessageFormatter;
+
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.MissingResourceException;
+
+/**
+ * Checks that XML and XSD files are well-formed, without validating them.  Files are read with a non-validating
+ * streaming parser which does not load schemas or resolve entities and which is never asked for text or attribute
+ * values, so checking costs little more than reading the file.  This is used to reject truncated and malformed files
+ * before the far more expensive schema and Schematron validation
+ */
+public class WellFormednessValidator {
+  //DOCTYPEs are disallowed by XML schema validation, so they are rejected here too.  This is the message Xerces reports
+  private static final String DOCTYPE_DISALLOWED =
+    "DOCTYPE is disallowed when the feature \"http://apache.org/xml/features/disallow-doctype-decl\" set to true.";
+  private static final String NAMESPACE_MESSAGE_DOMAIN = "http://www.w3.org/TR/1999/REC-xml-names-19990114#";
+  //elements read between checks of the deadline
+  private static final int DEADLINE_CHECK_INTERVAL = 1024;
+
+  //factories are configured once per thread, as they are not guaranteed to be thread-safe
+  private final ThreadLocal<XMLInputFactory> factoryLocal = new ThreadLocal<>();
+
+  /**
+   * Check that an XML or XSD file is well-formed
+   * @param xsdOrXmlFilePath the file to check, either a local path, which may be compressed, or a remote http: path
+   * @param deadline the time by which the check must complete
+   * @return the result of the check
+   */
+  public ValidationResult validateToResult( String xsdOrXmlFilePath, Deadline deadline ){
+    CompressedInput compressed = CompressedInput.detect( xsdOrXmlFilePath );
+    if( compressed != null ){
+      return validateToResult( compressed, deadline );
+    }
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors = new ArrayList<>();
+    try( InputStream in = open( xsdOrXmlFilePath ) ){
+      check( in, xsdOrXmlFilePath, deadline, errors );
+    }
+    catch( IOException e ){
+      errors.add( new ValidationError( e.toString(), xsdOrXmlFilePath, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( xsdOrXmlFilePath, errors, System.currentTimeMillis() - startMs );
+  }
+
+  /**
+   * Check that XML or XSD content which is not a plain file, such as an archive entry, is well-formed
+   * @param input the content to check
+   * @param deadline the time by which the check must complete
+   * @return the result of the check
+   */
+  public ValidationResult validateToResult( ValidationInput input, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> errors = new ArrayList<>();
+    try( InputStream in = input.open() ){
+      check( in, input.getName(), deadline, errors );
+    }
+    catch( IOException e ){
+      errors.add( new ValidationError( e.toString(), input.getName(), ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( input.getName(), errors, System.currentTimeMillis() - startMs );
+  }
+
+  private static InputStream open( String xsdOrXmlFilePath ) throws IOException {
+    if( Utils.isLocalFile( xsdOrXmlFilePath ) ){
+      return new BufferedInputStream( new FileInputStream( toFile( xsdOrXmlFilePath ) ) );
+    }
+    return new BufferedInputStream( new URL( xsdOrXmlFilePath ).openStream() );
+  }
+
+  /**
+   * @return the local file a path or file: URL refers to, with any percent-escapes in the URL decoded
+   */
+  private static File toFile( String xsdOrXmlFilePath ) throws IOException {
+    if( !xsdOrXmlFilePath.startsWith( "file:" ) ){
+      return new File( xsdOrXmlFilePath );
+    }
+    try {
+      return new File( new URI( xsdOrXmlFilePath ) );
+    }
+    catch( URISyntaxException | IllegalArgumentException e ){
+      throw new IOException( "Invalid file URL " + xsdOrXmlFilePath, e );
+    }
+  }
+
+  private void check( InputStream in, String name, Deadline deadline, List<ValidationError> errors ){
+    if( deadline.isExpired() ){
+      errors.add( createTimeoutError( name ) );
+      return;
+    }
+    XMLStreamReader reader = null;
+    try {
+      reader = getFactory().createXMLStreamReader( in );
+      int numElements = 0;
+      while( reader.hasNext() ){
+        int event = reader.next();
+        if( event == XMLStreamConstants.DTD ){
+          Location location = reader.getLocation();
+          errors.add( new ValidationError( DOCTYPE_DISALLOWED, name, location.getLineNumber(), location.getColumnNumber() ) );
+          return;
+        }
+        if( event == XMLStreamConstants.START_ELEMENT && ++numElements % DEADLINE_CHECK_INTERVAL == 0 && deadline.isExpired() ){
+          errors.add( createTimeoutError( name ) );
+          return;
+        }
+      }
+    }
+    catch( XMLStreamException e ){
+      errors.add( toValidationError( e, name ) );
+    }
+    finally {
+      if( reader != null ){
+        try {
+          reader.close();
+        }
+        catch( XMLStreamException e ){
+          //the stream itself is closed by the caller
+        }
+      }
+    }
+  }
+
+  private XMLInputFactory getFactory(){
+    XMLInputFactory factory = factoryLocal.get();
+    if( factory == null ){
+      factory = XMLInputFactory.newInstance();
+      factory.setProperty( XMLInputFactory.IS_VALIDATING, false );
+      factory.setProperty( XMLInputFactory.IS_COALESCING, false );
+      /////// SECURITY-RELATED RESTRICTIONS ///////
+      factory.setProperty( XMLInputFactory.SUPPORT_DTD, false );
+      factory.setProperty( XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false );
+      factoryLocal.set( factory );
+    }
+    return factory;
+  }
+
+  /**
+   * @return a validation error with the message of a parse error, without the location the parser prefixes it with
+   */
+  private static ValidationError toValidationError( XMLStreamException e, String name ){
+    String message = e.getMessage();
+    int messageStart = message == null ? -1 : message.indexOf( "Message: " );
+    if( messageStart >= 0 ){
+      message = message.substring( messageStart + "Message: ".length() );
+    }
+    message = formatNamespaceMessage( message );
+    Location location = e.getLocation();
+    if( location == null ){
+      return new ValidationError( message, name, ValidationError.UNKNOWN, ValidationError.UNKNOWN );
+    }
+    return new ValidationError( message, name, location.getLineNumber(), location.getColumnNumber() );
+  }
+
+  /**
+   * The JDK's parser reports namespace errors as their message key and arguments, such as
+   * "http://www.w3.org/TR/1999/REC-xml-names-19990114#ElementPrefixUnbound?p&amp;p:a".  These are formatted with the
+   * Xerces messages, as XML schema validation reports them
+   */
+  private static String formatNamespaceMessage( String message ){
+    if( message == null || !message.startsWith( NAMESPACE_MESSAGE_DOMAIN ) ){
+      return message;
+    }
+    String key = message.substring( NAMESPACE_MESSAGE_DOMAIN.length() );
+    String[] arguments = new String[0];
+    int argumentsStart = key.indexOf( '?' );
+    if( argumentsStart >= 0 ){
+      arguments = key.substring( argumentsStart + 1 ).split( "&" );
+      key = key.substring( 0, argumentsStart );
+    }
+    try {
+      return new XMLMessageFormatter().formatMessage( Locale.getDefault(), key, arguments );
+    }
+    catch( MissingResourceException e ){
+      return message;
+    }
+  }
+
+  private static ValidationError createTimeoutError( String name ){
+    return new ValidationTimeoutError( "Well-formedness check did not complete before its deadline", name );
+  }
+}
@@ -4,28 +4,74 @@
 
 package edu.ucar.ral.crux;
 
+import org.apache.xerces.impl.XMLEntityManager;
+import org.apache.xerces.impl.xs.SchemaGrammar;
+import org.apache.xerces.impl.xs.XSModelImpl;
+import org.apache.xerces.parsers.XMLGrammarPreparser;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.XMLResourceIdentifier;
+import org.apache.xerces.xni.grammars.Grammar;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLEntityResolver;
+import org.apache.xerces.xni.parser.XMLInputSource;
+import org.apache.xerces.xs.StringList;
+import org.apache.xerces.xs.XSComplexTypeDefinition;
+import org.apache.xerces.xs.XSConstants;
+import org.apache.xerces.xs.XSElementDeclaration;
+import org.apache.xerces.xs.XSModel;
+import org.apache.xerces.xs.XSModelGroup;
+import org.apache.xerces.xs.XSObjectList;
+import org.apache.xerces.xs.XSParticle;
+import org.apache.xerces.xs.XSTerm;
+import org.apache.xerces.xs.XSTypeDefinition;
+import org.xml.sax.Attributes;
 import org.xml.sax.ErrorHandler;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 import org.xml.sax.SAXParseException;
 import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
 
 import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
 
 /**
  * Validator of XML and XSD files against XML schema 1.0
  */
 public class XML10Validator {
   private static final String VALIDATION_FAILED_PREFIX = "Validation failed ";
+  private static final String GRAMMAR_POOL_PROPERTY = "http://apache.org/xml/properties/internal/grammar-pool";
+  private static final String ROOT_ELEMENT_DECLARATION_PROPERTY = "http://apache.org/xml/properties/validation/schema/root-element-declaration";
+  //the XML Schema 1.0 meta-schema and its xml.xsd import, bundled so that XSD files are validated without network access
+  private static final String META_SCHEMA_RESOURCE = "/xmlschema/XMLSchema.xsd";
+
+  //the compiled meta-schema, shared by every validator in the JVM.  The pool is locked once the meta-schema is loaded
+  private static XMLGrammarPool metaSchemaGrammarPool;
 
   private XMLCatalogResolver resolver;
   private boolean allowingRemoteResources = false;
+  //compiled schema grammars are kept here and reused by every subsequent validation with this validator, by namespace
+  //and schema location.  The pool is synchronized so it may be shared between threads
+  private final SchemaGrammarPool grammarPool = new SchemaGrammarPool();
+  //the declarations record elements are validated against, by the path of the record element from the root element
+  private final Map<List<QName>,XSElementDeclaration> recordDeclarations = new ConcurrentHashMap<>();
 
   public XML10Validator(){
     resolver = new XMLCatalogResolver( null, true );
@@ -33,7 +79,8 @@ public class XML10Validator {
 
   /**
    * Construct a XML10Validator with a set of catalog file locations
-   * @param catalogLocations the locations of catalog files to use during validation.  May be null
+   * @param catalogLocations the locations of catalog files or {@link ProfileBundle profile bundles} to use during
+   *                         validation.  May be null
    */
   public XML10Validator( String... catalogLocations ){
     resolver = new XMLCatalogResolver( catalogLocations, true );
@@ -49,6 +96,245 @@ public class XML10Validator {
    * @throws ValidationException when validation failures occur
    */
   public void validate( String xsdOrXmlFilePath ) throws ParserConfigurationException, SAXException, ValidationException, IOException {
+    validate( xsdOrXmlFilePath, Deadline.NONE );
+  }
+
+  /**
+   * Validate an XSD or XML file against its XML Schema, stopping once the deadline has passed.  The deadline is checked
+   * as each element is parsed; if it passes the validation fails with a {@link ValidationTimeoutError}
+   * @param xsdOrXmlFilePath the XML or XSD file to be validated, either a local path such as "/tmp/foo.xml" or
+   *                         "file:///tmp/foo.xml", or a remote path such as "http://foo.org/foo.xml"
+   * @param deadline the time by which validation must complete
+   * @throws IOException if problems are encountered reading the file
+   * @throws SAXException when SAX parsing problems are encountered
+   * @throws ParserConfigurationException when SAX initialization fails
+   * @throws ValidationException when validation failures occur or the deadline passes
+   */
+  public void validate( String xsdOrXmlFilePath, Deadline deadline ) throws ParserConfigurationException, SAXException, ValidationException, IOException {
+    List<ValidationError> failures = new ArrayList<>();
+    CompressedInput compressed = CompressedInput.detect( xsdOrXmlFilePath );
+    if( compressed != null ){
+      try( InputStream in = compressed.open() ){
+        parse( createInputSource( in, compressed ), xsdOrXmlFilePath, null, deadline, failures );
+      }
+    }
+    else {
+      parse( new InputSource( xsdOrXmlFilePath ), xsdOrXmlFilePath, null, deadline, failures );
+    }
+    if( failures.size() > 0 ){
+      throw new ValidationException( VALIDATION_FAILED_PREFIX, failures );
+    }
+  }
+
+  /**
+   * Validate an XSD or XML file against its XML Schema, returning the outcome rather than throwing it.  Validation
+   * failures, malformed XML and unreadable files are all reported as errors in the result
+   * @param xsdOrXmlFilePath the XML or XSD file to be validated, either a local path such as "/tmp/foo.xml" or
+   *                         "file:///tmp/foo.xml", or a remote path such as "http://foo.org/foo.xml"
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xsdOrXmlFilePath ){
+    return validateToResult( xsdOrXmlFilePath, Deadline.NONE );
+  }
+
+  /**
+   * Validate an XSD or XML file against its XML Schema, returning the outcome rather than throwing it, and stopping
+   * once the deadline has passed
+   * @param xsdOrXmlFilePath the XML or XSD file to be validated, either a local path such as "/tmp/foo.xml" or
+   *                         "file:///tmp/foo.xml", or a remote path such as "http://foo.org/foo.xml"
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( String xsdOrXmlFilePath, Deadline deadline ){
+    //compressed files are decompressed as they are parsed
+    CompressedInput compressed = CompressedInput.detect( xsdOrXmlFilePath );
+    if( compressed != null ){
+      return validateToResult( compressed, deadline );
+    }
+    return validateToResult( new InputSource( xsdOrXmlFilePath ), xsdOrXmlFilePath, deadline );
+  }
+
+  /**
+   * Validate XML or XSD content which is not a plain file, such as an archive entry, against its XML Schema, returning
+   * the outcome rather than throwing it
+   * @param input the XML or XSD content to validate
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( ValidationInput input, Deadline deadline ){
+    try( InputStream in = input.open() ){
+      return validateToResult( createInputSource( in, input ), input.getName(), deadline );
+    }
+    catch( IOException e ){
+      List<ValidationError> failures = new ArrayList<>( 1 );
+      failures.add( new ValidationError( e.toString(), input.getName(), ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      return new ValidationResult( input.getName(), failures, 0 );
+    }
+  }
+
+  /**
+   * Validate a record split from a larger document against the declaration of the record element in the schema of the
+   * document, as though it were validated in place.  Errors are reported on the lines of the original document
+   * @param record the record to validate
+   * @param deadline the time by which validation must complete
+   * @return the result of validation
+   */
+  public ValidationResult validateToResult( Record record, Deadline deadline ){
+    ValidationResult result;
+    try( InputStream in = record.open() ){
+      result = validateToResult( createInputSource( in, record ), record.getName(), getRecordDeclaration( record, deadline ), deadline );
+    }
+    catch( IOException e ){
+      List<ValidationError> failures = new ArrayList<>( 1 );
+      failures.add( new ValidationError( e.toString(), record.getName(), ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+      return new ValidationResult( record.getName(), failures, 0 );
+    }
+    List<ValidationError> failures = new ArrayList<>( result.getErrors().size() );
+    for( ValidationError failure : result.getErrors() ){
+      failures.add( record.toDocumentError( failure ) );
+    }
+    return new ValidationResult( record.getName(), failures, result.getElapsedMs() );
+  }
+
+  /**
+   * @return the declaration of the record element, found by following the record's ancestors down from the global
+   * declaration of the root element, or null if it could not be found
+   * @param deadline the time by which the schemas of the document must be loaded
+   */
+  private XSElementDeclaration getRecordDeclaration( Record record, Deadline deadline ){
+    List<QName> path = record.getPath();
+    XSElementDeclaration declaration = recordDeclarations.get( path );
+    if( declaration == null ){
+      if( getSchemaGrammar( path.get( 0 ).getNamespaceURI() ) == null ){
+        //the schemas the document refers to are loaded by validating its root element, whose errors are not of interest
+        try( InputStream in = record.openAncestors() ){
+          parse( createInputSource( in, record ), record.getName(), null, deadline, new ArrayList<ValidationError>() );
+        }
+        catch( SAXException | IOException | ParserConfigurationException e ){
+          //the record is validated without a declaration, which reports the problem
+        }
+      }
+      declaration = findElementDeclaration( path );
+      if( declaration != null ){
+        recordDeclarations.put( path, declaration );
+      }
+    }
+    return declaration;
+  }
+
+  private XSElementDeclaration findElementDeclaration( List<QName> path ){
+    List<SchemaGrammar> grammars = getSchemaGrammars();
+    XSModel model = new XSModelImpl( grammars.toArray( new SchemaGrammar[grammars.size()] ) );
+    XSElementDeclaration declaration = null;
+    for( QName name : path ){
+      XSElementDeclaration child = declaration == null ? null : findChildDeclaration( model, declaration.getTypeDefinition(), name );
+      if( child == null ){
+        //the root element, or an element allowed by a wildcard
+        child = model.getElementDeclaration( name.getLocalPart(), emptyToNull( name.getNamespaceURI() ) );
+      }
+      if( child == null ){
+        return null;
+      }
+      declaration = child;
+    }
+    return declaration;
+  }
+
+  private static XSElementDeclaration findChildDeclaration( XSModel model, XSTypeDefinition type, QName name ){
+    if( !( type instanceof XSComplexTypeDefinition ) || ( (XSComplexTypeDefinition) type ).getParticle() == null ){
+      return null;
+    }
+    return findDeclaration( model, ( (XSComplexTypeDefinition) type ).getParticle().getTerm(), name );
+  }
+
+  private static XSElementDeclaration findDeclaration( XSModel model, XSTerm term, QName name ){
+    if( term instanceof XSElementDeclaration ){
+      XSElementDeclaration declaration = (XSElementDeclaration) term;
+      if( isNamed( declaration, name ) ){
+        return declaration;
+      }
+      if( declaration.getScope() == XSConstants.SCOPE_GLOBAL ){
+        XSObjectList substitutes = model.getSubstitutionGroup( declaration );
+        for( int i = 0; substitutes != null && i < substitutes.getLength(); i++ ){
+          if( isNamed( (XSElementDeclaration) substitutes.item( i ), name ) ){
+            return (XSElementDeclaration) substitutes.item( i );
+          }
+        }
+      }
+    }
+    else if( term instanceof XSModelGroup ){
+      XSObjectList particles = ( (XSModelGroup) term ).getParticles();
+      for( int i = 0; i < particles.getLength(); i++ ){
+        XSElementDeclaration declaration = findDeclaration( model, ( (XSParticle) particles.item( i ) ).getTerm(), name );
+        if( declaration != null ){
+          return declaration;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static boolean isNamed( XSElementDeclaration declaration, QName name ){
+    String namespace = emptyToNull( name.getNamespaceURI() );
+    return declaration.getName().equals( name.getLocalPart() ) &&
+      ( namespace == null ? declaration.getNamespace() == null : namespace.equals( declaration.getNamespace() ) );
+  }
+
+  private static String emptyToNull( String namespace ){
+    return namespace == null || namespace.isEmpty() ? null : namespace;
+  }
+
+  private SchemaGrammar getSchemaGrammar( String namespace ){
+    for( SchemaGrammar grammar : getSchemaGrammars() ){
+      String targetNamespace = grammar.getTargetNamespace();
+      if( targetNamespace == null ? emptyToNull( namespace ) == null : targetNamespace.equals( namespace ) ){
+        return grammar;
+      }
+    }
+    return null;
+  }
+
+  private static InputSource createInputSource( InputStream in, ValidationInput input ){
+    InputSource source = new InputSource( in );
+    source.setSystemId( input.getSystemId() );
+    return source;
+  }
+
+  private ValidationResult validateToResult( InputSource source, String fileName, Deadline deadline ){
+    return validateToResult( source, fileName, null, deadline );
+  }
+
+  /**
+   * @param rootDeclaration the declaration the root element is validated against, or null to use the global
+   *                        declaration of its name
+   */
+  private ValidationResult validateToResult( InputSource source, String fileName, XSElementDeclaration rootDeclaration, Deadline deadline ){
+    long startMs = System.currentTimeMillis();
+    List<ValidationError> failures = new ArrayList<>();
+    try {
+      parse( source, fileName, rootDeclaration, deadline, failures );
+    }
+    catch( SAXParseException e ){
+      //fatal errors have normally been passed to the error handler already, before parsing was stopped
+      if( failures.isEmpty() || !failures.get( failures.size() - 1 ).getError().equals( e.getMessage() ) ){
+        failures.add( new ValidationError( e.getMessage(), fileName, e.getLineNumber(), e.getColumnNumber() ) );
+      }
+    }
+    catch( SAXException | IOException | ParserConfigurationException e ){
+      failures.add( new ValidationError( e.toString(), fileName, ValidationError.UNKNOWN, ValidationError.UNKNOWN ) );
+    }
+    return new ValidationResult( fileName, failures, System.currentTimeMillis() - startMs );
+  }
+
+  /**
+   * Parse and validate a file, adding validation failures to a list
+   * @throws SAXParseException when the file is not well-formed
+   */
+  private void parse( InputSource source, String xsdOrXmlFilePath, XSElementDeclaration rootDeclaration, Deadline deadline, List<ValidationError> failures ) throws ParserConfigurationException, SAXException, IOException {
+    if( deadline.isExpired() ){
+      failures.add( createTimeoutError( xsdOrXmlFilePath ) );
+      return;
+    }
     SAXParserFactory factory = SAXParserFactory.newInstance();
     factory.setValidating( true );
     factory.setNamespaceAware( true );
@@ -63,27 +349,193 @@ public class XML10Validator {
     factory.setXIncludeAware( false );
     factory.setFeature( XMLConstants.FEATURE_SECURE_PROCESSING, true );
 
-    MyErrorHandler errorHandler = new MyErrorHandler( xsdOrXmlFilePath );
+    MyErrorHandler errorHandler = new MyErrorHandler( xsdOrXmlFilePath, failures );
     SAXParser parser = factory.newSAXParser();
     parser.setProperty( "http://java.sun.com/xml/jaxp/properties/schemaLanguage", "http://www.w3.org/2001/XMLSchema" );
 
-    //if this is a schema document, validate it against the XML Schema 1.0 XSD
-    if( xsdOrXmlFilePath.endsWith( ".xsd" ) ) {
-      parser.setProperty( "http://java.sun.com/xml/jaxp/properties/schemaSource", "http://www.w3.org/2001/XMLSchema.xsd" );
-    }
-
     XMLReader reader = parser.getXMLReader();
     /////// SECURITY-RELATED RESTRICTIONS ///////
     reader.setFeature( "http://xml.org/sax/features/external-general-entities", false );
 
     resolver.setAllowingRemoteResources( isAllowingRemoteResources() );
-    reader.setProperty( "http://apache.org/xml/properties/internal/entity-resolver", resolver );
+    XMLEntityResolver entityResolver = deadline.isBounded() ? new DeadlineEntityResolver( resolver, deadline ) : resolver;
+    //if this is a schema document, validate it against the bundled XML Schema 1.0 XSD
+    if( isSchemaDocument( xsdOrXmlFilePath ) ){
+      reader.setProperty( "http://apache.org/xml/properties/internal/entity-resolver", entityResolver );
+      reader.setProperty( GRAMMAR_POOL_PROPERTY, getMetaSchemaGrammarPool() );
+    }
+    else{
+      reader.setProperty( "http://apache.org/xml/properties/internal/entity-resolver", grammarPool.wrap( entityResolver ) );
+      reader.setProperty( GRAMMAR_POOL_PROPERTY, grammarPool );
+    }
+    if( rootDeclaration != null ){
+      reader.setProperty( ROOT_ELEMENT_DECLARATION_PROPERTY, rootDeclaration );
+    }
     reader.setErrorHandler( errorHandler );
-    reader.parse( new InputSource( xsdOrXmlFilePath ) );
-    List<ValidationError> failures = errorHandler.getFailures();
-    if( failures.size() > 0 ){
-      throw new ValidationException( VALIDATION_FAILED_PREFIX, failures );
+    if( deadline.isBounded() ){
+      reader.setContentHandler( new DeadlineHandler( deadline ) );
+    }
+    try {
+      reader.parse( source );
+    }
+    catch( DeadlineExceededException e ){
+      failures.add( createTimeoutError( xsdOrXmlFilePath ) );
+    }
+  }
+
+  /**
+   * @return whether a file is a schema document, judging by its extension once any compression extension is removed
+   */
+  static boolean isSchemaDocument( String xsdOrXmlFilePath ){
+    String name = xsdOrXmlFilePath;
+    for( Compression compression : Compression.values() ){
+      name = compression.stripExtension( name );
+    }
+    return name.endsWith( ".xsd" );
+  }
+
+  /**
+   * Load the schemas a file refers to into this validator's grammar cache ahead of validating it, by validating an
+   * empty copy of its root element
+   * @param root the root element of a file
+   * @param deadline the time by which the schemas must be loaded, after which the file loads them when it is validated
+   */
+  public void preload( RootElement root, Deadline deadline ){
+    ValidationInput input = root.toEmptyDocument();
+    try( InputStream in = input.open() ){
+      //the empty root element is rarely valid, and the errors are not of interest
+      parse( createInputSource( in, input ), input.getName(), null, deadline, new ArrayList<ValidationError>() );
+    }
+    catch( SAXException | IOException | ParserConfigurationException e ){
+      //the file itself reports the problem when it is validated
+    }
+  }
+
+  /**
+   * Discard the compiled grammars built from a schema document, along with every grammar which imports them, so that
+   * they are recompiled from disk by the next validation which needs them
+   * @param schemaFile a local schema document which has changed
+   * @return the target namespaces of the discarded grammars, which is empty if the document was not in use
+   * @throws IOException if the canonical path of the schema document could not be determined
+   */
+  public Set<String> invalidate( File schemaFile ) throws IOException {
+    final File changedFile = schemaFile.getCanonicalFile();
+    Set<SchemaGrammar> stale = getStaleGrammars( changedFile::equals );
+    if( !stale.isEmpty() ){
+      recordDeclarations.clear();
+    }
+    Set<String> namespaces = new HashSet<>();
+    for( SchemaGrammar grammar : stale ){
+      grammarPool.removeGrammar( grammar );
+      namespaces.add( grammar.getTargetNamespace() );
+    }
+    return namespaces;
+  }
+
+  /**
+   * Copy the compiled grammars of another validator using the same catalogs into this validator's grammar cache, except
+   * those built from a changed schema document and those importing them.  The other validator is left unchanged, so
+   * validations still running with it are not affected
+   * @param previous the validator whose grammars are copied
+   * @param changed whether a local schema document has changed since the grammars built from it were compiled
+   * @return the number of grammars copied
+   */
+  int carryOverGrammars( XML10Validator previous, Predicate<File> changed ){
+    Set<SchemaGrammar> stale = previous.getStaleGrammars( changed );
+    List<Grammar> kept = new ArrayList<>();
+    for( SchemaGrammar grammar : previous.getSchemaGrammars() ){
+      if( !stale.contains( grammar ) ){
+        kept.add( grammar );
+      }
+    }
+    grammarPool.cacheGrammars( XMLGrammarDescription.XML_SCHEMA, kept.toArray( new Grammar[kept.size()] ) );
+    return kept.size();
+  }
+
+  /**
+   * @param changed whether a local schema document has changed
+   * @return the grammars built from a changed schema document, along with every grammar which imports them
+   */
+  private Set<SchemaGrammar> getStaleGrammars( Predicate<File> changed ){
+    Set<SchemaGrammar> stale = new HashSet<>();
+    for( SchemaGrammar grammar : getSchemaGrammars() ){
+      for( File file : getLocalDocuments( grammar ) ){
+        if( changed.test( file ) ){
+          stale.add( grammar );
+        }
+      }
+    }
+    //grammars which import a stale grammar refer to its components, so they are stale as well
+    boolean added = !stale.isEmpty();
+    while( added ){
+      added = false;
+      for( SchemaGrammar grammar : getSchemaGrammars() ){
+        List<?> imported = grammar.getImportedGrammars();
+        if( !stale.contains( grammar ) && imported != null && !Collections.disjoint( imported, stale ) ){
+          stale.add( grammar );
+          added = true;
+        }
+      }
+    }
+    return stale;
+  }
+
+  /**
+   * @return the local schema documents from which the grammars currently cached by this validator were compiled
+   */
+  Set<File> getCachedSchemaFiles() {
+    Set<File> files = new HashSet<>();
+    for( SchemaGrammar grammar : getSchemaGrammars() ){
+      files.addAll( getLocalDocuments( grammar ) );
     }
+    return files;
+  }
+
+  /**
+   * @return the grammars currently cached by this validator
+   */
+  List<SchemaGrammar> getSchemaGrammars() {
+    return grammarPool.getGrammars();
+  }
+
+  private static List<File> getLocalDocuments( SchemaGrammar grammar ) {
+    List<File> files = new ArrayList<>();
+    StringList locations = grammar.getDocumentLocations();
+    for( int i = 0; i < locations.getLength(); i++ ){
+      String location = locations.item( i );
+      //documents inside a profile bundle, such as "file:/path/profile.crux!/schemas/file.xsd", are not local files
+      if( location != null && location.startsWith( "file:" ) && !location.contains( "!/" ) ){
+        try {
+          files.add( new File( new URI( location ) ).getCanonicalFile() );
+        }
+        catch( Exception e ){
+          //locations which are not plain file URIs cannot be watched or matched against local files
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * @return a locked pool holding the compiled XML Schema 1.0 meta-schema, compiling it on first use
+   * @throws IOException if the bundled meta-schema could not be read
+   */
+  static synchronized XMLGrammarPool getMetaSchemaGrammarPool() throws IOException {
+    if( metaSchemaGrammarPool == null ){
+      URL metaSchema = XML10Validator.class.getResource( META_SCHEMA_RESOURCE );
+      if( metaSchema == null ){
+        throw new IOException( "Could not find bundled XML schema " + META_SCHEMA_RESOURCE );
+      }
+      XMLGrammarPool pool = new XMLGrammarPoolImpl();
+      XMLGrammarPreparser preparser = new XMLGrammarPreparser();
+      preparser.registerPreparser( XMLGrammarDescription.XML_SCHEMA, null );
+      preparser.setGrammarPool( pool );
+      preparser.setFeature( "http://xml.org/sax/features/namespaces", true );
+      preparser.preparseGrammar( XMLGrammarDescription.XML_SCHEMA, new XMLInputSource( null, metaSchema.toString(), null ) );
+      pool.lockPool();
+      metaSchemaGrammarPool = pool;
+    }
+    return metaSchemaGrammarPool;
   }
 
   public boolean isAllowingRemoteResources() {
@@ -98,19 +550,81 @@ public class XML10Validator {
     this.allowingRemoteResources = allowingRemoteResources;
   }
 
+  private static ValidationError createTimeoutError( String xsdOrXmlFilePath ){
+    return new ValidationTimeoutError( "XML schema validation did not complete before its deadline", xsdOrXmlFilePath );
+  }
+
+  /**
+   * Cooperatively stops parsing once a deadline has passed
+   */
+  private static class DeadlineHandler extends DefaultHandler {
+    private final Deadline deadline;
+    private DeadlineHandler( Deadline deadline ){ this.deadline = deadline; }
+
+    @Override
+    public void startElement( String uri, String localName, String qName, Attributes attributes ) throws SAXException {
+      if( deadline.isExpired() ){
+        throw new DeadlineExceededException();
+      }
+    }
+  }
+
+  /**
+   * Opens remote schemas itself, so connecting to and reading from a server which does not answer gives up once the
+   * deadline of the validation has passed
+   */
+  private static class DeadlineEntityResolver implements XMLEntityResolver {
+    private final XMLEntityResolver resolver;
+    private final Deadline deadline;
+
+    private DeadlineEntityResolver( XMLEntityResolver resolver, Deadline deadline ){
+      this.resolver = resolver;
+      this.deadline = deadline;
+    }
+
+    @Override
+    public XMLInputSource resolveEntity( XMLResourceIdentifier identifier ) throws IOException {
+      XMLInputSource source = resolver.resolveEntity( identifier );
+      String systemId;
+      if( source == null ){
+        //unresolved identifiers are read from where they point
+        systemId = identifier == null ? null : identifier.getExpandedSystemId();
+      }
+      else if( source.getByteStream() == null && source.getCharacterStream() == null && source.getSystemId() != null ){
+        systemId = XMLEntityManager.expandSystemId( source.getSystemId(), source.getBaseSystemId(), false );
+      }
+      else{
+        return source;
+      }
+      if( systemId == null || Utils.isLocalFile( systemId ) || systemId.startsWith( "jar:" ) ){
+        return source;
+      }
+      if( source == null ){
+        source = new XMLInputSource( identifier.getPublicId(), systemId, identifier.getBaseSystemId() );
+      }
+      source.setByteStream( Utils.openStream( new URL( systemId ), deadline ) );
+      return source;
+    }
+  }
+
+  private static class DeadlineExceededException extends SAXException {
+    private static final long serialVersionUID = 1L;
+
+    private DeadlineExceededException(){ super( "Validation deadline exceeded" ); }
+  }
+
   /**
    * Gathers the warnings and errors into a list of ValidationErrors
    */
   private static class MyErrorHandler implements ErrorHandler {
     private String fileName;
-    private MyErrorHandler( String fileName ){ this.fileName = fileName; }
+    private List<ValidationError> failures;
 
-    public List<ValidationError> getFailures() {
-      return failures;
+    private MyErrorHandler( String fileName, List<ValidationError> failures ){
+      this.fileName = fileName;
+      this.failures = failures;
     }
 
-    private List<ValidationError> failures = new ArrayList<>();
-
     @Override
     public void warning(SAXParseException exception) throws SAXException {
       failures.add( createFailure( exception ) );
@@ -130,4 +644,4 @@ public class XML10Validator {
       return new ValidationError( exception.getMessage(), fileName, exception.getLineNumber(), exception.getColumnNumber() );
     }
   }
-}
\ No newline at end of file
+}
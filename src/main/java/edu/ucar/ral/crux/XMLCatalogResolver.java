@@ -31,9 +31,14 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
- * Extends Xerces's XMLCatalogResolver for debugging purposes
+ * Extends Xerces's XMLCatalogResolver for debugging purposes, to resolve schemas from profile bundles, and to resolve
+ * system identifiers and namespaces through a {@link CatalogIndex} rather than by scanning the catalogs.  The index is
+ * rebuilt, and the Xerces catalogs reloaded, when a catalog file changes
  */
 public class XMLCatalogResolver extends org.apache.xerces.util.XMLCatalogResolver{
   private static final Logger LOG = LoggerFactory.getLogger( XMLCatalogResolver.class );
@@ -41,24 +46,56 @@ public class XMLCatalogResolver extends org.apache.xerces.util.XMLCatalogResolve
   //whether remote content should be resolved.  When false, remote resources (i.e., schemas) are not loaded
   private boolean allowingRemoteResources = false;
 
+  //the profile bundles consulted before the catalogs, see ProfileBundle
+  private List<String> bundleLocations = new ArrayList<>();
+
+  //how often the catalog files are checked for changes, so lookups between checks do not touch the file system
+  static final long DEFAULT_CATALOG_CHECK_INTERVAL_MS = 1000;
+
+  //the index of the catalogs, built on first use as the Xerces catalogs are
+  private volatile CatalogIndex catalogIndex;
+  private final Object catalogIndexLock = new Object();
+  private long catalogCheckIntervalMs = DEFAULT_CATALOG_CHECK_INTERVAL_MS;
+  //when the catalogs are next checked for changes
+  private volatile long nextCatalogCheckMs;
+
   public XMLCatalogResolver() {super();}
 
   /**
-   * @param catalogLocations the path to XML catalog files
+   * @param catalogLocations the path to XML catalog files or profile bundles
    */
   public XMLCatalogResolver( String[] catalogLocations ) {
-    setCatalogList( catalogLocations );
+    setCatalogList( splitBundles( catalogLocations ) );
   }
 
   /**
-   * @param catalogLocations the path to XML catalog files
+   * @param catalogLocations the path to XML catalog files or profile bundles
    * @param preferPublic whether public or system matches are preferred
    */
   public XMLCatalogResolver(String[] catalogLocations, boolean preferPublic) {
-    setCatalogList(catalogLocations);
+    setCatalogList( splitBundles( catalogLocations ) );
     setPreferPublic(preferPublic);
   }
 
+  /**
+   * @return the catalog locations which are not profile bundles, which are kept for resolution from the bundles
+   */
+  private String[] splitBundles( String[] catalogLocations ) {
+    if( catalogLocations == null ) {
+      return null;
+    }
+    List<String> catalogs = new ArrayList<>();
+    for( String location : catalogLocations ) {
+      if( ProfileBundle.isBundle( location ) ) {
+        bundleLocations.add( location );
+      }
+      else {
+        catalogs.add( location );
+      }
+    }
+    return catalogs.toArray( new String[catalogs.size()] );
+  }
+
   @Override
   public InputSource resolveEntity( String s, String s1 ) throws SAXException, IOException {
     return super.resolveEntity( s, s1 );
@@ -81,16 +118,29 @@ public class XMLCatalogResolver extends org.apache.xerces.util.XMLCatalogResolve
 
   @Override
   public XMLInputSource resolveEntity( XMLResourceIdentifier xmlResourceIdentifier ) throws XNIException, IOException {
+    if( xmlResourceIdentifier != null ) {
+      for( String bundleLocation : bundleLocations ) {
+        //the bundle is opened again only if the file has been replaced
+        ProfileBundle bundle = ProfileBundle.open( bundleLocation );
+        String name = bundle.resolve( xmlResourceIdentifier.getNamespace(), xmlResourceIdentifier.getPublicId(),
+          xmlResourceIdentifier.getLiteralSystemId(), xmlResourceIdentifier.getExpandedSystemId() );
+        if( name != null ) {
+          LOG.debug( "Resolved {} to {} in bundle {}", xmlResourceIdentifier.getLiteralSystemId(), name, bundleLocation );
+          return new XMLInputSource( xmlResourceIdentifier.getPublicId(), bundle.getSystemId( name ),
+            xmlResourceIdentifier.getBaseSystemId(), bundle.openDocument( name ), null );
+        }
+      }
+    }
     return super.resolveEntity( xmlResourceIdentifier );
   }
 
   @Override
   public String resolveIdentifier( XMLResourceIdentifier xmlResourceIdentifier ) throws IOException, XNIException {
     if( xmlResourceIdentifier == null || !(xmlResourceIdentifier instanceof XSDDescription) || xmlResourceIdentifier.getNamespace() == null ){
-      return super.resolveIdentifier( xmlResourceIdentifier );
+      return resolveIndexedIdentifier( xmlResourceIdentifier );
     }
     XSDDescription desc = (XSDDescription) xmlResourceIdentifier;
-    String id = super.resolveIdentifier(xmlResourceIdentifier);
+    String id = resolveIndexedIdentifier(xmlResourceIdentifier);
 
     String expandedSystemId = id;
     if (expandedSystemId == null) {
@@ -101,7 +151,8 @@ public class XMLCatalogResolver extends org.apache.xerces.util.XMLCatalogResolve
       throw new IOException( String.format( "Identifier %s is not resolved, check if xsi:schemaLocation and xmlns:xsi attributes are correctly defined.", desc.getNamespace() ) );
     }
 
-    if( !expandedSystemId.startsWith("file:") ) {
+    //schemas inside a local zip archive are addressed with jar:file: URIs
+    if( !expandedSystemId.startsWith("file:") && !expandedSystemId.startsWith("jar:file:") ) {
       if( ! allowingRemoteResources ) {
         LOG.warn( "Remote resources are disabled and identifier {} does not resolve to local path (resolved to {})", desc.getTargetNamespace(), expandedSystemId );
         throw new IOException(
@@ -118,6 +169,63 @@ public class XMLCatalogResolver extends org.apache.xerces.util.XMLCatalogResolve
     return id;
   }
 
+  /**
+   * Resolve an identifier as {@link org.apache.xerces.util.XMLCatalogResolver#resolveIdentifier(XMLResourceIdentifier)}
+   * does, by namespace and then by system identifier, but through the catalog index when it can.  Public identifiers are
+   * resolved by the Xerces catalogs
+   */
+  private String resolveIndexedIdentifier( XMLResourceIdentifier xmlResourceIdentifier ) throws IOException {
+    CatalogIndex index = getCatalogIndex();
+    if( index == null || xmlResourceIdentifier == null || xmlResourceIdentifier.getPublicId() != null ) {
+      return super.resolveIdentifier( xmlResourceIdentifier );
+    }
+    String namespace = xmlResourceIdentifier.getNamespace();
+    String systemId = getUseLiteralSystemId() ? xmlResourceIdentifier.getLiteralSystemId() : xmlResourceIdentifier.getExpandedSystemId();
+    if( ( namespace != null && !CatalogIndex.canResolve( namespace ) ) || ( systemId != null && !CatalogIndex.canResolve( systemId ) ) ) {
+      return super.resolveIdentifier( xmlResourceIdentifier );
+    }
+    String resolvedId = namespace == null ? null : index.resolveURI( namespace );
+    if( resolvedId == null && systemId != null ) {
+      resolvedId = index.resolveSystem( systemId );
+    }
+    return resolvedId;
+  }
+
+  /**
+   * @return the index of the current catalogs, rebuilt if the catalog list or a catalog file has changed, or null if the
+   * catalogs could not be indexed.  Changes are looked for at most once per check interval
+   */
+  private CatalogIndex getCatalogIndex() {
+    CatalogIndex index = catalogIndex;
+    long nowMs = System.currentTimeMillis();
+    if( index == null || nowMs >= nextCatalogCheckMs ) {
+      synchronized( catalogIndexLock ) {
+        index = catalogIndex;
+        String[] catalogs = getCatalogList();
+        nextCatalogCheckMs = nowMs + catalogCheckIntervalMs;
+        if( index == null || !index.isCurrent( catalogs ) ) {
+          if( index != null ) {
+            LOG.info( "Catalogs {} have changed, reloading them", Arrays.toString( catalogs ) );
+            //the Xerces catalogs are loaded once, so are reloaded for the identifiers the index leaves to them
+            setCatalogList( catalogs );
+          }
+          index = CatalogIndex.build( catalogs );
+          catalogIndex = index;
+        }
+      }
+    }
+    return index.isUsable() ? index : null;
+  }
+
+  /**
+   * @param catalogCheckIntervalMs how often, at most, the catalog list and catalog files are checked for changes.  0
+   *                               checks on every lookup
+   */
+  void setCatalogCheckIntervalMs( long catalogCheckIntervalMs ) {
+    this.catalogCheckIntervalMs = catalogCheckIntervalMs;
+    nextCatalogCheckMs = 0;
+  }
+
   public boolean isAllowingRemoteResources() {
     return allowingRemoteResources;
   }
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tests for running batches of jobs within a memory budget
+ */
+public class AdmissionSchedulerTest {
+
+  @Test
+  public void testBudget() throws Exception{
+    final AtomicLong reserved = new AtomicLong();
+    final AtomicLong maxReserved = new AtomicLong();
+    final AtomicInteger largeRunning = new AtomicInteger();
+    final AtomicInteger maxLargeRunning = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    final AtomicInteger running = new AtomicInteger();
+    List<AdmissionScheduler.Job<Integer>> jobs = new ArrayList<>();
+    for( int i = 0; i < 40; i++ ){
+      final int index = i;
+      //every tenth job is large, needing 60% of the budget
+      final long memoryBytes = i % 10 == 0 ? 600 : 10;
+      jobs.add( new AdmissionScheduler.Job<>( memoryBytes, () -> {
+        maxReserved.accumulateAndGet( reserved.addAndGet( memoryBytes ), Math::max );
+        maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+        if( memoryBytes > 10 ){
+          maxLargeRunning.accumulateAndGet( largeRunning.incrementAndGet(), Math::max );
+        }
+        try {
+          Thread.sleep( memoryBytes > 10 ? 50 : 5 );
+        }
+        catch( InterruptedException e ){
+          Thread.currentThread().interrupt();
+        }
+        if( memoryBytes > 10 ){
+          largeRunning.decrementAndGet();
+        }
+        running.decrementAndGet();
+        reserved.addAndGet( -memoryBytes );
+        return index;
+      } ) );
+    }
+    List<Integer> results = new AdmissionScheduler( 4, 1000 ).run( jobs );
+    for( int i = 0; i < results.size(); i++ ){
+      Assert.assertEquals( "Results should be in the order of the jobs", i, (int) results.get( i ) );
+    }
+    Assert.assertTrue( "The budget was exceeded: " + maxReserved.get(), maxReserved.get() <= 1000 );
+    Assert.assertEquals( "Large jobs should not run together", 1, maxLargeRunning.get() );
+    Assert.assertEquals( "Small jobs should use every thread", 4, maxRunning.get() );
+  }
+
+  @Test
+  public void testOversizedJob() throws Exception{
+    final AtomicInteger running = new AtomicInteger();
+    List<AdmissionScheduler.Job<Boolean>> jobs = new ArrayList<>();
+    for( int i = 0; i < 8; i++ ){
+      final boolean oversized = i == 3;
+      jobs.add( new AdmissionScheduler.Job<>( oversized ? Long.MAX_VALUE : 1, () -> {
+        int concurrent = running.incrementAndGet();
+        try {
+          Thread.sleep( 10 );
+        }
+        catch( InterruptedException e ){
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        return !oversized || concurrent == 1;
+      } ) );
+    }
+    for( boolean ranAlone : new AdmissionScheduler( 4, 100 ).run( jobs ) ){
+      Assert.assertTrue( "A job larger than the budget should run alone", ranAlone );
+    }
+  }
+
+  @Test
+  public void testLargeJobNotStarved() throws Exception{
+    final AdmissionScheduler scheduler = new AdmissionScheduler( 4, 100 );
+    //memory held by a pipeline and a job of another batch keeps the large job from fitting for a while
+    final long held = scheduler.reserve( 40 );
+    Thread other = new Thread( () -> scheduler.run( Collections.singletonList( new AdmissionScheduler.Job<>( 10, () -> {
+      try {
+        Thread.sleep( 300 );
+      }
+      catch( InterruptedException e ){
+        Thread.currentThread().interrupt();
+      }
+      scheduler.release( held );
+      return 0;
+    } ) ) ) );
+    other.start();
+    Thread.sleep( 50 );
+    final AtomicInteger smallStarted = new AtomicInteger();
+    List<AdmissionScheduler.Job<Integer>> jobs = new ArrayList<>();
+    for( int i = 0; i < 20; i++ ){
+      final boolean large = i == 10;
+      jobs.add( new AdmissionScheduler.Job<>( large ? 60 : 10, () -> {
+        int startedBefore = large ? smallStarted.get() : smallStarted.incrementAndGet();
+        try {
+          Thread.sleep( 5 );
+        }
+        catch( InterruptedException e ){
+          Thread.currentThread().interrupt();
+        }
+        return startedBefore;
+      } ) );
+    }
+    List<Integer> results = scheduler.run( jobs );
+    other.join();
+    Assert.assertTrue( "Only as many small jobs as threads should start ahead of the large job: " + results.get( 10 ),
+      results.get( 10 ) <= 4 );
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for validation of files inside archives
+ */
+public class ArchiveReaderTest {
+  private static final String[] ENTRIES = { "shiporder.xsd", "shiporder-pass1.xml", "shiporder-pass2.xml", "shiporder-fail-schema.xml" };
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testZip() throws Exception{
+    File zip = new File( folder.getRoot(), "bundle.zip" );
+    try( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) ) ) {
+      for( String name : ENTRIES ){
+        out.putNextEntry( new ZipEntry( "orders/" + name ) );
+        out.write( Files.readAllBytes( new File( "src/test/resources", name ).toPath() ) );
+        out.closeEntry();
+      }
+    }
+    Crux crux = new Crux();
+    //the schema location in each entry resolves to the schema inside the archive
+    Assert.assertEquals( "Incorrect # of validated files", 2, crux.validate( null, null, zip.getPath() + "!/**/*pass*.xml" ) );
+    assertArchiveFailures( crux, zip, "orders/shiporder-fail-schema.xml" );
+
+    //entries are submitted no faster than the parallelism allows
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    ExecutorService executor = Executors.newFixedThreadPool( 4 );
+    try( ArchiveReader archive = new ArchiveReader( zip.getPath() ) ) {
+      List<String> names = archive.forEachEntry( input -> {
+        maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+        try {
+          Thread.sleep( 20 );
+        }
+        catch( InterruptedException e ) {
+          Thread.currentThread().interrupt();
+        }
+        running.decrementAndGet();
+        return input.getName();
+      }, executor, 1 );
+      Assert.assertEquals( ENTRIES.length, names.size() );
+    }
+    finally {
+      executor.shutdown();
+    }
+    Assert.assertEquals( "Only one entry should be held at a time", 1, maxRunning.get() );
+  }
+
+  @Test
+  public void testTarGz() throws Exception{
+    File tar = new File( folder.getRoot(), "bundle.tar.gz" );
+    try( TarArchiveOutputStream out = new TarArchiveOutputStream( new GZIPOutputStream( new FileOutputStream( tar ) ) ) ) {
+      for( String name : ENTRIES ){
+        byte[] content = Files.readAllBytes( new File( "src/test/resources", name ).toPath() );
+        TarArchiveEntry entry = new TarArchiveEntry( name );
+        entry.setSize( content.length );
+        out.putArchiveEntry( entry );
+        out.write( content );
+        out.closeArchiveEntry();
+      }
+    }
+    //the schema location in each entry resolves alongside the archive
+    Files.copy( new File( "src/test/resources/shiporder.xsd" ).toPath(), new File( folder.getRoot(), "shiporder.xsd" ).toPath() );
+    Crux crux = new Crux();
+    Assert.assertEquals( "Incorrect # of validated files", 2, crux.validate( null, null, tar.getPath() + "!/*pass?.xml" ) );
+    Assert.assertEquals( "Incorrect # of validated files", 1, crux.validate( null, "src/test/resources/shiporder.sch", tar.getPath() + "!/*pass1.xml" ) );
+    assertArchiveFailures( crux, tar, "shiporder-fail-schema.xml" );
+  }
+
+  private static void assertArchiveFailures( Crux crux, File archive, String failingEntry ) throws Exception {
+    try {
+      crux.validate( null, null, archive.getPath() );
+    }
+    catch( ValidationException e ){
+      Assert.assertEquals( "Incorrect # of validation failures", 3, e.getValidationErrors().size() );
+      Assert.assertEquals( "Incorrect file name", archive.getPath() + "!/" + failingEntry, e.getValidationErrors().get( 0 ).getFileName() );
+      return;
+    }
+    Assert.fail( "Validation should have failed" );
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Tests for asynchronous validation
+ */
+public class AsyncValidatorTest {
+
+  @Test
+  public void testValidateAsync() throws Exception{
+    ValidationProfile profile = new ValidatorRegistry().getProfile( "src/test/resources/shiporder.sch" );
+    try( AsyncValidator validator = new AsyncValidator( profile ) ) {
+      CompletableFuture<ValidationResult> pass = validator.validateAsync( "src/test/resources/shiporder-pass1.xml" );
+      CompletableFuture<ValidationResult> schemaFail = validator.validateAsync( "src/test/resources/shiporder-fail-schema.xml" );
+      CompletableFuture<ValidationResult> schematronFail = validator.validateAsync( "src/test/resources/shiporder-fail-schematron.xml" );
+      Assert.assertTrue( "File should be valid", pass.get().isValid() );
+      Assert.assertEquals( "Incorrect # of validation failures", 3, schemaFail.get().getErrors().size() );
+      Assert.assertEquals( "Incorrect # of validation failures", 3, schematronFail.get().getErrors().size() );
+    }
+  }
+
+  @Test
+  public void testMalformedFileIsAResult() throws Exception{
+    ValidationProfile profile = new ValidatorRegistry().getProfile( null );
+    try( AsyncValidator validator = new AsyncValidator( profile ) ) {
+      ValidationResult result = validator.validateAsync( "src/test/resources/attacks/xxe1.xml" ).get();
+      Assert.assertFalse( "File should be invalid", result.isValid() );
+    }
+  }
+
+  @Test
+  public void testInFlightLimit() throws Exception{
+    ValidationProfile profile = new ValidatorRegistry().getProfile( null );
+    //an executor which never runs its tasks, so submitted validations stay in flight
+    AsyncValidator validator = new AsyncValidator( profile, r -> {}, 1 );
+    validator.tryValidateAsync( "src/test/resources/shiporder-pass1.xml" );
+    Assert.assertEquals( "Incorrect # of validations in flight", 1, validator.getInFlightCount() );
+    try {
+      validator.tryValidateAsync( "src/test/resources/shiporder-pass2.xml" ).get();
+    }
+    catch( ExecutionException e ){
+      Assert.assertTrue( "Expected a rejection", e.getCause() instanceof RejectedExecutionException );
+      return;
+    }
+    Assert.fail( "Validation beyond the in-flight limit should have been rejected" );
+  }
+
+  @Test
+  public void testQueuedBeyondLimit() throws Exception{
+    ValidationProfile profile = new ValidatorRegistry().getProfile( null );
+    //an executor whose tasks are run by the test, so submitted validations stay in flight until then
+    List<Runnable> tasks = new ArrayList<>();
+    AsyncValidator validator = new AsyncValidator( profile, tasks::add, 1 );
+    CompletableFuture<ValidationResult> first = validator.validateAsync( "src/test/resources/shiporder-pass1.xml" );
+    byte[] content = Files.readAllBytes( new File( "src/test/resources/shiporder-fail-schema.xml" ).toPath() );
+    CompletableFuture<ValidationResult> second = validator.validateAsync( ValidationInput.of( "fail-schema.xml",
+      new File( "src/test/resources/shiporder-fail-schema.xml" ).toURI().toString(), content ) );
+    Assert.assertEquals( "Incorrect # of validations in flight", 1, validator.getInFlightCount() );
+    Assert.assertEquals( "The second validation should be queued without blocking", 1, validator.getQueuedCount() );
+    Assert.assertEquals( 1, tasks.size() );
+
+    tasks.remove( 0 ).run();
+    Assert.assertTrue( "File should be valid", first.get().isValid() );
+    Assert.assertEquals( "The queued validation should be submitted once the first completes", 1, tasks.size() );
+    Assert.assertEquals( 0, validator.getQueuedCount() );
+    tasks.remove( 0 ).run();
+    Assert.assertEquals( "Incorrect # of validation failures", 3, second.get().getErrors().size() );
+    Assert.assertEquals( "fail-schema.xml", second.get().getErrors().get( 0 ).getFileName() );
+    Assert.assertEquals( 0, validator.getInFlightCount() );
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for validating a sample of a batch and estimating its error rate
+ */
+public class BatchSampleTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSelection() throws Exception{
+    List<String> files = new ArrayList<>();
+    for( int i = 0; i < 1000; i++ ) {
+      files.add( "dir" + ( i % 4 ) + "/file" + i + ".xml" );
+    }
+    BatchSample sample = BatchSample.ofFraction( 0.1 );
+    sample.setSeed( 42 );
+    sample.setStrata( BatchSample.Strata.DIRECTORY );
+    BatchSample.Selection selection = sample.select( files );
+    List<String> selected = selection.getFiles();
+    Assert.assertEquals( 100, selected.size() );
+    for( int dir = 0; dir < 4; dir++ ) {
+      int inDir = 0;
+      for( String file : selected ) {
+        inDir += file.startsWith( "dir" + dir + "/" ) ? 1 : 0;
+      }
+      Assert.assertEquals( "Each directory should be sampled in proportion", 25, inDir );
+    }
+    for( int i = 1; i < selected.size(); i++ ) {
+      Assert.assertTrue( "Files should keep the order of the batch", files.indexOf( selected.get( i - 1 ) ) < files.indexOf( selected.get( i ) ) );
+    }
+    List<String> reversed = new ArrayList<>( files );
+    Collections.reverse( reversed );
+    List<String> again = new ArrayList<>( sample.select( reversed ).getFiles() );
+    Collections.reverse( again );
+    Assert.assertEquals( "The same seed should select the same files", selected, again );
+    sample.setSeed( 43 );
+    Assert.assertFalse( "Another seed should select other files", selected.equals( sample.select( files ).getFiles() ) );
+
+    //every sampled file of dir0 fails
+    List<Boolean> failed = new ArrayList<>();
+    for( String file : selected ) {
+      failed.add( file.startsWith( "dir0/" ) );
+    }
+    BatchSample.Estimate estimate = selection.estimate( failed );
+    Assert.assertEquals( 1000, estimate.getPopulation() );
+    Assert.assertEquals( 100, estimate.getSampled() );
+    Assert.assertEquals( 25, estimate.getFailed() );
+    Assert.assertEquals( 0.25, estimate.getRate(), 1e-9 );
+    Assert.assertTrue( estimate.report(), estimate.getLower() < 0.25 && estimate.getUpper() > 0.25 );
+    Assert.assertEquals( 4, estimate.getStrata().size() );
+    BatchSample.Stratum dir1 = estimate.getStrata().get( 1 );
+    Assert.assertEquals( "dir1", dir1.getName() );
+    Assert.assertEquals( "No failures should still give an upper bound", 0, dir1.getLower(), 0 );
+    Assert.assertTrue( estimate.report(), dir1.getUpper() > 0.05 && dir1.getUpper() < 0.2 );
+
+    double[] interval = BatchSample.wilsonInterval( 0.5, 100 );
+    Assert.assertEquals( 0.404, interval[0], 0.001 );
+    Assert.assertEquals( 0.596, interval[1], 0.001 );
+    BatchSample.Selection everything = BatchSample.ofCount( 2000 ).select( files );
+    Assert.assertEquals( 1000, everything.getFiles().size() );
+    BatchSample.Estimate exact = everything.estimate( Collections.nCopies( 1000, Boolean.TRUE ) );
+    Assert.assertEquals( "A complete sample should be exact", 1, exact.getLower(), 0 );
+  }
+
+  @Test
+  public void testSchemaStrataFromFirstSample() throws Exception{
+    List<String> files = new ArrayList<>();
+    for( int i = 0; i < 400; i++ ) {
+      String schema = i % 4 == 0 ? "b" : "a";
+      File file = new File( folder.getRoot(), "file" + i + ".xml" );
+      Files.write( file.toPath(), ( "<doc xmlns=\"urn:" + schema + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+        "xsi:schemaLocation=\"urn:" + schema + " " + schema + ".xsd\"/>" ).getBytes( StandardCharsets.UTF_8 ) );
+      files.add( file.getPath() );
+    }
+    BatchSample sample = BatchSample.ofCount( 8 );
+    sample.setSeed( 42 );
+    sample.setStrata( BatchSample.Strata.SCHEMA );
+    BatchSample.Selection selection = sample.select( files );
+    List<String> selected = selection.getFiles();
+    Assert.assertTrue( selected.toString(), selected.size() >= 8 && selected.size() <= 9 );
+    List<String> reversed = new ArrayList<>( files );
+    Collections.reverse( reversed );
+    List<String> again = new ArrayList<>( sample.select( reversed ).getFiles() );
+    Collections.reverse( again );
+    Assert.assertEquals( "The same seed should select the same files", selected, again );
+
+    BatchSample.Estimate estimate = selection.estimate( Collections.nCopies( selected.size(), Boolean.FALSE ) );
+    Assert.assertEquals( 400, estimate.getPopulation() );
+    Assert.assertEquals( 2, estimate.getStrata().size() );
+    int population = 0;
+    for( BatchSample.Stratum stratum : estimate.getStrata() ) {
+      population += stratum.getPopulation();
+    }
+    Assert.assertEquals( "The strata sizes should be estimated from the first sample", 400, population, 1 );
+    Assert.assertTrue( estimate.report(), estimate.getUpper() > 0 && estimate.getUpper() < 0.5 );
+  }
+
+  @Test
+  public void testSampledValidation() throws Exception{
+    List<String> files = Arrays.asList( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder-fail-schema.xml",
+      "src/test/resources/shiporder-fail-schematron.xml", "src/test/resources/shiporder-pass2.xml" );
+    Crux crux = new Crux();
+    BatchSample sample = BatchSample.ofCount( 2 );
+    sample.setSeed( 7 );
+    crux.setSample( sample );
+    List<ValidationError> errors = Collections.emptyList();
+    int numValidated = 0;
+    try {
+      numValidated = crux.validate( null, Collections.singletonList( "src/test/resources/shiporder.sch" ), files );
+    }
+    catch( ValidationException e ){
+      errors = e.getValidationErrors();
+    }
+    BatchSample.Estimate estimate = crux.getSampleEstimate();
+    Assert.assertEquals( 4, estimate.getPopulation() );
+    Assert.assertEquals( 2, estimate.getSampled() );
+    List<String> failedFiles = new ArrayList<>();
+    for( ValidationError error : errors ) {
+      if( !failedFiles.contains( error.getFileName() ) ) {
+        failedFiles.add( error.getFileName() );
+      }
+    }
+    Assert.assertEquals( "Incorrect # of failed files: " + errors, failedFiles.size(), estimate.getFailed() );
+    Assert.assertEquals( failedFiles.isEmpty() ? 2 : 0, numValidated );
+    Assert.assertEquals( estimate.getFailed() / 2.0, estimate.getRate(), 1e-9 );
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.apache.xerces.util.XMLResourceIdentifierImpl;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Tests of resolving identifiers through an index of the catalogs
+ */
+public class CatalogIndexTest {
+  private static final String CATALOG_START = "<?xml version=\"1.0\"?>\n" +
+    "<catalog xmlns=\"urn:oasis:names:tc:entity:xmlns:xml:catalog\">\n";
+  private static final String CATALOG_END = "</catalog>\n";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testResolvesAsXerces() throws Exception{
+    File first = writeCatalog( "first.xml",
+      "<system systemId=\"http://example.org/a/exact.xsd\" uri=\"local/exact.xsd\"/>\n" +
+      "<system systemId=\"http://example.org/a/exact.xsd\" uri=\"local/ignored.xsd\"/>\n" +
+      "<rewriteSystem systemIdStartString=\"http://example.org\" rewritePrefix=\"short/\"/>\n" +
+      "<rewriteSystem systemIdStartString=\"http://example.org/a/\" rewritePrefix=\"long/\"/>\n" +
+      "<group xml:base=\"grouped/\">\n" +
+      "  <uri name=\"http://example.org/ns\" uri=\"ns.xsd\"/>\n" +
+      "  <rewriteURI uriStartString=\"urn:example:\" rewritePrefix=\"urns/\"/>\n" +
+      "</group>\n" +
+      "<public publicId=\"-//Example//DTD//EN\" uri=\"example.dtd\"/>\n" +
+      "<nextCatalog catalog=\"next.xml\"/>\n" );
+    writeCatalog( "next.xml",
+      "<system systemId=\"http://example.org/b/exact.xsd\" uri=\"next/exact.xsd\"/>\n" +
+      "<system systemId=\"http://other.org/x.xsd\" uri=\"next/x.xsd\"/>\n" +
+      "<rewriteSystem systemIdStartString=\"http://other.org/\" rewritePrefix=\"next/\"/>\n" );
+    File last = writeCatalog( "last.xml",
+      "<system systemId=\"http://other.org/y.xsd\" uri=\"last/y.xsd\"/>\n" +
+      "<rewriteSystem systemIdStartString=\"http://other.org/deeper/\" rewritePrefix=\"last/\"/>\n" +
+      "<uri name=\"http://example.org/ns2\" uri=\"last/ns2.xsd\"/>\n" );
+    String[] catalogs = { first.getPath(), last.toURI().toString() };
+    CatalogIndex index = CatalogIndex.build( catalogs );
+    Assert.assertTrue( index.isUsable() );
+    Assert.assertEquals( 12, index.getNumEntries() );
+    org.apache.xerces.util.XMLCatalogResolver xerces = new org.apache.xerces.util.XMLCatalogResolver( catalogs, true );
+    String[] systemIds = { "http://example.org/a/exact.xsd", "http://example.org/a/b.xsd", "http://example.org/b/exact.xsd",
+      "http://example.org.evil/x.xsd", "http://example.org", "http://other.org/x.xsd", "http://other.org/y.xsd",
+      "http://other.org/deeper/z.xsd", "http://nowhere.org/x.xsd", "http://example.org/a b.xsd", "" };
+    for( String systemId : systemIds ) {
+      Assert.assertEquals( systemId, xerces.resolveSystem( systemId ), index.resolveSystem( systemId ) );
+    }
+    String[] uris = { "http://example.org/ns", "http://example.org/ns2", "urn:example:thing", "urn:other", "http://example.org/a/exact.xsd" };
+    for( String uri : uris ) {
+      Assert.assertEquals( uri, xerces.resolveURI( uri ), index.resolveURI( uri ) );
+    }
+    Assert.assertTrue( index.resolveSystem( "http://example.org/a/b.xsd" ).endsWith( "/long/b.xsd" ) );
+    Assert.assertFalse( CatalogIndex.canResolve( "urn:publicid:-:Example:DTD:EN" ) );
+
+    //catalogs which cannot be indexed are left to the Xerces resolver
+    File suffix = writeCatalog( "suffix.xml", "<systemSuffix systemIdSuffix=\"x.xsd\" uri=\"x.xsd\"/>\n" );
+    Assert.assertFalse( CatalogIndex.build( new String[]{ first.getPath(), suffix.getPath() } ).isUsable() );
+    Assert.assertFalse( CatalogIndex.build( new String[]{ new File( folder.getRoot(), "missing.xml" ).getPath() } ).isUsable() );
+    Assert.assertFalse( CatalogIndex.build( new String[]{ "http://example.org/catalog.xml" } ).isUsable() );
+  }
+
+  @Test
+  public void testRebuiltWhenCatalogChanges() throws Exception{
+    File catalog = writeCatalog( "catalog.xml", "<system systemId=\"http://example.org/a.xsd\" uri=\"first.xsd\"/>\n" );
+    XMLCatalogResolver resolver = new XMLCatalogResolver( new String[]{ catalog.getPath() }, true );
+    XMLResourceIdentifierImpl identifier = new XMLResourceIdentifierImpl( null, "http://example.org/a.xsd", null, "http://example.org/a.xsd" );
+    Assert.assertEquals( new File( folder.getRoot(), "first.xsd" ).toURI().toURL().toString(), resolver.resolveIdentifier( identifier ) );
+
+    long lastModified = catalog.lastModified();
+    writeCatalog( "catalog.xml", "<system systemId=\"http://example.org/a.xsd\" uri=\"second/a.xsd\"/>\n" );
+    Assert.assertTrue( catalog.setLastModified( lastModified + 2000 ) );
+    Assert.assertEquals( "Changes should not be looked for until the check interval has passed",
+      new File( folder.getRoot(), "first.xsd" ).toURI().toURL().toString(), resolver.resolveIdentifier( identifier ) );
+    resolver.setCatalogCheckIntervalMs( 0 );
+    Assert.assertEquals( new File( folder.getRoot(), "second/a.xsd" ).toURI().toURL().toString(), resolver.resolveIdentifier( identifier ) );
+    //the Xerces catalogs, consulted for public identifiers, are reloaded too
+    Assert.assertEquals( resolver.resolveIdentifier( identifier ), resolver.resolveSystem( "http://example.org/a.xsd" ) );
+  }
+
+  private File writeCatalog( String name, String entries ) throws Exception{
+    File catalog = new File( folder.getRoot(), name );
+    Files.write( catalog.toPath(), ( CATALOG_START + entries + CATALOG_END ).getBytes( StandardCharsets.UTF_8 ) );
+    return catalog;
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for validation of compressed files
+ */
+public class CompressedInputTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() throws Exception{
+    //the schema location in the compressed files resolves alongside them
+    Files.copy( new File( "src/test/resources/shiporder.xsd" ).toPath(), new File( folder.getRoot(), "shiporder.xsd" ).toPath() );
+  }
+
+  @Test
+  public void testCompressionFormats() throws Exception{
+    File gzip = compress( "shiporder-pass1.xml", ".gz" );
+    File xz = compress( "shiporder-pass1.xml", ".xz" );
+    File zstd = compress( "shiporder-pass1.xml", ".zst" );
+    Assert.assertEquals( "Incorrect compression", Compression.GZIP, Compression.detect( gzip ) );
+    Assert.assertEquals( "Incorrect compression", Compression.XZ, Compression.detect( xz ) );
+    Assert.assertEquals( "Incorrect compression", Compression.ZSTD, Compression.detect( zstd ) );
+    Assert.assertEquals( "Incorrect compression", Compression.NONE, Compression.detect( new File( "src/test/resources/shiporder-pass1.xml" ) ) );
+
+    Crux crux = new Crux();
+    Assert.assertEquals( "Incorrect # of validated files", 3,
+      crux.validate( null, "src/test/resources/shiporder.sch", gzip.getPath(), xz.getPath(), zstd.getPath() ) );
+  }
+
+  @Test
+  public void testCompressedFailures() throws Exception{
+    File gzip = compress( "shiporder-fail-schema.xml", ".gz" );
+    ValidationResult result = new XML10Validator().validateToResult( gzip.getPath() );
+    Assert.assertEquals( "Incorrect # of validation failures", 3, result.getErrors().size() );
+    Assert.assertEquals( "Incorrect file name", gzip.getPath(), result.getErrors().get( 0 ).getFileName() );
+  }
+
+  @Test
+  public void testTruncatedFile() throws Exception{
+    File gzip = compress( "shiporder-pass1.xml", ".gz" );
+    byte[] content = Files.readAllBytes( gzip.toPath() );
+    Files.write( gzip.toPath(), Arrays.copyOf( content, content.length / 2 ) );
+    Assert.assertFalse( "Truncated file should be invalid", new XML10Validator().validateToResult( gzip.getPath() ).isValid() );
+  }
+
+  @Test
+  public void testDecompressionThreadsReused() throws Exception{
+    File gzip = compress( "shiporder-pass1.xml", ".gz" );
+    CompressedInput input = CompressedInput.detect( gzip.getPath() );
+    byte[] expected = Files.readAllBytes( new File( "src/test/resources/shiporder-pass1.xml" ).toPath() );
+    //threads left idle by other tests may be reused too
+    Set<String> threadsBefore = getDecompressionThreads();
+    Set<String> threads = new HashSet<>();
+    for( int i = 0; i < 20; i++ ) {
+      try( InputStream in = input.read().open() ){
+        Assert.assertArrayEquals( "Incorrect decompressed content", expected, ArchiveReader.readFully( in ) );
+      }
+      threads.addAll( getDecompressionThreads() );
+    }
+    threads.removeAll( threadsBefore );
+    //a thread may still be returning to the pool as the next file is opened, so a few may be started
+    Assert.assertTrue( "Decompression threads should be reused, started " + threads, threads.size() < 5 );
+  }
+
+  private static Set<String> getDecompressionThreads() {
+    Set<String> names = new HashSet<>();
+    for( Thread thread : Thread.getAllStackTraces().keySet() ) {
+      if( thread.getName().startsWith( "crux-decompress-" ) ) {
+        names.add( thread.getName() );
+      }
+    }
+    return names;
+  }
+
+  private File compress( String name, String extension ) throws Exception {
+    File file = new File( folder.getRoot(), name + extension );
+    try( OutputStream out = open( file, extension ) ){
+      out.write( Files.readAllBytes( new File( "src/test/resources", name ).toPath() ) );
+    }
+    return file;
+  }
+
+  private static OutputStream open( File file, String extension ) throws Exception {
+    OutputStream out = new FileOutputStream( file );
+    switch( extension ){
+      case ".gz":
+        return new GZIPOutputStream( out );
+      case ".xz":
+        return new XZOutputStream( out, new LZMA2Options() );
+      default:
+        return new ZstdOutputStream( out );
+    }
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests for synthetic corpus generation
+ */
+public class CorpusGeneratorTest {
+
+  @Test
+  public void testGenerateValidCorpus() throws Exception{
+    File outputDir = new File( "target/corpus-valid" );
+    CorpusGenerator generator = new CorpusGenerator( "src/test/resources/shiporder.xsd", null );
+    generator.setSchematronFile( "src/test/resources/shiporder.sch" );
+    generator.setSeed( 1 );
+    CorpusGenerator.Summary summary = generator.generate( outputDir, 5, 0 );
+    Assert.assertEquals( "Incorrect # of documents", 5, summary.getDocuments() );
+
+    ValidationProfile profile = new ValidatorRegistry().getProfile( "src/test/resources/shiporder.sch" );
+    for( File file : outputDir.listFiles() ){
+      ValidationResult result = profile.validateToResult( file.getPath(), Deadline.NONE );
+      Assert.assertTrue( "Generated file should be valid: " + result, result.isValid() );
+    }
+  }
+
+  @Test
+  public void testViolationRates() throws Exception{
+    File outputDir = new File( "target/corpus-invalid" );
+    CorpusGenerator generator = new CorpusGenerator( "src/test/resources/shiporder.xsd", "shiporder" );
+    generator.setSchematronFile( "src/test/resources/shiporder.sch" );
+    generator.setSeed( 2 );
+    generator.setXsdViolationRate( 1 );
+    CorpusGenerator.Summary summary = generator.generate( outputDir, 3, 0 );
+    Assert.assertEquals( "Incorrect # of XML schema invalid documents", 3, summary.getXsdInvalid() );
+
+    XML10Validator validator = new XML10Validator();
+    for( File file : outputDir.listFiles() ){
+      Assert.assertFalse( "Generated file should be invalid", validator.validateToResult( file.getPath() ).isValid() );
+    }
+
+    generator.setXsdViolationRate( 0 );
+    generator.setSchematronViolationRate( 1 );
+    summary = generator.generate( outputDir, 3, 0 );
+    Assert.assertEquals( "Incorrect # of Schematron invalid documents", 3, summary.getSchematronInvalid() );
+  }
+}
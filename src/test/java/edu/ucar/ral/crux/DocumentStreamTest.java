@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+
+/**
+ * Tests for reading documents and paths from a stream and validating them in one JVM
+ */
+public class DocumentStreamTest {
+  @Test
+  public void testFraming() throws Exception{
+    DocumentStream paths = stream( "a.xml\0b.xml\0\0c.xml", DocumentStream.Framing.PATHS );
+    Assert.assertEquals( "a.xml", paths.nextPath() );
+    Assert.assertEquals( "b.xml", paths.nextPath() );
+    Assert.assertEquals( "Empty paths should be skipped", "c.xml", paths.nextPath() );
+    Assert.assertNull( "Stream should have ended", paths.nextPath() );
+
+    DocumentStream bodies = stream( "<a/>\0<b/>\0\n", DocumentStream.Framing.NUL );
+    Assert.assertEquals( "<a/>", read( bodies.nextDocument() ) );
+    ValidationInput second = bodies.nextDocument();
+    Assert.assertEquals( "Incorrect name", "stdin#2", second.getName() );
+    Assert.assertEquals( "<b/>", read( second ) );
+    Assert.assertNull( "Trailing whitespace is not a document", bodies.nextDocument() );
+
+    DocumentStream lengths = stream( "4\n<a/>5\n<bb/>\n", DocumentStream.Framing.LENGTH );
+    Assert.assertEquals( "<a/>", read( lengths.nextDocument() ) );
+    Assert.assertEquals( "<bb/>", read( lengths.nextDocument() ) );
+    Assert.assertNull( "Stream should have ended", lengths.nextDocument() );
+    try {
+      stream( "9\n<a/>", DocumentStream.Framing.LENGTH ).nextDocument();
+      Assert.fail( "A truncated document should not be read" );
+    }
+    catch( IOException e ){
+      //expected
+    }
+    byte[] utf16 = "<a/>".getBytes( StandardCharsets.UTF_16LE );
+    try {
+      new DocumentStream( new ByteArrayInputStream( utf16 ), DocumentStream.Framing.NUL ).nextDocument();
+      Assert.fail( "A UTF-16 document should not be split at its NUL bytes" );
+    }
+    catch( IOException e ){
+      Assert.assertTrue( e.getMessage(), e.getMessage().contains( "UTF-16" ) );
+    }
+  }
+
+  @Test
+  public void testValidateStream() throws Exception{
+    //the documents refer to their schema relative to the current directory
+    byte[] pass = Files.readAllBytes( new File( "src/test/resources/shiporder-pass1.xml" ).toPath() );
+    String relativePass = new String( pass, StandardCharsets.UTF_8 ).replace( "./shiporder.xsd", "src/test/resources/shiporder.xsd" );
+    String fail = new String( Files.readAllBytes( new File( "src/test/resources/shiporder-fail-schematron.xml" ).toPath() ), StandardCharsets.UTF_8 )
+      .replace( "./shiporder.xsd", "src/test/resources/shiporder.xsd" );
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    int numFailed = new Crux().validateStream( null, Collections.singletonList( "src/test/resources/shiporder.sch" ),
+      stream( relativePass + "\0" + fail + "\0" + relativePass, DocumentStream.Framing.NUL ), new PrintStream( out, true, "UTF-8" ) );
+    String results = new String( out.toByteArray(), StandardCharsets.UTF_8 );
+    Assert.assertEquals( "Incorrect # of failed documents: " + results, 1, numFailed );
+    Assert.assertTrue( "Missing result: " + results, results.contains( "OK stdin#1" ) && results.contains( "OK stdin#3" ) );
+    Assert.assertTrue( "Missing failure: " + results, results.contains( "FAILED stdin#2 3 error(s)" ) );
+  }
+
+  @Test
+  public void testStdinOutputHasOnlyResults() throws Exception{
+    File java = new File( System.getProperty( "java.home" ), "bin/java" );
+    Process process = new ProcessBuilder( java.getPath(), "-cp", System.getProperty( "java.class.path" ), Crux.class.getName(),
+      "--stdin", "paths", "--lean", "-s", "src/test/resources/shiporder.sch" )
+      .redirectError( ProcessBuilder.Redirect.INHERIT ).start();
+    try( OutputStream in = process.getOutputStream() ){
+      in.write( "src/test/resources/shiporder-pass1.xml\0src/test/resources/shiporder-fail-schematron.xml\0".getBytes( StandardCharsets.UTF_8 ) );
+    }
+    String results;
+    try( InputStream out = process.getInputStream() ){
+      results = new String( ArchiveReader.readFully( out ), StandardCharsets.UTF_8 );
+    }
+    Assert.assertEquals( "One document should fail", 1, process.waitFor() );
+    for( String line : results.split( "\n" ) ) {
+      Assert.assertTrue( "Standard output should only hold results: " + results,
+        line.startsWith( "OK " ) || line.startsWith( "FAILED " ) || line.startsWith( "  " ) );
+    }
+    Assert.assertTrue( results, results.contains( "OK src/test/resources/shiporder-pass1.xml" ) );
+    Assert.assertTrue( results, results.contains( "FAILED src/test/resources/shiporder-fail-schematron.xml" ) );
+  }
+
+  private static DocumentStream stream( String content, DocumentStream.Framing framing ){
+    return new DocumentStream( new ByteArrayInputStream( content.getBytes( StandardCharsets.UTF_8 ) ), framing );
+  }
+
+  private static String read( ValidationInput input ) throws IOException{
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    try( InputStream in = input.open() ){
+      int read;
+      while( ( read = in.read( buffer ) ) != -1 ){
+        out.write( buffer, 0, read );
+      }
+    }
+    return new String( out.toByteArray(), StandardCharsets.UTF_8 );
+  }
+}
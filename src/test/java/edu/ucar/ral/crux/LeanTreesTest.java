@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XdmNode;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.xml.transform.stream.StreamSource;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for building memory-lean Schematron trees
+ */
+public class LeanTreesTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testLeanTree() throws Exception{
+    String xml = "<a>\n  <b> </b>\n  <c>x <d>y</d> z</c>\n  <!-- note -->\n</a>";
+    XdmNode lean = LeanTrees.build( new StreamSource( new StringReader( xml ) ), false, true );
+    //whitespace between elements is dropped, the whitespace content of b and the text around d are kept
+    XPathCompiler xpath = LeanTrees.getProcessor().newXPathCompiler();
+    Assert.assertEquals( "4", xpath.evaluateSingle( "count(//text())", lean ).getStringValue() );
+    Assert.assertEquals( " ", xpath.evaluateSingle( "string(/a/b)", lean ).getStringValue() );
+    Assert.assertEquals( "x y z", xpath.evaluateSingle( "string(/a/c)", lean ).getStringValue() );
+    Assert.assertEquals( "1", xpath.evaluateSingle( "count(//comment())", lean ).getStringValue() );
+    Assert.assertEquals( "Names should be held by the shared name pool",
+      LeanTrees.getProcessor().getUnderlyingConfiguration().getNamePool(),
+      lean.getUnderlyingNode().getConfiguration().getNamePool() );
+
+    File file = new File( "src/test/resources/shiporder-pass1.xml" );
+    XdmNode full = new Processor( false ).newDocumentBuilder().build( file );
+    long fullBytes = LeanTrees.estimateBytes( full, false );
+    long leanBytes = LeanTrees.estimateBytes( LeanTrees.build( new StreamSource( file ), false, true ), false );
+    Assert.assertTrue( "A lean tree should be smaller: " + leanBytes + " vs " + fullBytes, leanBytes < fullBytes );
+    Assert.assertTrue( "Line numbers should be counted", LeanTrees.estimateBytes( full, true ) > fullBytes );
+  }
+
+  @Test
+  public void testMixedContent() throws Exception{
+    XPathCompiler xpath = LeanTrees.getProcessor().newXPathCompiler();
+    //whitespace follows text, so it is kept
+    String xml = "<a>\n  <p>a <b>b</b> <i>c</i></p>\n</a>";
+    XdmNode lean = LeanTrees.build( new StreamSource( new StringReader( xml ) ), false, true );
+    Assert.assertEquals( "a b c", xpath.evaluateSingle( "string(/a/p)", lean ).getStringValue() );
+    Assert.assertEquals( "Indentation of element-only content should be dropped", "0",
+      xpath.evaluateSingle( "count(/a/text())", lean ).getStringValue() );
+    //whitespace is dropped before the text is found, so the tree must be built again
+    xml = "<a>\n  <p><b>b</b> <i>c</i> d</p>\n</a>";
+    Assert.assertNull( "Dropping whitespace from mixed content should be detected",
+      LeanTrees.build( new StreamSource( new StringReader( xml ) ), false, true ) );
+    lean = LeanTrees.build( new StreamSource( new StringReader( xml ) ), false, false );
+    Assert.assertEquals( "b c d", xpath.evaluateSingle( "string(/a/p)", lean ).getStringValue() );
+
+    File sch = folder.newFile( "mixed.sch" );
+    Files.write( sch.toPath(), ( "<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\"><pattern><rule context=\"p\">" +
+      "<assert test=\"string(.) = 'b c d'\">Text of p is <value-of select=\"string(.)\"/></assert>" +
+      "</rule></pattern></schema>" ).getBytes( StandardCharsets.UTF_8 ) );
+    SchematronValidator leanValidator = new SchematronValidator();
+    leanValidator.setLean( true );
+    ValidationResult result = leanValidator.validateToResult( ValidationInput.of( "mixed.xml", null, xml.getBytes( StandardCharsets.UTF_8 ) ),
+      sch.getPath(), Deadline.NONE );
+    Assert.assertTrue( "The tree should be built again keeping whitespace: " + result.getErrors(), result.getErrors().isEmpty() );
+  }
+
+  @Test
+  public void testLeanValidation() throws Exception{
+    List<String> schematronFiles = Arrays.asList( "src/test/resources/shiporder.sch", "src/test/resources/lookups.sch" );
+    String[] files = { "src/test/resources/shiporder-fail-schematron.xml", "src/test/resources/lookups.xml" };
+    SchematronValidator validator = new SchematronValidator();
+    SchematronValidator leanValidator = new SchematronValidator();
+    leanValidator.setLean( true );
+    for( String file : files ) {
+      List<ValidationError> expected = validator.validateToResult( file, schematronFiles, Deadline.NONE ).getErrors();
+      List<ValidationError> errors = leanValidator.validateToResult( file, schematronFiles, Deadline.NONE ).getErrors();
+      Assert.assertFalse( "Validation of " + file + " should fail", expected.isEmpty() );
+      Assert.assertEquals( "Lean trees should not change the errors of " + file, expected.toString(), errors.toString() );
+    }
+  }
+}
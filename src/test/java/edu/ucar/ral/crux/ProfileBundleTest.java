@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests for packing catalogs, schemas and Schematron rules into a bundle and validating with it
+ */
+public class ProfileBundleTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testBundledCatalog() throws Exception{
+    String bundleFile = new File( folder.getRoot(), "profile.crux" ).getPath();
+    int numSchemas = ProfileBundle.create( Collections.singletonList( "src/test/resources/gml-rewritesystem-catalog.xml" ),
+      "src/test/resources/shiporder.sch", bundleFile );
+    Assert.assertTrue( "Every schema under the rewritten directories should be bundled", numSchemas > 50 );
+    Assert.assertTrue( "Bundle not detected", ProfileBundle.isBundle( bundleFile ) );
+    Assert.assertFalse( "Catalog detected as a bundle", ProfileBundle.isBundle( "src/test/resources/gml-rewritesystem-catalog.xml" ) );
+
+    ProfileBundle bundle = ProfileBundle.open( bundleFile );
+    Assert.assertSame( "An open bundle should be shared", bundle, ProfileBundle.open( bundleFile ) );
+    Assert.assertEquals( "Incorrect catalogs", Collections.singletonList( "catalog/gml-rewritesystem-catalog.xml" ), bundle.getCatalogs() );
+    String gml = bundle.resolve( null, null, "http://schemas.opengis.net/gml/3.2.1/gml.xsd", null );
+    Assert.assertEquals( "Incorrect resolution", "schemas/net/opengis/gml/3.2.1/gml.xsd", gml );
+    //a reference relative to a bundled schema
+    Assert.assertEquals( "Incorrect relative resolution", "schemas/net/opengis/gml/3.2.1/feature.xsd",
+      bundle.resolve( null, null, "feature.xsd", bundle.getSystemId( "schemas/net/opengis/gml/3.2.1/../3.2.1/feature.xsd" ) ) );
+    Assert.assertNull( "Unbundled schemas should not resolve", bundle.resolve( null, null, "http://example.com/other.xsd", null ) );
+
+    //the bundle replaces both the catalog and the Schematron file
+    new XML10Validator( bundleFile ).validate( "src/test/resources/simplegml.xml" );
+    ValidationResult result = new SchematronValidator().validateToResult( "src/test/resources/shiporder-fail-schematron.xml", bundleFile, Deadline.NONE );
+    Assert.assertEquals( "Incorrect # of validation failures", 3, result.getErrors().size() );
+  }
+
+  @Test
+  public void testBundledSchematronDocuments() throws Exception{
+    //rules reading a list of codes with document(), which is bundled alongside the compiled rules
+    File rules = folder.newFolder( "rules" );
+    File schematronFile = new File( rules, "codes.sch" );
+    write( schematronFile, "<sch:schema xmlns:sch=\"http://purl.oclc.org/dsdl/schematron\" queryBinding=\"xslt2\">\n" +
+      "  <sch:pattern>\n" +
+      "    <sch:rule context=\"/root/code\">\n" +
+      "      <sch:assert test=\". = document('lists/codes.xml')/codes/code\">Unknown code</sch:assert>\n" +
+      "    </sch:rule>\n" +
+      "  </sch:pattern>\n" +
+      "</sch:schema>\n" );
+    File codes = new File( rules, "lists/codes.xml" );
+    codes.getParentFile().mkdirs();
+    write( codes, "<codes><code>a</code><code>b</code></codes>" );
+    File xml = folder.newFile( "doc.xml" );
+    write( xml, "<root><code>a</code><code>c</code></root>" );
+
+    String bundleFile = new File( folder.getRoot(), "rules.crux" ).getPath();
+    ProfileBundle.create( Collections.<String>emptyList(), schematronFile.getPath(), bundleFile );
+    //the bundle is all that is needed once it has been created
+    Files.delete( codes.toPath() );
+    Files.delete( schematronFile.toPath() );
+    List<ValidationError> errors = new SchematronValidator().validateToResult( xml.getPath(), bundleFile, Deadline.NONE ).getErrors();
+    Assert.assertEquals( "Incorrect # of validation failures: " + errors, 1, errors.size() );
+    Assert.assertTrue( "Incorrect failure", errors.get( 0 ).getError().contains( "Unknown code" ) );
+  }
+
+  private static void write( File file, String content ) throws Exception{
+    Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+  }
+}
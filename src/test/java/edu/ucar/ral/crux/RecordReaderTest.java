@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Tests for validation of large documents split into records
+ */
+public class RecordReaderTest {
+  private static final String SHIPORDER_NAMESPACE = "http://www.w3schools.com/schema/shiporder";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRecordLineNumbers() throws Exception{
+    Crux crux = new Crux();
+    crux.setRecordPath( "item" );
+    List<ValidationError> errors = getValidationErrors( crux, null, "src/test/resources/shiporder-fail-schema.xml" );
+    //the items are validated against their local declaration, and the shipto failure is outside the records
+    Assert.assertEquals( "Incorrect # of validation failures", 2, errors.size() );
+    Assert.assertEquals( "Incorrect line number", 19, errors.get( 0 ).getLine() );
+    Assert.assertEquals( "Incorrect line number", 23, errors.get( 1 ).getLine() );
+    Assert.assertEquals( "Incorrect file name", "src/test/resources/shiporder-fail-schema.xml", errors.get( 0 ).getFileName() );
+
+    //rules with absolute contexts apply to records, as records are validated inside their ancestors
+    crux.setRecordPath( "/{" + SHIPORDER_NAMESPACE + "}shiporder/{" + SHIPORDER_NAMESPACE + "}item" );
+    errors = getValidationErrors( crux, "src/test/resources/shiporder.sch", "src/test/resources/shiporder-fail-schematron.xml" );
+    Assert.assertEquals( "Incorrect # of validation failures", 2, errors.size() );
+    Assert.assertEquals( "Incorrect line number", 11, errors.get( 0 ).getLine() );
+    Assert.assertEquals( "Incorrect line number", 22, errors.get( 1 ).getLine() );
+  }
+
+  @Test
+  public void testLargeCollection() throws Exception{
+    Files.copy( new File( "src/test/resources/shiporder.xsd" ).toPath(), new File( folder.getRoot(), "shiporder.xsd" ).toPath() );
+    File file = new File( folder.getRoot(), "orders.xml" );
+    StringBuilder sb = new StringBuilder( "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" );
+    sb.append( "<ship:shiporder orderid=\"1\" xmlns:ship=\"" + SHIPORDER_NAMESPACE + "\"\n" );
+    sb.append( "  xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" );
+    sb.append( "  xsi:schemaLocation=\"" + SHIPORDER_NAMESPACE + " ./shiporder.xsd\">\n" );
+    sb.append( "  <ship:orderperson>John Smith</ship:orderperson>\n  <ship:shipto/>\n" );
+    for( int i = 0; i < 1000; i++ ){
+      //line 7 + 4i
+      sb.append( "  <ship:item>\n    <ship:title>Item " + i + "</ship:title>\n" );
+      sb.append( "    <ship:quantity>" + ( i == 500 ? "many" : "1" ) + "</ship:quantity>\n  </ship:item>\n" );
+    }
+    sb.append( "</ship:shiporder>\n" );
+    Files.write( file.toPath(), sb.toString().getBytes( StandardCharsets.UTF_8 ) );
+
+    Crux crux = new Crux();
+    crux.setRecordPath( "ship:item" );
+    List<ValidationError> errors = getValidationErrors( crux, null, file.getPath() );
+    Assert.assertEquals( "Incorrect # of validation failures", 2, errors.size() );
+    Assert.assertEquals( "Incorrect line number", 7 + 4 * 500 + 2, errors.get( 0 ).getLine() );
+
+    //records read before a well-formedness error are still validated
+    Files.write( file.toPath(), sb.substring( 0, sb.length() * 3 / 4 ).getBytes( StandardCharsets.UTF_8 ) );
+    errors = getValidationErrors( crux, null, file.getPath() );
+    Assert.assertEquals( "Incorrect # of validation failures", 3, errors.size() );
+
+    crux.setRecordPath( "/shiporder/item" );
+    errors = getValidationErrors( crux, null, file.getPath() );
+    Assert.assertEquals( "Unprefixed names should match in any namespace", 3, errors.size() );
+    crux.setRecordPath( "/item" );
+    errors = getValidationErrors( crux, null, file.getPath() );
+    Assert.assertEquals( "Incorrect # of validation failures", 1, errors.size() );
+  }
+
+  private static List<ValidationError> getValidationErrors( Crux crux, String schematronFile, String file ) throws Exception{
+    try {
+      crux.validate( null, schematronFile, file );
+      Assert.fail( "Validation should fail for " + file );
+      return null;
+    }
+    catch( ValidationException e ){
+      return e.getValidationErrors();
+    }
+  }
+}
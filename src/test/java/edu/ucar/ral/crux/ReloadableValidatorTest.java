@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Tests for swapping the catalogs and Schematron rules of a validator while it is in use
+ */
+public class ReloadableValidatorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testReloadSchematron() throws Exception{
+    File schematronFile = folder.newFile( "rules.sch" );
+    Files.copy( new File( "src/test/resources/shiporder.sch" ).toPath(), schematronFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    try( ReloadableValidator validator = new ReloadableValidator( Collections.<String>emptyList(), Collections.singletonList( schematronFile.getPath() ) ) ) {
+      ValidationConfig first = validator.getConfig();
+      Assert.assertEquals( "Incorrect # of validation failures", 3,
+        validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", Deadline.NONE ).getErrors().size() );
+
+      //drop the last pattern from the rules
+      String rules = new String( Files.readAllBytes( schematronFile.toPath() ), StandardCharsets.UTF_8 );
+      rules = rules.substring( 0, rules.indexOf( "<sch:pattern id=\"rule3\">" ) ) + "</sch:schema>";
+      Files.write( schematronFile.toPath(), rules.getBytes( StandardCharsets.UTF_8 ) );
+      schematronFile.setLastModified( schematronFile.lastModified() + 2000 );
+      ValidationConfig second = validator.reload().get();
+      Assert.assertSame( "The new snapshot should be in use", second, validator.getConfig() );
+      Assert.assertTrue( "Versions should increase", second.getVersion() > first.getVersion() );
+      Assert.assertEquals( "Incorrect # of validation failures with the new rules", 2,
+        validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", Deadline.NONE ).getErrors().size() );
+
+      //rules which do not compile leave the current snapshot in use
+      Files.write( schematronFile.toPath(), "<sch:schema".getBytes( StandardCharsets.UTF_8 ) );
+      schematronFile.setLastModified( schematronFile.lastModified() + 4000 );
+      try {
+        validator.reload().get();
+        Assert.fail( "Reload should fail" );
+      }
+      catch( ExecutionException e ){
+        Assert.assertSame( "The previous snapshot should stay in use", second, validator.getConfig() );
+      }
+      Assert.assertEquals( "The previous snapshot should keep its rules", 2,
+        validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", Deadline.NONE ).getErrors().size() );
+    }
+  }
+
+  @Test
+  public void testRetiredBundlesDeleted() throws Exception{
+    File schematronFile = folder.newFile( "rules.sch" );
+    Files.copy( new File( "src/test/resources/shiporder.sch" ).toPath(), schematronFile.toPath(), StandardCopyOption.REPLACE_EXISTING );
+    try( ReloadableValidator validator = new ReloadableValidator( Collections.<String>emptyList(), Collections.singletonList( schematronFile.getPath() ) ) ) {
+      validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", Deadline.NONE );
+      File firstBundle = new File( validator.getConfig().getCompiledRules().get( 0 ) );
+      Assert.assertTrue( firstBundle.exists() );
+
+      schematronFile.setLastModified( schematronFile.lastModified() + 2000 );
+      File secondBundle = new File( validator.reload().get().getCompiledRules().get( 0 ) );
+      //the first snapshot is released at a reload once it has been collected
+      for( int i = 0; i < 20 && firstBundle.exists(); i++ ) {
+        System.gc();
+        validator.reload().get();
+      }
+      Assert.assertFalse( "The bundle of the retired snapshot should be deleted", firstBundle.exists() );
+      Assert.assertTrue( "The bundle of the current snapshot should be kept", secondBundle.exists() );
+      Assert.assertEquals( "Incorrect # of validation failures", 3,
+        validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", Deadline.NONE ).getErrors().size() );
+    }
+  }
+
+  @Test
+  public void testGrammarsCarriedOver() throws Exception{
+    File schema = new File( folder.getRoot(), "shiporder.xsd" );
+    File xml = new File( folder.getRoot(), "shiporder.xml" );
+    Files.copy( new File( "src/test/resources/shiporder.xsd" ).toPath(), schema.toPath() );
+    Files.copy( new File( "src/test/resources/shiporder-pass1.xml" ).toPath(), xml.toPath() );
+    //schema documents modified just before a snapshot is built are assumed to have changed
+    schema.setLastModified( System.currentTimeMillis() - 3600000 );
+    try( ReloadableValidator validator = new ReloadableValidator( Collections.<String>emptyList(), Collections.<String>emptyList() ) ) {
+      Assert.assertTrue( "File should be valid", validator.validateToResult( xml.getPath(), Deadline.NONE ).isValid() );
+      ValidationConfig first = validator.getConfig();
+
+      ValidationConfig second = validator.reload().get();
+      Assert.assertEquals( "Unchanged grammars should be carried over", first.getXML10Validator().getCachedSchemaFiles(),
+        second.getXML10Validator().getCachedSchemaFiles() );
+      Assert.assertFalse( "Grammars should not be carried over before use", second.getXML10Validator().getCachedSchemaFiles().isEmpty() );
+
+      schema.setLastModified( System.currentTimeMillis() );
+      ValidationConfig third = validator.reload().get();
+      Assert.assertTrue( "Changed grammars should not be carried over", third.getXML10Validator().getCachedSchemaFiles().isEmpty() );
+      Assert.assertFalse( "The previous snapshot should keep its grammars", second.getXML10Validator().getCachedSchemaFiles().isEmpty() );
+    }
+  }
+}
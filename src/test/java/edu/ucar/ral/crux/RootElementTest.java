@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Tests for grouping files by the schemas named on their root elements
+ */
+public class RootElementTest {
+  private static final String NAMESPACE = "urn:crux:test";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testSchemaFingerprint() throws Exception{
+    File v1 = writeVersion( "v1", "a" );
+    File v2 = writeVersion( "v2", "b" );
+    RootElement root1 = RootElement.read( v1.getPath() );
+    RootElement root2 = RootElement.read( v2.getPath() );
+    Assert.assertEquals( "Incorrect root element", "root", root1.getName().getLocalPart() );
+    Assert.assertTrue( "Incorrect namespaces", root1.getNamespaces().contains( NAMESPACE ) );
+    //the same relative schema location in different directories refers to different schemas
+    Assert.assertFalse( "Fingerprints should differ", root1.getSchemaFingerprint().equals( root2.getSchemaFingerprint() ) );
+    Assert.assertTrue( "Fingerprint should hold the resolved location",
+      root1.getSchemaFingerprint().contains( new File( folder.getRoot(), "v1/schema.xsd" ).toURI().toString() ) );
+
+    File malformed = folder.newFile( "malformed.xml" );
+    Files.write( malformed.toPath(), "<root".getBytes( StandardCharsets.UTF_8 ) );
+    Assert.assertNull( "Malformed files have no root element", RootElement.read( malformed.getPath() ) );
+  }
+
+  @Test
+  public void testSchemaVersions() throws Exception{
+    //two versions of the schemas for one namespace, which a single grammar cache would confuse
+    File v1 = writeVersion( "v1", "a" );
+    File v2 = writeVersion( "v2", "b" );
+    Assert.assertEquals( "Incorrect # of validated files", 4, new Crux().validate( null, null, v1.getPath(), v2.getPath(), v1.getPath(), v2.getPath() ) );
+  }
+
+  private File writeVersion( String directory, String child ) throws Exception{
+    File dir = folder.newFolder( directory );
+    String schema = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"" + NAMESPACE + "\" elementFormDefault=\"qualified\">\n" +
+      "  <xs:element name=\"root\"><xs:complexType><xs:sequence><xs:element name=\"" + child + "\" type=\"xs:string\"/></xs:sequence></xs:complexType></xs:element>\n" +
+      "</xs:schema>\n";
+    Files.write( new File( dir, "schema.xsd" ).toPath(), schema.getBytes( StandardCharsets.UTF_8 ) );
+    String xml = "<root xmlns=\"" + NAMESPACE + "\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"\n" +
+      "  xsi:schemaLocation=\"" + NAMESPACE + " schema.xsd\">\n  <" + child + ">text</" + child + ">\n</root>\n";
+    File file = new File( dir, "doc.xml" );
+    Files.write( file.toPath(), xml.getBytes( StandardCharsets.UTF_8 ) );
+    return file;
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for rewriting Schematron lookups into keys
+ */
+public class SchematronKeyIndexerTest {
+
+  @Test
+  public void testRewriteExpression() throws Exception{
+    Map<String,String> namespaces = new HashMap<>();
+    namespaces.put( "xsl", "http://www.w3.org/1999/XSL/Transform" );
+    namespaces.put( "l", "urn:crux:lookups" );
+    List<SchematronKeyIndexer.Rewrite> rewrites = new ArrayList<>();
+    HashMap<String,SchematronKeyIndexer.Rewrite> keys = new HashMap<>();
+    Assert.assertEquals( "key('crux-key-1', current()/@ref)/@name",
+      SchematronKeyIndexer.rewriteExpression( "//l:author[@id = current()/@ref]/@name", namespaces, keys, rewrites ) );
+    Assert.assertEquals( "Keys should be shared by lookups of the same field", "exists(key('crux-key-1', 'a1'))",
+      SchematronKeyIndexer.rewriteExpression( "exists(//l:author['a1' eq @id])", namespaces, keys, rewrites ) );
+    Assert.assertEquals( "not(key('crux-key-2', $code/@value, document('codes.xml')))",
+      SchematronKeyIndexer.rewriteExpression( "not(document('codes.xml')//entry[code = $code/@value])", namespaces, keys, rewrites ) );
+    Assert.assertEquals( 3, rewrites.size() );
+
+    //lookups whose result could change are left as they are
+    String[] unchanged = {
+      "a//l:author[@id = current()/@ref]",      //relative to the context node
+      "//l:author[@id = .]",                    //depends on the node tested
+      "//l:author[@id = 1]",                    //compared as a number
+      "//l:author[@id = $ref]",                 //a variable of unknown type
+      "//l:author[@id = current()/@ref and @x]",
+      "//m:author[@id = current()/@ref]",       //a prefix which is not bound
+      "//l:author[@id = current()/@ref][1]",    //a positional predicate applies per parent
+      "//l:book[@ref = current()/@ref]/l:title[1]",
+      "count(//l:book[@ref = current()/@ref] / l:title [last()])",
+      "concat('//l:author[@id = current()/@ref]', 'x')",
+      "$doc//l:author[@id = current()/@ref]" };
+    for( String expression : unchanged ) {
+      Assert.assertEquals( expression, SchematronKeyIndexer.rewriteExpression( expression, namespaces, keys, rewrites ) );
+    }
+    Assert.assertEquals( 3, rewrites.size() );
+
+    Map<String,String> rebound = new HashMap<>( namespaces );
+    rebound.put( "l", "urn:crux:other" );
+    Assert.assertEquals( "A prefix bound to another namespace should use another key", "key('crux-key-3', current()/@ref)",
+      SchematronKeyIndexer.rewriteExpression( "//l:author[@id = current()/@ref]", rebound, keys, rewrites ) );
+  }
+
+  @Test
+  public void testNamespacesInScope() throws Exception{
+    String xsl = "<xsl:stylesheet xmlns:xsl=\"http://www.w3.org/1999/XSL/Transform\" version=\"2.0\">\n" +
+      "<!--KEYS AND FUNCTIONS-->\n" +
+      "<xsl:template match=\"*\" xmlns:m=\"urn:m\"><xsl:if test=\"//m:a[@id = current()/@ref]\"/></xsl:template>\n" +
+      "<xsl:template match=\"*\" xmlns:m=\"urn:other\" xpath-default-namespace=\"urn:d\">" +
+      "<xsl:if test=\"//m:a[@id = current()/@ref] or //b[@id = current()/@ref]\"/></xsl:template>\n" +
+      "<xsl:template match=\"*\"><xsl:if test=\"//m:a[@id = current()/@ref]\"/></xsl:template>\n" +
+      "</xsl:stylesheet>";
+    List<SchematronKeyIndexer.Rewrite> rewrites = new ArrayList<>();
+    String indexed = SchematronKeyIndexer.index( xsl, rewrites );
+    Assert.assertEquals( "The prefix unbound in the last template should not be rewritten: " + rewrites, 3, rewrites.size() );
+    Assert.assertTrue( indexed, indexed.contains( "<xsl:key name=\"crux-key-1\" xmlns:m=\"urn:m\" match=\"m:a\" use=\"@id\"/>" ) );
+    Assert.assertTrue( indexed, indexed.contains( "<xsl:key name=\"crux-key-2\" xmlns:m=\"urn:other\" match=\"m:a\" use=\"@id\"/>" ) );
+    Assert.assertTrue( indexed, indexed.contains( "<xsl:key name=\"crux-key-3\" xpath-default-namespace=\"urn:d\" match=\"b\" use=\"@id\"/>" ) );
+    Assert.assertTrue( indexed, indexed.contains( "<xsl:if test=\"//m:a[@id = current()/@ref]\"/></xsl:template>\n</xsl:stylesheet>" ) );
+  }
+
+  @Test
+  public void testIndexedValidation() throws Exception{
+    String sch = "src/test/resources/lookups.sch";
+    String xml = "src/test/resources/lookups.xml";
+    SchematronValidator indexed = new SchematronValidator();
+    List<ValidationError> indexedErrors = indexed.validateToResult( xml, sch, Deadline.NONE ).getErrors();
+    String xsl = new String( Files.readAllBytes( indexed.getCompiledXSLFile( new File( sch ) ).toPath() ), StandardCharsets.UTF_8 );
+    Assert.assertTrue( "Lookups should be rewritten", xsl.contains( "key('crux-key-1', current()/@ref)" ) );
+    Assert.assertTrue( "Keys should be declared", xsl.contains( "<xsl:key name=\"crux-key-2\" match=\"entry\" use=\"@code\"/>" ) );
+
+    SchematronValidator unindexed = new SchematronValidator();
+    unindexed.setIndexingLookups( false );
+    List<ValidationError> errors = unindexed.validateToResult( xml, Collections.singletonList( sch ), Deadline.NONE ).getErrors();
+    xsl = new String( Files.readAllBytes( unindexed.getCompiledXSLFile( new File( sch ) ).toPath() ), StandardCharsets.UTF_8 );
+    Assert.assertFalse( "Lookups should not be rewritten", xsl.contains( "key(" ) );
+
+    //unknown author a3, unknown language xx, a report for each of the two books of a1 and a2, and a report for each
+    //of the books of a2, which are on two shelves
+    Assert.assertEquals( "Incorrect # of errors: " + indexedErrors, 8, indexedErrors.size() );
+    Assert.assertEquals( "Indexed rules should report the same errors", errors.toString(), indexedErrors.toString() );
+  }
+}
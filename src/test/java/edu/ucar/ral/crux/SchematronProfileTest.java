@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+
+/**
+ * Tests for profiling the time spent in each Schematron pattern, rule and assert
+ */
+public class SchematronProfileTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testProfile() throws Exception{
+    SchematronValidator validator = new SchematronValidator();
+    validator.setProfiling( true );
+    for( int i = 0; i < 2; i++ ){
+      ValidationResult result = validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", "src/test/resources/shiporder.sch", Deadline.NONE );
+      Assert.assertEquals( "Profiling should not change the validation failures", 3, result.getErrors().size() );
+    }
+    SchematronProfile profile = validator.getProfile( "src/test/resources/shiporder.sch" );
+    Assert.assertNotNull( "Validation was not profiled", profile );
+    //3 patterns, each with a rule holding one assert
+    Assert.assertEquals( "Incorrect # of profiled items", 9, profile.getEntries().size() );
+    for( SchematronProfile.Entry entry : profile.getEntries() ){
+      if( entry.getKind() == SchematronProfile.Kind.ASSERT ){
+        Assert.assertEquals( "Each assert should fail once per validation: " + entry.getLabel(), 2, entry.getFired() );
+        Assert.assertTrue( "Assert not timed: " + entry.getLabel(), entry.getNanos() > 0 );
+      }
+      if( entry.getKind() == SchematronProfile.Kind.RULE && entry.getLabel().endsWith( "shiporder:item" ) ){
+        Assert.assertEquals( "Incorrect # of matched items", 6, entry.getCount() );
+      }
+    }
+    Assert.assertTrue( "Report should name the asserts: " + profile.report(), profile.report().contains( "number(shiporder:price) lt 10.0" ) );
+  }
+
+  @Test
+  public void testBundledProfile() throws Exception{
+    String bundleFile = new File( folder.getRoot(), "rules.crux" ).getPath();
+    ProfileBundle.create( Collections.<String>emptyList(), "src/test/resources/shiporder.sch", bundleFile );
+    SchematronValidator validator = new SchematronValidator();
+    Assert.assertEquals( "Incorrect # of validation failures", 3,
+      validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", bundleFile, Deadline.NONE ).getErrors().size() );
+    Assert.assertNull( "Validation should only be profiled when enabled", validator.getProfile( bundleFile ) );
+
+    validator.setProfiling( true );
+    validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", bundleFile, Deadline.NONE );
+    SchematronProfile profile = validator.getProfile( bundleFile );
+    long patternMatches = 0;
+    for( SchematronProfile.Entry entry : profile.getEntries() ){
+      if( entry.getKind() == SchematronProfile.Kind.PATTERN ){
+        patternMatches += entry.getCount();
+      }
+    }
+    Assert.assertEquals( "Incorrect # of context nodes matched by the rules", 7, patternMatches );
+  }
+}
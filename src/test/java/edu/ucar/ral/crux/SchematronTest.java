@@ -5,12 +5,22 @@
 package edu.ucar.ral.crux;
 
 import junit.framework.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Created by braeckel on 6/22/16.
  */
 public class SchematronTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testSchematronPass() throws Exception{
@@ -41,4 +51,72 @@ public class SchematronTest {
     }
     throw new Exception("Validation should have failed");
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSchematronFailWithinDeadline() throws Exception{
+    SchematronValidator validator = new SchematronValidator();
+    try {
+      validator.validate( "src/test/resources/shiporder-fail-schematron.xml", "src/test/resources/shiporder.sch", Deadline.after( 60000 ) );
+    }
+    catch( ValidationException e){
+      Assert.assertEquals( "Incorrect # of validation failures", 3, e.getValidationErrors().size() );
+      return;
+    }
+    throw new Exception("Validation should have failed");
+  }
+
+  @Test
+  public void testSchematronExpiredDeadline() throws Exception{
+    SchematronValidator validator = new SchematronValidator();
+    Deadline deadline = Deadline.after( 1 );
+    Thread.sleep( 10 );
+    try {
+      validator.validate( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder.sch", deadline );
+    }
+    catch( ValidationException e){
+      Assert.assertEquals( "Incorrect # of validation failures", 1, e.getValidationErrors().size() );
+      Assert.assertTrue( "Expected a timeout failure", e.getValidationErrors().get( 0 ) instanceof ValidationTimeoutError );
+      return;
+    }
+    throw new Exception("Validation should have timed out");
+  }
+
+  @Test
+  public void testDeadlinePassesWhileTransforming() throws Exception{
+    //every element is compared with every other one, which takes far longer than the deadline
+    File sch = folder.newFile( "unique.sch" );
+    Files.write( sch.toPath(), ( "<schema xmlns=\"http://purl.oclc.org/dsdl/schematron\"><pattern><rule context=\"e\">" +
+      "<assert test=\"every $other in //e satisfies ( $other is current() or $other/@n != current()/@n )\">Duplicate</assert>" +
+      "</rule></pattern></schema>" ).getBytes( StandardCharsets.UTF_8 ) );
+    StringBuilder xml = new StringBuilder( "<r>" );
+    for( int i = 0; i < 50000; i++ ){
+      xml.append( "<e n=\"" ).append( i ).append( "\"/>" );
+    }
+    xml.append( "</r>" );
+    SchematronValidator validator = new SchematronValidator();
+    validator.setIndexingLookups( false );
+    //compile the rules first, so the deadline passes while the rules run
+    validator.validateToResult( ValidationInput.of( "small.xml", null, "<r><e n=\"1\"/></r>".getBytes( StandardCharsets.UTF_8 ) ),
+      sch.getPath(), Deadline.NONE );
+    long startMs = System.currentTimeMillis();
+    ValidationResult result = validator.validateToResult( ValidationInput.of( "large.xml", null, xml.toString().getBytes( StandardCharsets.UTF_8 ) ),
+      sch.getPath(), Deadline.after( 500 ) );
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    Assert.assertTrue( "Expected a timeout failure: " + result.getErrors(), result.isTimedOut() );
+    Assert.assertTrue( "The transform should stop soon after the deadline, not after " + elapsedMs + " ms", elapsedMs < 5000 );
+  }
+
+  @Test
+  public void testMultipleSchematronFiles() throws Exception{
+    SchematronValidator validator = new SchematronValidator();
+    List<String> schematronFiles = Arrays.asList( "src/test/resources/shiporder.sch", "src/test/resources/shiporder-local.sch" );
+    for( boolean concurrent : new boolean[]{ false, true } ){
+      validator.setConcurrentRuleSets( concurrent );
+      List<ValidationError> errors = validator.validateToResult( "src/test/resources/shiporder-fail-schematron.xml", schematronFiles, Deadline.NONE ).getErrors();
+      //the failures of each rule set are reported in turn
+      Assert.assertEquals( "Incorrect # of validation failures: " + errors, 4, errors.size() );
+      Assert.assertTrue( "Incorrect first failure", errors.get( 0 ).getError().contains( "Ship to name and address must both be present" ) );
+      Assert.assertTrue( "Incorrect local failure", errors.get( 3 ).getError().contains( "Orders may only be shipped within the USA" ) );
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Tests for splitting a batch of files across worker JVMs
+ */
+public class ShardCoordinatorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWork() throws Exception{
+    List<String> names = Arrays.asList( "a.xml", "b.xml", "c.xml" );
+    ShardCoordinator.Work work = new ShardCoordinator.Work( names, Deadline.NONE );
+    Assert.assertEquals( 0, work.take() );
+    Assert.assertEquals( 1, work.take() );
+    Assert.assertEquals( 2, work.take() );
+    Assert.assertEquals( "Files may still be handed out again", ShardCoordinator.WAIT, work.take() );
+
+    //the worker validating b.xml exits, so it is handed out again, then reported once another worker exits with it
+    work.fail( 1 );
+    Assert.assertEquals( 1, work.take() );
+    work.fail( 1 );
+    work.complete( 2, Collections.singletonList( new ValidationError( "invalid", work.getPath( 2 ), 3, 4 ) ), 1 );
+    Assert.assertFalse( "Files should not be complete", work.awaitCompletion( 1 ) );
+    work.complete( 0, Collections.<ValidationError>emptyList(), 1 );
+    Assert.assertTrue( "Files should be complete", work.awaitCompletion( 1 ) );
+    Assert.assertEquals( ShardCoordinator.DONE, work.take() );
+    try {
+      work.merge();
+      Assert.fail( "Errors should be reported" );
+    }
+    catch( ValidationException e ){
+      List<ValidationError> errors = e.getValidationErrors();
+      Assert.assertEquals( "Incorrect # of errors: " + errors, 2, errors.size() );
+      Assert.assertEquals( "Errors should be in the order of the files", "b.xml", errors.get( 0 ).getFileName() );
+      Assert.assertEquals( "Errors should be named as the files were given", "c.xml", errors.get( 1 ).getFileName() );
+      Assert.assertEquals( 3, errors.get( 1 ).getLine() );
+    }
+  }
+
+  @Test
+  public void testShardedValidation() throws Exception{
+    List<String> files = Arrays.asList( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder-fail-schema.xml",
+      "src/test/resources/shiporder-fail-schematron.xml" );
+    List<String> schematronFiles = Collections.singletonList( "src/test/resources/shiporder.sch" );
+    List<ValidationError> expected = null;
+    try {
+      new Crux().validate( null, schematronFiles, files );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      expected = e.getValidationErrors();
+    }
+    try {
+      new Crux().validateSharded( null, schematronFiles, files, 2, null );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      List<ValidationError> errors = e.getValidationErrors();
+      Assert.assertEquals( "Incorrect # of errors: " + errors, expected.size(), errors.size() );
+      for( int i = 0; i < expected.size(); i++ ) {
+        Assert.assertEquals( "Errors should be merged in order", expected.get( i ).toString(), errors.get( i ).toString() );
+      }
+    }
+    Assert.assertEquals( "Incorrect # of validated files", 1,
+      new Crux().validateSharded( null, schematronFiles, Collections.singletonList( files.get( 0 ) ), 1, null ) );
+  }
+
+  @Test
+  public void testWorkerWithoutTokenRejected() throws Exception{
+    int port;
+    try( ServerSocket socket = new ServerSocket( 0, 1, InetAddress.getLoopbackAddress() ) ) {
+      port = socket.getLocalPort();
+    }
+    Crux crux = new Crux();
+    crux.setBatchTimeoutMs( 3000 );
+    ShardCoordinator coordinator = new ShardCoordinator( crux, 0, new InetSocketAddress( InetAddress.getLoopbackAddress(), port ) );
+    Thread coordinating = new Thread( () -> {
+      try {
+        coordinator.validate( null, Collections.<String>emptyList(), Collections.singletonList( "src/test/resources/shiporder-pass1.xml" ) );
+      }
+      catch( Exception e ){
+        //the file is skipped once the batch times out
+      }
+    } );
+    coordinating.start();
+    Thread.sleep( 500 );
+    try {
+      new ShardWorker( InetAddress.getLoopbackAddress().getHostAddress(), port, "not-the-token" ).run();
+      Assert.fail( "A worker presenting the wrong token should be rejected" );
+    }
+    catch( IOException e ){
+      Assert.assertTrue( e.getMessage(), e.getMessage().contains( "token" ) );
+    }
+    coordinating.join( 10000 );
+  }
+
+  @Test
+  public void testLongStringRejected() throws Exception{
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream( bytes );
+    ShardCoordinator.writeString( out, "token" );
+    out.writeInt( Integer.MAX_VALUE );
+    DataInputStream in = new DataInputStream( new ByteArrayInputStream( bytes.toByteArray() ) );
+    Assert.assertEquals( "token", ShardCoordinator.readString( in, 5 ) );
+    try {
+      ShardCoordinator.readString( in );
+      Assert.fail( "A string longer than allowed should be rejected before it is allocated" );
+    }
+    catch( IOException e ){
+      Assert.assertTrue( e.getMessage(), e.getMessage().contains( "allowed" ) );
+    }
+  }
+
+  @Test
+  public void testFailedArchiveCountsEntries() throws Exception{
+    File zip = new File( folder.getRoot(), "bundle.zip" );
+    try( ZipOutputStream out = new ZipOutputStream( new FileOutputStream( zip ) ) ) {
+      for( String name : new String[]{ "shiporder.xsd", "shiporder-pass1.xml", "shiporder-pass2.xml", "shiporder-fail-schema.xml" } ){
+        out.putNextEntry( new ZipEntry( name ) );
+        out.write( Files.readAllBytes( new File( "src/test/resources", name ).toPath() ) );
+        out.closeEntry();
+      }
+    }
+    File unreadable = new File( folder.getRoot(), "broken.zip" );
+    Files.write( unreadable.toPath(), new byte[]{ 'P', 'K', 3, 4, 0 } );
+    List<String> files = Arrays.asList( zip.getPath() + "!/*.xml", "src/test/resources/shiporder-pass1.xml", unreadable.getPath() );
+    try {
+      new Crux().validateSharded( null, Collections.<String>emptyList(), files, 1, null );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      Assert.assertEquals( "Each archive entry should be counted, and the unreadable archive not at all: " + e.getValidationErrors(),
+        4, e.getNumValidated() );
+      boolean unreadableReported = false;
+      for( ValidationError error : e.getValidationErrors() ) {
+        unreadableReported |= unreadable.getPath().equals( error.getFileName() );
+      }
+      Assert.assertTrue( "The unreadable archive should fail with its own error: " + e.getValidationErrors(), unreadableReported );
+    }
+  }
+}
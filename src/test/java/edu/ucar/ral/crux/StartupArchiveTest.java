@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * Tests for recording the classes loaded by validation into a class-data-sharing archive
+ */
+public class StartupArchiveTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testCreate() throws Exception{
+    //archives can only be recorded by Java 13 or later
+    Assume.assumeTrue( StartupArchive.getJavaVersion() >= 13 );
+    File archive = new File( folder.getRoot(), "crux.jsa" );
+    try {
+      StartupArchive.create( archive, null, Collections.<String>emptyList(), Collections.<String>emptyList() );
+      Assert.assertTrue( "Archive should be created", archive.length() > 0 );
+    }
+    catch( IOException e ){
+      //tests run from the compiled classes rather than the JAR
+      Assert.assertTrue( "Incorrect error: " + e.getMessage(), e.getMessage().contains( "runs from a JAR" ) );
+      Assert.assertFalse( "No archive should be created", archive.exists() );
+    }
+  }
+
+  @Test
+  public void testJavaVersion() throws Exception{
+    Assert.assertTrue( "Incorrect Java version", StartupArchive.getJavaVersion() >= 8 );
+    Assert.assertTrue( "Default archive should be named .jsa", StartupArchive.getDefaultArchive().getName().endsWith( ".jsa" ) );
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for validating files through a pipeline of stages
+ */
+public class ValidationPipelineTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testPipeline() throws Exception{
+    List<StringBuilder> items = new ArrayList<>();
+    for( int i = 0; i < 50; i++ ) {
+      items.add( new StringBuilder( Integer.toString( i ) ) );
+    }
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    new ValidationPipeline<StringBuilder>()
+      .addStage( "first", 2, item -> item.append( "a" ).length() > 0 )
+      //odd items are complete after the second stage
+      .addStage( "second", 1, item -> {
+        maxRunning.accumulateAndGet( running.incrementAndGet(), Math::max );
+        item.append( "b" );
+        running.decrementAndGet();
+        return Integer.parseInt( item.substring( 0, item.length() - 2 ) ) % 2 == 0;
+      } )
+      .addStage( "third", 3, item -> item.append( "c" ).length() > 0 )
+      .run( items );
+    for( int i = 0; i < items.size(); i++ ) {
+      Assert.assertEquals( i + ( i % 2 == 0 ? "abc" : "ab" ), items.get( i ).toString() );
+    }
+    Assert.assertEquals( "The second stage should run on one thread", 1, maxRunning.get() );
+
+    try {
+      new ValidationPipeline<StringBuilder>()
+        .addStage( "failing", 2, item -> {
+          throw new IllegalStateException( "failed " + item );
+        } )
+        .addStage( "unreached", 1, item -> false )
+        .run( items );
+      Assert.fail( "The failure of a stage should be thrown" );
+    }
+    catch( IllegalStateException e ){
+      Assert.assertTrue( e.getMessage(), e.getMessage().startsWith( "failed " ) );
+    }
+  }
+
+  @Test( timeout = 60000 )
+  public void testStageError() throws Exception{
+    List<StringBuilder> items = new ArrayList<>();
+    for( int i = 0; i < 10; i++ ) {
+      items.add( new StringBuilder( Integer.toString( i ) ) );
+    }
+    List<StringBuilder> failed = Collections.synchronizedList( new ArrayList<StringBuilder>() );
+    try {
+      new ValidationPipeline<StringBuilder>()
+        .addStage( "first", 1, item -> true )
+        .addStage( "overflowing", 2, item -> {
+          if( item.toString().equals( "3" ) ) {
+            throw new StackOverflowError();
+          }
+          return true;
+        } )
+        .addStage( "last", 1, item -> item.append( "c" ).length() > 0 )
+        .onFailure( failed::add )
+        .run( items );
+      Assert.fail( "The error of a stage should be thrown" );
+    }
+    catch( StackOverflowError e ){
+      //the pipeline still completed every other item
+    }
+    Assert.assertEquals( "The failed item should be cleaned up", Collections.singletonList( items.get( 3 ) ), failed );
+    for( int i = 0; i < items.size(); i++ ) {
+      Assert.assertEquals( i == 3 ? "3" : i + "c", items.get( i ).toString() );
+    }
+  }
+
+  @Test
+  public void testPipelinedValidation() throws Exception{
+    //the schema location in the compressed file resolves alongside it
+    Files.copy( new File( "src/test/resources/shiporder.xsd" ).toPath(), new File( folder.getRoot(), "shiporder.xsd" ).toPath() );
+    File compressed = new File( folder.getRoot(), "shiporder-fail-schematron.xml.gz" );
+    try( OutputStream out = new GZIPOutputStream( Files.newOutputStream( compressed.toPath() ) ) ){
+      out.write( Files.readAllBytes( new File( "src/test/resources/shiporder-fail-schematron.xml" ).toPath() ) );
+    }
+    List<String> files = Arrays.asList( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder-fail-schema.xml",
+      "src/test/resources/shiporder-fail-schematron.xml", compressed.getPath(), "src/test/resources/shiporder-pass2.xml" );
+    List<String> schematronFiles = Collections.singletonList( "src/test/resources/shiporder.sch" );
+    List<ValidationError> expected = null;
+    try {
+      new Crux().validate( null, schematronFiles, files );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      expected = e.getValidationErrors();
+    }
+    Crux crux = new Crux();
+    crux.setPipelineThreads( 1, 2, 1, 2 );
+    try {
+      crux.validate( null, schematronFiles, files );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      List<ValidationError> errors = e.getValidationErrors();
+      Assert.assertEquals( "Incorrect # of errors: " + errors, expected.size(), errors.size() );
+      for( int i = 0; i < expected.size(); i++ ) {
+        Assert.assertEquals( "Errors should be reported in order", expected.get( i ).toString(), errors.get( i ).toString() );
+      }
+    }
+    Assert.assertEquals( "Incorrect # of validated files", 2,
+      crux.validate( null, schematronFiles, Arrays.asList( files.get( 0 ), files.get( 0 ) ) ) );
+
+    //with a budget smaller than any file, files pass through the pipeline one at a time
+    crux.setMemoryBudgetBytes( 1 );
+    try {
+      crux.validate( null, schematronFiles, files );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      Assert.assertEquals( "Incorrect # of errors with a small budget", expected.size(), e.getValidationErrors().size() );
+    }
+  }
+}
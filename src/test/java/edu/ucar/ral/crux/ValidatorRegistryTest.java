@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for sharing and eviction of validators in a ValidatorRegistry
+ */
+public class ValidatorRegistryTest {
+
+  @Test
+  public void testValidatorsSharedByCatalogSet() throws Exception{
+    ValidatorRegistry registry = new ValidatorRegistry();
+    XML10Validator v1 = registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    XML10Validator v2 = registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    XML10Validator v3 = registry.getXML10Validator( "src/test/resources/gml-rewritesystem-catalog.xml" );
+    Assert.assertSame( "Same catalog set should share a validator", v1, v2 );
+    Assert.assertNotSame( "Different catalog sets should not share a validator", v1, v3 );
+  }
+
+  @Test
+  public void testProfilesShareSchematronValidator() throws Exception{
+    ValidatorRegistry registry = new ValidatorRegistry();
+    ValidationProfile p1 = registry.getProfile( "src/test/resources/shiporder.sch" );
+    ValidationProfile p2 = registry.getProfile( "src/test/resources/shiporder.sch", "src/test/resources/gml-system-catalog.xml" );
+    Assert.assertSame( "Same Schematron file should share a validator", p1.getSchematronValidator(), p2.getSchematronValidator() );
+    p1.validate( "src/test/resources/shiporder-pass1.xml" );
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEviction() throws Exception{
+    //a budget this small can only ever hold the validator that was most recently handed out
+    ValidatorRegistry registry = new ValidatorRegistry( 1 );
+    XML10Validator v1 = registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    v1.validate( "src/test/resources/simplegml.xml" );
+    Assert.assertSame( "Validator should still be cached", v1, registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" ) );
+    Assert.assertTrue( "Compiled grammars should be counted", registry.getEstimatedMemoryBytes() > 0 );
+    registry.getXML10Validator( "src/test/resources/gml-rewritesystem-catalog.xml" );
+    Assert.assertEquals( "Least recently used validator should have been evicted", 1, registry.size() );
+    Assert.assertNotSame( "Evicted validator should be recreated", v1, registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" ) );
+  }
+
+  @Test
+  public void testEstimatedAfterUse() throws Exception{
+    ValidatorRegistry registry = new ValidatorRegistry();
+    XML10Validator v1 = registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    Assert.assertEquals( "A new validator holds no grammars", 0, registry.getEstimatedMemoryBytes() );
+    v1.validate( "src/test/resources/simplegml.xml" );
+    registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    Assert.assertTrue( "Grammars loaded since the validator was handed out should be counted", registry.getEstimatedMemoryBytes() > 0 );
+    registry.clear();
+    Assert.assertEquals( "A cleared registry holds nothing", 0, registry.getEstimatedMemoryBytes() );
+  }
+
+  @Test
+  public void testEvictedValidatorStillUsable() throws Exception{
+    ValidatorRegistry registry = new ValidatorRegistry( 1 );
+    SchematronValidator s1 = registry.getSchematronValidator( "src/test/resources/shiporder.sch" );
+    s1.validate( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder.sch" );
+    registry.getSchematronValidator( "src/test/resources/shiporder.sch" );
+    registry.getXML10Validator( "src/test/resources/gml-system-catalog.xml" );
+    Assert.assertEquals( "Least recently used validator should have been evicted", 1, registry.size() );
+    s1.validate( "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder.sch" );
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for re-validation of changed files
+ */
+public class WatcherTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testRevalidateOnSchemaAndSchematronChange() throws Exception{
+    File xsd = copy( "shiporder.xsd" );
+    File sch = copy( "shiporder.sch" );
+    File xml = copy( "shiporder-pass1.xml" );
+
+    BlockingQueue<ValidationResult> results = new LinkedBlockingQueue<>();
+    try( Watcher watcher = new Watcher( null, sch.getPath(), xml.getPath() ) ) {
+      watcher.setListener( results::add );
+      Thread thread = new Thread( () -> {
+        try {
+          watcher.run();
+        }
+        catch( Exception e ){
+          throw new RuntimeException( e );
+        }
+      } );
+      thread.setDaemon( true );
+      thread.start();
+      Assert.assertTrue( "File should be valid", nextResult( results ).isValid() );
+
+      //a schema change invalidates its grammar and re-validates the instance using it
+      replace( xsd, "name=\"orderperson\" type=\"xs:string\"", "name=\"orderperson\" type=\"xs:positiveInteger\"" );
+      Assert.assertFalse( "File should be invalid against the changed schema", nextResult( results ).isValid() );
+      replace( xsd, "name=\"orderperson\" type=\"xs:positiveInteger\"", "name=\"orderperson\" type=\"xs:string\"" );
+      Assert.assertTrue( "File should be valid against the restored schema", nextResult( results ).isValid() );
+
+      //a Schematron change recompiles the rules and re-validates every file
+      replace( sch, "lt 10.0", "lt 1.0" );
+      Assert.assertEquals( "Incorrect # of validation failures", 2, nextResult( results ).getErrors().size() );
+    }
+  }
+
+  private static ValidationResult nextResult( BlockingQueue<ValidationResult> results ) throws InterruptedException {
+    ValidationResult result = results.poll( 30, TimeUnit.SECONDS );
+    Assert.assertNotNull( "No validation took place", result );
+    return result;
+  }
+
+  private File copy( String name ) throws Exception {
+    File file = new File( folder.getRoot(), name );
+    Files.copy( new File( "src/test/resources", name ).toPath(), file.toPath() );
+    return file;
+  }
+
+  private static void replace( File file, String target, String replacement ) throws Exception {
+    String content = new String( Files.readAllBytes( file.toPath() ), StandardCharsets.UTF_8 );
+    Assert.assertTrue( "Missing " + target, content.contains( target ) );
+    long lastModified = file.lastModified();
+    Files.write( file.toPath(), content.replace( target, replacement ).getBytes( StandardCharsets.UTF_8 ) );
+    //make sure the change is visible to modification time checks on file systems with coarse timestamps
+    file.setLastModified( Math.max( file.lastModified(), lastModified + 1000 ) );
+  }
+}
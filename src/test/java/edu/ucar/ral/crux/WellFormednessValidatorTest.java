@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017. University Corporation for Atmospheric Research (UCAR). All rights reserved.
+ */
+
+package edu.ucar.ral.crux;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for checking well-formedness without validation, alone and ahead of validation
+ */
+public class WellFormednessValidatorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void testWellFormedness() throws Exception{
+    WellFormednessValidator validator = new WellFormednessValidator();
+    //well-formed, though not valid against its schema
+    Assert.assertTrue( "File should be well-formed", validator.validateToResult( "src/test/resources/shiporder-fail-schema.xml", Deadline.NONE ).isValid() );
+
+    List<ValidationError> errors = validator.validateToResult( write( "mismatched.xml", "<a>\n<b></a>" ), Deadline.NONE ).getErrors();
+    Assert.assertEquals( "Incorrect # of errors", 1, errors.size() );
+    Assert.assertEquals( "Incorrect line", 2, errors.get( 0 ).getLine() );
+    Assert.assertTrue( "Incorrect error: " + errors, errors.get( 0 ).getError().contains( "must be terminated by the matching end-tag" ) );
+
+    errors = validator.validateToResult( write( "unbound.xml", "<p:a/>" ), Deadline.NONE ).getErrors();
+    Assert.assertEquals( "Namespace errors should read as they do in validation", "The prefix \"p\" for element \"p:a\" is not bound.", errors.get( 0 ).getError() );
+    Assert.assertFalse( "DOCTYPEs should be rejected", validator.validateToResult( write( "doctype.xml", "<!DOCTYPE a><a/>" ), Deadline.NONE ).isValid() );
+    String spaced = write( "with space.xml", "<a/>" );
+    Assert.assertTrue( "Escapes in file URLs should be decoded",
+      validator.validateToResult( new File( spaced ).toURI().toString(), Deadline.NONE ).isValid() );
+    Assert.assertFalse( "Missing files should be reported", validator.validateToResult( new File( folder.getRoot(), "missing.xml" ).getPath(), Deadline.NONE ).isValid() );
+  }
+
+  @Test
+  public void testPrescreen() throws Exception{
+    byte[] content = Files.readAllBytes( new File( "src/test/resources/shiporder-fail-schema.xml" ).toPath() );
+    String truncated = write( "truncated.xml", new String( Arrays.copyOf( content, content.length / 2 ), StandardCharsets.UTF_8 ) );
+    Crux crux = new Crux();
+    crux.setPrescreening( true );
+    try {
+      crux.validate( null, null, truncated, "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder-fail-schema.xml" );
+      Assert.fail( "Validation should fail" );
+    }
+    catch( ValidationException e ){
+      //the truncated file is only reported as truncated, the invalid file is still validated
+      List<ValidationError> errors = e.getValidationErrors();
+      Assert.assertEquals( "Incorrect file", truncated, errors.get( 0 ).getFileName() );
+      Assert.assertTrue( "Incorrect error: " + errors, errors.get( 0 ).getError().contains( "must start and end within the same entity" ) );
+      Assert.assertEquals( "Incorrect # of errors: " + errors, 4, errors.size() );
+    }
+
+    crux.setWellFormedOnly( true );
+    Assert.assertEquals( "Incorrect # of checked files", 2,
+      crux.validate( null, null, "src/test/resources/shiporder-pass1.xml", "src/test/resources/shiporder-fail-schema.xml" ) );
+  }
+
+  private String write( String name, String content ) throws Exception{
+    File file = folder.newFile( name );
+    Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+    return file.getPath();
+  }
+}
@@ -6,13 +6,24 @@ package edu.ucar.ral.crux;
 
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.xml.sax.SAXParseException;
 
+import java.io.File;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
 /**
  * Tests for XML 1.0 Schema validation
  */
 public class XML10ValidatorTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   @Before
   public void setup(){
@@ -36,6 +47,92 @@ public class XML10ValidatorTest {
     throw new Exception("Validation should have failed");
   }
 
+  @Test
+  public void testSchemaValidationOffline() throws Exception{
+    //remote resources are not allowed by default, so this relies on the bundled XML Schema 1.0 meta-schema
+    XML10Validator validator = new XML10Validator();
+    validator.validate( "src/test/resources/shiporder.xsd" );
+    ValidationResult result = validator.validateToResult( "src/test/resources/invalid-schema.xsd" );
+    Assert.assertEquals( "Incorrect # of validation failures", 2, result.getErrors().size() );
+    Assert.assertSame( "The meta-schema should be compiled once", XML10Validator.getMetaSchemaGrammarPool(),
+      XML10Validator.getMetaSchemaGrammarPool() );
+  }
+
+  @Test
+  public void testValidateToResult() throws Exception{
+    XML10Validator validator = new XML10Validator();
+    Assert.assertTrue( "File should be valid", validator.validateToResult( "src/test/resources/shiporder-pass1.xml" ).isValid() );
+    ValidationResult result = validator.validateToResult( "src/test/resources/shiporder-fail-schema.xml" );
+    Assert.assertEquals( "Incorrect # of validation failures", 3, result.getErrors().size() );
+    Assert.assertTrue( "Failures should have a line number", result.getErrors().get( 0 ).getLine() > 0 );
+  }
+
+  @Test
+  public void testValidateToResultMalformed() throws Exception{
+    XML10Validator validator = new XML10Validator();
+    //the legacy API throws for this file, the result API reports it as a failure instead
+    ValidationResult result = validator.validateToResult( "src/test/resources/attacks/xxe1.xml" );
+    Assert.assertEquals( "Incorrect # of validation failures", 1, result.getErrors().size() );
+  }
+
+  @Test
+  public void testExpiredDeadline() throws Exception{
+    XML10Validator validator = new XML10Validator();
+    Deadline deadline = Deadline.after( 1 );
+    Thread.sleep( 10 );
+    try {
+      validator.validate( "src/test/resources/shiporder-pass1.xml", deadline );
+    }catch(ValidationException e){
+      Assert.assertEquals( "Incorrect # of validation failures", 1, e.getValidationErrors().size() );
+      Assert.assertTrue( "Expected a timeout failure", e.getValidationErrors().get( 0 ) instanceof ValidationTimeoutError );
+      return;
+    }
+    throw new Exception("Validation should have timed out");
+  }
+
+  @Test
+  public void testDeadlinePassesWhileParsing() throws Exception{
+    //a document which never ends, so only the deadline can stop the parser
+    ValidationInput endless = new ValidationInput( "endless.xml", null ) {
+      @Override
+      public InputStream open() {
+        return new InputStream() {
+          private final byte[] start = "<r>".getBytes( StandardCharsets.UTF_8 );
+          private final byte[] element = "<e/>".getBytes( StandardCharsets.UTF_8 );
+          private long position = 0;
+
+          @Override
+          public int read() {
+            long i = position++;
+            return i < start.length ? start[(int) i] : element[(int) ( ( i - start.length ) % element.length )];
+          }
+        };
+      }
+    };
+    XML10Validator validator = new XML10Validator();
+    long startMs = System.currentTimeMillis();
+    ValidationResult result = validator.validateToResult( endless, Deadline.after( 200 ) );
+    long elapsedMs = System.currentTimeMillis() - startMs;
+    Assert.assertTrue( "Expected a timeout failure: " + result.getErrors(), result.isTimedOut() );
+    Assert.assertTrue( "Parsing should stop soon after the deadline, not after " + elapsedMs + " ms", elapsedMs < 5000 );
+  }
+
+  @Test
+  public void testRemoteSchemaGivesUpAtDeadline() throws Exception{
+    //a server which accepts connections but never answers
+    try( ServerSocket server = new ServerSocket( 0, 50, InetAddress.getLoopbackAddress() ) ){
+      File note = write( new File( folder.getRoot(), "note.xml" ), "<note xmlns=\"urn:example:note\" " +
+        "xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" xsi:schemaLocation=\"urn:example:note " +
+        "http://127.0.0.1:" + server.getLocalPort() + "/note.xsd\"/>" );
+      XML10Validator validator = new XML10Validator();
+      validator.setAllowingRemoteResources( true );
+      long startMs = System.currentTimeMillis();
+      ValidationResult result = validator.validateToResult( note.getPath(), Deadline.after( 500 ) );
+      Assert.assertFalse( result.isValid() );
+      Assert.assertTrue( "Reading the schema should stop at the deadline", System.currentTimeMillis() - startMs < 10000 );
+    }
+  }
+
   @Test
   public void testSimpleGMLInstanceValidationWithCatalog() throws Exception{
     XML10Validator validator = new XML10Validator( "src/test/resources/gml-system-catalog.xml" );
@@ -80,4 +177,38 @@ public class XML10ValidatorTest {
     XML10Validator validator = new XML10Validator();
     validator.validate( "src/test/resources/attacks/quadratic-explosion.xml" );
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testSchemaVersionsOfOneNamespace() throws Exception{
+    //two versions of the schema for one namespace, the second adding a required element
+    String schemaStart = "<xs:schema xmlns:xs=\"http://www.w3.org/2001/XMLSchema\" targetNamespace=\"urn:example:note\" " +
+      "elementFormDefault=\"qualified\"><xs:element name=\"note\"><xs:complexType><xs:sequence>" +
+      "<xs:element name=\"to\" type=\"xs:string\"/>";
+    String schemaEnd = "</xs:sequence></xs:complexType></xs:element></xs:schema>";
+    File v1 = folder.newFolder( "v1" );
+    File v2 = folder.newFolder( "v2" );
+    write( new File( v1, "note.xsd" ), schemaStart + schemaEnd );
+    write( new File( v2, "note.xsd" ), schemaStart + "<xs:element name=\"from\" type=\"xs:string\"/>" + schemaEnd );
+    String noteStart = "<note xmlns=\"urn:example:note\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+      "xsi:schemaLocation=\"urn:example:note ";
+    File note1 = write( new File( folder.getRoot(), "note1.xml" ), noteStart + "v1/note.xsd\"><to>a</to></note>" );
+    File note2 = write( new File( folder.getRoot(), "note2.xml" ), noteStart + "v2/note.xsd\"><to>a</to><from>b</from></note>" );
+    File note2Invalid = write( new File( folder.getRoot(), "note2-invalid.xml" ), noteStart + "v2/note.xsd\"><to>a</to></note>" );
+
+    XML10Validator validator = new XML10Validator();
+    Assert.assertTrue( validator.validateToResult( note1.getPath() ).isValid() );
+    Assert.assertTrue( "Each file should be validated against the version it refers to", validator.validateToResult( note2.getPath() ).isValid() );
+    Assert.assertFalse( "The second version should be used", validator.validateToResult( note2Invalid.getPath() ).isValid() );
+    //the cached grammar is used, rather than the schema being read again
+    Assert.assertTrue( new File( v1, "note.xsd" ).delete() );
+    Assert.assertTrue( "The first version should still be used", validator.validateToResult( note1.getPath() ).isValid() );
+    File unhinted = write( new File( folder.getRoot(), "note-unhinted.xml" ), "<note xmlns=\"urn:example:note\"><to>a</to></note>" );
+    Assert.assertTrue( "A file with no location should use the first version cached", validator.validateToResult( unhinted.getPath() ).isValid() );
+    Assert.assertEquals( "Both versions should be cached", 2, validator.getSchemaGrammars().size() );
+  }
+
+  private static File write( File file, String content ) throws Exception{
+    Files.write( file.toPath(), content.getBytes( StandardCharsets.UTF_8 ) );
+    return file;
+  }
+}